@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.query;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.SSEEvent;
+import com.yahoo.bullet.rest.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing a result to an SSE or HTTP response the way Spring MVC does it, i.e. picking a message converter for
+ * each item and writing it, before and after results were written as bytes. Run it with the allocation profiler to see
+ * the bytes allocated per event:
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main ResultWritingBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultWritingBenchmark {
+    @Param({ "1024", "65536" })
+    public int size;
+
+    private PubSubMessage message;
+    // The converters Spring Boot configures Spring MVC to pick from, in the same order
+    private final List<HttpMessageConverter<?>> converters =
+        Arrays.asList(new ByteArrayHttpMessageConverter(), new StringHttpMessageConverter(StandardCharsets.UTF_8),
+                      new MappingJackson2HttpMessageConverter());
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder("{\"records\":[");
+        while (builder.length() < size) {
+            builder.append("{\"id\":\"").append(builder.length()).append("\",\"value\":\"caf\u00e9\"},");
+        }
+        builder.setLength(builder.length() - 1);
+        message = new PubSubMessage("id", builder.append("]}").toString());
+    }
+
+    @Benchmark
+    public byte[] sseBefore() throws IOException {
+        return write(SseEmitter.event().data(message.getContent(), MediaType.APPLICATION_JSON).build());
+    }
+
+    @Benchmark
+    public byte[] sseAfter() throws IOException {
+        return write(SSEEvent.of(Utils.getContentAsBytes(message)).build());
+    }
+
+    @Benchmark
+    public byte[] httpBefore() throws IOException {
+        return write(message.getContentAsString(), MediaType.APPLICATION_JSON, new MockHttpOutputMessage());
+    }
+
+    @Benchmark
+    public byte[] httpAfter() throws IOException {
+        return write(Utils.getContentAsBytes(message), MediaType.APPLICATION_JSON, new MockHttpOutputMessage());
+    }
+
+    private byte[] write(Set<DataWithMediaType> items) throws IOException {
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+        for (DataWithMediaType item : items) {
+            write(item.getData(), item.getMediaType(), output);
+        }
+        return output.getBodyAsBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] write(Object data, MediaType mediaType, MockHttpOutputMessage output) throws IOException {
+        for (HttpMessageConverter<?> converter : converters) {
+            if (converter.canWrite(data.getClass(), mediaType)) {
+                ((HttpMessageConverter<Object>) converter).write(data, mediaType, output);
+                return output.getBodyAsBytes();
+            }
+        }
+        throw new IllegalStateException("No converter for " + data.getClass());
+    }
+}
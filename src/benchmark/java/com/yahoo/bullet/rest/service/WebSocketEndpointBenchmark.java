@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.NativeWebSocketWriter;
+import com.yahoo.bullet.rest.common.RawJSONMessageConverter;
+import com.yahoo.bullet.rest.query.WebSocketQueryHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.DefaultContentTypeResolver;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.user.DefaultUserDestinationResolver;
+import org.springframework.messaging.simp.user.UserDestinationMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+import org.springframework.web.socket.messaging.StompSubProtocolHandler;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares sending results to clients of the STOMP endpoint, which go through the user destination resolver, the simple
+ * broker and STOMP encoding, with sending them to clients of the native endpoint, which are written straight to the
+ * session. Both go through the same {@link WebSocketQueryHandler} and {@link WebSocketService}, and write to sessions
+ * that only count the bytes, so the difference is the framing and routing of each endpoint. STOMP clients use the raw
+ * wire format so that neither endpoint escapes the results. Several threads send at once, each to its own session,
+ * like the threads reading results from the PubSub do. Run it with:
+ * <pre>
+ * mvn -P benchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main WebSocketEndpointBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class WebSocketEndpointBenchmark {
+    private static final String CLIENT_DESTINATION = "/response";
+    private static final String USER_DESTINATION_PREFIX = "/client/";
+
+    @State(Scope.Benchmark)
+    public static class Endpoints {
+        @Param({ "1024", "65536" })
+        public int size;
+
+        private PubSubMessage message;
+        private WebSocketService webSocketService;
+        private SimpleBrokerMessageHandler broker;
+        private UserDestinationMessageHandler userDestinationHandler;
+        private final Map<String, WebSocketSession> stompSessions = new ConcurrentHashMap<>();
+
+        @Setup
+        public void setup() {
+            StringBuilder builder = new StringBuilder("{\"records\":[");
+            while (builder.length() < size) {
+                builder.append("{\"id\":\"").append(builder.length()).append("\",\"value\":\"caf\u00e9\"},");
+            }
+            builder.setLength(builder.length() - 1);
+            message = new PubSubMessage("id", builder.append("]}").toString());
+
+            // Wired like @EnableWebSocketMessageBroker does it, with channels that hand messages on synchronously
+            ExecutorSubscribableChannel clientInboundChannel = new ExecutorSubscribableChannel();
+            ExecutorSubscribableChannel clientOutboundChannel = new ExecutorSubscribableChannel();
+            ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+            broker = new SimpleBrokerMessageHandler(clientInboundChannel, clientOutboundChannel, brokerChannel,
+                                                    Collections.singletonList(CLIENT_DESTINATION));
+            DefaultUserDestinationResolver resolver = new DefaultUserDestinationResolver(new DefaultSimpUserRegistry());
+            resolver.setUserDestinationPrefix(USER_DESTINATION_PREFIX);
+            userDestinationHandler = new UserDestinationMessageHandler(clientInboundChannel, brokerChannel, resolver);
+            StompSubProtocolHandler stompHandler = new StompSubProtocolHandler();
+            clientOutboundChannel.subscribe(m -> {
+                String sessionID = SimpMessageHeaderAccessor.getSessionId(m.getHeaders());
+                stompHandler.handleMessageToClient(stompSessions.get(sessionID), m);
+            });
+            broker.start();
+            userDestinationHandler.start();
+
+            SimpMessagingTemplate template = new SimpMessagingTemplate(brokerChannel);
+            template.setUserDestinationPrefix(USER_DESTINATION_PREFIX);
+            template.setMessageConverter(createMessageConverter());
+            webSocketService = new WebSocketService(mock(QueryService.class), mock(HandlerService.class), template,
+                                                    CLIENT_DESTINATION, 64, new FlowControlService(0));
+        }
+
+        @TearDown
+        public void tearDown() {
+            userDestinationHandler.stop();
+            broker.stop();
+        }
+
+        private WebSocketQueryHandler connectStomp(CountingSession session) {
+            stompSessions.put(session.getId(), session);
+            webSocketService.connectSession(session.getId(), WebSocketService.RAW_WIRE_FORMAT);
+            SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+            subscribe.setSessionId(session.getId());
+            subscribe.setSubscriptionId("sub-0");
+            subscribe.setDestination(CLIENT_DESTINATION + "-user" + session.getId());
+            broker.handleMessage(MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders()));
+            return new WebSocketQueryHandler(webSocketService, session.getId(), "query-" + session.getId());
+        }
+
+        private WebSocketQueryHandler connectNative(CountingSession session) {
+            webSocketService.connectNativeSession(session.getId(), new NativeWebSocketWriter(session, Runnable::run));
+            return new WebSocketQueryHandler(webSocketService, session.getId(), "query-" + session.getId());
+        }
+
+        private static MessageConverter createMessageConverter() {
+            DefaultContentTypeResolver contentTypeResolver = new DefaultContentTypeResolver();
+            contentTypeResolver.setDefaultMimeType(MimeTypeUtils.APPLICATION_JSON);
+            MappingJackson2MessageConverter jsonConverter = new MappingJackson2MessageConverter();
+            jsonConverter.setContentTypeResolver(contentTypeResolver);
+            return new CompositeMessageConverter(Arrays.asList(new RawJSONMessageConverter(), new StringMessageConverter(),
+                                                               new ByteArrayMessageConverter(), jsonConverter));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Clients {
+        private CountingSession stompSession;
+        private CountingSession nativeSession;
+        private WebSocketQueryHandler stompHandler;
+        private WebSocketQueryHandler nativeHandler;
+
+        @Setup(Level.Trial)
+        public void setup(Endpoints endpoints) {
+            stompSession = new CountingSession();
+            nativeSession = new CountingSession();
+            stompHandler = endpoints.connectStomp(stompSession);
+            nativeHandler = endpoints.connectNative(nativeSession);
+        }
+    }
+
+    @Benchmark
+    public long stomp(Endpoints endpoints, Clients clients) {
+        clients.stompHandler.send(endpoints.message);
+        return clients.stompSession.bytes.get();
+    }
+
+    @Benchmark
+    public long nativeEndpoint(Endpoints endpoints, Clients clients) {
+        clients.nativeHandler.send(endpoints.message);
+        return clients.nativeSession.bytes.get();
+    }
+
+    /**
+     * A session that only counts what is written to it.
+     */
+    private static class CountingSession implements WebSocketSession {
+        private final String id = UUID.randomUUID().toString();
+        private final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            bytes.addAndGet(message.getPayloadLength());
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest;
+
+import com.yahoo.bullet.rest.controller.NativeWebSocketHandler;
+import com.yahoo.bullet.rest.controller.WebSocketController;
+import com.yahoo.bullet.rest.service.FlowControlService;
+import com.yahoo.bullet.rest.service.WebSocketService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registers the native WebSocket endpoint, which serves the same requests as the STOMP endpoint without the SockJS
+ * and STOMP framing or the broker. See {@link NativeWebSocketHandler} for its protocol.
+ */
+@Configuration
+@EnableWebSocket
+@ConditionalOnProperty(prefix = "bullet.websocket.native", name = "enabled", havingValue = "true")
+public class NativeWebSocketConfiguration implements WebSocketConfigurer {
+    private static final String ALLOW_ORIGINS = "*";
+    private static final String THREAD_PREFIX = "bullet-native-websocket-send-";
+
+    @Value("${bullet.endpoint.native.websocket}")
+    private String endpoint;
+    @Value("${bullet.websocket.native.send.threads}")
+    private int sendThreads;
+    @Value("${bullet.websocket.message.send.time.limit.secs}")
+    private int messageSendTimeLimit;
+    @Value("${bullet.websocket.compression.enabled}")
+    private boolean compressionEnabled;
+    @Autowired
+    private WebSocketController webSocketController;
+    @Autowired
+    private WebSocketService webSocketService;
+    @Autowired
+    private FlowControlService flowControlService;
+
+    /**
+     * Creates the executor that responses to sessions of the native endpoint are written on.
+     *
+     * @return The {@link ExecutorService} to write on.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService nativeWebSocketSendExecutor() {
+        if (sendThreads <= 0) {
+            throw new IllegalArgumentException("The number of native WebSocket send threads must be positive: " + sendThreads);
+        }
+        return Executors.newFixedThreadPool(sendThreads, new CustomizableThreadFactory(THREAD_PREFIX));
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        NativeWebSocketHandler handler = new NativeWebSocketHandler(webSocketController, webSocketService, flowControlService,
+                                                                    nativeWebSocketSendExecutor(), messageSendTimeLimit * 1000L);
+        registry.addHandler(handler, endpoint)
+                .setHandshakeHandler(new WebSocketConfiguration.CompressionHandshakeHandler(compressionEnabled))
+                .setAllowedOrigins(ALLOW_ORIGINS);
+    }
+}
@@ -14,6 +14,7 @@ import com.yahoo.bullet.pubsub.PubSubMessageSerDe;
 import com.yahoo.bullet.pubsub.PubSubResponder;
 import com.yahoo.bullet.pubsub.Publisher;
 import com.yahoo.bullet.pubsub.Subscriber;
+import com.yahoo.bullet.rest.common.ReaderSettings;
 import com.yahoo.bullet.rest.service.HandlerService;
 import com.yahoo.bullet.rest.service.QueryService;
 import com.yahoo.bullet.storage.StorageManager;
@@ -36,6 +37,40 @@ public class PubSubConfiguration {
         return null;
     }
 
+    /**
+     * Creates the {@link ReaderSettings} used by the threads reading from the {@link Subscriber} instances.
+     *
+     * @param blocking Whether the {@link Subscriber} blocks while receiving.
+     * @param idleSpins The number of empty reads to busy spin for.
+     * @param idleYields The number of empty reads to yield for after spinning.
+     * @param maxSleep The maximum time to sleep between empty reads after yielding.
+     * @param batchSize The maximum number of messages to read, respond to and commit at a time.
+     * @param batchLinger The maximum time to wait to fill up a batch after reading its first message.
+     * @param dispatchShards The number of shards to dispatch responses to or 0 to not use any.
+     * @param dispatchQueueSize The maximum number of pending responses in each shard.
+     * @return The created instance.
+     */
+    @Bean
+    public ReaderSettings readerSettings(@Value("${bullet.pubsub.reader.blocking}") boolean blocking,
+                                         @Value("${bullet.pubsub.reader.idle.spins}") int idleSpins,
+                                         @Value("${bullet.pubsub.reader.idle.yields}") int idleYields,
+                                         @Value("${bullet.pubsub.reader.max.sleep.ms}") long maxSleep,
+                                         @Value("${bullet.pubsub.reader.batch.size}") int batchSize,
+                                         @Value("${bullet.pubsub.reader.batch.linger.ms}") long batchLinger,
+                                         @Value("${bullet.pubsub.reader.dispatch.shards}") int dispatchShards,
+                                         @Value("${bullet.pubsub.reader.dispatch.queue.size}") int dispatchQueueSize) {
+        ReaderSettings settings = new ReaderSettings();
+        settings.setBlocking(blocking);
+        settings.setIdleSpins(idleSpins);
+        settings.setIdleYields(idleYields);
+        settings.setMaxSleepMS(maxSleep);
+        settings.setBatchSize(batchSize);
+        settings.setBatchLingerMS(batchLinger);
+        settings.setDispatchShards(dispatchShards);
+        settings.setDispatchQueueSize(dispatchQueueSize);
+        return settings;
+    }
+
     /**
      * Creates a {@link QueryService} instance from various necessary components.
      *
@@ -45,7 +80,8 @@ public class PubSubConfiguration {
      * @param publishers The non-empty {@link List} of {@link Publisher} to use.
      * @param subscribers The non-empty {@link List} of {@link Subscriber} to use.
      * @param pubSubMessageSendSerDe The {@link PubSubMessageSerDe} to use.
-     * @param sleep The time to sleep between checking for messages from the pubsub.
+     * @param sleep The initial time to sleep between checking for messages from the pubsub.
+     * @param readerSettings The {@link ReaderSettings} to use for reading from the pubsub.
      * @param metricPublisher The optional {@link MetricPublisher} to use to report metrics.
      * @return The created {@link QueryService} instance.
      */
@@ -54,7 +90,7 @@ public class PubSubConfiguration {
                                      ResponderClasses responderClasses, List<Publisher> publishers,
                                      List<Subscriber> subscribers, PubSubMessageSerDe pubSubMessageSendSerDe,
                                      @Value("${bullet.pubsub.sleep-ms}") int sleep,
-                                     MetricPublisher metricPublisher) {
+                                     ReaderSettings readerSettings, MetricPublisher metricPublisher) {
         List<PubSubResponder> responders;
         if (responderClasses == null) {
             responders = Collections.singletonList(handlerService);
@@ -62,7 +98,11 @@ public class PubSubConfiguration {
             responders = responderClasses.create();
             responders.add(handlerService);
         }
-        return new QueryService(queryStorageManager, responders, publishers, subscribers, pubSubMessageSendSerDe, sleep, metricPublisher);
+        QueryService queryService = new QueryService(queryStorageManager, responders, publishers, subscribers,
+                                                     pubSubMessageSendSerDe, sleep, readerSettings, metricPublisher);
+        // Queries whose handlers expire or whose clients all leave are killed so the backend stops working on them
+        handlerService.setKillListener(queryService::kill);
+        return queryService;
     }
 
     /**
@@ -5,13 +5,24 @@
  */
 package com.yahoo.bullet.rest;
 
+import com.yahoo.bullet.rest.common.FlowControlHandlerDecorator;
+import com.yahoo.bullet.rest.common.RawJSONMessageConverter;
+import com.yahoo.bullet.rest.service.FlowControlService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.WebSocketExtension;
 import org.springframework.web.socket.config.annotation.AbstractWebSocketMessageBrokerConfigurer;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Configuration
 @EnableWebSocketMessageBroker
@@ -32,11 +43,17 @@ public class WebSocketConfiguration extends AbstractWebSocketMessageBrokerConfig
     private int messageSizeLimit;
     @Value("${bullet.websocket.message.send.time.limit.secs}")
     private int messageSendTimeLimit;
-
+    @Value("${bullet.websocket.compression.enabled}")
+    private boolean compressionEnabled;
+    @Autowired
+    private FlowControlService flowControlService;
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
-        registry.addEndpoint(endpoint).setAllowedOrigins(ALLOW_ORIGINS).withSockJS();
+        registry.addEndpoint(endpoint)
+                .setHandshakeHandler(new CompressionHandshakeHandler(compressionEnabled))
+                .setAllowedOrigins(ALLOW_ORIGINS)
+                .withSockJS();
     }
 
     @Override
@@ -51,5 +68,41 @@ public class WebSocketConfiguration extends AbstractWebSocketMessageBrokerConfig
         registration.setSendBufferSizeLimit(sessionBufferSize * 1024);
         registration.setMessageSizeLimit(messageSizeLimit * 1024);
         registration.setSendTimeLimit(messageSendTimeLimit * 1000);
+        // Sees the frames written to each session so that responses are only sent as fast as the client reads them
+        // Responses are sent to the user destination, which the client sees as the prefixed client destination
+        String responseDestination = clientDestinationPrefix + clientDestination;
+        registration.addDecoratorFactory(handler -> new FlowControlHandlerDecorator(handler, flowControlService,
+                                                                                    responseDestination));
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Only converts responses for sessions using the raw wire format. The default converters handle the rest
+        messageConverters.add(new RawJSONMessageConverter());
+        return true;
+    }
+
+    /**
+     * Lets clients negotiate the permessage-deflate extension only if WebSocket compression is enabled. The container
+     * does the compressing once it is negotiated.
+     */
+    static class CompressionHandshakeHandler extends DefaultHandshakeHandler {
+        static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+        private final boolean compressionEnabled;
+
+        CompressionHandshakeHandler(boolean compressionEnabled) {
+            this.compressionEnabled = compressionEnabled;
+        }
+
+        @Override
+        protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request, List<WebSocketExtension> requested,
+                                                                     List<WebSocketExtension> supported) {
+            List<WebSocketExtension> extensions = super.filterRequestedExtensions(request, requested, supported);
+            if (compressionEnabled) {
+                return extensions;
+            }
+            return extensions.stream().filter(e -> !PERMESSAGE_DEFLATE.equalsIgnoreCase(e.getName())).collect(Collectors.toList());
+        }
     }
 }
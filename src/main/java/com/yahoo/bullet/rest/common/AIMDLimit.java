@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A concurrency limit that adapts with additive increase and multiplicative decrease (AIMD). Each on-time sample raises
+ * the limit by one if the limit is being used, and a late sample or drop scales it down by the backoff ratio. The limit
+ * is scaled down at most once per tolerance: late samples and drops that arrive within the tolerance of the last
+ * decrease are from queries that were already running then, so a burst of them backs off only once. The limit stays
+ * between the minimum and the maximum.
+ */
+public class AIMDLimit {
+    private final int minimum;
+    private final int maximum;
+    private final long toleranceMS;
+    private final double backoffRatio;
+    private final LongSupplier clock;
+    private volatile int limit;
+    private long lastDecreaseMS;
+    private boolean decreased = false;
+
+    /**
+     * Constructor.
+     *
+     * @param minimum The smallest the limit can go. It is at least 1.
+     * @param initial The limit to start at. It is kept between the minimum and the maximum.
+     * @param maximum The largest the limit can go. It is at least the minimum.
+     * @param toleranceMS The delay in ms past the expected time up to which a sample is on time. It is also the time
+     *                    after a decrease during which the limit is not decreased again.
+     * @param backoffRatio The ratio in (0, 1) to scale the limit by on a late sample or a drop.
+     */
+    public AIMDLimit(int minimum, int initial, int maximum, long toleranceMS, double backoffRatio) {
+        this(minimum, initial, maximum, toleranceMS, backoffRatio, System::currentTimeMillis);
+    }
+
+    AIMDLimit(int minimum, int initial, int maximum, long toleranceMS, double backoffRatio, LongSupplier clock) {
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+            throw new IllegalArgumentException("The backoff ratio must be between 0 and 1: " + backoffRatio);
+        }
+        this.minimum = Math.max(minimum, 1);
+        this.maximum = Math.max(maximum, this.minimum);
+        this.toleranceMS = toleranceMS;
+        this.backoffRatio = backoffRatio;
+        this.clock = clock;
+        this.limit = Math.min(Math.max(initial, this.minimum), this.maximum);
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return The current limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Adjusts the limit for a sample.
+     *
+     * @param delayMS The time in ms past when the sample was expected.
+     * @param inUse The number of things currently admitted under the limit.
+     * @return The change made to the limit.
+     */
+    public synchronized int onSample(long delayMS, int inUse) {
+        if (delayMS > toleranceMS) {
+            return decrease();
+        }
+        // Only grow if the limit is actually being used. Otherwise it grows without ever being tested
+        if (inUse * 2 < limit || limit >= maximum) {
+            return 0;
+        }
+        limit++;
+        return 1;
+    }
+
+    /**
+     * Adjusts the limit for something that was dropped, i.e. it never finished in time.
+     *
+     * @return The change made to the limit.
+     */
+    public synchronized int onDrop() {
+        return decrease();
+    }
+
+    private int decrease() {
+        long now = clock.getAsLong();
+        if (decreased && now - lastDecreaseMS < toleranceMS) {
+            return 0;
+        }
+        int previous = limit;
+        limit = Math.max(minimum, (int) (previous * backoffRatio));
+        decreased = true;
+        lastDecreaseMS = now;
+        return limit - previous;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A BQL query with named parameters in place of some of its literals. A parameter is written as {@code :name} outside
+ * of quoted literals, identifiers and comments, where the name starts with a letter or an underscore and is followed by
+ * letters, digits or underscores. The template is split around its parameters once when created so that binding values
+ * to it only renders the values as BQL literals and joins the pieces. Values are always rendered as literals, so they
+ * cannot change the structure of the query: strings are quoted and escaped, and any other value must be null, a boolean,
+ * a plain number or a list of these.
+ */
+public class BQLTemplate {
+    @Getter
+    private final String template;
+    @Getter
+    private final List<String> parameters;
+    // The BQL around the parameters. There is one more segment than there are slots
+    private final List<String> segments = new ArrayList<>();
+    private final List<String> slots = new ArrayList<>();
+
+    private static final char PARAMETER_PREFIX = ':';
+    private static final String SINGLE_QUOTE = "'";
+    private static final String ESCAPED_SINGLE_QUOTE = "''";
+    private static final Pattern NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+    /**
+     * Constructor that takes the BQL template.
+     *
+     * @param template The BQL with parameters.
+     * @throws IllegalArgumentException if a parameter has no name.
+     */
+    public BQLTemplate(String template) {
+        this.template = template;
+        StringBuilder segment = new StringBuilder();
+        char quote = 0;
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            int commentEnd = quote == 0 ? Utils.skipBQLComment(template, i) : i;
+            if (commentEnd > i) {
+                // A value bound in a comment, e.g. one with a line break, could end it and become part of the query
+                segment.append(template, i, commentEnd);
+                i = commentEnd;
+                continue;
+            }
+            if (quote == 0 && c == PARAMETER_PREFIX) {
+                int end = i + 1;
+                while (end < template.length() && isNameChar(template.charAt(end), end == i + 1)) {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw new IllegalArgumentException("Expected a parameter name after '" + PARAMETER_PREFIX + "' at position " + i);
+                }
+                segments.add(segment.toString());
+                segment.setLength(0);
+                slots.add(template.substring(i + 1, end));
+                i = end;
+                continue;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            segment.append(c);
+            i++;
+        }
+        segments.add(segment.toString());
+        parameters = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(slots)));
+    }
+
+    /**
+     * Binds the given values to the parameters of this template.
+     *
+     * @param values The {@link Map} of parameter names to values. A value can be null, a {@link Boolean}, a finite
+     *               {@link Number} that renders as a plain numeric literal, a {@link String} or a {@link Collection} of
+     *               these.
+     * @return The BQL with the values in place of the parameters.
+     * @throws IllegalArgumentException if a value is missing, unknown or cannot be rendered as a literal.
+     */
+    public String bind(Map<String, Object> values) {
+        Map<String, Object> bound = values == null ? Collections.emptyMap() : values;
+        Set<String> unknown = bound.keySet().stream().filter(name -> !parameters.contains(name)).collect(Collectors.toSet());
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown parameters: " + unknown);
+        }
+        StringBuilder builder = new StringBuilder(template.length());
+        for (int i = 0; i < slots.size(); i++) {
+            String name = slots.get(i);
+            if (!bound.containsKey(name)) {
+                throw new IllegalArgumentException("Missing a value for the parameter: " + name);
+            }
+            String segment = segments.get(i);
+            builder.append(segment);
+            // A negative number right after a minus would start a line comment
+            if (segment.endsWith("-")) {
+                builder.append(' ');
+            }
+            appendLiteral(builder, name, bound.get(name));
+        }
+        return builder.append(segments.get(slots.size())).toString();
+    }
+
+    private static boolean isNameChar(char c, boolean first) {
+        return c == '_' || (first ? Character.isLetter(c) : Character.isLetterOrDigit(c));
+    }
+
+    private static void appendLiteral(StringBuilder builder, String name, Object value) {
+        if (value == null) {
+            builder.append("NULL");
+        } else if (value instanceof Boolean) {
+            builder.append((Boolean) value ? "TRUE" : "FALSE");
+        } else if (value instanceof Number) {
+            double asDouble = ((Number) value).doubleValue();
+            if (Double.isNaN(asDouble) || Double.isInfinite(asDouble)) {
+                throw new IllegalArgumentException("The value for the parameter " + name + " is not a finite number: " + value);
+            }
+            // Other kinds of numbers can render as anything, so only plain numeric literals are let through
+            String rendered = value.toString();
+            if (!NUMBER.matcher(rendered).matches()) {
+                throw new IllegalArgumentException("The value for the parameter " + name + " is not a plain number: " + value);
+            }
+            builder.append(rendered);
+        } else if (value instanceof String) {
+            builder.append(SINGLE_QUOTE).append(((String) value).replace(SINGLE_QUOTE, ESCAPED_SINGLE_QUOTE)).append(SINGLE_QUOTE);
+        } else if (value instanceof Collection) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    builder.append(", ");
+                }
+                appendLiteral(builder, name, item);
+                first = false;
+            }
+            builder.append(']');
+        } else {
+            throw new IllegalArgumentException("The value for the parameter " + name + " is not a literal: " + value);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache that holds up to a maximum number of entries and can be used from any thread. Getting and putting do not
+ * lock. Each entry records when it was last used, and the thread whose put takes the cache over its maximum evicts the
+ * least recently used entries. Eviction removes a tenth of the maximum beyond what is needed so that it is not done on
+ * every put once the cache is full. It runs on one thread at a time and is O(n log n) in the number of entries. Entries
+ * used while an eviction is running may still be evicted, so the order of eviction is only approximately least
+ * recently used.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class BoundedCache<K, V> {
+    private static class Entry<V> {
+        private final V value;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    private static class Candidate<K, V> {
+        private final K key;
+        private final Entry<V> entry;
+        // Copied so that the entry being used during the sort does not change the order
+        private final long lastUsed;
+
+        private Candidate(K key, Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastUsed = entry.lastUsed;
+        }
+    }
+
+    private static final int EVICTION_BATCH_DIVISOR = 10;
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries The positive maximum number of entries to hold.
+     */
+    public BoundedCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of entries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the value for the given key and marks it as recently used.
+     *
+     * @param key The non-null key to look up.
+     * @return The cached value or null if there is none.
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.value;
+    }
+
+    /**
+     * Caches the given value for the given key, replacing any value already cached for it. This evicts the least
+     * recently used entries if the cache is over its maximum.
+     *
+     * @param key The non-null key.
+     * @param value The non-null value.
+     */
+    public void put(K key, V value) {
+        entries.put(key, new Entry<>(value));
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the entry for the given key if its value is the given one.
+     *
+     * @param key The non-null key.
+     * @param value The value to remove.
+     */
+    public void remove(K key, V value) {
+        entries.computeIfPresent(key, (k, entry) -> entry.value == value ? null : entry);
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of cached entries.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        // If another thread is already evicting, the cache can stay over its maximum till the next put
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            int excess = entries.size() - maxEntries;
+            if (excess <= 0) {
+                return;
+            }
+            List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+            entries.forEach((key, entry) -> candidates.add(new Candidate<>(key, entry)));
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastUsed));
+            int evicted = Math.min(excess + maxEntries / EVICTION_BATCH_DIVISOR, candidates.size());
+            // Entries that were replaced since are not removed
+            candidates.subList(0, evicted).forEach(candidate -> entries.remove(candidate.key, candidate.entry));
+        } finally {
+            evicting.unlock();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A {@link PubSubMessage} that keeps its content in each {@link ResultEncoding} it is asked for. Wrap a message in this
+ * before handing it to several handlers so that its content is encoded once per encoding instead of once per handler.
+ */
+public class EncodedMessage extends PubSubMessage {
+    private static final long serialVersionUID = 2467310593860842170L;
+
+    // Guarded by this
+    private transient Map<ResultEncoding, byte[]> encoded;
+
+    /**
+     * Constructor that takes the message to encode.
+     *
+     * @param message The {@link PubSubMessage} with JSON content.
+     */
+    public EncodedMessage(PubSubMessage message) {
+        super(message.getId(), message.getContent(), message.getMetadata());
+    }
+
+    /**
+     * Gets the content of this message in the given encoding. It is encoded the first time it is asked for.
+     *
+     * @param encoding The {@link ResultEncoding} to get the content in.
+     * @return The encoded content.
+     */
+    public synchronized byte[] getContent(ResultEncoding encoding) {
+        if (encoded == null) {
+            encoded = new EnumMap<>(ResultEncoding.class);
+        }
+        return encoded.computeIfAbsent(encoding, e -> e.encode(Utils.getContentAsBytes(this)));
+    }
+}
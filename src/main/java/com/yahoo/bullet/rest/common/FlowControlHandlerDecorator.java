@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.rest.service.FlowControlService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+
+/**
+ * Tells the {@link FlowControlService} when WebSocket sessions open and close and when a response has been written to a
+ * session. Responses are the STOMP MESSAGE frames to the destination the service sends responses to. Other frames,
+ * including messages to other destinations such as broadcasts, are not counted since the service did not send them.
+ * The broker writes to the session it is handed here, so each write is seen once it is done. Sessions whose outbound
+ * queue overflows are closed if the service is set to kill them.
+ */
+@Slf4j
+public class FlowControlHandlerDecorator extends WebSocketHandlerDecorator {
+    private static final String MESSAGE_FRAME = "MESSAGE\n";
+    private static final String DESTINATION_HEADER = "destination:";
+
+    private final FlowControlService flowControlService;
+    private final String destination;
+
+    /**
+     * Constructor that takes the handler to decorate.
+     *
+     * @param delegate The {@link WebSocketHandler} to decorate.
+     * @param flowControlService The {@link FlowControlService} to use.
+     * @param destination The destination that clients get responses at, i.e. the prefixed client destination.
+     */
+    public FlowControlHandlerDecorator(WebSocketHandler delegate, FlowControlService flowControlService,
+                                       String destination) {
+        super(delegate);
+        this.flowControlService = flowControlService;
+        this.destination = destination;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        flowControlService.open(session.getId(), () -> close(session));
+        super.afterConnectionEstablished(new DeliveryTrackingSession(session));
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        flowControlService.close(session.getId());
+        super.afterConnectionClosed(session, closeStatus);
+    }
+
+    private static void close(WebSocketSession session) {
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            log.error("Could not close WebSocket session {}", session.getId(), e);
+        }
+    }
+
+    private class DeliveryTrackingSession extends WebSocketSessionDecorator {
+        private DeliveryTrackingSession(WebSocketSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            super.sendMessage(message);
+            // Only responses are flow controlled. Other frames such as heartbeats and receipts are not counted
+            if (message instanceof TextMessage && isResponse(((TextMessage) message).getPayload())) {
+                flowControlService.delivered(getId());
+            }
+        }
+    }
+
+    private boolean isResponse(String frame) {
+        if (!frame.startsWith(MESSAGE_FRAME)) {
+            return false;
+        }
+        // Headers are one per line till an empty line
+        int start = MESSAGE_FRAME.length();
+        int end;
+        while ((end = frame.indexOf('\n', start)) > start) {
+            if (frame.startsWith(DESTINATION_HEADER, start)) {
+                return frame.substring(start + DESTINATION_HEADER.length(), end).equals(destination);
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel that expires items after a number of ticks. Scheduling is O(1) and can be done from any thread.
+ * Ticking is O(1) plus the number of items in the current bucket and must only be done from one thread at a time. Items
+ * are not cancelled. The consumer of expired items should check if an item is still relevant when it expires.
+ *
+ * @param <T> The type of the items being expired.
+ */
+public class HashedTimerWheel<T> {
+    private static class Timeout<T> {
+        private final T item;
+        private final long delay;
+        private long rounds;
+
+        private Timeout(T item, long delay) {
+            this.item = item;
+            this.delay = delay;
+        }
+    }
+
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<T>>[] buckets;
+    private final int mask;
+    private long tick = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param size The minimum number of buckets in the wheel. This is rounded up to a power of 2.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(int size) {
+        if (size <= 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("The size of the wheel must be positive and at most 2^30: " + size);
+        }
+        int buckets = Integer.highestOneBit(size);
+        buckets = buckets < size ? buckets << 1 : buckets;
+        this.buckets = new Queue[buckets];
+        for (int i = 0; i < buckets; ++i) {
+            this.buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = buckets - 1;
+    }
+
+    /**
+     * Schedules an item to expire after the given number of ticks.
+     *
+     * @param item The item to expire.
+     * @param ticks The number of ticks after which to expire the item. Anything less than 1 expires on the next tick.
+     */
+    public void schedule(T item, long ticks) {
+        pending.add(new Timeout<>(item, Math.max(ticks, 1L)));
+    }
+
+    /**
+     * Advances the wheel by one tick and expires all the items that are due.
+     *
+     * @param onExpiry The {@link Consumer} to give each expired item to.
+     */
+    public void tick(Consumer<T> onExpiry) {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            timeout.rounds = (timeout.delay - 1) / buckets.length;
+            buckets[(int) ((tick + timeout.delay - 1) & mask)].add(timeout);
+        }
+        Queue<Timeout<T>> bucket = buckets[(int) (tick & mask)];
+        for (int i = bucket.size(); i > 0; --i) {
+            timeout = bucket.poll();
+            if (timeout.rounds == 0) {
+                onExpiry.accept(timeout.item);
+            } else {
+                timeout.rounds--;
+                bucket.add(timeout);
+            }
+        }
+        tick++;
+    }
+
+    /**
+     * Gets the number of buckets in the wheel.
+     *
+     * @return The number of buckets.
+     */
+    public int getSize() {
+        return buckets.length;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import lombok.Getter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An adaptive strategy for idling a thread that polls for work. Consecutive calls to {@link #idle()} first spin, then
+ * yield the processor and finally sleep for exponentially increasing durations up to a maximum. Calling
+ * {@link #reset()} when work is found starts the progression over. This instance is not thread-safe and is meant to be
+ * used by a single polling thread.
+ * <p>
+ * Each spin calls {@code Thread.onSpinWait()} when running on Java 9 or later, which tells the processor that the
+ * thread is busy waiting. On Java 8, spinning does nothing.
+ */
+public class IdleStrategy {
+    private static final long MIN_SLEEP_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    // Thread.onSpinWait() if it exists. The JIT inlines calls through a static final handle
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private final int maxSpins;
+    private final int maxYields;
+    private final long minSleepNS;
+    private final long maxSleepNS;
+
+    private int spins = 0;
+    private int yields = 0;
+    @Getter
+    private long sleepNS;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSpins The number of times to busy spin before yielding.
+     * @param maxYields The number of times to yield before sleeping.
+     * @param minSleepMS The duration to sleep for the first time after spinning and yielding.
+     * @param maxSleepMS The maximum duration to sleep for. Sleep durations double till they reach this value.
+     */
+    public IdleStrategy(int maxSpins, int maxYields, long minSleepMS, long maxSleepMS) {
+        this.maxSpins = Math.max(maxSpins, 0);
+        this.maxYields = Math.max(maxYields, 0);
+        this.minSleepNS = TimeUnit.MILLISECONDS.toNanos(Math.max(minSleepMS, 0));
+        this.maxSleepNS = Math.max(TimeUnit.MILLISECONDS.toNanos(maxSleepMS), this.minSleepNS);
+        this.sleepNS = this.minSleepNS;
+    }
+
+    /**
+     * Idle the current thread once. Each successive call idles for at least as long as the previous one.
+     *
+     * @return The time spent idling in nanoseconds.
+     * @throws InterruptedException if the thread was interrupted while sleeping.
+     */
+    public long idle() throws InterruptedException {
+        long start = System.nanoTime();
+        if (spins < maxSpins) {
+            spins++;
+            onSpinWait();
+        } else if (yields < maxYields) {
+            yields++;
+            Thread.yield();
+        } else {
+            TimeUnit.NANOSECONDS.sleep(sleepNS);
+            sleepNS = Math.min(Math.max(sleepNS << 1, MIN_SLEEP_NS), maxSleepNS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Resets the strategy to start spinning again. Call this when work was found.
+     */
+    public void reset() {
+        spins = 0;
+        yields = 0;
+        sleepNS = minSleepNS;
+    }
+
+    /**
+     * Hints to the processor that the current thread is spinning, if the JVM supports it.
+     */
+    static void onSpinWait() {
+        if (ON_SPIN_WAIT == null) {
+            return;
+        }
+        try {
+            ON_SPIN_WAIT.invokeExact();
+        } catch (Throwable e) {
+            // Thread.onSpinWait() does not throw
+        }
+    }
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes frames to a session of the native WebSocket endpoint on a shared send executor. Frames to a session are
+ * written one at a time in the order they were sent, so a session never holds more than one thread of the executor and
+ * slow clients do not hold up the threads that send to them.
+ */
+@Slf4j
+public class NativeWebSocketWriter {
+    private final WebSocketSession session;
+    private final Executor executor;
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+    /**
+     * Constructor.
+     *
+     * @param session The {@link WebSocketSession} to write to.
+     * @param executor The {@link Executor} to write on.
+     */
+    public NativeWebSocketWriter(WebSocketSession session, Executor executor) {
+        this.session = session;
+        this.executor = executor;
+    }
+
+    /**
+     * Writes a frame once the frames sent before it have been written.
+     *
+     * @param frame The UTF-8 encoded JSON frame to write.
+     * @param written The {@link Runnable} to run once the frame has been written.
+     */
+    public synchronized void send(byte[] frame, Runnable written) {
+        last = last.thenRunAsync(() -> write(frame, written), executor);
+    }
+
+    /**
+     * Closes the session. Frames that were not written yet are dropped.
+     *
+     * @param status The {@link CloseStatus} to close with.
+     */
+    public void close(CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (Exception e) {
+            log.error("Could not close WebSocket session {}", session.getId(), e);
+        }
+    }
+
+    private void write(byte[] frame, Runnable written) {
+        if (!session.isOpen()) {
+            return;
+        }
+        try {
+            session.sendMessage(new TextMessage(frame));
+            written.run();
+        } catch (Exception e) {
+            log.error("Could not write to WebSocket session {}", session.getId(), e);
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+}
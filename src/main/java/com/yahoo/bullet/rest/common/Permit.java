@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A reservation of capacity that is given back by calling {@link #release()}. Releasing is idempotent and thread-safe,
+ * so every place that a query can finish from may release its permit. A permit can also report how long its query took
+ * to produce a result to a {@link Listener}.
+ */
+public class Permit {
+    /**
+     * Denotes that it is not known when the first result for the query of a permit is expected.
+     */
+    public static final long UNKNOWN = -1L;
+
+    /**
+     * Listens to what happens to permits.
+     */
+    public interface Listener {
+        /**
+         * Called at most once per permit when its query produces its first result.
+         *
+         * @param delayMS The time in ms past when the result was expected. It is 0 if it was not late.
+         */
+        default void onResult(long delayMS) {
+        }
+
+        /**
+         * Called when the query of a permit did not finish in time.
+         */
+        default void onTimeout() {
+        }
+
+        /**
+         * Called once per permit when it is released.
+         *
+         * @param heldMS The time in ms that the permit was held for.
+         */
+        default void onRelease(long heldMS) {
+        }
+    }
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private final AtomicBoolean resulted = new AtomicBoolean(false);
+    private final Runnable onRelease;
+    private final Listener listener;
+    private final long acquired = System.currentTimeMillis();
+    private volatile long expectedMS = UNKNOWN;
+    private volatile Permit joined;
+
+    /**
+     * Constructor.
+     *
+     * @param onRelease The non-null {@link Runnable} to run exactly once when this permit is released.
+     */
+    public Permit(Runnable onRelease) {
+        this(onRelease, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param onRelease The non-null {@link Runnable} to run exactly once when this permit is released.
+     * @param listener The {@link Listener} to notify. It can be null.
+     */
+    public Permit(Runnable onRelease, Listener listener) {
+        Objects.requireNonNull(onRelease);
+        this.onRelease = onRelease;
+        this.listener = listener;
+    }
+
+    /**
+     * Releases this permit if it has not already been released.
+     *
+     * @return true if this call released the permit.
+     */
+    public boolean release() {
+        return release(true);
+    }
+
+    /**
+     * Releases this permit without notifying the listener if it has not already been released. This is for permits that
+     * are given back without being used, e.g. because another permit needed along with it could not be acquired.
+     *
+     * @return true if this call released the permit.
+     */
+    public boolean cancel() {
+        return release(false);
+    }
+
+    /**
+     * Joins the given permit to this one so that it is released along with this one. It is released right away if this
+     * permit already is.
+     *
+     * @param other The {@link Permit} to release with this one.
+     */
+    public void join(Permit other) {
+        joined = other;
+        if (isReleased()) {
+            other.release();
+        }
+    }
+
+    /**
+     * Whether this permit has been released.
+     *
+     * @return true if released.
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Sets when the first result for the query of this permit is expected.
+     *
+     * @param expectedMS The time in ms after acquiring this permit or {@link #UNKNOWN}.
+     */
+    public void setExpectedMS(long expectedMS) {
+        this.expectedMS = expectedMS;
+    }
+
+    /**
+     * Notes that the query of this permit produced a result. Only the first result is reported to the listener and
+     * only if it is known when that result was expected.
+     */
+    public void onResult() {
+        long expected = expectedMS;
+        if (listener == null || expected == UNKNOWN || !resulted.compareAndSet(false, true)) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - acquired;
+        listener.onResult(Math.max(elapsed - expected, 0L));
+    }
+
+    /**
+     * Notes that the query of this permit did not finish in time.
+     */
+    public void onTimeout() {
+        if (listener != null) {
+            listener.onTimeout();
+        }
+    }
+
+    private boolean release(boolean notify) {
+        if (!released.compareAndSet(false, true)) {
+            return false;
+        }
+        // The joined permit goes first so that nothing sees the capacity of this one free while the other is still held
+        Permit other = joined;
+        if (other != null) {
+            other.release(notify);
+        }
+        onRelease.run();
+        if (notify && listener != null) {
+            listener.onRelease(System.currentTimeMillis() - acquired);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking pool of a limited number of {@link Permit}. A permit is reserved atomically when it is acquired, so
+ * concurrent acquires never exceed the limit, and it is returned to the pool when it is released. The limit can be
+ * changed at any time. Lowering it below the permits in use only stops new ones from being acquired.
+ */
+public class PermitPool {
+    private final AtomicInteger used = new AtomicInteger(0);
+    private final Permit.Listener listener;
+    @Getter @Setter
+    private volatile int limit;
+
+    /**
+     * Constructor.
+     *
+     * @param limit The maximum number of permits that can be in use at once.
+     */
+    public PermitPool(int limit) {
+        this(limit, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param limit The maximum number of permits that can be in use at once.
+     * @param listener The {@link Permit.Listener} to give to every permit. It can be null.
+     */
+    public PermitPool(int limit, Permit.Listener listener) {
+        this.limit = limit;
+        this.listener = listener;
+    }
+
+    /**
+     * Tries to acquire a permit without waiting.
+     *
+     * @return A {@link Permit} that must be released when done or null if the limit is reached.
+     */
+    public Permit tryAcquire() {
+        while (true) {
+            int current = used.get();
+            if (current >= limit) {
+                return null;
+            }
+            if (used.compareAndSet(current, current + 1)) {
+                return new Permit(used::decrementAndGet, listener);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of permits in use.
+     *
+     * @return The number of acquired permits that have not been released.
+     */
+    public int getUsed() {
+        return used.get();
+    }
+}
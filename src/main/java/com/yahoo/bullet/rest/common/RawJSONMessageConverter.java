@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.rest.model.RawWebSocketResponse;
+import com.yahoo.bullet.rest.model.WebSocketResponse;
+import com.yahoo.bullet.rest.service.SchemaService;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Writes {@link RawWebSocketResponse} payloads as {@code {"type":"<type>","content":<content>}} by splicing the content
+ * bytes between a prefix and a suffix that are encoded once. The content is not escaped or copied into a String, so it
+ * must already be a JSON value. This only converts outbound messages.
+ */
+public class RawJSONMessageConverter extends AbstractMessageConverter {
+    private static final Map<WebSocketResponse.Type, byte[]> PREFIXES = new EnumMap<>(WebSocketResponse.Type.class);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUFFIX = "}".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        for (WebSocketResponse.Type type : WebSocketResponse.Type.values()) {
+            PREFIXES.put(type, ("{\"type\":\"" + type.name() + "\",\"content\":").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Constructor that writes messages as application/json.
+     */
+    public RawJSONMessageConverter() {
+        super(MimeTypeUtils.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return RawWebSocketResponse.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canConvertFrom(Message<?> message, Class<?> targetClass) {
+        return false;
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        RawWebSocketResponse response = (RawWebSocketResponse) payload;
+        return toBytes(response.getType(), response.getContent());
+    }
+
+    /**
+     * Writes the type and the raw content as a JSON object.
+     *
+     * @param type The {@link WebSocketResponse.Type} of the response.
+     * @param content The UTF-8 encoded JSON value of the response. If null, it is written as JSON null.
+     * @return The bytes of the JSON object.
+     */
+    public static byte[] toBytes(WebSocketResponse.Type type, byte[] content) {
+        return toBytes(type, null, content);
+    }
+
+    /**
+     * Writes the type, the correlation ID and the raw content as a JSON object, i.e.
+     * {@code {"type":"<type>","correlationID":"<correlationID>","content":<content>}}.
+     *
+     * @param type The {@link WebSocketResponse.Type} of the response.
+     * @param correlationID The correlation ID the client gave for the query. If null, it is not written.
+     * @param content The UTF-8 encoded JSON value of the response. If null, it is written as JSON null.
+     * @return The bytes of the JSON object.
+     */
+    public static byte[] toBytes(WebSocketResponse.Type type, String correlationID, byte[] content) {
+        byte[] prefix = correlationID == null ? PREFIXES.get(type) : toPrefix(type, correlationID);
+        byte[] value = content == null ? NULL : content;
+        byte[] bytes = new byte[prefix.length + value.length + SUFFIX.length];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(value, 0, bytes, prefix.length, value.length);
+        System.arraycopy(SUFFIX, 0, bytes, prefix.length + value.length, SUFFIX.length);
+        return bytes;
+    }
+
+    private static byte[] toPrefix(WebSocketResponse.Type type, String correlationID) {
+        String prefix = "{\"type\":\"" + type.name() + "\",\"correlationID\":" + SchemaService.GSON.toJson(correlationID) + ",\"content\":";
+        return prefix.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -6,19 +6,48 @@
 
 package com.yahoo.bullet.rest.common;
 
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.pubsub.PubSubException;
 import com.yahoo.bullet.pubsub.PubSubMessage;
 import com.yahoo.bullet.pubsub.PubSubResponder;
 import com.yahoo.bullet.pubsub.Subscriber;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class Reader {
+    public static final String READER_EMPTY_POLLS = "query.pubsub.reader.empty.polls";
+    public static final String READER_IDLE_MS = "query.pubsub.reader.idle.ms";
+    public static final List<String> METRICS = Arrays.asList(READER_EMPTY_POLLS, READER_IDLE_MS);
+
+    private static final long NS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long STOP_TIMEOUT_MS = 5000L;
+
     private Subscriber subscriber;
     private PubSubResponder responder;
     private Thread reader;
-    private int sleepTimeMS;
+    private IdleStrategy idleStrategy;
+    private boolean blocking;
+    private int batchSize;
+    private long batchLingerNS;
+    private List<PubSubMessage> batch;
+    private List<String> processed;
+    // Set if responses are handed off to shards, which report the ones they responded to in responded
+    private ShardedResponder dispatcher;
+    private Queue<String> responded;
+    @Getter
+    private MetricCollector metricCollector;
+    private long idleNS = 0;
+    private volatile boolean stopped = false;
+
     /**
      * Create a service with a {@link Subscriber} and a request queue.
      *
@@ -27,11 +56,36 @@ public class Reader {
      * @param sleepTimeMS The duration to sleep for if PubSub receive is empty. Helps prevent busy waiting.
      */
     public Reader(Subscriber subscriber, PubSubResponder responder, int sleepTimeMS) {
+        this(subscriber, responder, sleepTimeMS, new ReaderSettings(), false);
+    }
+
+    /**
+     * Create a service with a {@link Subscriber} and a request queue.
+     *
+     * @param subscriber The Subscriber to read responses from.
+     * @param responder The {@link PubSubResponder} to use to respond.
+     * @param sleepTimeMS The initial duration to sleep for if PubSub receive is repeatedly empty.
+     * @param settings The {@link ReaderSettings} controlling how the reader batches messages and idles without them.
+     * @param metricEnabled Whether to collect metrics in a {@link MetricCollector} for this reader.
+     */
+    public Reader(Subscriber subscriber, PubSubResponder responder, int sleepTimeMS, ReaderSettings settings,
+                  boolean metricEnabled) {
         Objects.requireNonNull(subscriber);
         Objects.requireNonNull(responder);
+        Objects.requireNonNull(settings);
         this.subscriber = subscriber;
         this.responder = responder;
-        this.sleepTimeMS = sleepTimeMS;
+        this.idleStrategy = settings.createIdleStrategy(sleepTimeMS);
+        this.blocking = settings.isBlocking();
+        this.batchSize = Math.max(settings.getBatchSize(), 1);
+        this.batchLingerNS = TimeUnit.MILLISECONDS.toNanos(Math.max(settings.getBatchLingerMS(), 0));
+        this.batch = new ArrayList<>(batchSize);
+        this.processed = new ArrayList<>(batchSize);
+        if (responder instanceof ShardedResponder) {
+            this.dispatcher = (ShardedResponder) responder;
+            this.responded = new ConcurrentLinkedQueue<>();
+        }
+        this.metricCollector = metricEnabled ? new MetricCollector(METRICS) : null;
         this.reader = new Thread(this::run);
     }
 
@@ -43,30 +97,66 @@ public class Reader {
     }
 
     /**
-     * Interrupt the reader thread and close the {@link Subscriber}.
+     * Interrupts the reader thread and waits for it to stop reading and responding.
+     *
+     * @return true if the reader thread stopped in time.
      */
-    public void close() {
+    public boolean stop() {
+        stopped = true;
         reader.interrupt();
+        try {
+            reader.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !reader.isAlive();
     }
 
     /**
-     * Read responses from the PubSub and update requests.
+     * Stops the reader thread, commits the responses that were responded to and closes the {@link Subscriber}. If
+     * responses are handed off to a {@link ShardedResponder}, it should be closed after {@link #stop()} and before this
+     * so that the responses its shards finish while draining are committed.
+     */
+    public void close() {
+        if (stop()) {
+            try {
+                // Responses the shards have not responded to are not committed, so they are read again
+                commitResponded();
+            } catch (Exception e) {
+                log.error("Error committing responded messages", e);
+            }
+        } else {
+            log.warn("Reader thread {} did not stop in time. Not committing its responded messages", reader.getId());
+        }
+        try {
+            subscriber.close();
+        } catch (Exception e) {
+            log.error("Error closing subscriber", e);
+        }
+    }
+
+    /**
+     * Read responses from the PubSub and update requests. Responses are read in batches of up to the configured batch
+     * size. Each batch is fully responded to before the responses in it that were successfully responded to are
+     * committed. If responses are handed off to a {@link ShardedResponder}, each is committed once its shard has
+     * responded to it successfully. Commits are made on the reader thread till it is stopped and then by
+     * {@link #close()}.
      */
     public void run() {
-        PubSubMessage message;
         log.info("Reader thread started, ID: {}", Thread.currentThread().getId());
-        while (!Thread.interrupted()) {
+        while (!stopped && !Thread.interrupted()) {
             try {
-                message = subscriber.receive();
-                if (message == null) {
-                    Thread.sleep(sleepTimeMS);
+                receiveBatch();
+                if (batch.isEmpty()) {
+                    commitResponded();
+                    onEmptyReceive();
                     continue;
                 }
-                log.debug("Received message {}", message);
-                responder.respond(message.getId(), message);
-                subscriber.commit(message.getId());
+                idleStrategy.reset();
+                respondToBatch();
+                commitBatch();
             } catch (InterruptedException ie) {
-                // When the reader is closed, this block also catches InterruptedException from Thread.sleep.
+                // When the reader is closed, this block also catches InterruptedException from sleeping while idle.
                 // If the service is busy reading messages, the while loop will break instead.
                 log.error("Closing reader thread with error", ie);
                 break;
@@ -74,10 +164,87 @@ public class Reader {
                 log.error("Unable to fully process and/or respond to message! Continuing...", e);
             }
         }
-        try {
-            subscriber.close();
-        } catch (Exception e) {
-            log.error("Error closing subscriber", e);
+    }
+
+    private void receiveBatch() throws PubSubException {
+        batch.clear();
+        long deadline = 0L;
+        while (batch.size() < batchSize) {
+            PubSubMessage message;
+            try {
+                message = subscriber.receive();
+            } catch (PubSubException e) {
+                // Do not lose what was already read. The error will be seen again on the next read if it persists
+                if (batch.isEmpty()) {
+                    throw e;
+                }
+                log.error("Error while reading a batch. Responding to the partial batch...", e);
+                return;
+            }
+            if (message != null) {
+                if (batch.isEmpty()) {
+                    deadline = System.nanoTime() + batchLingerNS;
+                }
+                batch.add(message);
+            } else if (batch.isEmpty() || System.nanoTime() >= deadline) {
+                return;
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void respondToBatch() {
+        processed.clear();
+        for (PubSubMessage message : batch) {
+            String id = message.getId();
+            try {
+                log.debug("Received message {}", message);
+                if (dispatcher == null) {
+                    responder.respond(id, message);
+                    processed.add(id);
+                } else {
+                    dispatcher.respond(id, message, responded::add);
+                }
+            } catch (Exception e) {
+                // Same as a single message - it is not committed but the rest of the batch is still responded to
+                log.error("Unable to respond to message {}! Continuing with the rest of the batch...", id, e);
+            }
+        }
+    }
+
+    private void commitBatch() {
+        for (String id : processed) {
+            subscriber.commit(id);
+        }
+        commitResponded();
+    }
+
+    private void commitResponded() {
+        if (responded == null) {
+            return;
+        }
+        String id;
+        while ((id = responded.poll()) != null) {
+            subscriber.commit(id);
+        }
+    }
+
+    private void onEmptyReceive() throws InterruptedException {
+        if (metricCollector != null) {
+            metricCollector.increment(READER_EMPTY_POLLS);
+        }
+        // A blocking subscriber has already waited in receive so there is no need to wait again
+        if (blocking) {
+            return;
+        }
+        long idled = idleStrategy.idle();
+        if (metricCollector != null) {
+            idleNS += idled;
+            if (idleNS >= NS_PER_MS) {
+                metricCollector.add(READER_IDLE_MS, idleNS / NS_PER_MS);
+                idleNS %= NS_PER_MS;
+            }
         }
     }
 }
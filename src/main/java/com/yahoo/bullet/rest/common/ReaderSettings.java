@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Holds the settings that control how each {@link Reader} polls its {@link com.yahoo.bullet.pubsub.Subscriber} and
+ * how the responses read are dispatched.
+ */
+@NoArgsConstructor @Getter @Setter
+public class ReaderSettings {
+    /**
+     * If true, the subscriber is assumed to block in receive and the reader does not idle on empty reads.
+     */
+    private boolean blocking = false;
+    /**
+     * The number of empty reads to busy spin for before yielding.
+     */
+    private int idleSpins = 10;
+    /**
+     * The number of empty reads to yield for before sleeping.
+     */
+    private int idleYields = 10;
+    /**
+     * The maximum time to sleep between empty reads. Sleeps start at the configured PubSub sleep and double up to this.
+     */
+    private long maxSleepMS = 50;
+    /**
+     * The maximum number of messages to read before responding to and committing them.
+     */
+    private int batchSize = 1;
+    /**
+     * The maximum time to keep reading to fill up a batch once its first message was read.
+     */
+    private long batchLingerMS = 0;
+    /**
+     * The number of {@link ShardedResponder} shards to dispatch responses to. If 0, readers respond themselves.
+     */
+    private int dispatchShards = 0;
+    /**
+     * The maximum number of responses pending in each shard.
+     */
+    private int dispatchQueueSize = 1024;
+
+    /**
+     * Creates a new {@link IdleStrategy} from these settings.
+     *
+     * @param sleepMS The initial time to sleep once spinning and yielding are exhausted.
+     * @return A new {@link IdleStrategy} instance.
+     */
+    public IdleStrategy createIdleStrategy(long sleepMS) {
+        return new IdleStrategy(idleSpins, idleYields, sleepMS, maxSleepMS);
+    }
+}
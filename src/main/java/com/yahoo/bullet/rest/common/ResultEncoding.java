@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.query.QueryError;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The encodings results can be returned in. Results are JSON, so JSON is the default and the other encodings are
+ * transcoded from it.
+ */
+@Slf4j
+public enum ResultEncoding {
+    JSON(MediaType.APPLICATION_JSON),
+    CBOR(MediaType.valueOf(ResultEncoding.CBOR_VALUE));
+
+    /**
+     * The media type of CBOR.
+     */
+    public static final String CBOR_VALUE = "application/cbor";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+    @Getter
+    private final MediaType mediaType;
+
+    ResultEncoding(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * Picks the encoding the given Accept header prefers, the same way Spring picks the media type of a response that
+     * can be produced as any of the encodings.
+     *
+     * @param accept The value of the Accept header. It can be null.
+     * @return The {@link ResultEncoding} to use, which is {@link #JSON} if no other one is preferred.
+     */
+    public static ResultEncoding fromAccept(String accept) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return JSON;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return JSON;
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() <= 0.0) {
+                continue;
+            }
+            for (ResultEncoding encoding : values()) {
+                if (mediaType.includes(encoding.mediaType)) {
+                    return encoding;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Encodes the content of a message. If it is an {@link EncodedMessage}, it is only encoded once in each encoding.
+     *
+     * @param message The {@link PubSubMessage} with JSON content.
+     * @return The encoded content.
+     */
+    public byte[] encode(PubSubMessage message) {
+        if (message instanceof EncodedMessage) {
+            return ((EncodedMessage) message).getContent(this);
+        }
+        return encode(Utils.getContentAsBytes(message));
+    }
+
+    /**
+     * Encodes an error.
+     *
+     * @param error The {@link QueryError} to encode.
+     * @return The encoded error.
+     */
+    public byte[] encode(QueryError error) {
+        return encode(error.toBytes());
+    }
+
+    /**
+     * Encodes JSON.
+     *
+     * @param json The UTF-8 bytes of the JSON.
+     * @return The encoded JSON, which is the same array for {@link #JSON}.
+     */
+    public byte[] encode(byte[] json) {
+        return this == JSON ? json : toCBOR(json);
+    }
+
+    /**
+     * Transcodes JSON to CBOR by streaming the JSON tokens through, so the JSON is never bound to objects. If it is not
+     * valid JSON, it is written as a CBOR text string instead.
+     *
+     * @param json The UTF-8 bytes of the JSON.
+     * @return The CBOR bytes.
+     */
+    private static byte[] toCBOR(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        try (JsonParser parser = JSON_FACTORY.createParser(json);
+             JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentStructure(parser);
+            }
+        } catch (IOException e) {
+            log.debug("Writing content that is not JSON as a CBOR text string", e);
+            out.reset();
+        }
+        if (out.size() > 0) {
+            return out.toByteArray();
+        }
+        try (JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+            generator.writeString(new String(json, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
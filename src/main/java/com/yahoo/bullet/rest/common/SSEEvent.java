@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An SSE event that is written as a single array of bytes. {@link SseEmitter#event()} writes each field and the data as
+ * separate items, each of which looks up a message converter, encodes a String and flushes the response. This writes
+ * the whole event at once with the data bytes copied as is, so sending a result costs a single converter lookup, copy
+ * and flush. Data can be given as bytes or as any other object, which is written as its String form in UTF-8. Lines
+ * in the data are written as separate data fields as the SSE format requires.
+ */
+public class SSEEvent implements SseEmitter.SseEventBuilder {
+    private static final byte[] DATA = "data:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID = "id:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT = "event:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RETRY = "retry:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMENT = ":".getBytes(StandardCharsets.UTF_8);
+    private static final byte NEWLINE = '\n';
+
+    // The fields of the event, each written as its name, its value and a newline
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private int size = 0;
+    // Bytes that are written as they are instead of the fields, if any
+    private byte[] raw;
+
+    /**
+     * Creates an event with the given data.
+     *
+     * @param data The bytes of the data.
+     * @return The created {@link SSEEvent}.
+     */
+    public static SSEEvent of(byte[] data) {
+        return new SSEEvent().data(data);
+    }
+
+    /**
+     * Creates an event that writes the given bytes as they are, e.g. events that were already compressed. Fields cannot
+     * be added to it.
+     *
+     * @param bytes The bytes to write.
+     * @return The created {@link SSEEvent}.
+     */
+    public static SSEEvent raw(byte[] bytes) {
+        SSEEvent event = new SSEEvent();
+        event.raw = bytes;
+        return event;
+    }
+
+    @Override
+    public SSEEvent comment(String comment) {
+        return add(COMMENT, comment);
+    }
+
+    @Override
+    public SSEEvent name(String name) {
+        return add(EVENT, name);
+    }
+
+    @Override
+    public SSEEvent id(String id) {
+        return add(ID, id);
+    }
+
+    @Override
+    public SSEEvent reconnectTime(long reconnectTimeMillis) {
+        return add(RETRY, String.valueOf(reconnectTimeMillis));
+    }
+
+    @Override
+    public SSEEvent data(Object object) {
+        return add(DATA, object);
+    }
+
+    @Override
+    public SSEEvent data(Object object, MediaType mediaType) {
+        // The whole event is written as bytes so there is no converter to pick with the media type
+        return add(DATA, object);
+    }
+
+    @Override
+    public Set<DataWithMediaType> build() {
+        return Collections.singleton(new DataWithMediaType(toBytes(), MediaType.TEXT_EVENT_STREAM));
+    }
+
+    /**
+     * Gets the bytes of this event, including the empty line that ends it.
+     *
+     * @return The bytes of the event.
+     */
+    public byte[] toBytes() {
+        if (raw != null) {
+            return raw;
+        }
+        byte[] bytes = new byte[size + 1];
+        int position = 0;
+        for (int i = 0; i < names.size(); i++) {
+            position = copy(names.get(i), bytes, position);
+            position = copy(values.get(i), bytes, position);
+            bytes[position++] = NEWLINE;
+        }
+        bytes[position] = NEWLINE;
+        return bytes;
+    }
+
+    private SSEEvent add(byte[] name, Object value) {
+        if (raw != null) {
+            throw new IllegalStateException("Fields cannot be added to raw events");
+        }
+        byte[] bytes = value instanceof byte[] ? (byte[]) value : String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == NEWLINE) {
+                addLine(name, slice(bytes, start, i));
+                start = i + 1;
+            }
+        }
+        // Values without newlines, e.g. compact JSON, are written as is
+        if (start == 0) {
+            addLine(name, bytes);
+        } else if (start < bytes.length) {
+            addLine(name, slice(bytes, start, bytes.length));
+        }
+        return this;
+    }
+
+    private void addLine(byte[] name, byte[] value) {
+        names.add(name);
+        values.add(value);
+        size += name.length + value.length + 1;
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private static int copy(byte[] source, byte[] target, int position) {
+        System.arraycopy(source, 0, target, position, source.length);
+        return position + source.length;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.pubsub.PubSubResponder;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link PubSubResponder} that hands off responses to a fixed number of shards, each with a bounded queue and a
+ * single thread that responds using another {@link PubSubResponder}. Responses are assigned to shards by their ID, so
+ * all responses for a query are responded to in the order they were received while responses for different queries
+ * can be responded to in parallel. If the queue for a shard is full, {@link #respond(String, PubSubMessage)} blocks.
+ * Callers can be told which responses were responded to successfully, e.g. to only commit those (see
+ * {@link #respond(String, PubSubMessage, Consumer)}). When closed, the responses already queued are still responded to.
+ */
+@Slf4j
+public class ShardedResponder extends PubSubResponder {
+    public static final String DISPATCH_FAIL = "query.pubsub.dispatch.fail";
+    public static final String DISPATCH_QUEUE_DEPTH = "query.pubsub.dispatch.queue.depth";
+    public static final String DISPATCH_LATENCY_US = "query.pubsub.dispatch.latency.us";
+
+    private static final List<String> COUNTS = Collections.singletonList(DISPATCH_FAIL);
+    private static final List<String> AVERAGES = Arrays.asList(DISPATCH_QUEUE_DEPTH, DISPATCH_LATENCY_US);
+    private static final String THREAD_PREFIX = "bullet-dispatch-";
+    private static final Consumer<String> IGNORE = id -> { };
+    // The time in ms to wait for each shard to respond to what is queued for it when closing
+    private static final long CLOSE_TIMEOUT_MS = 5000L;
+    // Queued after the responses on close to stop each shard once they are responded to
+    private static final Dispatch STOP = new Dispatch(null, null, IGNORE, 0L);
+
+    @AllArgsConstructor
+    private static class Dispatch {
+        private final String id;
+        private final PubSubMessage message;
+        private final Consumer<String> onResponded;
+        private final long enqueueTime;
+    }
+
+    private final PubSubResponder responder;
+    private final List<BlockingQueue<Dispatch>> queues;
+    private final List<Thread> shards;
+    private volatile boolean closed = false;
+    @Getter
+    private final MetricCollector metricCollector;
+
+    /**
+     * Constructor.
+     *
+     * @param responder The non-null {@link PubSubResponder} to respond with from each shard.
+     * @param shards The positive number of shards to use.
+     * @param queueSize The maximum number of pending responses for each shard.
+     * @param metricEnabled Whether to collect metrics in a {@link MetricCollector}.
+     */
+    public ShardedResponder(PubSubResponder responder, int shards, int queueSize, boolean metricEnabled) {
+        super(null);
+        Objects.requireNonNull(responder);
+        if (shards <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("The number of shards and their queue sizes must be positive");
+        }
+        this.responder = responder;
+        this.metricCollector = metricEnabled ? new MetricCollector(COUNTS, AVERAGES) : null;
+        this.queues = new ArrayList<>(shards);
+        this.shards = new ArrayList<>(shards);
+        for (int i = 0; i < shards; ++i) {
+            BlockingQueue<Dispatch> queue = new ArrayBlockingQueue<>(queueSize);
+            Thread thread = new Thread(() -> run(queue), THREAD_PREFIX + i);
+            queues.add(queue);
+            this.shards.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues the response for its shard. This blocks while the queue for that shard is full.
+     *
+     * @param id The ID of the response.
+     * @param message The {@link PubSubMessage} response.
+     * @throws IllegalStateException if interrupted while waiting for the queue or if this is closed.
+     */
+    @Override
+    public void respond(String id, PubSubMessage message) {
+        respond(id, message, IGNORE);
+    }
+
+    /**
+     * Queues the response for its shard and calls the given callback with its ID from the shard once it has been
+     * responded to without an error. This blocks while the queue for that shard is full.
+     *
+     * @param id The ID of the response.
+     * @param message The {@link PubSubMessage} response.
+     * @param onResponded The {@link Consumer} to call with the ID once the response was responded to. It must not block.
+     * @throws IllegalStateException if interrupted while waiting for the queue or if this is closed.
+     */
+    public void respond(String id, PubSubMessage message, Consumer<String> onResponded) {
+        if (closed) {
+            throw new IllegalStateException("Not queueing response for " + id + " since the responder is closed");
+        }
+        BlockingQueue<Dispatch> queue = queues.get(shardFor(id));
+        if (metricCollector != null) {
+            metricCollector.average(DISPATCH_QUEUE_DEPTH, queue.size());
+        }
+        try {
+            queue.put(new Dispatch(id, message, onResponded, System.nanoTime()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing response for " + id, e);
+        }
+    }
+
+    /**
+     * Stops all the shards once they have responded to the responses already queued for them. Shards that do not finish
+     * in time are interrupted and their remaining responses are not responded to.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        try {
+            for (int i = 0; i < queues.size(); ++i) {
+                long remainingMS = Math.max(deadline - System.currentTimeMillis(), 1L);
+                if (!queues.get(i).offer(STOP, remainingMS, TimeUnit.MILLISECONDS)) {
+                    shards.get(i).interrupt();
+                }
+            }
+            for (Thread shard : shards) {
+                shard.join(Math.max(deadline - System.currentTimeMillis(), 1L));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread shard : shards) {
+            if (shard.isAlive()) {
+                log.warn("Dispatch thread {} did not finish its pending responses in time", shard.getName());
+                shard.interrupt();
+            }
+        }
+    }
+
+    private int shardFor(String id) {
+        return (Objects.hashCode(id) & Integer.MAX_VALUE) % queues.size();
+    }
+
+    private void run(BlockingQueue<Dispatch> queue) {
+        log.info("Dispatch thread started, ID: {}", Thread.currentThread().getId());
+        while (!Thread.currentThread().isInterrupted()) {
+            Dispatch dispatch;
+            try {
+                dispatch = queue.take();
+            } catch (InterruptedException e) {
+                log.info("Closing dispatch thread");
+                break;
+            }
+            if (dispatch == STOP) {
+                log.info("Closing dispatch thread after responding to its pending responses");
+                break;
+            }
+            try {
+                responder.respond(dispatch.id, dispatch.message);
+                dispatch.onResponded.accept(dispatch.id);
+            } catch (Exception e) {
+                log.error("Unable to respond to message {}! Continuing...", dispatch.id, e);
+                if (metricCollector != null) {
+                    metricCollector.increment(DISPATCH_FAIL);
+                }
+            }
+            if (metricCollector != null) {
+                long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dispatch.enqueueTime);
+                metricCollector.average(DISPATCH_LATENCY_US, latency);
+            }
+        }
+    }
+}
@@ -7,7 +7,11 @@ package com.yahoo.bullet.rest.common;
 
 import com.yahoo.bullet.pubsub.Metadata;
 import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.query.Query;
+import com.yahoo.bullet.query.Window;
 
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -37,6 +41,23 @@ public class Utils {
         return message.hasSignal() && FINISHED.contains(message.getMetadata().getSignal());
     }
 
+    /**
+     * Gets the content of a message as UTF-8 bytes. Content that already is bytes is returned as is without copying.
+     *
+     * @param message The {@link PubSubMessage} to get the content of.
+     * @return The content as bytes or an empty array if there is none.
+     */
+    public static byte[] getContentAsBytes(PubSubMessage message) {
+        Serializable content = message.getContent();
+        if (content == null) {
+            return new byte[0];
+        }
+        if (content instanceof byte[]) {
+            return (byte[]) content;
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Check and throw an exception if the given collection is empty.
      *
@@ -49,4 +70,44 @@ public class Utils {
             throw new UnsupportedOperationException("Must be provided");
         }
     }
+
+    /**
+     * Gets when the first result of the given query is expected. This is its duration if it is not windowed or its
+     * window size if it has a time-based window. It is not known for record-based windows.
+     *
+     * @param query The {@link Query} to check.
+     * @return The time in ms after submission that the first result is expected or {@link Permit#UNKNOWN}.
+     */
+    public static long getExpectedResultMS(Query query) {
+        Window window = query.getWindow();
+        if (window == null || window.getType() == null) {
+            Long duration = query.getDuration();
+            return duration == null ? Permit.UNKNOWN : duration;
+        }
+        if (window.getEmitType() == Window.Unit.TIME && window.getEmitEvery() != null) {
+            return window.getEmitEvery();
+        }
+        return Permit.UNKNOWN;
+    }
+
+    /**
+     * Finds the end of the BQL comment at the given position, if there is one. Line comments start with {@code --} and
+     * end after the end of the line. Block comments are enclosed in slash-star and star-slash. A block comment that is
+     * never closed is not treated as a comment.
+     *
+     * @param bql The BQL to check. The given position must not be in a quoted literal or identifier.
+     * @param start The position to check.
+     * @return The position after the comment or the given position if there is no comment there.
+     */
+    public static int skipBQLComment(String bql, int start) {
+        if (bql.startsWith("--", start)) {
+            int end = bql.indexOf('\n', start);
+            return end < 0 ? bql.length() : end + 1;
+        }
+        if (bql.startsWith("/*", start)) {
+            int end = bql.indexOf("*/", start + 2);
+            return end < 0 ? start : end + 2;
+        }
+        return start;
+    }
 }
@@ -11,28 +11,44 @@ import com.yahoo.bullet.common.metrics.MetricPublisher;
 import com.yahoo.bullet.pubsub.PubSubMessage;
 import com.yahoo.bullet.query.Query;
 import com.yahoo.bullet.rest.common.Metric;
+import com.yahoo.bullet.rest.common.Permit;
+import com.yahoo.bullet.rest.common.ResultEncoding;
 import com.yahoo.bullet.rest.common.Utils;
 import com.yahoo.bullet.rest.model.QueryResponse;
+import com.yahoo.bullet.rest.model.TemplateRequest;
+import com.yahoo.bullet.rest.query.AsyncQueryHandler;
 import com.yahoo.bullet.rest.query.HTTPQueryHandler;
 import com.yahoo.bullet.rest.query.QueryError;
+import com.yahoo.bullet.rest.query.QueryHandler;
 import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import com.yahoo.bullet.rest.service.AdmissionService;
 import com.yahoo.bullet.rest.service.BQLService;
+import com.yahoo.bullet.rest.service.CompressionService;
 import com.yahoo.bullet.rest.service.HandlerService;
+import com.yahoo.bullet.rest.service.HeartbeatService;
 import com.yahoo.bullet.rest.service.QueryService;
+import com.yahoo.bullet.rest.service.ResultCacheService;
+import com.yahoo.bullet.rest.service.SSEResumeService;
 import com.yahoo.bullet.rest.service.StatusService;
+import com.yahoo.bullet.rest.service.TemplateService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletResponse;
+import java.security.Principal;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.yahoo.bullet.rest.common.MetricManager.toMetric;
 import static java.util.concurrent.CompletableFuture.completedFuture;
@@ -43,8 +59,18 @@ public class HTTPQueryController extends MetricController {
     private HandlerService handlerService;
     private BQLService bqlService;
     private StatusService statusService;
+    private AdmissionService admissionService;
+    private ResultCacheService resultCacheService;
+    private TemplateService templateService;
+    private CompressionService compressionService;
+    private HeartbeatService heartbeatService;
+    private SSEResumeService resumeService;
 
     static final String STATUS_PREFIX = "api.http.status.code.";
+    // The header SSE clients reconnect with to resume a stream
+    static final String LAST_EVENT_ID = "Last-Event-ID";
+    // The header HTTP clients give the time in ms they will wait for a result with
+    static final String DEADLINE_HEADER = "bullet-deadline-ms";
     private static final List<String> STATUSES =
         toMetric(STATUS_PREFIX, Metric.OK, Metric.CREATED, Metric.NO_CONTENT, Metric.BAD_REQUEST,
                  Metric.UNPROCESSABLE_ENTITY, Metric.TOO_MANY_REQUESTS, Metric.ERROR, Metric.UNAVAILABLE);
@@ -56,17 +82,32 @@ public class HTTPQueryController extends MetricController {
      * @param queryService The {@link QueryService} to use.
      * @param bqlService The {@link BQLService} to use.
      * @param statusService The {@link StatusService} to use.
+     * @param admissionService The {@link AdmissionService} to use.
+     * @param resultCacheService The {@link ResultCacheService} to use.
+     * @param templateService The {@link TemplateService} to use.
+     * @param compressionService The {@link CompressionService} to use.
+     * @param heartbeatService The {@link HeartbeatService} to use.
+     * @param resumeService The {@link SSEResumeService} to use.
      * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
      */
     @Autowired
     public HTTPQueryController(HandlerService handlerService, QueryService queryService,
                                BQLService bqlService, StatusService statusService,
+                               AdmissionService admissionService, ResultCacheService resultCacheService,
+                               TemplateService templateService, CompressionService compressionService,
+                               HeartbeatService heartbeatService, SSEResumeService resumeService,
                                MetricPublisher metricPublisher) {
         super(metricPublisher, new MetricCollector(STATUSES));
         this.handlerService = handlerService;
         this.queryService = queryService;
         this.bqlService = bqlService;
         this.statusService = statusService;
+        this.admissionService = admissionService;
+        this.resultCacheService = resultCacheService;
+        this.templateService = templateService;
+        this.compressionService = compressionService;
+        this.heartbeatService = heartbeatService;
+        this.resumeService = resumeService;
     }
 
     /**
@@ -85,92 +126,213 @@ public class HTTPQueryController extends MetricController {
         return respondWith(Metric.NO_CONTENT, null);
     }
 
+    /**
+     * The method that handles POSTed BQL templates to this endpoint and registers them. Queries can then be submitted
+     * to the other endpoints with a {@link TemplateRequest} naming the template and the values for its parameters.
+     *
+     * @param template The String BQL template to register.
+     * @return A {@link ResponseEntity} with a {@link com.yahoo.bullet.rest.model.TemplateResponse} or a {@link QueryError}.
+     */
+    @PostMapping(path = "${bullet.endpoint.templates}", consumes = { MediaType.TEXT_PLAIN_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<Object> registerTemplate(@RequestBody String template) {
+        try {
+            return respondWith(Metric.CREATED, templateService.register(template));
+        } catch (IllegalArgumentException e) {
+            return respondWith(Metric.BAD_REQUEST, toError(e).toString());
+        }
+    }
+
     /**
      * The method that handles POSTs to this endpoint. Consumes the HTTP request, invokes {@link HandlerService} to
-     * register and transmit the query to Bullet.
+     * register and transmit the query to Bullet. If the result of an identical query is cached, it is returned instead.
+     * The result is returned in the {@link ResultEncoding} the Accept header prefers, which is JSON by default, and is
+     * compressed if the Accept-Encoding header allows it and it is large enough. If the request has a deadline header,
+     * the query is failed with a timeout error and killed if it has no result by then.
      *
      * @param query The String query to submit.
+     * @param accept The Accept header of the request. It can be null.
+     * @param acceptEncoding The Accept-Encoding header of the request. It can be null.
+     * @param deadlineMS The time in ms from now the client will wait for the result. It can be null to wait till the
+     *                   query expires.
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @param response The {@link HttpServletResponse} to set the status and headers of if the query is rejected or cached.
      * @return A {@link CompletableFuture} representing the eventual result.
      */
-    @PostMapping(path = "${bullet.endpoint.http}", consumes = { MediaType.TEXT_PLAIN_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
-    public CompletableFuture<String> submitHTTPQuery(@RequestBody String query) {
-        HTTPQueryHandler handler = new HTTPQueryHandler();
-        if (!statusService.isBackendStatusOK()) {
-            handler.fail(QueryError.SERVICE_UNAVAILABLE);
-            return returnWith(Metric.UNAVAILABLE, handler.getResult());
-        }
-        if (statusService.queryLimitReached()) {
-            handler.fail(QueryError.TOO_MANY_QUERIES);
-            return returnWith(Metric.TOO_MANY_REQUESTS, handler.getResult());
-        }
-        BQLResult result = bqlService.toQuery(query);
-        if (result.hasErrors()) {
-            handler.fail(new QueryError(result.getErrors()));
-            return returnWith(Metric.BAD_REQUEST, handler.getResult());
-        }
-        Query bulletQuery = result.getQuery();
-        if (bulletQuery.getWindow().getType() != null) {
-            handler.fail(QueryError.UNSUPPORTED_QUERY);
-            return returnWith(Metric.BAD_REQUEST, handler.getResult());
+    @PostMapping(path = "${bullet.endpoint.http}", consumes = { MediaType.TEXT_PLAIN_VALUE },
+                 produces = { MediaType.APPLICATION_JSON_VALUE, ResultEncoding.CBOR_VALUE })
+    public CompletableFuture<byte[]> submitHTTPQuery(@RequestBody String query,
+                                                     @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                     @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                     @RequestHeader(value = DEADLINE_HEADER, required = false) Long deadlineMS,
+                                                     Principal principal, HttpServletResponse response) {
+        long deadline = toDeadline(deadlineMS);
+        return compress(submitHTTPQuery(query, ResultEncoding.fromAccept(accept), deadline, principal, response), acceptEncoding, response);
+    }
+
+    /**
+     * The method that handles POSTs of queries from templates to this endpoint. Works like
+     * {@link #submitHTTPQuery(String, String, String, Long, Principal, HttpServletResponse)} with the BQL from binding
+     * the template.
+     *
+     * @param request The {@link TemplateRequest} naming the template and the values for its parameters.
+     * @param accept The Accept header of the request. It can be null.
+     * @param acceptEncoding The Accept-Encoding header of the request. It can be null.
+     * @param deadlineMS The time in ms from now the client will wait for the result. It can be null to wait till the
+     *                   query expires.
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @param response The {@link HttpServletResponse} to set the status and headers of if the query is rejected or cached.
+     * @return A {@link CompletableFuture} representing the eventual result.
+     */
+    @PostMapping(path = "${bullet.endpoint.http}", consumes = { MediaType.APPLICATION_JSON_VALUE },
+                 produces = { MediaType.APPLICATION_JSON_VALUE, ResultEncoding.CBOR_VALUE })
+    public CompletableFuture<byte[]> submitHTTPTemplateQuery(@RequestBody TemplateRequest request,
+                                                             @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                             @RequestHeader(value = DEADLINE_HEADER, required = false) Long deadlineMS,
+                                                             Principal principal, HttpServletResponse response) {
+        String query;
+        try {
+            query = templateService.bind(request);
+        } catch (IllegalArgumentException e) {
+            return returnWith(Metric.BAD_REQUEST, completedFuture(ResultEncoding.fromAccept(accept).encode(toError(e))));
         }
-        String id = Utils.getNewQueryID();
-        log.debug("Submitting HTTP query {}: {}", id, query);
-        handlerService.addHandler(id, handler);
-        queryService.submit(id, bulletQuery, result.getBql());
-        return returnWith(Metric.CREATED, handler.getResult());
+        return submitHTTPQuery(query, accept, acceptEncoding, deadlineMS, principal, response);
     }
 
     /**
      * The method that handles SSE POSTs to this endpoint. Consumes the HTTP request, invokes {@link HandlerService} to
-     * register and transmit the query to Bullet.
+     * register and transmit the query to Bullet. The stream of results is compressed if the Accept-Encoding header
+     * allows it. If the request has a Last-Event-ID header for a stream that can still be resumed, the stream is
+     * resumed with the results the client missed instead of the query being submitted again.
      *
      * @param query The String query to submit.
+     * @param acceptEncoding The Accept-Encoding header of the request. It can be null.
+     * @param lastEventID The Last-Event-ID header of a client resuming a stream. It can be null.
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @param response The {@link HttpServletResponse} to set the status and headers of if the query is rejected.
      * @return A {@link SseEmitter} to send streaming results.
      */
     @PostMapping(value = "${bullet.endpoint.sse}", consumes = { MediaType.TEXT_PLAIN_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
-    public SseEmitter submitSSEQuery(@RequestBody String query) {
+    public SseEmitter submitSSEQuery(@RequestBody String query,
+                                     @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                     @RequestHeader(value = LAST_EVENT_ID, required = false) String lastEventID,
+                                     Principal principal, HttpServletResponse response) {
         SseEmitter sseEmitter = new SseEmitter();
+        if (lastEventID != null && resumeSSEQuery(lastEventID, sseEmitter, acceptEncoding, principal, response)) {
+            return sseEmitter;
+        }
         String id = Utils.getNewQueryID();
-        SSEQueryHandler handler = new SSEQueryHandler(id, sseEmitter, queryService);
+        SSEQueryHandler handler = new SSEQueryHandler(id, sseEmitter, handlerService, newCompressor(acceptEncoding, response),
+                                                      resumeService.getBufferSize());
+        // Parsed before admission so that invalid queries do not take up a permit
+        BQLResult result = bqlService.toQuery(query);
+        if (result.hasErrors()) {
+            handler.fail(new QueryError(result.getErrors()));
+            return returnWith(Metric.BAD_REQUEST, sseEmitter);
+        }
         if (!statusService.isBackendStatusOK()) {
             handler.fail(QueryError.SERVICE_UNAVAILABLE);
             return returnWith(Metric.UNAVAILABLE, sseEmitter);
         }
-        if (statusService.queryLimitReached()) {
-            handler.fail(QueryError.TOO_MANY_QUERIES);
-            return returnWith(Metric.TOO_MANY_REQUESTS, sseEmitter);
-        }
-        BQLResult result = bqlService.toQuery(query);
-        if (result.hasErrors()) {
-            handler.fail(new QueryError(result.getErrors()));
+        // Started before admission so that clients that go away while their query waits are found too
+        heartbeatService.register(handler);
+        resumeService.register(id, handler, principal);
+        admissionService.queueSynchronous(principal)
+                        .thenAccept(permit -> submitSSEQuery(query, result, permit, id, handler, response))
+                        .exceptionally(e -> {
+                            log.error("Error submitting SSE query {}", id, e);
+                            // Releases the permit if the handler has one
+                            handler.fail(QueryError.SERVICE_UNAVAILABLE);
+                            handlerService.leave(id);
+                            incrementMetric(STATUS_PREFIX, Metric.ERROR);
+                            return null;
+                        });
+        return sseEmitter;
+    }
+
+    /**
+     * The method that handles SSE POSTs of queries from templates to this endpoint. Works like
+     * {@link #submitSSEQuery(String, String, String, Principal, HttpServletResponse)} with the BQL from binding the
+     * template.
+     *
+     * @param request The {@link TemplateRequest} naming the template and the values for its parameters.
+     * @param acceptEncoding The Accept-Encoding header of the request. It can be null.
+     * @param lastEventID The Last-Event-ID header of a client resuming a stream. It can be null.
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @param response The {@link HttpServletResponse} to set the status and headers of if the query is rejected.
+     * @return A {@link SseEmitter} to send streaming results.
+     */
+    @PostMapping(value = "${bullet.endpoint.sse}", consumes = { MediaType.APPLICATION_JSON_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
+    public SseEmitter submitSSETemplateQuery(@RequestBody TemplateRequest request,
+                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                             @RequestHeader(value = LAST_EVENT_ID, required = false) String lastEventID,
+                                             Principal principal, HttpServletResponse response) {
+        String query;
+        try {
+            query = templateService.bind(request);
+        } catch (IllegalArgumentException e) {
+            SseEmitter sseEmitter = new SseEmitter();
+            new SSEQueryHandler(Utils.getNewQueryID(), sseEmitter, handlerService).fail(toError(e));
             return returnWith(Metric.BAD_REQUEST, sseEmitter);
         }
-        log.debug("Submitting SSE query {}: {}", id, query);
-        handlerService.addHandler(id, handler);
-        queryService.submit(id, result.getQuery(), result.getBql());
-        return returnWith(Metric.CREATED, sseEmitter);
+        return submitSSEQuery(query, acceptEncoding, lastEventID, principal, response);
     }
 
     /**
      * This method handles POSTs for asynchronous queries to the API. These queries do not wait around for the results.
      *
      * @param asyncQuery The String query to submit.
+     * @param principal The {@link Principal} submitting the query. It can be null.
      * @return A {@link CompletableFuture} that resolves to either a {@link QueryResponse} or a {@link QueryError}.
      */
     @PostMapping(value = "${bullet.endpoint.async}", consumes = { MediaType.TEXT_PLAIN_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
-    public CompletableFuture<ResponseEntity<Object>> submitAsyncQuery(@RequestBody String asyncQuery) {
+    public CompletableFuture<ResponseEntity<Object>> submitAsyncQuery(@RequestBody String asyncQuery, Principal principal) {
         if (!statusService.isBackendStatusOK()) {
             return failWith(unavailable());
         }
+        Permit permit = admissionService.admitAsynchronous(principal);
+        if (permit == null) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(admissionService.getAsynchronousRetryAfter()));
+            ResponseEntity<Object> rejection = new ResponseEntity<>(QueryError.TOO_MANY_QUERIES, headers, Metric.TOO_MANY_REQUESTS.toHTTPStatus());
+            return failWith(returnWith(Metric.TOO_MANY_REQUESTS, rejection));
+        }
         BQLResult result = bqlService.toQuery(asyncQuery);
         if (result.hasErrors()) {
+            permit.release();
             return failWith(new QueryError(result.getErrors()));
         }
         final String id = Utils.getNewQueryID();
         log.debug("Submitting Async query {}: {}", id, asyncQuery);
+        // The results go to the asynchronous responders. The handler only tracks when the query is done to free its permit
+        AsyncQueryHandler handler = new AsyncQueryHandler();
+        handler.setPermit(permit);
+        handlerService.addHandler(id, handler, result.getQuery());
         return queryService.submit(id, result.getQuery(), result.getBql())
                            .thenCompose(message -> createQueryResponse(message, id, asyncQuery))
-                           .exceptionally(this::internalError);
+                           .exceptionally(e -> {
+                               handlerService.failHandler(id);
+                               return internalError(e);
+                           });
+    }
+
+    /**
+     * This method handles POSTs for asynchronous queries from templates to the API. Works like
+     * {@link #submitAsyncQuery(String, Principal)} with the BQL from binding the template.
+     *
+     * @param request The {@link TemplateRequest} naming the template and the values for its parameters.
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @return A {@link CompletableFuture} that resolves to either a {@link QueryResponse} or a {@link QueryError}.
+     */
+    @PostMapping(value = "${bullet.endpoint.async}", consumes = { MediaType.APPLICATION_JSON_VALUE }, produces = { MediaType.APPLICATION_JSON_VALUE })
+    public CompletableFuture<ResponseEntity<Object>> submitAsyncTemplateQuery(@RequestBody TemplateRequest request, Principal principal) {
+        String query;
+        try {
+            query = templateService.bind(request);
+        } catch (IllegalArgumentException e) {
+            return failWith(toError(e));
+        }
+        return submitAsyncQuery(query, principal);
     }
 
     /**
@@ -187,6 +349,10 @@ public class HTTPQueryController extends MetricController {
         }
         try {
             log.debug("Removing Async query {}", id);
+            QueryHandler handler = handlerService.removeHandler(id);
+            if (handler != null) {
+                handler.complete();
+            }
             return queryService.kill(id)
                                .thenApply(u -> ok())
                                .exceptionally(this::internalError);
@@ -195,9 +361,172 @@ public class HTTPQueryController extends MetricController {
         }
     }
 
+    private CompletableFuture<byte[]> submitHTTPQuery(String query, ResultEncoding encoding, long deadline, Principal principal,
+                                                      HttpServletResponse response) {
+        HTTPQueryHandler handler = new HTTPQueryHandler(encoding);
+        // Parsed before admission so that invalid and cached queries do not take up a permit
+        BQLResult result = bqlService.toQuery(query);
+        if (result.hasErrors()) {
+            handler.fail(new QueryError(result.getErrors()));
+            return returnWith(Metric.BAD_REQUEST, handler.getResult());
+        }
+        if (result.getQuery().getWindow().getType() != null) {
+            handler.fail(QueryError.UNSUPPORTED_QUERY);
+            return returnWith(Metric.BAD_REQUEST, handler.getResult());
+        }
+        // Results are cached in each encoding they are asked for so that they are encoded once
+        String cacheKey = encoding == ResultEncoding.JSON ? result.getBql() : encoding + ":" + result.getBql();
+        ResultCacheService.Entry cached = resultCacheService.get(cacheKey);
+        if (cached != null) {
+            log.debug("Answering HTTP query from the cache: {}", query);
+            setCacheHeaders(response, cached.getAgeMS());
+            return returnWith(Metric.OK, completedFuture(cached.getResult()));
+        }
+        if (!statusService.isBackendStatusOK()) {
+            handler.fail(QueryError.SERVICE_UNAVAILABLE);
+            return returnWith(Metric.UNAVAILABLE, handler.getResult());
+        }
+        // The servlet thread is not held while the query waits to be admitted
+        return admissionService.queueSynchronous(principal).thenCompose(permit -> submitHTTPQuery(query, result, cacheKey, deadline, permit, handler, response));
+    }
+
+    private CompletableFuture<byte[]> submitHTTPQuery(String query, BQLResult result, String cacheKey, long deadline,
+                                                      Permit permit, HTTPQueryHandler handler, HttpServletResponse response) {
+        if (permit == null) {
+            handler.fail(QueryError.TOO_MANY_QUERIES);
+            rejectWith(response, admissionService.getSynchronousRetryAfter());
+            return returnWith(Metric.TOO_MANY_REQUESTS, handler.getResult());
+        }
+        // Released when the handler is done
+        handler.setPermit(permit);
+        // The deadline counts the time spent waiting to be admitted
+        long remainingMS = deadline - System.currentTimeMillis();
+        if (remainingMS <= 0) {
+            log.debug("Not submitting HTTP query since its deadline passed while it waited: {}", query);
+            handler.fail(QueryError.QUERY_TIMEOUT);
+            return returnWith(Metric.ERROR, handler.getResult());
+        }
+        Query bulletQuery = result.getQuery();
+        permit.setExpectedMS(Utils.getExpectedResultMS(bulletQuery));
+        String id = Utils.getNewQueryID();
+        log.debug("Submitting HTTP query {}: {}", id, query);
+        submit(id, handler, bulletQuery, result.getBql());
+        if (deadline != Long.MAX_VALUE) {
+            handlerService.expireAfter(id, handler, remainingMS);
+        }
+        CompletableFuture<byte[]> eventualResult = handler.getResult();
+        if (resultCacheService.isEnabled()) {
+            eventualResult = eventualResult.thenApply(value -> cache(cacheKey, handler, value, response));
+        }
+        return returnWith(Metric.CREATED, eventualResult);
+    }
+
+    private static long toDeadline(Long deadlineMS) {
+        // Deadlines that are not positive are not given
+        return deadlineMS == null || deadlineMS <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + deadlineMS;
+    }
+
+    private boolean resumeSSEQuery(String lastEventID, SseEmitter sseEmitter, String acceptEncoding, Principal principal,
+                                   HttpServletResponse response) {
+        SSEQueryHandler handler = resumeService.resume(lastEventID, principal, sseEmitter, () -> newCompressor(acceptEncoding, response));
+        if (handler == null) {
+            log.debug("Submitting SSE query again since the stream with last event {} cannot be resumed", lastEventID);
+            return false;
+        }
+        // Dropped by the heartbeat service if the query finished while the client was away
+        heartbeatService.register(handler);
+        incrementMetric(STATUS_PREFIX, Metric.OK);
+        return true;
+    }
+
+    private void submitSSEQuery(String query, BQLResult result, Permit permit, String id, SSEQueryHandler handler,
+                                HttpServletResponse response) {
+        if (permit == null) {
+            handler.fail(QueryError.TOO_MANY_QUERIES);
+            // Only takes effect if the query did not wait since the emitter has committed the response by then
+            rejectWith(response, admissionService.getSynchronousRetryAfter());
+            incrementMetric(STATUS_PREFIX, Metric.TOO_MANY_REQUESTS);
+            return;
+        }
+        handler.setPermit(permit);
+        if (handler.isComplete()) {
+            log.debug("Not submitting SSE query {} since its client is gone", id);
+            return;
+        }
+        permit.setExpectedMS(Utils.getExpectedResultMS(result.getQuery()));
+        log.debug("Submitting SSE query {}: {}", id, query);
+        boolean submitted = submit(id, handler, result.getQuery(), result.getBql());
+        incrementMetric(STATUS_PREFIX, Metric.CREATED);
+        // The client may have gone away while the query was being submitted. If it left after the handler was added,
+        // the kill may have reached the backend before the query did, so it is killed again
+        if (handler.isComplete() && !handlerService.leave(id) && submitted && !handlerService.hasHandler(id)) {
+            queryService.kill(id);
+        }
+    }
+
+    private boolean submit(String id, QueryHandler handler, Query query, String bql) {
+        // An identical query already in flight is joined instead of submitting another one to the backend
+        if (!id.equals(handlerService.attachHandler(id, handler, query, bql))) {
+            return false;
+        }
+        queryService.submit(id, query, bql);
+        return true;
+    }
+
+    private byte[] cache(String key, QueryHandler handler, byte[] value, HttpServletResponse response) {
+        // Errors are not cached
+        if (handler.getState() == QueryHandler.State.COMPLETE) {
+            resultCacheService.put(key, value);
+            setCacheHeaders(response, 0L);
+        }
+        return value;
+    }
+
+    private CompletableFuture<byte[]> compress(CompletableFuture<byte[]> result, String acceptEncoding, HttpServletResponse response) {
+        if (!compressionService.isEnabled()) {
+            return result;
+        }
+        // Whether a response is compressed depends on the request, so shared caches must tell them apart
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        CompressionService.Coding coding = compressionService.negotiate(acceptEncoding);
+        if (coding == null) {
+            return result;
+        }
+        // The result cache holds uncompressed results, so this happens on the way out after caching
+        return result.thenApply(value -> {
+            byte[] compressed = compressionService.compress(value, coding);
+            if (compressed == null) {
+                return value;
+            }
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, coding.getName());
+            return compressed;
+        });
+    }
+
+    private CompressionService.Stream newCompressor(String acceptEncoding, HttpServletResponse response) {
+        if (!compressionService.isEnabled()) {
+            return null;
+        }
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        CompressionService.Coding coding = compressionService.negotiate(acceptEncoding);
+        if (coding == null) {
+            return null;
+        }
+        // Set before the emitter commits the response. The size of a stream is not known up front, so it is always compressed
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, coding.getName());
+        return compressionService.newStream(coding);
+    }
+
+    private void setCacheHeaders(HttpServletResponse response, long ageMS) {
+        // Clients subtract the age from the max age to get how much longer the result is fresh for
+        response.setHeader(HttpHeaders.AGE, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(ageMS)));
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=" + TimeUnit.MILLISECONDS.toSeconds(resultCacheService.getTtlMS()));
+    }
+
     private CompletableFuture<ResponseEntity<Object>> createQueryResponse(PubSubMessage message, String id, String query) {
         if (message == null) {
             log.error("Unable to create response for id: {}, query: {}", id, query);
+            handlerService.failHandler(id);
             return failWith(internalError(new RuntimeException("Unable to create query")));
         }
         log.debug("Creating response for id: {}", id);
@@ -225,6 +554,15 @@ public class HTTPQueryController extends MetricController {
         return respondWith(Metric.OK, null);
     }
 
+    private static QueryError toError(IllegalArgumentException e) {
+        return new QueryError(e.getMessage(), TemplateService.RESOLUTION);
+    }
+
+    private static void rejectWith(HttpServletResponse response, long retryAfterS) {
+        response.setStatus(Metric.TOO_MANY_REQUESTS.toHTTPStatus().value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterS));
+    }
+
     private <T> ResponseEntity<T> respondWith(Metric metric, T object) {
         return returnWith(metric, new ResponseEntity<>(object, metric.toHTTPStatus()));
     }
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.controller;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yahoo.bullet.rest.common.NativeWebSocketWriter;
+import com.yahoo.bullet.rest.model.WebSocketRequest;
+import com.yahoo.bullet.rest.model.WebSocketResponse;
+import com.yahoo.bullet.rest.query.QueryError;
+import com.yahoo.bullet.rest.service.FlowControlService;
+import com.yahoo.bullet.rest.service.WebSocketService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Handles the native WebSocket endpoint, which runs queries without SockJS, STOMP or the broker. Clients send
+ * {@link WebSocketRequest} objects as JSON text messages and get back JSON text messages of the form
+ * {@code {"type":"<type>","correlationID":"<correlationID>","content":<content>}}, where the content is the result as
+ * is and the correlation ID is only there if the client gave one. Responses are written straight to the session on a
+ * send executor and are flow controlled by the {@link FlowControlService} like those of the STOMP endpoint.
+ */
+@Slf4j
+public class NativeWebSocketHandler extends TextWebSocketHandler {
+    // The property Tomcat uses for how long a blocking send can take before it fails
+    static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+    // Reads requests like the STOMP endpoint does, which ignores unknown fields
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final WebSocketController webSocketController;
+    private final WebSocketService webSocketService;
+    private final FlowControlService flowControlService;
+    private final Executor sendExecutor;
+    private final long sendTimeLimitMS;
+
+    /**
+     * Constructor.
+     *
+     * @param webSocketController The {@link WebSocketController} to handle requests with.
+     * @param webSocketService The {@link WebSocketService} to use.
+     * @param flowControlService The {@link FlowControlService} to use.
+     * @param sendExecutor The {@link Executor} to write responses on.
+     * @param sendTimeLimitMS The time limit in ms for writing a response to a session.
+     */
+    public NativeWebSocketHandler(WebSocketController webSocketController, WebSocketService webSocketService,
+                                  FlowControlService flowControlService, Executor sendExecutor, long sendTimeLimitMS) {
+        this.webSocketController = webSocketController;
+        this.webSocketService = webSocketService;
+        this.flowControlService = flowControlService;
+        this.sendExecutor = sendExecutor;
+        this.sendTimeLimitMS = sendTimeLimitMS;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession) {
+            javax.websocket.Session nativeSession = ((NativeWebSocketSession) session).getNativeSession(javax.websocket.Session.class);
+            if (nativeSession != null) {
+                nativeSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT, sendTimeLimitMS);
+            }
+        }
+        NativeWebSocketWriter writer = new NativeWebSocketWriter(session, sendExecutor);
+        flowControlService.open(session.getId(), () -> writer.close(CloseStatus.SESSION_NOT_RELIABLE));
+        webSocketService.connectNativeSession(session.getId(), writer);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        WebSocketRequest request = toRequest(message.getPayload());
+        if (request == null || request.getType() == null) {
+            WebSocketResponse response = new WebSocketResponse(WebSocketResponse.Type.FAIL, QueryError.INVALID_QUERY.toString());
+            webSocketService.sendResponse(session.getId(), response, SimpMessageHeaderAccessor.create());
+            return;
+        }
+        webSocketController.submitWebsocketQuery(request, session.getId(), session.getPrincipal());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        flowControlService.close(session.getId());
+        webSocketService.disconnectSession(session.getId());
+    }
+
+    private static WebSocketRequest toRequest(String payload) {
+        try {
+            return MAPPER.readValue(payload, WebSocketRequest.class);
+        } catch (IOException e) {
+            log.debug("Could not parse WebSocket request: {}", payload, e);
+            return null;
+        }
+    }
+}
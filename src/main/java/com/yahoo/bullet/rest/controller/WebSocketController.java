@@ -9,12 +9,16 @@ import com.yahoo.bullet.bql.BQLResult;
 import com.yahoo.bullet.common.metrics.MetricCollector;
 import com.yahoo.bullet.common.metrics.MetricPublisher;
 import com.yahoo.bullet.rest.common.Metric;
+import com.yahoo.bullet.rest.common.Permit;
 import com.yahoo.bullet.rest.common.Utils;
+import com.yahoo.bullet.rest.model.TemplateRequest;
 import com.yahoo.bullet.rest.model.WebSocketRequest;
 import com.yahoo.bullet.rest.query.QueryError;
 import com.yahoo.bullet.rest.query.WebSocketQueryHandler;
+import com.yahoo.bullet.rest.service.AdmissionService;
 import com.yahoo.bullet.rest.service.BQLService;
 import com.yahoo.bullet.rest.service.StatusService;
+import com.yahoo.bullet.rest.service.TemplateService;
 import com.yahoo.bullet.rest.service.WebSocketService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,6 +27,7 @@ import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.stereotype.Controller;
 
+import java.security.Principal;
 import java.util.List;
 
 import static com.yahoo.bullet.rest.common.MetricManager.toMetric;
@@ -32,6 +37,8 @@ public class WebSocketController extends MetricController {
     private WebSocketService webSocketService;
     private BQLService bqlService;
     private StatusService statusService;
+    private AdmissionService admissionService;
+    private TemplateService templateService;
 
     static final String STATUS_PREFIX = "api.websocket.status.code.";
     private static final List<String> STATUSES =
@@ -43,15 +50,20 @@ public class WebSocketController extends MetricController {
      * @param webSocketService The {@link WebSocketService} to use.
      * @param bqlService The {@link BQLService} to use.
      * @param statusService The {@link StatusService} to use.
+     * @param admissionService The {@link AdmissionService} to use.
+     * @param templateService The {@link TemplateService} to use.
      * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
      */
     @Autowired
     public WebSocketController(WebSocketService webSocketService, BQLService bqlService,
-                               StatusService statusService, MetricPublisher metricPublisher) {
+                               StatusService statusService, AdmissionService admissionService,
+                               TemplateService templateService, MetricPublisher metricPublisher) {
         super(metricPublisher, new MetricCollector(STATUSES));
         this.webSocketService = webSocketService;
         this.bqlService = bqlService;
         this.statusService = statusService;
+        this.admissionService = admissionService;
+        this.templateService = templateService;
     }
 
     /**
@@ -62,41 +74,76 @@ public class WebSocketController extends MetricController {
      */
     @MessageMapping("${bullet.websocket.server.destination}")
     public void submitWebsocketQuery(@Payload WebSocketRequest request, SimpMessageHeaderAccessor headerAccessor) {
+        submitWebsocketQuery(request, headerAccessor.getSessionId(), headerAccessor.getUser());
+    }
+
+    /**
+     * Handles a request from a WebSocket session. This is also used by the native WebSocket endpoint.
+     *
+     * @param request The {@link WebSocketRequest} object.
+     * @param sessionID The session ID to represent the client.
+     * @param user The {@link Principal} of the client. It can be null.
+     */
+    public void submitWebsocketQuery(WebSocketRequest request, String sessionID, Principal user) {
         switch (request.getType()) {
             case NEW_QUERY:
-                handleNewQuery(request, headerAccessor);
+                handleNewQuery(request.getContent(), request.getCorrelationID(), sessionID, user);
+                break;
+            case NEW_TEMPLATE_QUERY:
+                handleNewTemplateQuery(request, sessionID, user);
                 break;
             case KILL_QUERY:
-                handleKillQuery(request, headerAccessor);
+                handleKillQuery(request, sessionID);
                 break;
         }
     }
 
-    private boolean handleNewQuery(WebSocketRequest request, SimpMessageHeaderAccessor headerAccessor) {
+    private void handleNewTemplateQuery(WebSocketRequest request, String sessionID, Principal user) {
+        String bql;
+        try {
+            bql = templateService.bind(new TemplateRequest(request.getContent(), request.getParameters()));
+        } catch (IllegalArgumentException e) {
+            String queryID = Utils.getNewQueryID();
+            WebSocketQueryHandler queryHandler = new WebSocketQueryHandler(webSocketService, sessionID, queryID, request.getCorrelationID());
+            failWith(new QueryError(e.getMessage(), TemplateService.RESOLUTION), Metric.BAD_REQUEST, queryHandler);
+            return;
+        }
+        handleNewQuery(bql, request.getCorrelationID(), sessionID, user);
+    }
+
+    private void handleNewQuery(String bql, String correlationID, String sessionID, Principal user) {
         String queryID = Utils.getNewQueryID();
-        String sessionID = headerAccessor.getSessionId();
-        WebSocketQueryHandler queryHandler = new WebSocketQueryHandler(webSocketService, sessionID, queryID);
+        WebSocketQueryHandler queryHandler = new WebSocketQueryHandler(webSocketService, sessionID, queryID, correlationID);
         if (!statusService.isBackendStatusOK()) {
-            return failWith(QueryError.SERVICE_UNAVAILABLE, Metric.UNAVAILABLE, queryHandler);
+            failWith(QueryError.SERVICE_UNAVAILABLE, Metric.UNAVAILABLE, queryHandler);
+            return;
         }
-        if (statusService.queryLimitReached()) {
+        // The inbound message thread is not held while the query waits to be admitted
+        admissionService.queueSynchronous(user).thenAccept(permit -> handleNewQuery(bql, permit, queryID, sessionID, queryHandler));
+    }
+
+    private boolean handleNewQuery(String bql, Permit permit, String queryID, String sessionID,
+                                   WebSocketQueryHandler queryHandler) {
+        if (permit == null) {
             return failWith(QueryError.TOO_MANY_QUERIES, Metric.TOO_MANY_REQUESTS, queryHandler);
         }
-        String bql = request.getContent();
+        // Released when the handler is done, including if it is failed below
+        queryHandler.setPermit(permit);
         BQLResult result = bqlService.toQuery(bql);
         if (result.hasErrors()) {
             return failWith(new QueryError(result.getErrors()), Metric.BAD_REQUEST, queryHandler);
         }
+        permit.setExpectedMS(Utils.getExpectedResultMS(result.getQuery()));
         log.debug("Submitting websocket query {}: {}", queryID, bql);
         webSocketService.submitQuery(queryID, sessionID, result.getQuery(), result.getBql(), queryHandler);
         incrementMetric(STATUS_PREFIX, Metric.CREATED);
         return true;
     }
 
-    private void handleKillQuery(WebSocketRequest request, SimpMessageHeaderAccessor headerAccessor) {
+    private void handleKillQuery(WebSocketRequest request, String sessionID) {
         String queryID = request.getContent();
         log.debug("Killing WebSocket query {}", queryID);
-        webSocketService.killQuery(headerAccessor.getSessionId(), queryID);
+        webSocketService.killQuery(sessionID, queryID);
     }
 
     private boolean failWith(QueryError error, Metric metric, WebSocketQueryHandler handler) {
@@ -10,6 +10,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
 @Component
@@ -26,6 +27,18 @@ public class WebSocketEventListener {
         this.webSocketService = webSocketService;
     }
 
+    /**
+     * This method is the handler when receiving WebSocket connect events. It records the wire format the session asked
+     * for in the {@link WebSocketService#WIRE_FORMAT_HEADER} header, if any.
+     *
+     * @param event The WebSocket connect event.
+     */
+    @EventListener
+    public void handleWebSocketConnectListener(SessionConnectEvent event) {
+        StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
+        webSocketService.connectSession(headerAccessor.getSessionId(), headerAccessor.getFirstNativeHeader(WebSocketService.WIRE_FORMAT_HEADER));
+    }
+
     /**
      * This method is the handler when receiving WebSocket disconnect events.
      *
@@ -34,6 +47,6 @@ public class WebSocketEventListener {
     @EventListener
     public void handleWebSocketDisconnectListener(SessionDisconnectEvent event) {
         StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
-        webSocketService.killQuery(headerAccessor.getSessionId(), null);
+        webSocketService.disconnectSession(headerAccessor.getSessionId());
     }
 }
@@ -0,0 +1,19 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A {@link WebSocketResponse} for sessions that use the raw wire format. The content is already a UTF-8 encoded JSON
+ * value and is written into the frame as is instead of being encoded as a JSON string.
+ */
+@AllArgsConstructor @Getter
+public class RawWebSocketResponse {
+    private WebSocketResponse.Type type;
+    private byte[] content;
+}
@@ -9,13 +9,21 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import java.util.Map;
+
 @NoArgsConstructor @Getter @Setter
 public class WebSocketRequest {
     public enum Type {
         NEW_QUERY,
+        NEW_TEMPLATE_QUERY,
         KILL_QUERY
     }
 
     private Type type;
     private String content;
+    // The values for the parameters of the template named by the content for NEW_TEMPLATE_QUERY requests
+    private Map<String, Object> parameters;
+    // An optional ID chosen by the client that is sent back on all responses to the query in the bullet-correlation-id
+    // header, so that many queries can run on one session
+    private String correlationID;
 }
@@ -0,0 +1,26 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.query;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import lombok.NoArgsConstructor;
+
+/**
+ * Query handler for asynchronous queries. Their results are sent by the asynchronous responders instead, so this only
+ * tracks when the query is done in order to free what it holds.
+ */
+@NoArgsConstructor
+public class AsyncQueryHandler extends QueryHandler {
+    @Override
+    public void send(PubSubMessage message) {
+        advance(State.STREAMING);
+    }
+
+    @Override
+    public void fail(QueryError cause) {
+        finish(State.FAILED);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.query;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.EncodedMessage;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Query handler that fans the results of a single backend query out to the handlers of all the identical queries
+ * attached to it. Handlers can only attach until the first result is sent, so every attached handler sees all the
+ * results. Once this is done, i.e. it finished or all the attached handlers detached, the given listener is called
+ * once with this handler. Results are sent as {@link EncodedMessage} so that they are encoded once per encoding the
+ * attached handlers need.
+ */
+public class CoalescedQueryHandler extends QueryHandler {
+    @Getter
+    private final String id;
+    @Getter
+    private final String key;
+    private final Consumer<CoalescedQueryHandler> doneListener;
+    // Guarded by this
+    private final Map<String, QueryHandler> clients = new LinkedHashMap<>();
+    private boolean closed = false;
+
+    /**
+     * Constructor that takes the ID of the backend query, the key identifying it and a listener for when it is done.
+     *
+     * @param id The ID of the backend query.
+     * @param key The key that identical queries share.
+     * @param doneListener The listener to call once this is done.
+     */
+    public CoalescedQueryHandler(String id, String key, Consumer<CoalescedQueryHandler> doneListener) {
+        this.id = id;
+        this.key = key;
+        this.doneListener = doneListener;
+    }
+
+    /**
+     * Attaches the handler for a query to this one if results have not started yet.
+     *
+     * @param clientID The ID of the query the handler is for.
+     * @param handler The {@link QueryHandler} to send results to.
+     * @return true if the handler was attached.
+     */
+    public synchronized boolean attach(String clientID, QueryHandler handler) {
+        if (closed || isComplete()) {
+            return false;
+        }
+        clients.put(clientID, handler);
+        return true;
+    }
+
+    /**
+     * Detaches the handler for a query. If it was the last one and this is not done, this completes without results.
+     *
+     * @param clientID The ID of the query the handler is for.
+     * @return true if this was the last attached handler and the backend query is no longer needed.
+     */
+    public boolean detach(String clientID) {
+        synchronized (this) {
+            if (clients.remove(clientID) == null || !clients.isEmpty()) {
+                return false;
+            }
+        }
+        if (!finish(State.COMPLETE)) {
+            return false;
+        }
+        doneListener.accept(this);
+        return true;
+    }
+
+    /**
+     * Gets the IDs of the queries whose handlers are attached to this.
+     *
+     * @return A {@link List} of the IDs.
+     */
+    public synchronized List<String> getClientIDs() {
+        return new ArrayList<>(clients.keySet());
+    }
+
+    @Override
+    public void send(PubSubMessage message) {
+        if (advance(State.STREAMING)) {
+            EncodedMessage shared = new EncodedMessage(message);
+            close().forEach(handler -> handler.send(shared));
+        }
+    }
+
+    @Override
+    public void complete() {
+        if (finish(State.COMPLETE)) {
+            close().forEach(QueryHandler::complete);
+            doneListener.accept(this);
+        }
+    }
+
+    @Override
+    public void fail(QueryError cause) {
+        if (finish(State.FAILED)) {
+            close().forEach(handler -> handler.fail(cause));
+            doneListener.accept(this);
+        }
+    }
+
+    @Override
+    public void acknowledge() {
+        if (advance(State.ACKNOWLEDGED)) {
+            snapshot().forEach(QueryHandler::acknowledge);
+        }
+    }
+
+    @Override
+    public void expire() {
+        // Each attached handler expires on its own so its permit learns of the timeout
+        if (finish(State.FAILED)) {
+            close().forEach(QueryHandler::expire);
+            doneListener.accept(this);
+        }
+    }
+
+    private synchronized List<QueryHandler> snapshot() {
+        return new ArrayList<>(clients.values());
+    }
+
+    private synchronized List<QueryHandler> close() {
+        closed = true;
+        return new ArrayList<>(clients.values());
+    }
+}
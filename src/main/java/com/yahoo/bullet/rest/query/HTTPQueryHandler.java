@@ -6,32 +6,48 @@
 package com.yahoo.bullet.rest.query;
 
 import com.yahoo.bullet.pubsub.PubSubMessage;
-import lombok.NoArgsConstructor;
+import com.yahoo.bullet.rest.common.ResultEncoding;
 
 import java.util.concurrent.CompletableFuture;
 
 /**
  * Query handler that implements results for HTTP - one result per query. In other words, a single
  * {@link #send(PubSubMessage)} or {@link #fail(QueryError)} call is supported. Use {@link #getResult()} to get a
- * {@link CompletableFuture} that resolves to the single result or error.
+ * {@link CompletableFuture} that resolves to the bytes of the single result or error in the {@link ResultEncoding} the
+ * client asked for. They are written to the response as is.
  */
-@NoArgsConstructor
 public class HTTPQueryHandler extends QueryHandler {
-    private CompletableFuture<String> result = new CompletableFuture<>();
+    private CompletableFuture<byte[]> result = new CompletableFuture<>();
+    private ResultEncoding encoding;
+
+    /**
+     * Constructor that returns results as JSON.
+     */
+    public HTTPQueryHandler() {
+        this(ResultEncoding.JSON);
+    }
+
+    /**
+     * Constructor that takes the encoding to return results in.
+     *
+     * @param encoding The {@link ResultEncoding} to return results in.
+     */
+    public HTTPQueryHandler(ResultEncoding encoding) {
+        this.encoding = encoding;
+    }
 
     @Override
     public void send(PubSubMessage message) {
-        if (!isComplete()) {
-            result.complete(message.getContentAsString());
-            complete();
+        // Passes through streaming so the result is noted before the handler is done
+        if (advance(State.STREAMING) && finish(State.COMPLETE)) {
+            result.complete(encoding.encode(message));
         }
     }
 
     @Override
     public void fail(QueryError cause) {
-        if (!isComplete()) {
-            result.complete(cause.toString());
-            complete();
+        if (finish(State.FAILED)) {
+            result.complete(encoding.encode(cause));
         }
     }
 
@@ -40,7 +56,7 @@ public class HTTPQueryHandler extends QueryHandler {
      *
      * @return The {@link CompletableFuture} of the single result that will eventually (but not guaranteed) to be added.
      */
-    public CompletableFuture<String> getResult() {
+    public CompletableFuture<byte[]> getResult() {
         return result;
     }
 }
@@ -10,20 +10,30 @@ import com.yahoo.bullet.result.Clip;
 import com.yahoo.bullet.result.Meta;
 import lombok.Getter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 
-@Getter
+/**
+ * An error for a query. Its JSON form is built once on first use and reused since errors can be returned very often,
+ * such as when the service is shedding load. The constant errors are serialized up front.
+ */
 public class QueryError {
-    public static final QueryError TOO_MANY_QUERIES = new QueryError("Too many concurrent queries in the system", "Please try again later");
-    public static final QueryError INVALID_QUERY = new QueryError("Failed to parse query", "Please provide a valid query");
-    public static final QueryError MISSING_KEY = new QueryError("Asynchronous queries need a unique key", "Please provide a key");
+    public static final QueryError TOO_MANY_QUERIES = constant("Too many concurrent queries in the system", "Please try again later");
+    public static final QueryError INVALID_QUERY = constant("Failed to parse query", "Please provide a valid query");
+    public static final QueryError MISSING_KEY = constant("Asynchronous queries need a unique key", "Please provide a key");
     public static final QueryError UNSUPPORTED_QUERY =
-        new QueryError("This particular REST endpoint does not support windowed queries",
+        constant("This particular REST endpoint does not support windowed queries",
                        "Please provide a valid query without a window, or use the SSE or WS endpoints to submit queries with windows");
-    public static final QueryError SERVICE_UNAVAILABLE = new QueryError("Service temporarily unavailable", "Please try again later");
+    public static final QueryError QUERY_TIMEOUT =
+        constant("The query did not finish in time", "Please try again later or submit a query with a shorter duration");
+    public static final QueryError SERVICE_UNAVAILABLE = constant("Service temporarily unavailable", "Please try again later");
 
+    @Getter
     private List<BulletError> errors;
+    // Racing threads may both serialize but always to the same value
+    private volatile String json;
+    private volatile byte[] bytes;
 
     /**
      * Constructor that takes an error message and resolution for it.
@@ -46,6 +56,31 @@ public class QueryError {
 
     @Override
     public String toString() {
-        return Clip.of(Meta.of(errors)).asJSON();
+        String serialized = json;
+        if (serialized == null) {
+            serialized = Clip.of(Meta.of(errors)).asJSON();
+            json = serialized;
+        }
+        return serialized;
+    }
+
+    /**
+     * Gets the UTF-8 encoded JSON form of this error. The bytes are shared and must not be modified.
+     *
+     * @return The bytes of {@link #toString()}.
+     */
+    public byte[] toBytes() {
+        byte[] serialized = bytes;
+        if (serialized == null) {
+            serialized = toString().getBytes(StandardCharsets.UTF_8);
+            bytes = serialized;
+        }
+        return serialized;
+    }
+
+    private static QueryError constant(String error, String resolution) {
+        QueryError queryError = new QueryError(error, resolution);
+        queryError.toBytes();
+        return queryError;
     }
 }
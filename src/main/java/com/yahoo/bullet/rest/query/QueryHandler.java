@@ -6,11 +6,37 @@
 package com.yahoo.bullet.rest.query;
 
 import com.yahoo.bullet.pubsub.PubSubMessage;
-import lombok.Getter;
+import com.yahoo.bullet.rest.common.Permit;
 
-@Getter
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The base class for handling the results of a query. A handler moves through its {@link State} lifecycle using atomic
+ * compare-and-set transitions, so sending, failing and completing never block each other and a handler reaches a
+ * terminal state exactly once. Implementations should only act on a terminal transition if they made it, i.e. if
+ * {@link #finish(State)} returned true. A handler may hold a {@link Permit} for its query, which is released when the
+ * handler reaches a terminal state and is told when the handler first moves to {@link State#STREAMING}.
+ */
 public abstract class QueryHandler {
-    protected boolean complete = false;
+    /**
+     * The lifecycle of a handler. The states are ordered and a handler only ever moves forward through them.
+     */
+    public enum State {
+        PENDING, ACKNOWLEDGED, STREAMING, COMPLETE, FAILED;
+
+        /**
+         * Whether this is a terminal state.
+         *
+         * @return true if the handler is done in this state.
+         */
+        public boolean isTerminal() {
+            return this == COMPLETE || this == FAILED;
+        }
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+    private final long created = System.currentTimeMillis();
+    private volatile Permit permit;
 
     /**
      * Send a {@link PubSubMessage} to the query handler.
@@ -20,10 +46,11 @@ public abstract class QueryHandler {
     public abstract void send(PubSubMessage message);
 
     /**
-     * Completes the query and sets the complete flag. All overrides should do the same or call this.
+     * Completes the query if it is not already done. Overrides should only act if {@link #finish(State)} with
+     * {@link State#COMPLETE} returns true.
      */
     public void complete() {
-        complete = true;
+        finish(State.COMPLETE);
     }
 
     /**
@@ -34,9 +61,11 @@ public abstract class QueryHandler {
     public abstract void fail(QueryError cause);
 
     /**
-     * Indicate that the query was received and accepted by the QUERY_PROCESSING system. By default, does nothing.
+     * Indicate that the query was received and accepted by the QUERY_PROCESSING system. By default, only moves the
+     * handler to {@link State#ACKNOWLEDGED}.
      */
     public void acknowledge() {
+        advance(State.ACKNOWLEDGED);
     }
 
     /**
@@ -45,4 +74,102 @@ public abstract class QueryHandler {
     public void fail() {
         fail(QueryError.SERVICE_UNAVAILABLE);
     }
+
+    /**
+     * Fails the query with a {@link QueryError#QUERY_TIMEOUT} since it did not finish in time.
+     */
+    public void expire() {
+        Permit held = permit;
+        if (held != null) {
+            held.onTimeout();
+        }
+        fail(QueryError.QUERY_TIMEOUT);
+    }
+
+    /**
+     * Gets the current {@link State} of this handler.
+     *
+     * @return The current state.
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * Sets the {@link Permit} held by the query of this handler. It is released when this handler is done, or right
+     * away if it already is.
+     *
+     * @param permit The {@link Permit} to release when done.
+     */
+    public void setPermit(Permit permit) {
+        this.permit = permit;
+        if (isComplete()) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Gets the time this handler was created.
+     *
+     * @return The creation time in ms since the epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Whether this handler is done, i.e. it has completed or failed.
+     *
+     * @return true if the handler is in a terminal state.
+     */
+    public boolean isComplete() {
+        return state.get().isTerminal();
+    }
+
+    /**
+     * Moves this handler forward to the given non-terminal {@link State} if it is not already in or past it.
+     *
+     * @param next The non-terminal state to move to.
+     * @return true if the handler is now in or past the given state but not done; false if it is done.
+     */
+    protected boolean advance(State next) {
+        while (true) {
+            State current = state.get();
+            if (current.isTerminal()) {
+                return false;
+            }
+            if (current.compareTo(next) >= 0) {
+                return true;
+            }
+            if (state.compareAndSet(current, next)) {
+                Permit held = permit;
+                if (next == State.STREAMING && held != null) {
+                    held.onResult();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves this handler to the given terminal {@link State}. Only one call to this across all threads will succeed.
+     *
+     * @param terminal The terminal state to move to.
+     * @return true if this call made the terminal transition; false if the handler was already done.
+     */
+    protected boolean finish(State terminal) {
+        while (true) {
+            State current = state.get();
+            if (current.isTerminal()) {
+                return false;
+            }
+            if (state.compareAndSet(current, terminal)) {
+                Permit held = permit;
+                if (held != null) {
+                    held.release();
+                }
+                return true;
+            }
+        }
+    }
 }
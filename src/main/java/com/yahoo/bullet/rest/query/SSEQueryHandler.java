@@ -6,47 +6,345 @@
 package com.yahoo.bullet.rest.query;
 
 import com.yahoo.bullet.pubsub.PubSubMessage;
-import com.yahoo.bullet.rest.service.QueryService;
+import com.yahoo.bullet.rest.common.SSEEvent;
+import com.yahoo.bullet.rest.common.Utils;
+import com.yahoo.bullet.rest.service.CompressionService;
+import com.yahoo.bullet.rest.service.HandlerService;
 import lombok.AllArgsConstructor;
-import org.springframework.http.MediaType;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 /**
- * Query handler that implements results for SSE - multiple results per query.
+ * Query handler that implements results for SSE - multiple results per query. Results are written as {@link SSEEvent}
+ * so their bytes go to the response without being converted to a String. If a {@link CompressionService.Stream} is
+ * given, the events are compressed with it and the response must have been marked with its content coding.
+ * <p>
+ * If the response ends before the query is done, e.g. because the client went away and a write or a heartbeat failed,
+ * the handler is done and it leaves the query with the {@link HandlerService}, which kills it.
+ * <p>
+ * If the handler is resumable, i.e. it is given a replay buffer size, each event gets an ID of the form
+ * {@code <queryID>:<sequence>} and the most recent events are kept. When the response ends before the query is done,
+ * the handler detaches from it instead and keeps the query running. A client that reconnects with the ID of the last
+ * event it got {@link #resume(SseEmitter, CompressionService.Stream, String)}s the stream on its new response and is sent
+ * the events it missed. Detached handlers leave their queries once they {@link #expireDetached(long)}.
  */
-@AllArgsConstructor
+@Slf4j
 public class SSEQueryHandler extends QueryHandler {
+    private static final byte[] HEARTBEAT = new SSEEvent().comment("heartbeat").toBytes();
+    private static final char EVENT_ID_SEPARATOR = ':';
+    private static final long ATTACHED = -1L;
+
     private String queryID;
     private SseEmitter emitter;
-    private QueryService queryService;
+    private HandlerService handlerService;
+    private CompressionService.Stream compressor;
+    private volatile long lastWrite = System.currentTimeMillis();
+    // Set while a write is in progress so that heartbeats can skip the handler without waiting on it
+    private volatile boolean writing = false;
+
+    private final int replaySize;
+    private final Deque<Event> replay;
+    private long sequence = 0L;
+    // The time the handler detached from its response or ATTACHED if it did not
+    private long detachedAt = ATTACHED;
+
+    @AllArgsConstructor
+    private static class Event {
+        private final long sequence;
+        private final byte[] bytes;
+    }
+
+    /**
+     * Constructor that writes events uncompressed.
+     *
+     * @param queryID The query ID.
+     * @param emitter The {@link SseEmitter} to write events to.
+     * @param handlerService The {@link HandlerService} to leave the query with if the client goes away.
+     */
+    public SSEQueryHandler(String queryID, SseEmitter emitter, HandlerService handlerService) {
+        this(queryID, emitter, handlerService, null);
+    }
+
+    /**
+     * Constructor that compresses events.
+     *
+     * @param queryID The query ID.
+     * @param emitter The {@link SseEmitter} to write events to.
+     * @param handlerService The {@link HandlerService} to leave the query with if the client goes away.
+     * @param compressor The {@link CompressionService.Stream} to compress events with. It can be null to not compress.
+     */
+    public SSEQueryHandler(String queryID, SseEmitter emitter, HandlerService handlerService, CompressionService.Stream compressor) {
+        this(queryID, emitter, handlerService, compressor, 0);
+    }
+
+    /**
+     * Constructor that compresses events and keeps the most recent ones for clients that resume the stream.
+     *
+     * @param queryID The query ID.
+     * @param emitter The {@link SseEmitter} to write events to.
+     * @param handlerService The {@link HandlerService} to leave the query with if the client goes away.
+     * @param compressor The {@link CompressionService.Stream} to compress events with. It can be null to not compress.
+     * @param replaySize The number of recent events to keep. If not positive, events have no IDs and the stream cannot
+     *                   be resumed.
+     */
+    public SSEQueryHandler(String queryID, SseEmitter emitter, HandlerService handlerService,
+                           CompressionService.Stream compressor, int replaySize) {
+        this.queryID = queryID;
+        this.handlerService = handlerService;
+        this.replaySize = replaySize;
+        this.replay = replaySize > 0 ? new ArrayDeque<>(replaySize) : null;
+        attach(emitter, compressor);
+    }
+
+    /**
+     * Gets the ID of the query of the event with the given ID.
+     *
+     * @param eventID The ID of an event sent by a resumable handler.
+     * @return The ID of the query or null if the event ID is not one of a resumable handler.
+     */
+    public static String getQueryID(String eventID) {
+        int separator = eventID == null ? -1 : eventID.lastIndexOf(EVENT_ID_SEPARATOR);
+        return separator > 0 ? eventID.substring(0, separator) : null;
+    }
 
     @Override
     public void complete() {
-        super.complete();
-        emitter.complete();
+        if (finish(State.COMPLETE)) {
+            end();
+        }
     }
 
     @Override
     public void send(PubSubMessage response) {
-        if (!isComplete()) {
+        if (advance(State.STREAMING)) {
             try {
-                emitter.send(response.getContent(), MediaType.APPLICATION_JSON);
+                emit(Utils.getContentAsBytes(response));
             } catch (Exception e) {
-                queryService.kill(queryID);
-                complete();
+                if (!detach()) {
+                    handlerService.leave(queryID);
+                    complete();
+                }
             }
         }
     }
 
     @Override
     public void fail(QueryError cause) {
-        if (!isComplete()) {
+        if (finish(State.FAILED)) {
             try {
-                emitter.send(cause.toString(), MediaType.APPLICATION_JSON);
+                // Written as is so failing, e.g. when shedding load, does not encode the error again
+                emit(cause.toBytes());
             } catch (Exception e) {
-                queryService.kill(queryID);
+                if (!detach()) {
+                    handlerService.leave(queryID);
+                }
+            }
+            end();
+        }
+    }
+
+    /**
+     * Checks without blocking whether the handler is due a heartbeat, i.e. it is not done, it is not writing and nothing
+     * has been written for the given time. This does not mean that {@link #heartbeat(long)} will write one.
+     *
+     * @param idleMS The time in ms since the last write after which a heartbeat is due.
+     * @return true if a heartbeat is due.
+     */
+    public boolean isHeartbeatDue(long idleMS) {
+        return !writing && !isComplete() && System.currentTimeMillis() - lastWrite >= idleMS;
+    }
+
+    /**
+     * Writes a heartbeat if nothing has been written for the given time. Heartbeats are SSE comments, which clients
+     * ignore. If the heartbeat cannot be written, the client is gone and the query is left.
+     *
+     * @param idleMS The time in ms since the last write after which a heartbeat is written.
+     * @return true if a heartbeat was written.
+     */
+    public boolean heartbeat(long idleMS) {
+        SseEmitter current;
+        synchronized (this) {
+            current = emitter;
+        }
+        if (current == null || isComplete() || System.currentTimeMillis() - lastWrite < idleMS) {
+            return false;
+        }
+        try {
+            write(SSEEvent.raw(HEARTBEAT));
+            return true;
+        } catch (Exception e) {
+            disconnect(current);
+            return false;
+        }
+    }
+
+    /**
+     * Moves the stream to a new response of a client that reconnected and sends the events after the given one that are
+     * still kept. If the stream is still on another response, that response is ended. If the query is done, the new
+     * response is ended after the events are sent.
+     *
+     * @param emitter The {@link SseEmitter} to write events to.
+     * @param compressor The {@link CompressionService.Stream} to compress events with. It can be null to not compress.
+     * @param lastEventID The ID of the last event the client got.
+     * @return false if the stream cannot be resumed since it ended or its query was left.
+     */
+    public synchronized boolean resume(SseEmitter emitter, CompressionService.Stream compressor, String lastEventID) {
+        if (replay == null || (this.emitter == null && detachedAt == ATTACHED)) {
+            return false;
+        }
+        if (this.emitter != null) {
+            // The old response is replaced, so its completion callback does not detach the handler
+            SseEmitter old = this.emitter;
+            closeCompressor();
+            this.emitter = null;
+            old.complete();
+        }
+        long last = toSequence(lastEventID);
+        attach(emitter, compressor);
+        log.debug("Resuming SSE query {} after event {}", queryID, last);
+        try {
+            for (Event event : replay) {
+                if (event.sequence > last) {
+                    write(SSEEvent.raw(event.bytes));
+                }
+            }
+        } catch (Exception e) {
+            detach();
+            return true;
+        }
+        if (isComplete()) {
+            end();
+        }
+        return true;
+    }
+
+    /**
+     * Leaves the query if the handler has been detached from its response for the given time and tells whether the
+     * stream can no longer be resumed.
+     *
+     * @param timeoutMS The time in ms a handler can stay detached.
+     * @return true if the stream has ended or its query was left.
+     */
+    public boolean expireDetached(long timeoutMS) {
+        synchronized (this) {
+            if (detachedAt == ATTACHED) {
+                return emitter == null;
             }
-            complete();
+            if (System.currentTimeMillis() - detachedAt < timeoutMS) {
+                return false;
+            }
+            detachedAt = ATTACHED;
+            replay.clear();
+        }
+        if (finish(State.COMPLETE)) {
+            log.debug("Leaving SSE query {} since its client did not come back", queryID);
+            handlerService.leave(queryID);
+        }
+        return true;
+    }
+
+    private synchronized void emit(byte[] data) throws IOException {
+        if (replay == null) {
+            write(SSEEvent.of(data));
+            return;
+        }
+        sequence++;
+        SSEEvent event = new SSEEvent().id(queryID + EVENT_ID_SEPARATOR + sequence).data(data);
+        if (replay.size() == replaySize) {
+            replay.removeFirst();
+        }
+        replay.addLast(new Event(sequence, event.toBytes()));
+        // Detached handlers only keep the event for when the client comes back
+        if (emitter != null) {
+            write(event);
+        }
+    }
+
+    private synchronized void write(SSEEvent event) throws IOException {
+        lastWrite = System.currentTimeMillis();
+        writing = true;
+        try {
+            if (compressor == null) {
+                emitter.send(event);
+                return;
+            }
+            emitter.send(SSEEvent.raw(compressor.write(event.toBytes())));
+        } finally {
+            writing = false;
+        }
+    }
+
+    private synchronized void attach(SseEmitter emitter, CompressionService.Stream compressor) {
+        this.emitter = emitter;
+        this.compressor = compressor;
+        this.detachedAt = ATTACHED;
+        // Runs when the response ends for any reason, including the connection failing, and after this ends it
+        emitter.onCompletion(() -> disconnect(emitter));
+        emitter.onTimeout(() -> disconnect(emitter));
+    }
+
+    private synchronized boolean detach() {
+        if (replay == null || emitter == null) {
+            return false;
+        }
+        log.debug("Detaching SSE query {} from its response since its client is gone", queryID);
+        emitter = null;
+        detachedAt = System.currentTimeMillis();
+        closeCompressor();
+        return true;
+    }
+
+    private void disconnect(SseEmitter from) {
+        synchronized (this) {
+            // Only does anything if the response ended before the query was done and was not replaced
+            if (from != emitter || isComplete()) {
+                return;
+            }
+            if (detach()) {
+                return;
+            }
+        }
+        if (finish(State.COMPLETE)) {
+            log.debug("Leaving SSE query {} since its client is gone", queryID);
+            handlerService.leave(queryID);
+            closeCompressor();
+        }
+    }
+
+    private synchronized void end() {
+        if (emitter == null) {
+            return;
+        }
+        if (compressor != null) {
+            try {
+                emitter.send(SSEEvent.raw(compressor.finish()));
+            } catch (Exception e) {
+                compressor.close();
+            }
+            compressor = null;
+        }
+        SseEmitter ended = emitter;
+        emitter = null;
+        ended.complete();
+    }
+
+    private synchronized void closeCompressor() {
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+    }
+
+    private static long toSequence(String eventID) {
+        try {
+            return Long.parseLong(eventID.substring(eventID.lastIndexOf(EVENT_ID_SEPARATOR) + 1));
+        } catch (RuntimeException e) {
+            // Sends all the events that are kept
+            return 0L;
         }
     }
 }
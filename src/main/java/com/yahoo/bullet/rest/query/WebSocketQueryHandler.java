@@ -12,17 +12,27 @@ import com.yahoo.bullet.rest.service.WebSocketService;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.SimpMessageType;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Query handler that implements results for WebSocket - multiple results per query.
+ * Query handler that implements results for WebSocket - multiple results per query. Results that are too large for one
+ * message are split into fragments of their content that are sent one after the other. Each fragment has the
+ * {@link WebSocketService#FRAGMENT_ID_HEADER}, {@link WebSocketService#FRAGMENT_INDEX_HEADER} and
+ * {@link WebSocketService#FRAGMENT_COUNT_HEADER} headers so that clients can join the contents back together. If the
+ * client gave a correlation ID for the query, all responses have it in the {@link WebSocketService#CORRELATION_ID_HEADER}
+ * header.
  */
 public class WebSocketQueryHandler extends QueryHandler {
     private WebSocketService webSocketService;
     private String sessionID;
     private String queryID;
+    private String correlationID;
     private SimpMessageHeaderAccessor headerAccessor;
+    private int fragmented = 0;
 
     private static final Map<Metadata.Signal, WebSocketResponse.Type> MESSAGE_TYPE_MAP = new HashMap<>();
     static {
@@ -38,40 +48,130 @@ public class WebSocketQueryHandler extends QueryHandler {
      * @param queryID The query ID.
      */
     public WebSocketQueryHandler(WebSocketService webSocketService, String sessionID, String queryID) {
+        this(webSocketService, sessionID, queryID, null);
+    }
+
+    /**
+     * Constructor method that tags responses with a correlation ID.
+     *
+     * @param webSocketService The {@link WebSocketService} to handle websocket messages.
+     * @param sessionID The session ID to represent the client.
+     * @param queryID The query ID.
+     * @param correlationID The correlation ID the client gave for the query. It can be null.
+     */
+    public WebSocketQueryHandler(WebSocketService webSocketService, String sessionID, String queryID, String correlationID) {
         this.webSocketService = webSocketService;
         this.sessionID = sessionID;
         this.queryID = queryID;
-        headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
-        headerAccessor.setSessionId(sessionID);
+        this.correlationID = correlationID;
+        headerAccessor = createHeaderAccessor();
     }
 
     @Override
     public void complete() {
-        super.complete();
-        webSocketService.deleteSession(sessionID);
+        if (finish(State.COMPLETE)) {
+            webSocketService.deleteQuery(sessionID, queryID);
+        }
     }
 
     @Override
     public void send(PubSubMessage response) {
-        if (!isComplete()) {
-            WebSocketResponse responseMessage = new WebSocketResponse(getType(response), response.getContentAsString());
-            webSocketService.sendResponse(sessionID, responseMessage, headerAccessor);
+        if (advance(State.STREAMING)) {
+            sendResponse(getType(response), response.getContentAsString());
         }
     }
 
     @Override
     public void fail(QueryError cause) {
-        if (!isComplete()) {
-            WebSocketResponse responseMessage = new WebSocketResponse(WebSocketResponse.Type.FAIL, cause.toString());
-            webSocketService.sendResponse(sessionID, responseMessage, headerAccessor);
-            complete();
+        if (finish(State.FAILED)) {
+            sendResponse(WebSocketResponse.Type.FAIL, cause.toString());
+            webSocketService.deleteQuery(sessionID, queryID);
         }
     }
 
     @Override
     public void acknowledge() {
-        WebSocketResponse response = new WebSocketResponse(WebSocketResponse.Type.ACK, queryID);
-        webSocketService.sendResponse(sessionID, response, headerAccessor);
+        if (advance(State.ACKNOWLEDGED)) {
+            WebSocketResponse response = new WebSocketResponse(WebSocketResponse.Type.ACK, queryID);
+            webSocketService.sendResponse(sessionID, response, headerAccessor);
+        }
+    }
+
+    /**
+     * Splits the content of a response into fragments that are each at most the given size once encoded as a JSON
+     * string in UTF-8. Characters outside the Basic Multilingual Plane are not split.
+     *
+     * @param content The content to split. It can be null.
+     * @param maxBytes The maximum encoded size of a fragment. If not positive, the content is not split.
+     * @return The {@link List} of fragments, which only has the content if it does not need to be split.
+     */
+    static List<String> fragment(String content, int maxBytes) {
+        // Each char is at most 6 bytes once escaped, so most content is known to fit without looking at it
+        if (content == null || maxBytes <= 0 || content.length() * 6L <= maxBytes) {
+            return Collections.singletonList(content);
+        }
+        List<String> fragments = new ArrayList<>();
+        int start = 0;
+        int bytes = 0;
+        int i = 0;
+        while (i < content.length()) {
+            int codePoint = content.codePointAt(i);
+            int size = getEncodedSize(codePoint);
+            if (bytes + size > maxBytes && i > start) {
+                fragments.add(content.substring(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += size;
+            i += Character.charCount(codePoint);
+        }
+        fragments.add(content.substring(start));
+        return fragments;
+    }
+
+    private void sendResponse(WebSocketResponse.Type type, String content) {
+        List<String> fragments = fragment(content, webSocketService.getFragmentSizeBytes(sessionID));
+        if (fragments.size() == 1) {
+            webSocketService.sendResult(sessionID, queryID, Collections.singletonList(new WebSocketResponse(type, content)),
+                                        Collections.singletonList(headerAccessor));
+            return;
+        }
+        String fragmentID = queryID + "-" + fragmented++;
+        String count = String.valueOf(fragments.size());
+        List<WebSocketResponse> responses = new ArrayList<>(fragments.size());
+        List<SimpMessageHeaderAccessor> headerAccessors = new ArrayList<>(fragments.size());
+        for (int i = 0; i < fragments.size(); i++) {
+            SimpMessageHeaderAccessor fragmentHeaderAccessor = createHeaderAccessor();
+            fragmentHeaderAccessor.setNativeHeader(WebSocketService.FRAGMENT_ID_HEADER, fragmentID);
+            fragmentHeaderAccessor.setNativeHeader(WebSocketService.FRAGMENT_INDEX_HEADER, String.valueOf(i));
+            fragmentHeaderAccessor.setNativeHeader(WebSocketService.FRAGMENT_COUNT_HEADER, count);
+            responses.add(new WebSocketResponse(type, fragments.get(i)));
+            headerAccessors.add(fragmentHeaderAccessor);
+        }
+        webSocketService.sendResult(sessionID, queryID, responses, headerAccessors);
+    }
+
+    private SimpMessageHeaderAccessor createHeaderAccessor() {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionID);
+        if (correlationID != null) {
+            accessor.setNativeHeader(WebSocketService.CORRELATION_ID_HEADER, correlationID);
+        }
+        return accessor;
+    }
+
+    private static int getEncodedSize(int codePoint) {
+        if (codePoint == '"' || codePoint == '\\') {
+            return 2;
+        }
+        if (codePoint < 0x20 || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            // Escaped as a six character unicode escape at worst
+            return 6;
+        }
+        if (codePoint < 0x80) {
+            return 1;
+        }
+        return codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
     }
 
     private WebSocketResponse.Type getType(PubSubMessage message) {
@@ -0,0 +1,599 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.AIMDLimit;
+import com.yahoo.bullet.rest.common.MetricManager;
+import com.yahoo.bullet.rest.common.Permit;
+import com.yahoo.bullet.rest.common.PermitPool;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether new queries are admitted. Admitting a query reserves a {@link Permit} for it, which must be released
+ * once the query is done (see {@link com.yahoo.bullet.rest.query.QueryHandler#setPermit(Permit)}). The limit for
+ * synchronous queries can adapt to how late the backend is with results (see {@link AIMDLimit}). Synchronous queries
+ * that cannot be admitted right away can optionally wait in a bounded queue for a permit to free up. Waiting does not
+ * block a thread. This also estimates how long a rejected client should wait before retrying from how long permits
+ * have recently been held.
+ *
+ * Each query is also admitted against the quota of its principal, which caps the queries the principal can run at once
+ * across all kinds of queries. The quota of a principal is the default quota scaled by its weight. Waiting queries are
+ * admitted in weighted fair order: the next one comes from the principal with the fewest running queries for its
+ * weight and queries from the same principal are admitted in the order they arrived. Principals that have no queries
+ * running or waiting are forgotten when the metrics are next published, so only the active ones are tracked.
+ */
+@Service @Slf4j
+public class AdmissionService implements MetricManager {
+    /**
+     * The name used for queries without a principal.
+     */
+    public static final String ANONYMOUS = "anonymous";
+
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+
+    private final Tracker synchronousTracker;
+    private final Tracker asynchronousTracker;
+    private final PermitPool synchronousPermits;
+    private final PermitPool asynchronousPermits;
+    private final long maxRetryAfterS;
+    private final boolean queueEnabled;
+    private final int maxQueueLength;
+    private final long maxWaitMS;
+    private final ScheduledExecutorService queueExecutor;
+    private final ExecutorService queueWorkers;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final Map<String, Double> principalWeights;
+    private final int principalQuota;
+    private final Permit.Listener principalTracker = new Permit.Listener() {
+        @Override
+        public void onRelease(long heldMS) {
+            signalWaiters();
+        }
+    };
+
+    static final String SYNCHRONOUS_LIMIT = "query.admission.synchronous.limit";
+    static final String SYNCHRONOUS_LIMIT_INCREASED = "query.admission.synchronous.limit.increased";
+    static final String SYNCHRONOUS_LIMIT_DECREASED = "query.admission.synchronous.limit.decreased";
+    static final String QUEUE_ADDED = "query.admission.queue.added";
+    static final String QUEUE_FULL = "query.admission.queue.full";
+    static final String QUEUE_TIMED_OUT = "query.admission.queue.timed.out";
+    static final String QUEUE_WAIT_MS = "query.admission.queue.wait.ms";
+    static final String QUEUE_WAIT_BUCKET_PREFIX = "query.admission.queue.wait.ms.le.";
+    static final String QUEUE_WAIT_BUCKET_REST = QUEUE_WAIT_BUCKET_PREFIX + "inf";
+    // The upper bounds in ms of the buckets of the histogram of the time waited in the queue
+    static final long[] QUEUE_WAIT_BUCKETS = { 10L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L };
+    static final String PRINCIPAL_PREFIX = "query.principal.";
+    static final String PRINCIPAL_ADMITTED = ".admitted";
+    static final String PRINCIPAL_REJECTED = ".rejected";
+    static final String PRINCIPAL_RUNNING = ".running";
+    static final String PRINCIPAL_QUEUED = ".queued";
+    // The weight of the newest hold time in the moving average of hold times
+    private static final double HELD_WEIGHT = 0.1;
+    private static final double DEFAULT_WEIGHT = 1.0;
+    private static final String WEIGHTS_SEPARATOR = ",";
+    private static final String WEIGHT_SEPARATOR = ":";
+    private static final String WORKER_THREAD_PREFIX = "bullet-admission-";
+
+    @AllArgsConstructor
+    private static class Waiter {
+        private final CompletableFuture<Permit> permit = new CompletableFuture<>();
+        private final long enqueued = System.currentTimeMillis();
+        private final String principal;
+        private final Tenant tenant;
+    }
+
+    /**
+     * What is tracked for a principal while it is active.
+     */
+    @AllArgsConstructor
+    private static class Tenant {
+        private final PermitPool permits;
+        private final double weight;
+        private final Deque<Waiter> waiters = new ConcurrentLinkedDeque<>();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private boolean isIdle() {
+            return permits.getUsed() == 0 && waiters.isEmpty() && admitted.sum() == 0 && rejected.sum() == 0;
+        }
+    }
+
+    /**
+     * Keeps track of the permits from a pool and adapts the limit of the pool if it has an {@link AIMDLimit}.
+     */
+    private class Tracker implements Permit.Listener {
+        private final AIMDLimit adaptiveLimit;
+        private PermitPool pool;
+        private double averageHeldMS;
+
+        private Tracker(AIMDLimit adaptiveLimit) {
+            this.adaptiveLimit = adaptiveLimit;
+        }
+
+        @Override
+        public void onResult(long delayMS) {
+            if (adaptiveLimit != null) {
+                synchronized (adaptiveLimit) {
+                    adjust(adaptiveLimit.onSample(delayMS, pool.getUsed()));
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            if (adaptiveLimit != null) {
+                synchronized (adaptiveLimit) {
+                    adjust(adaptiveLimit.onDrop());
+                }
+            }
+        }
+
+        @Override
+        public void onRelease(long heldMS) {
+            synchronized (this) {
+                averageHeldMS = averageHeldMS == 0.0 ? heldMS : averageHeldMS + HELD_WEIGHT * (heldMS - averageHeldMS);
+            }
+            if (this == synchronousTracker) {
+                signalWaiters();
+            }
+        }
+
+        private void adjust(int change) {
+            if (change == 0) {
+                return;
+            }
+            pool.setLimit(adaptiveLimit.getLimit());
+            log.debug("Changed the synchronous query limit by {} to {}", change, pool.getLimit());
+            incrementMetric(change > 0 ? SYNCHRONOUS_LIMIT_INCREASED : SYNCHRONOUS_LIMIT_DECREASED);
+        }
+
+        private synchronized long getRetryAfter() {
+            // With all permits in use and held for the average time, one frees up every average / used ms
+            double waitMS = averageHeldMS / Math.max(pool.getUsed(), 1);
+            return Math.min(Math.max((long) Math.ceil(waitMS / 1000.0), 1L), maxRetryAfterS);
+        }
+    }
+
+    /**
+     * Constructor that takes fixed limits for the various kinds of queries, does not queue, has no principal quotas and
+     * does not collect metrics.
+     *
+     * @param maxSynchronousQueries The maximum number of HTTP, SSE and WebSocket queries that can run at once.
+     * @param maxAsynchronousQueries The maximum number of asynchronous queries that can run at once.
+     */
+    public AdmissionService(int maxSynchronousQueries, int maxAsynchronousQueries) {
+        this(maxSynchronousQueries, maxAsynchronousQueries, false, 1, 0, 0L, 0.5, false, 0, 0L, 1, false, 0, "", 60L, null);
+    }
+
+    /**
+     * Constructor that takes the limits for the various kinds of queries.
+     *
+     * @param maxSynchronousQueries The maximum number of HTTP, SSE and WebSocket queries that can run at once.
+     * @param maxAsynchronousQueries The maximum number of asynchronous queries that can run at once.
+     * @param adaptiveEnabled Whether the synchronous limit adapts between the minimum and the ceiling below.
+     * @param minSynchronousQueries The lowest the adaptive synchronous limit can go.
+     * @param maxAdaptiveQueries The highest the adaptive synchronous limit can go. The limit starts at the maximum
+     *                           number of synchronous queries above and the ceiling is never lower than that.
+     * @param toleranceMS The time in ms that a first result can be late by before the adaptive limit is lowered.
+     * @param backoffRatio The ratio to scale the adaptive limit by when a result is too late or a query times out.
+     * @param queueEnabled Whether synchronous queries that cannot be admitted right away wait for a permit.
+     * @param maxQueueLength The maximum number of synchronous queries that can wait for a permit at once.
+     * @param maxWaitMS The maximum time in ms that a synchronous query waits for a permit.
+     * @param queueThreads The number of threads that queries that waited continue on once admitted or rejected.
+     * @param quotaEnabled Whether the number of queries each principal can run at once is limited.
+     * @param principalQuota The maximum number of queries a principal with the default weight can run at once.
+     * @param principalWeights The comma separated principal:weight pairs. Principals not listed have a weight of 1.
+     * @param maxRetryAfterS The maximum time in seconds to ask rejected clients to wait before retrying.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public AdmissionService(@Value("${bullet.query.synchronous.max.concurrency}") int maxSynchronousQueries,
+                            @Value("${bullet.query.asynchronous.max.concurrency}") int maxAsynchronousQueries,
+                            @Value("${bullet.query.synchronous.adaptive.enabled}") boolean adaptiveEnabled,
+                            @Value("${bullet.query.synchronous.adaptive.min.concurrency}") int minSynchronousQueries,
+                            @Value("${bullet.query.synchronous.adaptive.max.concurrency}") int maxAdaptiveQueries,
+                            @Value("${bullet.query.synchronous.adaptive.tolerance.ms}") long toleranceMS,
+                            @Value("${bullet.query.synchronous.adaptive.backoff.ratio}") double backoffRatio,
+                            @Value("${bullet.query.synchronous.queue.enabled}") boolean queueEnabled,
+                            @Value("${bullet.query.synchronous.queue.max.length}") int maxQueueLength,
+                            @Value("${bullet.query.synchronous.queue.max.wait.ms}") long maxWaitMS,
+                            @Value("${bullet.query.synchronous.queue.threads}") int queueThreads,
+                            @Value("${bullet.query.principal.quota.enabled}") boolean quotaEnabled,
+                            @Value("${bullet.query.principal.quota.max.concurrency}") int principalQuota,
+                            @Value("${bullet.query.principal.weights}") String principalWeights,
+                            @Value("${bullet.query.retry.after.max.s}") long maxRetryAfterS,
+                            MetricPublisher metricPublisher) {
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        List<String> counters = new ArrayList<>(Arrays.asList(SYNCHRONOUS_LIMIT_INCREASED, SYNCHRONOUS_LIMIT_DECREASED,
+                                                              QUEUE_ADDED, QUEUE_FULL, QUEUE_TIMED_OUT, QUEUE_WAIT_BUCKET_REST));
+        Arrays.stream(QUEUE_WAIT_BUCKETS).mapToObj(bucket -> QUEUE_WAIT_BUCKET_PREFIX + bucket).forEach(counters::add);
+        this.metricCollector = new MetricCollector(counters, Arrays.asList(SYNCHRONOUS_LIMIT, QUEUE_WAIT_MS));
+        this.maxRetryAfterS = Math.max(maxRetryAfterS, 1L);
+        this.queueEnabled = queueEnabled && maxQueueLength > 0;
+        this.maxQueueLength = maxQueueLength;
+        this.maxWaitMS = maxWaitMS;
+        // Waiters are admitted on this thread so that nothing runs on the threads that release permits. What follows
+        // admitting them, e.g. submitting their queries, runs on the workers so that it does not hold up the queue
+        queueExecutor = this.queueEnabled ? Executors.newSingleThreadScheduledExecutor() : null;
+        queueWorkers = this.queueEnabled ? Executors.newFixedThreadPool(Math.max(queueThreads, 1),
+                                                                        new CustomizableThreadFactory(WORKER_THREAD_PREFIX))
+                                         : null;
+        this.principalQuota = quotaEnabled ? principalQuota : Integer.MAX_VALUE;
+        this.principalWeights = parseWeights(principalWeights);
+        AIMDLimit adaptiveLimit = null;
+        if (adaptiveEnabled) {
+            // The limit starts where a fixed limit would be and can grow past it up to the ceiling
+            int ceiling = Math.max(maxAdaptiveQueries, maxSynchronousQueries);
+            adaptiveLimit = new AIMDLimit(minSynchronousQueries, maxSynchronousQueries, ceiling, toleranceMS,
+                                          backoffRatio);
+        }
+        synchronousTracker = new Tracker(adaptiveLimit);
+        asynchronousTracker = new Tracker(null);
+        synchronousPermits = new PermitPool(maxSynchronousQueries, synchronousTracker);
+        asynchronousPermits = new PermitPool(maxAsynchronousQueries, asynchronousTracker);
+        synchronousTracker.pool = synchronousPermits;
+        asynchronousTracker.pool = asynchronousPermits;
+    }
+
+    /**
+     * Tries to admit a synchronous query.
+     *
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @return A {@link Permit} for the query or null if too many synchronous queries are running.
+     */
+    public Permit admitSynchronous(Principal principal) {
+        String name = getName(principal);
+        return count(name, admit(synchronousPermits, name));
+    }
+
+    /**
+     * Admits a synchronous query right away if possible. Otherwise, if queueing is enabled and the queue is not full,
+     * the query waits for a permit to free up or for the maximum wait to pass. No thread is blocked while waiting. The
+     * returned future is completed on one of the worker threads of this service if the query had to wait, so what is
+     * chained to it runs there.
+     *
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @return A {@link CompletableFuture} that resolves to a {@link Permit} for the query or null if it was rejected.
+     */
+    public CompletableFuture<Permit> queueSynchronous(Principal principal) {
+        String name = getName(principal);
+        Permit permit = admit(synchronousPermits, name);
+        if (permit != null || !queueEnabled) {
+            return CompletableFuture.completedFuture(count(name, permit));
+        }
+        if (queued.incrementAndGet() > maxQueueLength) {
+            queued.decrementAndGet();
+            incrementMetric(QUEUE_FULL);
+            return CompletableFuture.completedFuture(count(name, null));
+        }
+        Waiter waiter = enqueue(name);
+        incrementMetric(QUEUE_ADDED);
+        queueExecutor.schedule(() -> timeout(waiter), maxWaitMS, TimeUnit.MILLISECONDS);
+        // A permit may have been released after the attempt above but before the waiter was queued
+        signalWaiters();
+        return waiter.permit;
+    }
+
+    /**
+     * Gets the number of synchronous queries waiting for a permit.
+     *
+     * @return The number of queued synchronous queries.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Tries to admit an asynchronous query.
+     *
+     * @param principal The {@link Principal} submitting the query. It can be null.
+     * @return A {@link Permit} for the query or null if too many asynchronous queries are running.
+     */
+    public Permit admitAsynchronous(Principal principal) {
+        String name = getName(principal);
+        return count(name, admit(asynchronousPermits, name));
+    }
+
+    /**
+     * Gets the number of synchronous queries that are running.
+     *
+     * @return The number of synchronous permits in use.
+     */
+    public int getSynchronousCount() {
+        return synchronousPermits.getUsed();
+    }
+
+    /**
+     * Gets the number of asynchronous queries that are running.
+     *
+     * @return The number of asynchronous permits in use.
+     */
+    public int getAsynchronousCount() {
+        return asynchronousPermits.getUsed();
+    }
+
+    /**
+     * Gets the number of queries of any kind that a principal is running.
+     *
+     * @param principal The {@link Principal} to check. It can be null.
+     * @return The number of running queries of the principal.
+     */
+    public int getPrincipalCount(Principal principal) {
+        Tenant tenant = tenants.get(getName(principal));
+        return tenant == null ? 0 : tenant.permits.getUsed();
+    }
+
+    /**
+     * Gets the current limit on the number of synchronous queries that can run at once.
+     *
+     * @return The current synchronous limit.
+     */
+    public int getSynchronousLimit() {
+        return synchronousPermits.getLimit();
+    }
+
+    /**
+     * Estimates how long a rejected synchronous query should wait before it is retried.
+     *
+     * @return The time in seconds to wait. It is at least 1.
+     */
+    public long getSynchronousRetryAfter() {
+        return synchronousTracker.getRetryAfter();
+    }
+
+    /**
+     * Estimates how long a rejected asynchronous query should wait before it is retried.
+     *
+     * @return The time in seconds to wait. It is at least 1.
+     */
+    public long getAsynchronousRetryAfter() {
+        return asynchronousTracker.getRetryAfter();
+    }
+
+    /**
+     * Stops the queue and rejects all waiting queries.
+     */
+    @PreDestroy
+    public void close() {
+        if (!queueEnabled) {
+            return;
+        }
+        queueExecutor.shutdownNow();
+        queueWorkers.shutdown();
+        tenants.values().forEach(tenant -> {
+            Waiter waiter;
+            while ((waiter = tenant.waiters.pollFirst()) != null) {
+                queued.decrementAndGet();
+                waiter.permit.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher and forgets the principals that have been idle since the last
+     * time. The metrics of a principal are only published while it is tracked.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            metricCollector.average(SYNCHRONOUS_LIMIT, synchronousPermits.getLimit());
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            tenants.forEach((name, tenant) -> {
+                metrics.put(PRINCIPAL_PREFIX + name + PRINCIPAL_ADMITTED, tenant.admitted.sumThenReset());
+                metrics.put(PRINCIPAL_PREFIX + name + PRINCIPAL_REJECTED, tenant.rejected.sumThenReset());
+                metrics.put(PRINCIPAL_PREFIX + name + PRINCIPAL_RUNNING, tenant.permits.getUsed());
+                metrics.put(PRINCIPAL_PREFIX + name + PRINCIPAL_QUEUED, tenant.waiters.size());
+            });
+            metricPublisher.fire(metrics);
+        }
+        tenants.keySet().forEach(name -> tenants.computeIfPresent(name, (k, tenant) -> tenant.isIdle() ? null : tenant));
+    }
+
+    private static String getName(Principal principal) {
+        return principal == null || principal.getName() == null ? ANONYMOUS : principal.getName();
+    }
+
+    private static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> parsed = new HashMap<>();
+        if (weights == null || weights.trim().isEmpty()) {
+            return parsed;
+        }
+        for (String pair : weights.split(WEIGHTS_SEPARATOR)) {
+            int index = pair.lastIndexOf(WEIGHT_SEPARATOR);
+            if (index <= 0) {
+                throw new IllegalArgumentException("Principal weights must be principal:weight pairs: " + pair);
+            }
+            double weight = Double.parseDouble(pair.substring(index + 1).trim());
+            if (weight <= 0.0) {
+                throw new IllegalArgumentException("Principal weights must be positive: " + pair);
+            }
+            parsed.put(pair.substring(0, index).trim(), weight);
+        }
+        return parsed;
+    }
+
+    private Tenant getTenant(String name) {
+        return tenants.computeIfAbsent(name, k -> {
+            double weight = principalWeights.getOrDefault(k, DEFAULT_WEIGHT);
+            int quota = principalQuota;
+            if (quota != Integer.MAX_VALUE) {
+                quota = (int) Math.max(1L, Math.round(quota * weight));
+            }
+            return new Tenant(new PermitPool(quota, principalTracker), weight);
+        });
+    }
+
+    // A tenant that is forgotten while something is being added to it is not used and the addition is retried on the
+    // tenant that replaces it. Tenants with something added to them are not idle, so they are not forgotten after
+    private Permit acquire(String name) {
+        while (true) {
+            Tenant tenant = getTenant(name);
+            Permit permit = tenant.permits.tryAcquire();
+            if (permit == null || tenants.get(name) == tenant) {
+                return permit;
+            }
+            permit.cancel();
+        }
+    }
+
+    private Waiter enqueue(String name) {
+        while (true) {
+            Tenant tenant = getTenant(name);
+            Waiter waiter = new Waiter(name, tenant);
+            tenant.waiters.offerLast(waiter);
+            if (tenants.get(name) == tenant) {
+                return waiter;
+            }
+            tenant.waiters.remove(waiter);
+        }
+    }
+
+    private Permit admit(PermitPool permits, String name) {
+        Permit own = acquire(name);
+        Permit permit = own == null ? null : permits.tryAcquire();
+        if (permit == null) {
+            if (own != null) {
+                // Cancelled so that the queue is not signalled, which would only try to admit the waiters again
+                own.cancel();
+            }
+            return null;
+        }
+        // The quota of the principal is given back along with the permit
+        permit.join(own);
+        return permit;
+    }
+
+    private Permit count(String name, Permit permit) {
+        if (metricEnabled) {
+            Tenant tenant = getTenant(name);
+            (permit == null ? tenant.rejected : tenant.admitted).increment();
+        }
+        return permit;
+    }
+
+    private void signalWaiters() {
+        if (!queueEnabled || queued.get() == 0) {
+            return;
+        }
+        try {
+            queueExecutor.execute(this::admitWaiters);
+        } catch (RuntimeException e) {
+            log.debug("Not admitting waiting queries since the queue is stopped");
+        }
+    }
+
+    // Only runs on the queue thread along with timeout, so queued waiters can only be removed here or on close
+    private void admitWaiters() {
+        Waiter waiter;
+        while ((waiter = nextWaiter()) != null) {
+            Permit permit = admit(synchronousPermits, waiter.principal);
+            if (permit == null) {
+                return;
+            }
+            waiter.tenant.waiters.pollFirst();
+            queued.decrementAndGet();
+            recordWait(System.currentTimeMillis() - waiter.enqueued);
+            count(waiter.principal, permit);
+            complete(waiter, permit);
+        }
+    }
+
+    private Waiter nextWaiter() {
+        // Picks the oldest waiter of the principal with room in its quota that is running the least for its weight
+        Waiter next = null;
+        double nextShare = Double.MAX_VALUE;
+        for (Tenant tenant : tenants.values()) {
+            Waiter head = tenant.waiters.peekFirst();
+            PermitPool permits = tenant.permits;
+            if (head == null || permits.getUsed() >= permits.getLimit()) {
+                continue;
+            }
+            double share = permits.getUsed() / tenant.weight;
+            if (share < nextShare || (share == nextShare && head.enqueued < next.enqueued)) {
+                next = head;
+                nextShare = share;
+            }
+        }
+        return next;
+    }
+
+    private void timeout(Waiter waiter) {
+        if (!waiter.tenant.waiters.remove(waiter)) {
+            return;
+        }
+        queued.decrementAndGet();
+        incrementMetric(QUEUE_TIMED_OUT);
+        recordWait(System.currentTimeMillis() - waiter.enqueued);
+        count(waiter.principal, null);
+        complete(waiter, null);
+    }
+
+    // Completed on a worker since what is chained to the future runs on the thread that completes it
+    private void complete(Waiter waiter, Permit permit) {
+        try {
+            queueWorkers.execute(() -> settle(waiter, permit));
+        } catch (RejectedExecutionException e) {
+            log.debug("Completing a waiting query on the queue thread since the workers are stopped");
+            settle(waiter, permit);
+        }
+    }
+
+    private static void settle(Waiter waiter, Permit permit) {
+        if (!waiter.permit.complete(permit) && permit != null) {
+            permit.release();
+        }
+    }
+
+    private void recordWait(long waitMS) {
+        if (!metricEnabled) {
+            return;
+        }
+        metricCollector.average(QUEUE_WAIT_MS, waitMS);
+        for (long bucket : QUEUE_WAIT_BUCKETS) {
+            if (waitMS <= bucket) {
+                metricCollector.increment(QUEUE_WAIT_BUCKET_PREFIX + bucket);
+                return;
+            }
+        }
+        metricCollector.increment(QUEUE_WAIT_BUCKET_REST);
+    }
+}
@@ -7,24 +7,74 @@ package com.yahoo.bullet.rest.service;
 
 import com.yahoo.bullet.bql.BQLResult;
 import com.yahoo.bullet.bql.BulletQueryBuilder;
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.BoundedCache;
+import com.yahoo.bullet.rest.common.MetricManager;
+import com.yahoo.bullet.rest.common.Utils;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Objects;
 
-@Service
-public class BQLService {
-    private BulletQueryBuilder bulletQueryBuilder;
+/**
+ * Converts BQL queries to Bullet queries. The results of converting, including errors, are cached by the query with its
+ * comments dropped and its whitespace normalized since the same queries tend to be submitted over and over. The least
+ * recently used results are evicted first once the cache is full (see {@link BoundedCache}). Converting does not lock.
+ * The cache must be invalidated with {@link #invalidate()} if anything that changes how queries convert, such as the
+ * BQL configuration or the schema, changes.
+ */
+@Service @Slf4j
+public class BQLService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+
+    private volatile BulletQueryBuilder bulletQueryBuilder;
+    // Null if nothing is cached
+    private final BoundedCache<String, BQLResult> results;
+    // Bumped on every invalidation so that conversions that started before it are not cached
+    private volatile long generation = 0L;
+
+    static final String CACHE_HIT = "query.bql.cache.hit";
+    static final String CACHE_MISS = "query.bql.cache.miss";
+    static final String CACHE_HIT_RATE = "query.bql.cache.hit.rate";
+
+    /**
+     * Constructor that takes a BQL query builder and does not cache or collect metrics.
+     *
+     * @param bulletQueryBuilder The {@link BulletQueryBuilder} to use.
+     */
+    public BQLService(BulletQueryBuilder bulletQueryBuilder) {
+        this(bulletQueryBuilder, 0, null);
+    }
 
     /**
      * Constructor that takes a BQL query builder.
      *
      * @param bulletQueryBuilder The {@link BulletQueryBuilder} to use.
+     * @param maxEntries The maximum number of conversion results to cache. If not positive, nothing is cached.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
      */
     @Autowired
-    public BQLService(BulletQueryBuilder bulletQueryBuilder) {
+    public BQLService(BulletQueryBuilder bulletQueryBuilder,
+                      @Value("${bullet.query.bql.cache.max.entries}") int maxEntries,
+                      MetricPublisher metricPublisher) {
         Objects.requireNonNull(bulletQueryBuilder);
         this.bulletQueryBuilder = bulletQueryBuilder;
+        this.results = maxEntries > 0 ? new BoundedCache<>(maxEntries) : null;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(CACHE_HIT, CACHE_MISS));
     }
 
     /**
@@ -34,6 +84,111 @@ public class BQLService {
      * @return The {@link BQLResult} containing a query or errors.
      */
     public BQLResult toQuery(String bql) {
-        return bulletQueryBuilder.buildQuery(bql);
+        if (results == null) {
+            return bulletQueryBuilder.buildQuery(bql);
+        }
+        String key = normalize(bql);
+        long started = generation;
+        BQLResult cached = results.get(key);
+        if (cached != null) {
+            incrementMetric(CACHE_HIT);
+            return cached;
+        }
+        incrementMetric(CACHE_MISS);
+        BQLResult result = bulletQueryBuilder.buildQuery(bql);
+        results.put(key, result);
+        // Checked after putting so that an invalidation either clears the result or is seen here
+        if (started != generation) {
+            results.remove(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Drops all cached conversion results. This must be called if anything that changes how queries convert changes.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        if (results != null) {
+            log.info("Invalidating {} cached BQL conversions", results.size());
+            results.clear();
+        }
+    }
+
+    /**
+     * Changes the {@link BulletQueryBuilder} to use, e.g. when the BQL configuration or the schema changed. The cached
+     * conversion results are invalidated.
+     *
+     * @param bulletQueryBuilder The new {@link BulletQueryBuilder} to use.
+     */
+    public void setBulletQueryBuilder(BulletQueryBuilder bulletQueryBuilder) {
+        Objects.requireNonNull(bulletQueryBuilder);
+        this.bulletQueryBuilder = bulletQueryBuilder;
+        invalidate();
+    }
+
+    /**
+     * Gets the number of cached conversion results.
+     *
+     * @return The number of cached results.
+     */
+    public int size() {
+        return results == null ? 0 : results.size();
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            long hits = metrics.get(CACHE_HIT).longValue();
+            long total = hits + metrics.get(CACHE_MISS).longValue();
+            metrics.put(CACHE_HIT_RATE, total == 0 ? 0.0 : (double) hits / total);
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    /**
+     * Drops comments and collapses runs of whitespace outside of quoted literals and identifiers to a single space and
+     * trims the query. Line comments start with {@code --} and end at the end of the line. Block comments are enclosed
+     * in slash-star and star-slash. A block comment that is never closed is kept as is since the query does not
+     * convert with it.
+     *
+     * @param bql The query to normalize.
+     * @return The normalized query.
+     */
+    static String normalize(String bql) {
+        StringBuilder builder = new StringBuilder(bql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < bql.length(); i++) {
+            char c = bql.charAt(i);
+            if (quote == 0) {
+                int end = Utils.skipBQLComment(bql, i);
+                if (end > i) {
+                    // A comment separates what is around it like whitespace does
+                    space = builder.length() > 0;
+                    i = end - 1;
+                    continue;
+                }
+            }
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = builder.length() > 0;
+                continue;
+            }
+            if (space) {
+                builder.append(' ');
+                space = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
     }
 }
@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.MetricManager;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the results of queries with gzip or deflate for clients that accept either. Whole responses are compressed
+ * if they are at least as large as the threshold. Streams of results, such as SSE, are compressed as they go with a
+ * {@link Stream} that flushes after each result so that the client can read it right away. The bytes before and after
+ * compressing and the CPU time spent are collected as metrics.
+ */
+@Service
+public class CompressionService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    @Getter
+    private final boolean enabled;
+    @Getter
+    private final int thresholdBytes;
+    private final int level;
+
+    static final String COMPRESSED_BYTES_IN = "query.compression.bytes.in";
+    static final String COMPRESSED_BYTES_OUT = "query.compression.bytes.out";
+    static final String COMPRESSION_CPU_NS = "query.compression.cpu.ns";
+    static final String COMPRESSION_RATIO = "query.compression.ratio";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final byte[] GZIP_HEADER = { 0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF };
+    private static final int BUFFER_SIZE = 8192;
+    private static final String ANY = "*";
+    private static final String QUALITY = "q=";
+
+    /**
+     * The content codings results can be compressed with, in the order they are preferred.
+     */
+    public enum Coding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        @Getter
+        private final String name;
+
+        Coding(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Constructor that creates a disabled service.
+     */
+    public CompressionService() {
+        this(false, Deflater.DEFAULT_COMPRESSION, 0, null);
+    }
+
+    /**
+     * Constructor that creates a service.
+     *
+     * @param enabled Whether results are compressed for clients that accept it.
+     * @param level The compression level from 1 (fastest) to 9 (smallest) or -1 for the default level.
+     * @param thresholdBytes The minimum size of a response in bytes for it to be compressed.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public CompressionService(@Value("${bullet.query.compression.enabled}") boolean enabled,
+                              @Value("${bullet.query.compression.level}") int level,
+                              @Value("${bullet.query.compression.threshold.bytes}") int thresholdBytes,
+                              MetricPublisher metricPublisher) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("The compression level must be from 1 to 9 or -1: " + level);
+        }
+        this.enabled = enabled;
+        this.level = level;
+        this.thresholdBytes = thresholdBytes;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(COMPRESSED_BYTES_IN, COMPRESSED_BYTES_OUT, COMPRESSION_CPU_NS));
+    }
+
+    /**
+     * Picks the coding to compress results with from the Accept-Encoding header of a request.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header. It can be null.
+     * @return The {@link Coding} to use or null if compression is disabled or the client accepts none.
+     */
+    public Coding negotiate(String acceptEncoding) {
+        if (!enabled || acceptEncoding == null) {
+            return null;
+        }
+        boolean acceptsAny = false;
+        Coding best = null;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String name = parts[0].trim();
+            if (!isAccepted(parts)) {
+                continue;
+            }
+            acceptsAny |= ANY.equals(name);
+            for (Coding coding : Coding.values()) {
+                if (coding.getName().equalsIgnoreCase(name) && (best == null || coding.ordinal() < best.ordinal())) {
+                    best = coding;
+                }
+            }
+        }
+        return best == null && acceptsAny ? Coding.GZIP : best;
+    }
+
+    /**
+     * Compresses a whole response if it is at least as large as the threshold.
+     *
+     * @param bytes The bytes of the response.
+     * @param coding The {@link Coding} to use.
+     * @return The compressed bytes or null if the response is too small to compress.
+     */
+    public byte[] compress(byte[] bytes, Coding coding) {
+        if (bytes.length < thresholdBytes) {
+            return null;
+        }
+        Stream stream = newStream(coding);
+        return stream.compress(bytes, true);
+    }
+
+    /**
+     * Creates a stream to compress a response that is written piece by piece. It must be finished or closed once done
+     * to free what it holds.
+     *
+     * @param coding The {@link Coding} to use.
+     * @return A new {@link Stream}.
+     */
+    public Stream newStream(Coding coding) {
+        return new Stream(coding);
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            long in = metrics.get(COMPRESSED_BYTES_IN).longValue();
+            long out = metrics.get(COMPRESSED_BYTES_OUT).longValue();
+            metrics.put(COMPRESSION_RATIO, out == 0 ? 0.0 : (double) in / out);
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    private static boolean isAccepted(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith(QUALITY)) {
+                try {
+                    return Double.parseDouble(parameter.substring(QUALITY.length())) > 0.0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private void record(long in, long out, long cpuStarted) {
+        if (metricEnabled) {
+            metricCollector.add(COMPRESSED_BYTES_IN, in);
+            metricCollector.add(COMPRESSED_BYTES_OUT, out);
+            metricCollector.add(COMPRESSION_CPU_NS, cpuTime() - cpuStarted);
+        }
+    }
+
+    /**
+     * Compresses a response that is written piece by piece. Each piece is flushed so that it can be decompressed as
+     * soon as it arrives. This is not thread-safe.
+     */
+    public class Stream {
+        private final Coding coding;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private boolean started = false;
+        private boolean done = false;
+
+        private Stream(Coding coding) {
+            this.coding = coding;
+            // gzip wraps the raw deflate data in its own header and trailer
+            this.deflater = new Deflater(level, coding == Coding.GZIP);
+        }
+
+        /**
+         * Compresses and flushes the next piece of the response.
+         *
+         * @param bytes The bytes of the piece.
+         * @return The compressed bytes to write.
+         */
+        public byte[] write(byte[] bytes) {
+            return compress(bytes, false);
+        }
+
+        /**
+         * Finishes the response and frees what this holds.
+         *
+         * @return The remaining compressed bytes to write.
+         */
+        public byte[] finish() {
+            return compress(new byte[0], true);
+        }
+
+        /**
+         * Frees what this holds without finishing the response, e.g. if it could not be written.
+         */
+        public void close() {
+            done = true;
+            deflater.end();
+        }
+
+        private byte[] compress(byte[] bytes, boolean last) {
+            if (done) {
+                throw new IllegalStateException("The compressed stream is already done");
+            }
+            long cpuStarted = cpuTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+            if (!started && coding == Coding.GZIP) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+            this.started = true;
+            crc.update(bytes);
+            deflater.setInput(bytes);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                if (coding == Coding.GZIP) {
+                    writeIntLE(out, crc.getValue());
+                    writeIntLE(out, deflater.getBytesRead());
+                }
+                close();
+            } else {
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, length);
+                } while (length == buffer.length);
+            }
+            record(bytes.length, out.size(), cpuStarted);
+            return out.toByteArray();
+        }
+
+        private void writeIntLE(ByteArrayOutputStream out, long value) {
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (value >>> (8 * i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.MetricManager;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flow controls the messages sent to WebSocket sessions. Each open session has a window of messages that can be in
+ * flight, i.e. handed to the broker but not yet written to the client. Messages past the window wait in a bounded queue
+ * in the order they were sent and go out as the client reads the ones in flight. This keeps slow clients from filling
+ * up the send buffer of their session, which would get them disconnected, while large results are streamed to them in
+ * fragments. Sending never blocks, so the threads reading results from the PubSub are not held up by slow clients.
+ * <p>
+ * What happens when the queue of a session is full is decided by the {@link OverflowPolicy}. By default, nothing is
+ * dropped. Otherwise, only window results can be dropped. Other messages, such as acknowledgements and final results,
+ * are always queued.
+ * <p>
+ * Some messages handed to the broker are never written, e.g. if the client has not subscribed yet or has already
+ * unsubscribed. So that these do not use up the window of their session for good, messages that have been in flight for
+ * longer than the in flight timeout no longer count towards it.
+ */
+@Service @Slf4j
+public class FlowControlService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    private final int window;
+    private final int queueSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long inFlightTimeoutMS;
+    private final ScheduledExecutorService reaper;
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    static final String DROPPED = "websocket.outbound.dropped";
+    static final String KILLED = "websocket.outbound.killed";
+    static final String EXPIRED = "websocket.flow.control.expired";
+    static final String QUEUE_DEPTH_MAX = "websocket.outbound.queue.depth.max";
+    static final String QUEUE_DEPTH_TOTAL = "websocket.outbound.queue.depth.total";
+
+    /**
+     * What to do when a result is sent to a session whose queue is full.
+     */
+    public enum OverflowPolicy {
+        // Keeps queueing past the queue size, so nothing is dropped and the session is not closed
+        QUEUE,
+        // Drops the oldest waiting window result
+        DROP_OLDEST,
+        // Replaces the waiting window result of the same query, so only the latest one is sent. Drops the oldest waiting
+        // window result if the queue is still full
+        CONFLATE,
+        // Closes the session
+        KILL
+    }
+
+    /**
+     * Constructor that takes the window and queues without bound.
+     *
+     * @param window The maximum number of messages in flight per session. If not positive, messages are not held back.
+     */
+    public FlowControlService(int window) {
+        this(window, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, null);
+    }
+
+    /**
+     * Constructor that takes the window and the queue settings. Messages in flight do not time out.
+     *
+     * @param window The maximum number of messages in flight per session. If not positive, messages are not held back.
+     * @param queueSize The maximum number of results waiting per session.
+     * @param overflowPolicy The {@link OverflowPolicy} for when the queue of a session is full.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    public FlowControlService(int window, int queueSize, OverflowPolicy overflowPolicy, MetricPublisher metricPublisher) {
+        this(window, 0L, queueSize, overflowPolicy, metricPublisher);
+    }
+
+    /**
+     * Constructor that takes the window and the queue settings.
+     *
+     * @param window The maximum number of messages in flight per session. If not positive, messages are not held back.
+     * @param inFlightTimeoutMS The time in ms after which a message in flight no longer counts towards the window. If not
+     *                          positive, messages in flight do not time out.
+     * @param queueSize The maximum number of results waiting per session.
+     * @param overflowPolicy The {@link OverflowPolicy} for when the queue of a session is full.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public FlowControlService(@Value("${bullet.websocket.flow.control.window}") int window,
+                              @Value("${bullet.websocket.flow.control.timeout.ms}") long inFlightTimeoutMS,
+                              @Value("${bullet.websocket.outbound.queue.size}") int queueSize,
+                              @Value("${bullet.websocket.outbound.overflow.policy}") OverflowPolicy overflowPolicy,
+                              MetricPublisher metricPublisher) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("The outbound queue size must be positive: " + queueSize);
+        }
+        this.window = window;
+        this.inFlightTimeoutMS = inFlightTimeoutMS;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(DROPPED, KILLED, EXPIRED));
+        if (window > 0 && inFlightTimeoutMS > 0) {
+            // Checks twice per timeout so that messages stop counting within 1.5 timeouts of being sent
+            long periodMS = Math.max(1L, inFlightTimeoutMS / 2);
+            reaper = Executors.newSingleThreadScheduledExecutor();
+            reaper.scheduleWithFixedDelay(this::expire, periodMS, periodMS, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * Starts flow controlling a session.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param close The {@link Runnable} that closes the session if its queue overflows and the policy is to kill it.
+     */
+    public void open(String sessionID, Runnable close) {
+        if (window > 0) {
+            outboxes.put(sessionID, new Outbox(close));
+        }
+    }
+
+    /**
+     * Stops flow controlling a session and drops the messages waiting for it.
+     *
+     * @param sessionID The session ID to represent the client.
+     */
+    public void close(String sessionID) {
+        outboxes.remove(sessionID);
+    }
+
+    /**
+     * Sends a message to a session that is never dropped.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param send The {@link Runnable} that sends the message.
+     */
+    public void send(String sessionID, Runnable send) {
+        send(sessionID, null, Collections.singletonList(send));
+    }
+
+    /**
+     * Sends a result to a session now if its window has room or once it does otherwise. Results to sessions that are
+     * not flow controlled are sent now.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param queryID The query ID of the result if it is a window result that can be dropped or null otherwise.
+     * @param sends The {@link List} of {@link Runnable} that send the messages of the result, e.g. its fragments. They
+     *              are dropped together and are not dropped once any of them has been sent.
+     */
+    public void send(String sessionID, String queryID, List<Runnable> sends) {
+        Outbox outbox = outboxes.get(sessionID);
+        if (outbox == null) {
+            sends.forEach(Runnable::run);
+            return;
+        }
+        boolean overflowed = outbox.offer(new Entry(queryID, sends));
+        outbox.drain();
+        if (overflowed) {
+            log.warn("Closing WebSocket session {} since its outbound queue overflowed", sessionID);
+            incrementMetric(KILLED);
+            close(sessionID);
+            // Closing writes to the client, which may not be reading, so it is not done on this thread
+            CompletableFuture.runAsync(outbox.close);
+        }
+    }
+
+    /**
+     * Records that a message was written to a session. This makes room in its window for the next waiting message.
+     *
+     * @param sessionID The session ID to represent the client.
+     */
+    public void delivered(String sessionID) {
+        Outbox outbox = outboxes.get(sessionID);
+        if (outbox != null) {
+            outbox.delivered();
+        }
+    }
+
+    /**
+     * Gets the number of results waiting for room in the window of a session.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @return The number of waiting results.
+     */
+    public int getPending(String sessionID) {
+        Outbox outbox = outboxes.get(sessionID);
+        return outbox == null ? 0 : outbox.size();
+    }
+
+    /**
+     * Stops timing out messages in flight.
+     */
+    @PreDestroy
+    public void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes room in the windows of sessions for the messages that have been in flight for too long and sends the
+     * messages waiting for it.
+     */
+    void expire() {
+        try {
+            long sentBefore = System.currentTimeMillis() - inFlightTimeoutMS;
+            for (Outbox outbox : outboxes.values()) {
+                outbox.expire(sentBefore);
+            }
+        } catch (Exception e) {
+            log.error("Error while timing out WebSocket messages in flight", e);
+        }
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            int max = 0;
+            long total = 0L;
+            for (Outbox outbox : outboxes.values()) {
+                int size = outbox.size();
+                max = Math.max(max, size);
+                total += size;
+            }
+            metrics.put(QUEUE_DEPTH_MAX, max);
+            metrics.put(QUEUE_DEPTH_TOTAL, total);
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    private static class Entry {
+        private final String queryID;
+        private final List<Runnable> sends;
+        private int sent = 0;
+
+        private Entry(String queryID, List<Runnable> sends) {
+            this.queryID = queryID;
+            this.sends = sends;
+        }
+
+        private boolean isDroppable() {
+            return queryID != null && sent == 0;
+        }
+    }
+
+    private class Outbox {
+        private final Runnable close;
+        private final Deque<Entry> pending = new ArrayDeque<>();
+        // The times the messages in flight were sent, oldest first
+        private final Deque<Long> inFlight = new ArrayDeque<>();
+        private boolean draining = false;
+
+        private Outbox(Runnable close) {
+            this.close = close;
+        }
+
+        /**
+         * Queues an entry. It is sent by the next {@link #drain()} if it fits in the window.
+         *
+         * @param entry The {@link Entry} to queue.
+         * @return true if the queue overflowed and the session should be closed.
+         */
+        private synchronized boolean offer(Entry entry) {
+            if (entry.queryID != null && overflowPolicy == OverflowPolicy.CONFLATE) {
+                drop(entry.queryID);
+            }
+            if (pending.size() >= queueSize && overflowPolicy != OverflowPolicy.QUEUE) {
+                if (overflowPolicy == OverflowPolicy.KILL) {
+                    pending.clear();
+                    return true;
+                }
+                // Results that cannot be dropped go over the bound. There are at most a couple per query
+                if (!drop(null) && entry.queryID != null) {
+                    incrementMetric(DROPPED);
+                    return false;
+                }
+            }
+            pending.add(entry);
+            return false;
+        }
+
+        private void delivered() {
+            synchronized (this) {
+                // Frames the service did not send or that timed out, if any, do not make room past the window
+                inFlight.pollFirst();
+            }
+            drain();
+        }
+
+        private void expire(long sentBefore) {
+            synchronized (this) {
+                while (!inFlight.isEmpty() && inFlight.peekFirst() < sentBefore) {
+                    inFlight.pollFirst();
+                    incrementMetric(EXPIRED);
+                }
+            }
+            drain();
+        }
+
+        private synchronized int size() {
+            return pending.size();
+        }
+
+        private boolean drop(String queryID) {
+            Iterator<Entry> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.isDroppable() && (queryID == null || queryID.equals(entry.queryID))) {
+                    iterator.remove();
+                    incrementMetric(DROPPED);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sends the messages that fit in the window. Only one thread drains at a time so that messages reach the broker in
+         * the order they were sent, but they are sent without holding the lock. Messages that fit in the window while a
+         * thread is draining are sent by it.
+         */
+        private void drain() {
+            List<Runnable> sends;
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            while ((sends = take()) != null) {
+                try {
+                    sends.forEach(Runnable::run);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        draining = false;
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        private synchronized List<Runnable> take() {
+            List<Runnable> sends = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            while (inFlight.size() < window && !pending.isEmpty()) {
+                Entry entry = pending.peek();
+                inFlight.addLast(now);
+                sends.add(entry.sends.get(entry.sent++));
+                if (entry.sent == entry.sends.size()) {
+                    pending.poll();
+                }
+            }
+            if (sends.isEmpty()) {
+                draining = false;
+                return null;
+            }
+            return sends;
+        }
+    }
+}
@@ -5,53 +5,142 @@
  */
 package com.yahoo.bullet.rest.service;
 
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
 import com.yahoo.bullet.pubsub.PubSubMessage;
 import com.yahoo.bullet.pubsub.PubSubResponder;
+import com.yahoo.bullet.query.Query;
+import com.yahoo.bullet.rest.common.HashedTimerWheel;
+import com.yahoo.bullet.rest.common.MetricManager;
 import com.yahoo.bullet.rest.common.Utils;
+import com.yahoo.bullet.rest.query.CoalescedQueryHandler;
+import com.yahoo.bullet.rest.query.QueryError;
 import com.yahoo.bullet.rest.query.QueryHandler;
 import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * This is used for synchronous sending and handling of queries. To store and manage {@link QueryHandler} instances.
+ * Handlers added with a {@link Query} are failed and their queries killed if they are still around after the duration
+ * of the query and a grace period. If coalescing is enabled, identical queries without a window that are in flight at
+ * the same time share one backend query whose results are sent to all their handlers. Handlers can also be given a
+ * deadline by their clients, which is kept even if handlers do not expire on their duration.
  */
-@Service
-public class HandlerService extends PubSubResponder {
+@Service @Slf4j
+public class HandlerService extends PubSubResponder implements MetricManager {
     // Exposed for testing only.
     @Getter(AccessLevel.PACKAGE)
     private ConcurrentMap<String, QueryHandler> handlers;
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    /**
+     * Called with the ID of each backend query that no handler is waiting on anymore, i.e. its handler expired or all
+     * the clients of its handlers left. This can be used to kill the query.
+     */
+    @Setter
+    private Consumer<String> killListener = id -> { };
+
+    private final HashedTimerWheel<Expiry> wheel;
+    private final long tickMS;
+    private final long graceMS;
+    private final boolean expiryEnabled;
+    private volatile ScheduledExecutorService reaper;
+    private final boolean coalescingEnabled;
+    private final ConcurrentMap<String, CoalescedQueryHandler> flights = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CoalescedQueryHandler> members = new ConcurrentHashMap<>();
+
+    static final String HANDLER_EXPIRED = "query.handler.expired";
+    static final String HANDLER_RECLAIMED = "query.handler.deadline.reclaimed";
+    static final String HANDLER_OLDEST_AGE_MS = "query.handler.oldest.age.ms";
+    static final String HANDLER_COALESCED = "query.handler.coalesced";
+    private static final String KEY_SEPARATOR = "\n";
+
+    @AllArgsConstructor
+    private static class Expiry {
+        private final String id;
+        private final QueryHandler handler;
+        // Whether this is the deadline of a client rather than the end of the duration of the query
+        private final boolean deadline;
+    }
+
+    /**
+     * Constructor that creates a responder that does not expire handlers, coalesce queries or collect metrics.
+     */
+    public HandlerService() {
+        this(false, 0L, 1L, 1, false, null);
+    }
 
     /**
      * Constructor that creates a responder.
+     *
+     * @param expiryEnabled Whether to expire handlers added with a {@link Query}.
+     * @param graceMS The time in ms past the duration of a query after which its handler expires.
+     * @param tickMS The time in ms between checks for expired handlers.
+     * @param wheelSize The number of buckets in the {@link HashedTimerWheel} holding the handler expiries.
+     * @param coalescingEnabled Whether identical queries in flight at the same time share one backend query.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
      */
     @Autowired
-    public HandlerService() {
+    public HandlerService(@Value("${bullet.query.expiry.enabled}") boolean expiryEnabled,
+                          @Value("${bullet.query.expiry.grace.ms}") long graceMS,
+                          @Value("${bullet.query.expiry.tick.ms}") long tickMS,
+                          @Value("${bullet.query.expiry.wheel.size}") int wheelSize,
+                          @Value("${bullet.query.coalescing.enabled}") boolean coalescingEnabled,
+                          MetricPublisher metricPublisher) {
         super(null);
+        if (tickMS <= 0) {
+            throw new IllegalArgumentException("The expiry tick must be positive: " + tickMS);
+        }
         handlers = new ConcurrentHashMap<>();
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(HANDLER_EXPIRED, HANDLER_RECLAIMED, HANDLER_COALESCED),
+                                                   Collections.singletonList(HANDLER_OLDEST_AGE_MS));
+        this.wheel = new HashedTimerWheel<>(wheelSize);
+        this.tickMS = tickMS;
+        this.graceMS = graceMS;
+        this.coalescingEnabled = coalescingEnabled;
+        this.expiryEnabled = expiryEnabled;
+        if (expiryEnabled) {
+            startReaper();
+        }
     }
 
     @Override
     public void respond(String id, PubSubMessage message) {
         QueryHandler handler = getHandler(id);
-        if (handler == null) {
+        // Handlers guard their own state transitions so responding does not lock out a concurrent fail or complete
+        if (handler == null || handler.isComplete()) {
             return;
         }
-        synchronized (handler) {
-            if (!handler.isComplete()) {
-                handler.send(message);
-                if (Utils.isDone(message)) {
-                    handler.complete();
-                }
-                if (handler.isComplete()) {
-                    removeHandler(message.getId());
-                }
-            }
+        handler.send(message);
+        if (Utils.isDone(message)) {
+            handler.complete();
+        }
+        if (handler.isComplete()) {
+            // Only remove this handler and not one that may have been added since for the same ID
+            handlers.remove(id, handler);
         }
     }
 
@@ -65,6 +154,104 @@ public class HandlerService extends PubSubResponder {
         handlers.put(id, handler);
     }
 
+    /**
+     * Adds the given {@link QueryHandler} for the given ID to this service. The handler expires if it is still around
+     * after the duration of the given {@link Query} and the grace period. Queries without a duration do not expire.
+     *
+     * @param id The ID of the handler.
+     * @param handler The {@link QueryHandler} instance to add.
+     * @param query The {@link Query} the handler is for.
+     */
+    public void addHandler(String id, QueryHandler handler, Query query) {
+        handlers.put(id, handler);
+        Long duration = query.getDuration();
+        if (expiryEnabled && duration != null) {
+            long ticks = (duration + graceMS + tickMS - 1) / tickMS;
+            wheel.schedule(new Expiry(id, handler, false), ticks);
+        }
+    }
+
+    /**
+     * Expires the handler for the query with the given ID if it is still around after the given time, e.g. because its
+     * client will not wait any longer for it. The handler is failed with a timeout error and the query is left like
+     * {@link #leave(String)} does, which kills its backend query unless other clients are attached to it. Unlike
+     * expiring on the duration of the query, this does not tell the permit of the handler that the query timed out,
+     * since the client rather than the backend decided how long it could take. This is done even if handlers do not
+     * expire on their duration.
+     *
+     * @param id The ID of the query.
+     * @param handler The {@link QueryHandler} for the query.
+     * @param timeoutMS The time in ms from now after which the handler expires.
+     */
+    public void expireAfter(String id, QueryHandler handler, long timeoutMS) {
+        startReaper();
+        long ticks = (Math.max(timeoutMS, 0L) + tickMS - 1) / tickMS;
+        wheel.schedule(new Expiry(id, handler, true), ticks);
+    }
+
+    /**
+     * Adds the given {@link QueryHandler} for a query with the given ID like {@link #addHandler(String, QueryHandler, Query)}.
+     * If coalescing is enabled and an identical query without a window is already in flight and has not started
+     * returning results, the handler is attached to it instead and gets its results. Identical queries have the same
+     * BQL and the same settings.
+     *
+     * @param id The ID of the query.
+     * @param handler The {@link QueryHandler} instance to add.
+     * @param query The {@link Query} the handler is for.
+     * @param bql The normalized BQL of the query.
+     * @return The ID of the backend query the handler gets its results from. Only if this is the given ID must the
+     *         query be submitted.
+     */
+    public String attachHandler(String id, QueryHandler handler, Query query, String bql) {
+        if (!coalescingEnabled || query.getWindow().getType() != null) {
+            addHandler(id, handler, query);
+            return id;
+        }
+        String key = bql + KEY_SEPARATOR + query;
+        while (true) {
+            CoalescedQueryHandler created = new CoalescedQueryHandler(id, key, this::forget);
+            CoalescedQueryHandler flight = flights.putIfAbsent(key, created);
+            if (flight == null) {
+                flight = created;
+                addHandler(id, flight, query);
+            }
+            // Tracked before attaching so that a flight finishing concurrently forgets this client too
+            members.put(id, flight);
+            if (flight.attach(id, handler)) {
+                if (flight != created) {
+                    log.debug("Attached query {} to the identical query {}", id, flight.getId());
+                    incrementMetric(HANDLER_COALESCED);
+                }
+                return flight.getId();
+            }
+            // The flight started returning results so this query needs its own. The flight keeps its clients till done
+            members.remove(id, flight);
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Notes that the client of the query with the given ID is gone. Its handler is removed and the backend query for it
+     * is killed unless the handlers of other identical queries are still attached to it.
+     *
+     * @param id The ID of the query.
+     * @return true if the backend query was killed. It is not if the handler was already removed, e.g. because it left
+     *         or expired before.
+     */
+    public boolean leave(String id) {
+        CoalescedQueryHandler flight = members.remove(id);
+        if (flight != null) {
+            return detach(flight, id);
+        }
+        QueryHandler handler = handlers.get(id);
+        // A flight is only removed once all its clients have left it
+        if (handler == null || handler instanceof CoalescedQueryHandler || !handlers.remove(id, handler)) {
+            return false;
+        }
+        kill(id);
+        return true;
+    }
+
     /**
      * Retrieves the {@link QueryHandler} for the given ID, if it exists.
      *
@@ -115,8 +302,7 @@ public class HandlerService extends PubSubResponder {
      * Clears all pending handlers. This does not send anything to Bullet.
      */
     public void failAllHandlers() {
-        handlers.values().forEach(QueryHandler::fail);
-        handlers.clear();
+        handlers.keySet().forEach(this::failHandler);
     }
 
     /**
@@ -128,11 +314,116 @@ public class HandlerService extends PubSubResponder {
         return handlers.size();
     }
 
+    /**
+     * Fails and removes all handlers that are due to expire and notifies the kill listener for each.
+     */
+    void reap() {
+        try {
+            wheel.tick(this::expire);
+        } catch (Exception e) {
+            log.error("Error while expiring handlers", e);
+        }
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            long now = System.currentTimeMillis();
+            long oldest = handlers.values().stream().mapToLong(QueryHandler::getCreated).min().orElse(now);
+            metricCollector.average(HANDLER_OLDEST_AGE_MS, now - oldest);
+            metricPublisher.fire(metricCollector.extractMetrics());
+        }
+    }
+
     /**
      * Stop all service threads and clear pending handlers.
      */
     @PreDestroy
-    public void close() {
+    public synchronized void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
         failAllHandlers();
     }
+
+    // Only started on the first deadline if handlers do not expire on their duration
+    private void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        synchronized (this) {
+            if (reaper == null) {
+                ScheduledExecutorService started = Executors.newSingleThreadScheduledExecutor();
+                started.scheduleAtFixedRate(this::reap, tickMS, tickMS, TimeUnit.MILLISECONDS);
+                reaper = started;
+            }
+        }
+    }
+
+    private void expire(Expiry expiry) {
+        if (expiry.deadline) {
+            reclaim(expiry);
+            return;
+        }
+        // The handler may have already finished or been replaced
+        if (!handlers.remove(expiry.id, expiry.handler)) {
+            return;
+        }
+        log.warn("Expiring the handler for query {} since it did not finish in time", expiry.id);
+        expiry.handler.expire();
+        incrementMetric(HANDLER_EXPIRED);
+        kill(expiry.id);
+    }
+
+    private void reclaim(Expiry expiry) {
+        CoalescedQueryHandler flight = members.get(expiry.id);
+        // Whoever removes the handler first, e.g. its client leaving, is the one that kills the query
+        boolean claimed = flight == null ? handlers.remove(expiry.id, expiry.handler) : members.remove(expiry.id, flight);
+        if (!claimed) {
+            return;
+        }
+        // Failed rather than expired so that the permit of the handler does not count the deadline as the backend
+        // dropping the query
+        expiry.handler.fail(QueryError.QUERY_TIMEOUT);
+        boolean killed;
+        if (flight != null) {
+            killed = detach(flight, expiry.id);
+        } else {
+            // The handler may have completed at the same time, in which case its query is done and not killed
+            killed = expiry.handler.getState() == QueryHandler.State.FAILED;
+            if (killed) {
+                kill(expiry.id);
+            }
+        }
+        if (killed) {
+            log.warn("Expired the handler for query {} since its deadline passed", expiry.id);
+            incrementMetric(HANDLER_RECLAIMED);
+        }
+    }
+
+    private boolean detach(CoalescedQueryHandler flight, String id) {
+        if (!flight.detach(id)) {
+            return false;
+        }
+        log.debug("Killing query {} since all its clients left", flight.getId());
+        handlers.remove(flight.getId(), flight);
+        kill(flight.getId());
+        return true;
+    }
+
+    private void kill(String id) {
+        try {
+            killListener.accept(id);
+        } catch (Exception e) {
+            log.error("Error while killing query {}", id, e);
+        }
+    }
+
+    private void forget(CoalescedQueryHandler flight) {
+        flights.remove(flight.getKey(), flight);
+        flight.getClientIDs().forEach(id -> members.remove(id, flight));
+    }
 }
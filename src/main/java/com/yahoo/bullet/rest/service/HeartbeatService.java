@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.MetricManager;
+import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends heartbeats to the clients of SSE queries that have not been sent anything for the heartbeat interval. This
+ * keeps idle connections from being closed by proxies and finds clients that have gone away before the next result of
+ * their query, so that the query is killed and its handler and concurrency slot are freed right away.
+ * <p>
+ * The clients due a heartbeat are found on one thread without blocking and the heartbeats are written on a pool of
+ * writers, at most one at a time per client. A client that stalls a write only holds up one writer and is skipped till
+ * that write is done, so it does not keep heartbeats from other clients.
+ */
+@Service @Slf4j
+public class HeartbeatService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    private final long intervalMS;
+    private final ScheduledExecutorService scheduler;
+    private final Executor writers;
+    private final Set<SSEQueryHandler> handlers = ConcurrentHashMap.newKeySet();
+    // The handlers that have a heartbeat waiting for or being written by a writer
+    private final Set<SSEQueryHandler> beating = ConcurrentHashMap.newKeySet();
+
+    static final String HEARTBEATS = "query.sse.heartbeat.sent";
+    static final String STREAMS = "query.sse.streams";
+
+    private static final String WRITER_THREAD_PREFIX = "bullet-heartbeat-";
+
+    /**
+     * Constructor that creates a service that does not send heartbeats.
+     */
+    public HeartbeatService() {
+        this(0L, 1, null);
+    }
+
+    /**
+     * Constructor that creates a service.
+     *
+     * @param intervalMS The time in ms a client can go without being sent anything before it is sent a heartbeat. If not
+     *                   positive, heartbeats are not sent.
+     * @param threads The number of threads that write heartbeats.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public HeartbeatService(@Value("${bullet.query.sse.heartbeat.interval.ms}") long intervalMS,
+                            @Value("${bullet.query.sse.heartbeat.threads}") int threads, MetricPublisher metricPublisher) {
+        this(intervalMS, intervalMS > 0 ? newWriters(threads) : null, metricPublisher);
+    }
+
+    /**
+     * Constructor that creates a service that writes heartbeats with the given {@link Executor}.
+     *
+     * @param intervalMS The time in ms a client can go without being sent anything before it is sent a heartbeat. If not
+     *                   positive, heartbeats are not sent.
+     * @param writers The {@link Executor} to write heartbeats on. It is shut down on close if it is an
+     *                {@link ExecutorService}.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    HeartbeatService(long intervalMS, Executor writers, MetricPublisher metricPublisher) {
+        this.writers = writers;
+        this.intervalMS = intervalMS;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Collections.singletonList(HEARTBEATS));
+        if (intervalMS > 0) {
+            // Checks twice per interval so that idle clients get a heartbeat within 1.5 intervals of their last write
+            long periodMS = Math.max(1L, intervalMS / 2);
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(this::beat, periodMS, periodMS, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Starts sending heartbeats to the client of an SSE query till the query is done.
+     *
+     * @param handler The {@link SSEQueryHandler} of the query.
+     */
+    public void register(SSEQueryHandler handler) {
+        if (scheduler != null) {
+            handlers.add(handler);
+        }
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            metrics.put(STREAMS, handlers.size());
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    /**
+     * Stops sending heartbeats.
+     */
+    @PreDestroy
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (writers instanceof ExecutorService) {
+            ((ExecutorService) writers).shutdownNow();
+        }
+    }
+
+    /**
+     * Hands the heartbeats for the clients that are due one to the writers and stops tracking the queries that are done.
+     */
+    void beat() {
+        try {
+            handlers.removeIf(this::schedule);
+        } catch (Exception e) {
+            log.error("Error while sending heartbeats", e);
+        }
+    }
+
+    private boolean schedule(SSEQueryHandler handler) {
+        if (handler.isComplete()) {
+            return true;
+        }
+        // Skipped if its last heartbeat is still being written
+        if (handler.isHeartbeatDue(intervalMS) && beating.add(handler)) {
+            try {
+                writers.execute(() -> heartbeat(handler));
+            } catch (RejectedExecutionException e) {
+                beating.remove(handler);
+            }
+        }
+        return false;
+    }
+
+    private void heartbeat(SSEQueryHandler handler) {
+        try {
+            if (handler.heartbeat(intervalMS)) {
+                incrementMetric(HEARTBEATS);
+            }
+        } catch (Exception e) {
+            log.error("Error while sending a heartbeat", e);
+        } finally {
+            beating.remove(handler);
+        }
+    }
+
+    private static ExecutorService newWriters(int threads) {
+        return Executors.newFixedThreadPool(Math.max(threads, 1), new CustomizableThreadFactory(WRITER_THREAD_PREFIX));
+    }
+}
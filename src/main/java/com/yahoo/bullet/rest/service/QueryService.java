@@ -17,6 +17,8 @@ import com.yahoo.bullet.query.Query;
 import com.yahoo.bullet.rest.common.MetricManager;
 import com.yahoo.bullet.rest.common.PublisherRandomPool;
 import com.yahoo.bullet.rest.common.Reader;
+import com.yahoo.bullet.rest.common.ReaderSettings;
+import com.yahoo.bullet.rest.common.ShardedResponder;
 import com.yahoo.bullet.rest.common.Utils;
 import com.yahoo.bullet.storage.StorageManager;
 import lombok.Getter;
@@ -27,6 +29,7 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PreDestroy;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
@@ -38,6 +41,7 @@ public class QueryService extends PubSubResponder implements MetricManager {
     private final List<PubSubResponder> responders;
     private final PublisherRandomPool publishers;
     private final List<Reader> readers;
+    private final ShardedResponder dispatcher;
     private final PubSubMessageSerDe sendSerDe;
     @Getter
     private final boolean metricEnabled;
@@ -82,6 +86,26 @@ public class QueryService extends PubSubResponder implements MetricManager {
     public QueryService(StorageManager<PubSubMessage> storageManager, List<PubSubResponder> responders,
                         List<Publisher> publishers, List<Subscriber> subscribers,
                         PubSubMessageSerDe pubSubMessageSendSerDe, int sleep, MetricPublisher metricPublisher) {
+        this(storageManager, responders, publishers, subscribers, pubSubMessageSendSerDe, sleep, new ReaderSettings(),
+             metricPublisher);
+    }
+
+    /**
+     * Constructor that takes various necessary components.
+     *
+     * @param storageManager The non-null {@link StorageManager} to use.
+     * @param responders The non-empty {@link List} of {@link PubSubResponder} to use.
+     * @param publishers The non-empty {@link List} of {@link Publisher} to use.
+     * @param subscribers The non-empty {@link List} of {@link Subscriber} to use.
+     * @param pubSubMessageSendSerDe The {@link PubSubMessageSerDe} to use for sending messages to the PubSub.
+     * @param sleep The initial time to sleep between checking for messages from the pubsub.
+     * @param readerSettings The non-null {@link ReaderSettings} to use for the readers of the subscribers.
+     * @param metricPublisher The optional {@link MetricPublisher} to use to report metrics. Can be null.
+     */
+    public QueryService(StorageManager<PubSubMessage> storageManager, List<PubSubResponder> responders,
+                        List<Publisher> publishers, List<Subscriber> subscribers,
+                        PubSubMessageSerDe pubSubMessageSendSerDe, int sleep, ReaderSettings readerSettings,
+                        MetricPublisher metricPublisher) {
         super(null);
         Objects.requireNonNull(storageManager);
         Objects.requireNonNull(responders);
@@ -95,7 +119,13 @@ public class QueryService extends PubSubResponder implements MetricManager {
         this.responders = responders;
         this.sendSerDe = pubSubMessageSendSerDe;
         this.publishers = new PublisherRandomPool(publishers);
-        this.readers = subscribers.stream().map(x -> new Reader(x, this, sleep)).collect(Collectors.toList());
+        int shards = readerSettings.getDispatchShards();
+        int queueSize = readerSettings.getDispatchQueueSize();
+        // If sharding, readers hand off responses to the shards, which then call respond here
+        this.dispatcher = shards > 0 ? new ShardedResponder(this, shards, queueSize, metricEnabled) : null;
+        PubSubResponder readerResponder = dispatcher == null ? this : dispatcher;
+        this.readers = subscribers.stream().map(x -> new Reader(x, readerResponder, sleep, readerSettings, metricEnabled))
+                                  .collect(Collectors.toList());
         this.readers.forEach(Reader::start);
     }
 
@@ -195,7 +225,7 @@ public class QueryService extends PubSubResponder implements MetricManager {
     @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
     public void publishMetrics() {
         if (metricEnabled) {
-            metricPublisher.fire(metricCollector.extractMetrics());
+            metricPublisher.fire(collectMetrics());
         }
     }
 
@@ -205,12 +235,33 @@ public class QueryService extends PubSubResponder implements MetricManager {
     @PreDestroy
     @Override
     public void close() {
+        // Readers stop responding before the shards drain, and commit what the shards responded to after that
+        readers.forEach(Reader::stop);
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
         readers.forEach(Reader::close);
         responders.forEach(PubSubResponder::close);
         storage.close();
         publishers.close();
     }
 
+    private Map<String, Number> collectMetrics() {
+        Map<String, Number> metrics = metricCollector.extractMetrics();
+        // Each reader collects its own metrics to avoid contention. These are summed across all readers
+        for (Reader reader : readers) {
+            reader.getMetricCollector().extractMetrics().forEach((k, v) -> metrics.merge(k, v, QueryService::sum));
+        }
+        if (dispatcher != null) {
+            metrics.putAll(dispatcher.getMetricCollector().extractMetrics());
+        }
+        return metrics;
+    }
+
+    private static Number sum(Number a, Number b) {
+        return a.longValue() + b.longValue();
+    }
+
     private CompletableFuture<PubSubMessage> store(String id, PubSubMessage message) {
         if (message == null)  {
             log.error("Could not publish query first. Not storing it {}", message);
@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.MetricManager;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of queries that have a single result for a while so that identical queries submitted again soon
+ * after can be answered without running them. Results are dropped once they are older than the TTL. The cache is
+ * bounded by the number of results and by an estimate of the memory they take up. The least recently used results are
+ * evicted first when either bound is exceeded.
+ */
+@Service @Slf4j
+public class ResultCacheService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    @Getter
+    private final boolean enabled;
+    @Getter
+    private final long ttlMS;
+    private final int maxEntries;
+    private final long maxBytes;
+    // Guarded by this. In access order, so the least recently used result comes first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0L;
+
+    static final String CACHE_HIT = "query.cache.hit";
+    static final String CACHE_MISS = "query.cache.miss";
+    static final String CACHE_EVICTED = "query.cache.evicted";
+    static final String CACHE_ENTRIES = "query.cache.entries";
+    static final String CACHE_BYTES = "query.cache.bytes";
+    // A rough estimate of the bytes taken up by an entry besides its key and result
+    static final long ENTRY_OVERHEAD_BYTES = 64L;
+
+    /**
+     * A cached result.
+     */
+    @Getter @AllArgsConstructor
+    public static class Entry {
+        private final byte[] result;
+        private final long created;
+        private final long size;
+
+        /**
+         * Gets the time since this result was cached.
+         *
+         * @return The age of the result in ms.
+         */
+        public long getAgeMS() {
+            return System.currentTimeMillis() - created;
+        }
+    }
+
+    /**
+     * Constructor that creates a disabled cache.
+     */
+    public ResultCacheService() {
+        this(false, 1L, 0, 0L, null);
+    }
+
+    /**
+     * Constructor that creates a cache.
+     *
+     * @param enabled Whether results are cached.
+     * @param ttlMS The time in ms a result is served from the cache for.
+     * @param maxEntries The maximum number of results to cache.
+     * @param maxSizeKB The maximum estimated size in KB of the cached results.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public ResultCacheService(@Value("${bullet.query.cache.enabled}") boolean enabled,
+                              @Value("${bullet.query.cache.ttl.ms}") long ttlMS,
+                              @Value("${bullet.query.cache.max.entries}") int maxEntries,
+                              @Value("${bullet.query.cache.max.size.kb}") long maxSizeKB,
+                              MetricPublisher metricPublisher) {
+        if (ttlMS <= 0) {
+            throw new IllegalArgumentException("The cache TTL must be positive: " + ttlMS);
+        }
+        this.enabled = enabled;
+        this.ttlMS = ttlMS;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxSizeKB * 1024L;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(CACHE_HIT, CACHE_MISS, CACHE_EVICTED));
+    }
+
+    /**
+     * Gets the cached result for the given key if it is still fresh.
+     *
+     * @param key The key of the query, e.g. its normalized BQL.
+     * @return The cached {@link Entry} or null if there is none or the cache is disabled.
+     */
+    public Entry get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.getAgeMS() >= ttlMS) {
+                remove(key);
+                entry = null;
+            }
+        }
+        incrementMetric(entry == null ? CACHE_MISS : CACHE_HIT);
+        return entry;
+    }
+
+    /**
+     * Caches the result for the given key, evicting the least recently used results if the cache is full. Results
+     * larger than the cache are not cached.
+     *
+     * @param key The key of the query, e.g. its normalized BQL.
+     * @param result The bytes of the result of the query.
+     */
+    public void put(String key, byte[] result) {
+        if (!enabled) {
+            return;
+        }
+        // Strings take up two bytes per char
+        long size = ENTRY_OVERHEAD_BYTES + 2L * key.length() + result.length;
+        if (size > maxBytes || maxEntries <= 0) {
+            log.debug("Not caching a result of {} bytes since it does not fit", size);
+            return;
+        }
+        int evicted = 0;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, new Entry(result, System.currentTimeMillis(), size));
+            bytes += size;
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= iterator.next().getValue().getSize();
+                iterator.remove();
+                evicted++;
+            }
+        }
+        if (isMetricEnabled() && evicted > 0) {
+            metricCollector.add(CACHE_EVICTED, evicted);
+        }
+    }
+
+    /**
+     * Gets the number of cached results. Some of them may no longer be fresh.
+     *
+     * @return The number of cached results.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            synchronized (this) {
+                metrics.put(CACHE_ENTRIES, entries.size());
+                metrics.put(CACHE_BYTES, bytes);
+            }
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.getSize();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricCollector;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.MetricManager;
+import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the SSE queries whose streams can be resumed. When the client of one goes away, e.g. because a proxy dropped
+ * the connection, its query keeps running for the resume timeout and its most recent results are kept. A client that
+ * reconnects with a Last-Event-ID header in that time gets the stream back with the results it missed, instead of
+ * starting the query over. Queries whose clients do not come back in time are left, which kills them.
+ */
+@Service @Slf4j
+public class SSEResumeService implements MetricManager {
+    @Getter
+    private final boolean metricEnabled;
+    @Getter
+    private final MetricPublisher metricPublisher;
+    @Getter
+    private final MetricCollector metricCollector;
+    @Getter
+    private final int bufferSize;
+    private final long timeoutMS;
+    private final ScheduledExecutorService reaper;
+    private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<>();
+
+    static final String RESUMED = "query.sse.resume.resumed";
+    static final String EXPIRED = "query.sse.resume.expired";
+    static final String RESUMABLE = "query.sse.resume.streams";
+
+    @AllArgsConstructor
+    private static class Stream {
+        private final SSEQueryHandler handler;
+        private final String owner;
+    }
+
+    /**
+     * Constructor that creates a service that does not resume streams.
+     */
+    public SSEResumeService() {
+        this(0, 0L, null);
+    }
+
+    /**
+     * Constructor that creates a service.
+     *
+     * @param bufferSize The number of recent results to keep for each query. If not positive, streams are not resumed.
+     * @param timeoutMS The time in ms the query of a client that went away keeps running for the client to come back.
+     * @param metricPublisher The {@link MetricPublisher} to use. It can be null.
+     */
+    @Autowired
+    public SSEResumeService(@Value("${bullet.query.sse.resume.buffer.size}") int bufferSize,
+                            @Value("${bullet.query.sse.resume.timeout.ms}") long timeoutMS,
+                            MetricPublisher metricPublisher) {
+        this.bufferSize = Math.max(bufferSize, 0);
+        this.timeoutMS = timeoutMS;
+        this.metricEnabled = metricPublisher != null;
+        this.metricPublisher = metricPublisher;
+        this.metricCollector = new MetricCollector(Arrays.asList(RESUMED, EXPIRED));
+        if (this.bufferSize > 0) {
+            // Checks twice per timeout so that queries are left within 1.5 timeouts of their clients going away
+            long periodMS = Math.max(1L, timeoutMS / 2);
+            reaper = Executors.newSingleThreadScheduledExecutor();
+            reaper.scheduleWithFixedDelay(this::reap, periodMS, periodMS, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * Whether streams can be resumed.
+     *
+     * @return true if streams are resumed.
+     */
+    public boolean isEnabled() {
+        return reaper != null;
+    }
+
+    /**
+     * Keeps the stream of an SSE query resumable till it ends. The handler must have been created with a replay buffer
+     * of {@link #getBufferSize()}.
+     *
+     * @param id The ID of the query.
+     * @param handler The {@link SSEQueryHandler} of the query.
+     * @param principal The {@link Principal} that submitted the query. It can be null.
+     */
+    public void register(String id, SSEQueryHandler handler, Principal principal) {
+        if (isEnabled()) {
+            streams.put(id, new Stream(handler, nameOf(principal)));
+        }
+    }
+
+    /**
+     * Resumes the stream with the given last event ID on a new response if its query is still kept for the same
+     * principal.
+     *
+     * @param lastEventID The Last-Event-ID header of the reconnecting client.
+     * @param principal The {@link Principal} reconnecting. It can be null.
+     * @param emitter The {@link SseEmitter} of the new response.
+     * @param compressor Creates the {@link CompressionService.Stream} to compress the new response with. It is only
+     *                   called if there is a stream to resume and it can return null to not compress.
+     * @return The resumed {@link SSEQueryHandler} or null if there is no stream to resume.
+     */
+    public SSEQueryHandler resume(String lastEventID, Principal principal, SseEmitter emitter,
+                                  Supplier<CompressionService.Stream> compressor) {
+        String id = SSEQueryHandler.getQueryID(lastEventID);
+        Stream stream = id == null ? null : streams.get(id);
+        if (stream == null || !Objects.equals(stream.owner, nameOf(principal))) {
+            return null;
+        }
+        CompressionService.Stream compression = compressor.get();
+        if (!stream.handler.resume(emitter, compression, lastEventID)) {
+            if (compression != null) {
+                compression.close();
+            }
+            return null;
+        }
+        incrementMetric(RESUMED);
+        return stream.handler;
+    }
+
+    /**
+     * Fires and forgets the metrics using the publisher.
+     */
+    @Scheduled(fixedDelayString = "${bullet.metric.publish.interval.ms}")
+    public void publishMetrics() {
+        if (metricEnabled) {
+            Map<String, Number> metrics = metricCollector.extractMetrics();
+            metrics.put(RESUMABLE, streams.size());
+            metricPublisher.fire(metrics);
+        }
+    }
+
+    /**
+     * Stops leaving the queries of clients that went away.
+     */
+    @PreDestroy
+    public void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+    }
+
+    /**
+     * Leaves the queries whose clients did not come back in time and stops keeping the streams that ended.
+     */
+    void reap() {
+        try {
+            streams.values().removeIf(this::expire);
+        } catch (Exception e) {
+            log.error("Error while expiring SSE streams", e);
+        }
+    }
+
+    private boolean expire(Stream stream) {
+        // Streams that end normally are done with their queries, so only the ones still running when dropped expired
+        boolean running = !stream.handler.isComplete();
+        boolean expired = stream.handler.expireDetached(timeoutMS);
+        if (expired && running) {
+            incrementMetric(EXPIRED);
+        }
+        return expired;
+    }
+
+    private static String nameOf(Principal principal) {
+        return principal == null ? null : principal.getName();
+    }
+}
@@ -35,17 +35,15 @@ public class StatusService implements Runnable {
 
         @Override
         public void send(PubSubMessage message) {
-            if (!isComplete()) {
+            if (finish(State.COMPLETE)) {
                 result.complete(true);
-                complete();
             }
         }
 
         @Override
         public void fail(QueryError cause) {
-            if (!isComplete()) {
+            if (finish(State.FAILED)) {
                 result.complete(false);
-                complete();
             }
         }
 
@@ -69,7 +67,6 @@ public class StatusService implements Runnable {
 
     private QueryService queryService;
     private HandlerService handlerService;
-    private int maxConcurrentQueries;
     private long period;
     private long retries;
     private long count;
@@ -84,21 +81,18 @@ public class StatusService implements Runnable {
      * @param period Rate at which to ping backend in ms.
      * @param retries Number of times ping can fail before backend status is considered not ok.
      * @param enabled Whether this backend status service is enabled or not.
-     * @param maxConcurrentQueries Number of maximum simultaneous synchronous queries that can be run.
      */
     @Autowired
     public StatusService(QueryService queryService, HandlerService handlerService,
                          @Value("${bullet.status.tick-ms}") long period,
                          @Value("${bullet.status.retries}") long retries,
-                         @Value("${bullet.status.enabled}") Boolean enabled,
-                         @Value("${bullet.query.synchronous.max.concurrency}") int maxConcurrentQueries) {
+                         @Value("${bullet.status.enabled}") Boolean enabled) {
         this.queryService = queryService;
         this.handlerService = handlerService;
         this.period = period;
         this.retries = retries;
         this.count = 0;
         this.backendStatusOK = true;
-        this.maxConcurrentQueries = maxConcurrentQueries;
 
         if (enabled != null && enabled) {
             Executors.newScheduledThreadPool(1).scheduleAtFixedRate(this, period, period, TimeUnit.MILLISECONDS);
@@ -110,7 +104,7 @@ public class StatusService implements Runnable {
         TickQueryHandler tickQueryHandler = new TickQueryHandler(period);
 
         String id = Utils.getNewQueryID();
-        handlerService.addHandler(id, tickQueryHandler);
+        handlerService.addHandler(id, tickQueryHandler, TICK_QUERY);
         queryService.submit(id, TICK_QUERY, TICK_STRING);
 
         if (tickQueryHandler.hasResult()) {
@@ -125,13 +119,4 @@ public class StatusService implements Runnable {
             handlerService.failAllHandlers();
         }
     }
-
-    /**
-     * This checks if the configured max concurrent queries limit has been exceeded.
-     *
-     * @return A boolean indicating whether or not the query limit has been reached.
-     */
-    public boolean queryLimitReached() {
-        return handlerService.count() >= maxConcurrentQueries;
-    }
 }
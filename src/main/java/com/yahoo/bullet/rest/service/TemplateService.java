@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.rest.common.BQLTemplate;
+import com.yahoo.bullet.rest.common.BoundedCache;
+import com.yahoo.bullet.rest.model.TemplateRequest;
+import com.yahoo.bullet.rest.model.TemplateResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Keeps the registered {@link BQLTemplate} instances and binds values to them. A template is identified by an ID that
+ * is derived from its BQL without comments and with whitespace normalized, so registering the same template again
+ * returns the same ID. The template that was registered last for an ID is the one bound. The least recently used
+ * templates are dropped once there are too many (see {@link BoundedCache}).
+ */
+@Service @Slf4j
+public class TemplateService {
+    /**
+     * The resolution for errors in registering or binding templates.
+     */
+    public static final String RESOLUTION = "Please register a valid template and provide a value for each of its parameters";
+
+    private final BoundedCache<String, BQLTemplate> templates;
+
+    /**
+     * Constructor that takes the maximum number of templates to keep.
+     *
+     * @param maxEntries The maximum number of templates to keep. It should be positive.
+     */
+    @Autowired
+    public TemplateService(@Value("${bullet.query.template.max.entries}") int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of templates must be positive: " + maxEntries);
+        }
+        this.templates = new BoundedCache<>(maxEntries);
+    }
+
+    /**
+     * Registers the given BQL template.
+     *
+     * @param template The BQL with parameters.
+     * @return The {@link TemplateResponse} with the ID and parameters of the template.
+     * @throws IllegalArgumentException if the template is not valid.
+     */
+    public TemplateResponse register(String template) {
+        // Only the ID comes from the normalized BQL. Values are bound to the template as it was given
+        String normalized = BQLService.normalize(template);
+        String id = UUID.nameUUIDFromBytes(normalized.getBytes(StandardCharsets.UTF_8)).toString();
+        BQLTemplate parsed = new BQLTemplate(template);
+        templates.put(id, parsed);
+        log.debug("Registered template {} with parameters {}: {}", id, parsed.getParameters(), template);
+        return new TemplateResponse(id, parsed.getTemplate(), parsed.getParameters());
+    }
+
+    /**
+     * Gets the registered template with the given ID.
+     *
+     * @param id The ID of the template.
+     * @return The {@link BQLTemplate} or null if there is none.
+     */
+    public BQLTemplate getTemplate(String id) {
+        return templates.get(id);
+    }
+
+    /**
+     * Binds the values in the given {@link TemplateRequest} to the template it names.
+     *
+     * @param request The {@link TemplateRequest} naming the template and the values for its parameters.
+     * @return The BQL with the values in place of the parameters.
+     * @throws IllegalArgumentException if the template is not registered or the values do not fit it.
+     */
+    public String bind(TemplateRequest request) {
+        BQLTemplate template = getTemplate(request.getId());
+        if (template == null) {
+            throw new IllegalArgumentException("Unknown template: " + request.getId());
+        }
+        return template.bind(request.getParameters());
+    }
+
+    /**
+     * Gets the number of registered templates.
+     *
+     * @return The number of templates.
+     */
+    public int size() {
+        return templates.size();
+    }
+}
@@ -6,7 +6,11 @@
 package com.yahoo.bullet.rest.service;
 
 import com.yahoo.bullet.query.Query;
+import com.yahoo.bullet.rest.common.NativeWebSocketWriter;
+import com.yahoo.bullet.rest.common.RawJSONMessageConverter;
+import com.yahoo.bullet.rest.model.RawWebSocketResponse;
 import com.yahoo.bullet.rest.model.WebSocketResponse;
+import com.yahoo.bullet.rest.query.QueryHandler;
 import com.yahoo.bullet.rest.query.WebSocketQueryHandler;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -16,7 +20,11 @@ import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Service
@@ -25,10 +33,47 @@ public class WebSocketService {
     private QueryService queryService;
     private SimpMessagingTemplate messagingTemplate;
     private String clientDestination;
+    private FlowControlService flowControlService;
+    // The largest a fragment of a response can be once encoded as a JSON string, leaving room for the rest of the frame
+    @Getter
+    private int fragmentSizeBytes;
 
-    // Exposed for testing only.
+    // The query IDs of the queries running for each session. Exposed for testing only.
     @Getter(AccessLevel.PACKAGE)
-    private Map<String, String> sessionIDMap;
+    private Map<String, Set<String>> sessionIDMap;
+    // The sessions that asked for the raw wire format when they connected
+    private Set<String> rawSessions = ConcurrentHashMap.newKeySet();
+    // The sessions of the native WebSocket endpoint, which are written to directly instead of through the broker
+    private Map<String, NativeWebSocketWriter> nativeSessions = new ConcurrentHashMap<>();
+
+    /**
+     * The STOMP CONNECT header clients can set to choose the wire format of their session.
+     */
+    public static final String WIRE_FORMAT_HEADER = "bullet-wire-format";
+    /**
+     * The wire format where the content of responses is written as a JSON value instead of as a JSON string.
+     */
+    public static final String RAW_WIRE_FORMAT = "raw";
+    /**
+     * The STOMP header on the fragments of a response that was too large to send in one message. It is the same for
+     * all fragments of a response.
+     */
+    public static final String FRAGMENT_ID_HEADER = "bullet-fragment-id";
+    /**
+     * The STOMP header with the position of a fragment in its response, starting at 0.
+     */
+    public static final String FRAGMENT_INDEX_HEADER = "bullet-fragment-index";
+    /**
+     * The STOMP header with the number of fragments in the response.
+     */
+    public static final String FRAGMENT_COUNT_HEADER = "bullet-fragment-count";
+    /**
+     * The STOMP header on all responses to a query with the correlation ID the client gave when it submitted the query.
+     * It lets clients that run many queries on one session tell which query a response is for.
+     */
+    public static final String CORRELATION_ID_HEADER = "bullet-correlation-id";
+
+    private static final int FRAME_OVERHEAD_BYTES = 1024;
 
     /**
      * Constructor.
@@ -37,39 +82,109 @@ public class WebSocketService {
      * @param handlerService The {@link HandlerService} to use.
      * @param messagingTemplate The {@link SimpMessagingTemplate} to use.
      * @param clientDestination The client destination to use for websockets.
+     * @param messageSizeLimitKB The maximum size of a message in KB. Larger responses are sent in fragments.
+     * @param flowControlService The {@link FlowControlService} to send responses through.
      */
     @Autowired
     public WebSocketService(QueryService queryService, HandlerService handlerService,
                             SimpMessagingTemplate messagingTemplate,
-                            @Value("${bullet.websocket.client.destination}") String clientDestination) {
+                            @Value("${bullet.websocket.client.destination}") String clientDestination,
+                            @Value("${bullet.websocket.message.size.limit.kb}") int messageSizeLimitKB,
+                            FlowControlService flowControlService) {
         this.queryService = queryService;
         this.handlerService = handlerService;
         this.messagingTemplate = messagingTemplate;
         this.clientDestination = clientDestination;
+        this.flowControlService = flowControlService;
+        int messageSizeLimitBytes = messageSizeLimitKB * 1024;
+        this.fragmentSizeBytes = Math.max(messageSizeLimitBytes / 2, messageSizeLimitBytes - FRAME_OVERHEAD_BYTES);
         this.sessionIDMap = new ConcurrentHashMap<>();
     }
+
+    /**
+     * Records the wire format a session asked for when it connected. Sessions that did not ask for the
+     * {@link #RAW_WIRE_FORMAT} keep getting the content of responses as a JSON string.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param wireFormat The wire format the session asked for. It can be null.
+     */
+    public void connectSession(String sessionID, String wireFormat) {
+        if (RAW_WIRE_FORMAT.equalsIgnoreCase(wireFormat)) {
+            rawSessions.add(sessionID);
+        }
+    }
+
+    /**
+     * Records a session of the native WebSocket endpoint. Responses to it are written as raw JSON frames by the given
+     * {@link NativeWebSocketWriter} instead of being sent through the broker, and are never fragmented.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param writer The {@link NativeWebSocketWriter} for the session.
+     */
+    public void connectNativeSession(String sessionID, NativeWebSocketWriter writer) {
+        nativeSessions.put(sessionID, writer);
+    }
+
+    /**
+     * Kills the queries of a session that disconnected and forgets the session.
+     *
+     * @param sessionID The session ID to represent the client.
+     */
+    public void disconnectSession(String sessionID) {
+        killQuery(sessionID, null);
+        rawSessions.remove(sessionID);
+        nativeSessions.remove(sessionID);
+    }
+
     /**
-     * Kills the query and cleans up.
+     * Gets the largest a fragment of a response to a session can be.
      *
      * @param sessionID The session ID to represent the client.
-     * @param queryID The query ID of the query to be killed or null to kill the query associated with the session.
+     * @return The fragment size in bytes or 0 if responses to the session are not fragmented.
+     */
+    public int getFragmentSizeBytes(String sessionID) {
+        return nativeSessions.containsKey(sessionID) ? 0 : fragmentSizeBytes;
+    }
+
+    /**
+     * Checks if a session uses the raw wire format.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @return true if the session asked for the {@link #RAW_WIRE_FORMAT}.
+     */
+    public boolean isRawSession(String sessionID) {
+        return rawSessions.contains(sessionID);
+    }
+
+    /**
+     * Kills a query of a session and cleans up. Queries of other sessions cannot be killed.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param queryID The query ID of the query to be killed or null to kill all the queries of the session.
      */
     public void killQuery(String sessionID, String queryID) {
-        String queryForSession = sessionIDMap.get(sessionID);
-        if (queryForSession != null && (queryID == null || queryID.equals(queryForSession))) {
-            handlerService.removeHandler(queryForSession);
-            deleteSession(sessionID);
-            queryService.kill(queryForSession);
+        Set<String> queriesForSession = sessionIDMap.get(sessionID);
+        if (queriesForSession == null) {
+            return;
+        }
+        if (queryID == null) {
+            new ArrayList<>(queriesForSession).forEach(id -> kill(sessionID, id));
+        } else if (queriesForSession.contains(queryID)) {
+            kill(sessionID, queryID);
         }
     }
 
     /**
-     * Deletes a session from the session id map.
+     * Forgets a query of a session once it is done. The session is forgotten once it has no queries left.
      *
-     * @param sessionID The session ID to be deleted.
+     * @param sessionID The session ID to represent the client.
+     * @param queryID The query ID of the query that is done.
      */
-    public void deleteSession(String sessionID) {
-        sessionIDMap.remove(sessionID);
+    public void deleteQuery(String sessionID, String queryID) {
+        sessionIDMap.computeIfPresent(sessionID, (id, queries) -> {
+            queries.remove(queryID);
+            return queries.isEmpty() ? null : queries;
+        });
     }
 
     /**
@@ -82,19 +197,85 @@ public class WebSocketService {
      * @param queryHandler The Query Handler to submit the query.
      */
     public void submitQuery(String queryID, String sessionID, Query query, String queryString, WebSocketQueryHandler queryHandler) {
-        sessionIDMap.put(sessionID, queryID);
-        handlerService.addHandler(queryID, queryHandler);
+        // Added atomically so that the last query of the session finishing at the same time does not drop this one
+        sessionIDMap.compute(sessionID, (id, queries) -> {
+            Set<String> queriesForSession = queries == null ? ConcurrentHashMap.newKeySet() : queries;
+            queriesForSession.add(queryID);
+            return queriesForSession;
+        });
+        handlerService.addHandler(queryID, queryHandler, query);
         queryService.submit(queryID, query, queryString);
     }
 
     /**
-     * Sends a response to the client through WebSocket connection.
+     * Sends a response to the client through WebSocket connection. If the session uses the raw wire format, the content
+     * is sent as a {@link RawWebSocketResponse}. The content of all responses other than acknowledgements is JSON, so
+     * only the query ID of an acknowledgement has to be encoded as a JSON string. Fragments of a response are not valid
+     * JSON by themselves, so they are always sent as JSON strings. Responses are flow controlled by the
+     * {@link FlowControlService} and are never dropped.
      *
      * @param sessionID The session ID to represent the client.
      * @param response The {@link WebSocketResponse} response to be sent.
      * @param headerAccessor The {@link SimpMessageHeaderAccessor} headers to be associated with the response message.
      */
     public void sendResponse(String sessionID, WebSocketResponse response, SimpMessageHeaderAccessor headerAccessor) {
-        messagingTemplate.convertAndSendToUser(sessionID, clientDestination, response, headerAccessor.getMessageHeaders());
+        flowControlService.send(sessionID, toSend(sessionID, response, headerAccessor));
+    }
+
+    /**
+     * Sends the responses that make up a result of a query, e.g. its fragments, like
+     * {@link #sendResponse(String, WebSocketResponse, SimpMessageHeaderAccessor)}. If they are all window results, they
+     * can be dropped together by the {@link FlowControlService} when the client is not keeping up.
+     *
+     * @param sessionID The session ID to represent the client.
+     * @param queryID The query ID of the result.
+     * @param responses The {@link List} of {@link WebSocketResponse} to be sent.
+     * @param headerAccessors The {@link List} of {@link SimpMessageHeaderAccessor} headers for each response.
+     */
+    public void sendResult(String sessionID, String queryID, List<WebSocketResponse> responses, List<SimpMessageHeaderAccessor> headerAccessors) {
+        List<Runnable> sends = new ArrayList<>(responses.size());
+        boolean droppable = true;
+        for (int i = 0; i < responses.size(); i++) {
+            WebSocketResponse response = responses.get(i);
+            droppable &= response.getType() == WebSocketResponse.Type.MESSAGE;
+            sends.add(toSend(sessionID, response, headerAccessors.get(i)));
+        }
+        flowControlService.send(sessionID, droppable ? queryID : null, sends);
+    }
+
+    private void kill(String sessionID, String queryID) {
+        QueryHandler handler = handlerService.removeHandler(queryID);
+        if (handler != null) {
+            // Frees up what the handler holds. The client is not told since it asked for the kill
+            handler.complete();
+        }
+        deleteQuery(sessionID, queryID);
+        queryService.kill(queryID);
+    }
+
+    private Runnable toSend(String sessionID, WebSocketResponse response, SimpMessageHeaderAccessor headerAccessor) {
+        NativeWebSocketWriter writer = nativeSessions.get(sessionID);
+        if (writer != null) {
+            String correlationID = headerAccessor.getFirstNativeHeader(CORRELATION_ID_HEADER);
+            byte[] frame = RawJSONMessageConverter.toBytes(response.getType(), correlationID, toRawContent(response));
+            return () -> writer.send(frame, () -> flowControlService.delivered(sessionID));
+        }
+        Object payload = toPayload(sessionID, response, headerAccessor);
+        return () -> messagingTemplate.convertAndSendToUser(sessionID, clientDestination, payload, headerAccessor.getMessageHeaders());
+    }
+
+    private Object toPayload(String sessionID, WebSocketResponse response, SimpMessageHeaderAccessor headerAccessor) {
+        if (!rawSessions.contains(sessionID) || headerAccessor.getFirstNativeHeader(FRAGMENT_ID_HEADER) != null) {
+            return response;
+        }
+        return new RawWebSocketResponse(response.getType(), toRawContent(response));
+    }
+
+    private static byte[] toRawContent(WebSocketResponse response) {
+        String content = response.getContent();
+        if (response.getType() == WebSocketResponse.Type.ACK) {
+            content = SchemaService.GSON.toJson(content);
+        }
+        return content == null ? null : content.getBytes(StandardCharsets.UTF_8);
     }
 }
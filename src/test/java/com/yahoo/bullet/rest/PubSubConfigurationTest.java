@@ -12,6 +12,7 @@ import com.yahoo.bullet.pubsub.PubSubMessageSerDe;
 import com.yahoo.bullet.pubsub.Publisher;
 import com.yahoo.bullet.pubsub.Subscriber;
 import com.yahoo.bullet.rest.common.MockPubSub;
+import com.yahoo.bullet.rest.common.ReaderSettings;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -53,4 +54,19 @@ public class PubSubConfigurationTest {
         PubSubMessageSerDe serDe = configuration.pubSubMessageSendSerDe(config);
         Assert.assertTrue(serDe instanceof ByteArrayPubSubMessageSerDe);
     }
+
+    @Test
+    public void testReaderSettings() {
+        PubSubConfiguration configuration = new PubSubConfiguration();
+        ReaderSettings settings = configuration.readerSettings(true, 1, 2, 3L, 4, 5L, 6, 7);
+
+        Assert.assertTrue(settings.isBlocking());
+        Assert.assertEquals(settings.getIdleSpins(), 1);
+        Assert.assertEquals(settings.getIdleYields(), 2);
+        Assert.assertEquals(settings.getMaxSleepMS(), 3L);
+        Assert.assertEquals(settings.getBatchSize(), 4);
+        Assert.assertEquals(settings.getBatchLingerMS(), 5L);
+        Assert.assertEquals(settings.getDispatchShards(), 6);
+        Assert.assertEquals(settings.getDispatchQueueSize(), 7);
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+public class WebSocketConfigurationTest {
+    private static final WebSocketExtension DEFLATE = new WebSocketExtension(WebSocketConfiguration.CompressionHandshakeHandler.PERMESSAGE_DEFLATE);
+    private static final WebSocketExtension OTHER = new WebSocketExtension("x-other");
+
+    private static List<WebSocketExtension> filter(boolean compressionEnabled) {
+        List<WebSocketExtension> extensions = Arrays.asList(DEFLATE, OTHER);
+        return new WebSocketConfiguration.CompressionHandshakeHandler(compressionEnabled)
+                .filterRequestedExtensions(mock(ServerHttpRequest.class), extensions, extensions);
+    }
+
+    @Test
+    public void testNegotiatingCompression() {
+        Assert.assertEquals(filter(true), Arrays.asList(DEFLATE, OTHER));
+    }
+
+    @Test
+    public void testNotNegotiatingCompression() {
+        Assert.assertEquals(filter(false), Collections.singletonList(OTHER));
+    }
+}
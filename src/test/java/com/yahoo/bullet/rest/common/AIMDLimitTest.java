@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AIMDLimitTest {
+    @Test
+    public void testStartsAtInitial() {
+        Assert.assertEquals(new AIMDLimit(2, 5, 10, 100L, 0.5).getLimit(), 5);
+        Assert.assertEquals(new AIMDLimit(2, 20, 10, 100L, 0.5).getLimit(), 10);
+        Assert.assertEquals(new AIMDLimit(2, 1, 10, 100L, 0.5).getLimit(), 2);
+    }
+
+    @Test
+    public void testBoundsAreFixedUp() {
+        AIMDLimit limit = new AIMDLimit(0, -5, -5, 100L, 0.5);
+        Assert.assertEquals(limit.getLimit(), 1);
+        Assert.assertEquals(limit.onDrop(), 0);
+        Assert.assertEquals(limit.getLimit(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBackoffRatioTooLarge() {
+        new AIMDLimit(1, 10, 10, 100L, 1.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBackoffRatioTooSmall() {
+        new AIMDLimit(1, 10, 10, 100L, 0.0);
+    }
+
+    @Test
+    public void testLateSamplesDecreaseMultiplicatively() {
+        AtomicLong now = new AtomicLong();
+        AIMDLimit limit = new AIMDLimit(2, 10, 10, 100L, 0.5, now::get);
+        Assert.assertEquals(limit.onSample(101L, 10), -5);
+        Assert.assertEquals(limit.getLimit(), 5);
+        now.addAndGet(100L);
+        Assert.assertEquals(limit.onDrop(), -3);
+        Assert.assertEquals(limit.getLimit(), 2);
+        now.addAndGet(100L);
+        Assert.assertEquals(limit.onDrop(), 0);
+        Assert.assertEquals(limit.getLimit(), 2);
+    }
+
+    @Test
+    public void testDecreasesAtMostOncePerTolerance() {
+        AtomicLong now = new AtomicLong(1000L);
+        AIMDLimit limit = new AIMDLimit(2, 40, 40, 100L, 0.5, now::get);
+        Assert.assertEquals(limit.onDrop(), -20);
+        Assert.assertEquals(limit.onSample(500L, 20), 0);
+        now.addAndGet(99L);
+        Assert.assertEquals(limit.onDrop(), 0);
+        Assert.assertEquals(limit.getLimit(), 20);
+        // On time samples still grow the limit while decreases are held off
+        Assert.assertEquals(limit.onSample(0L, 20), 1);
+        now.addAndGet(1L);
+        Assert.assertEquals(limit.onDrop(), -11);
+        Assert.assertEquals(limit.getLimit(), 10);
+    }
+
+    @Test
+    public void testGrowsPastInitialUpToMaximum() {
+        AIMDLimit limit = new AIMDLimit(2, 10, 11, 100L, 0.5);
+        Assert.assertEquals(limit.onSample(0L, 10), 1);
+        Assert.assertEquals(limit.onSample(0L, 11), 0);
+        Assert.assertEquals(limit.getLimit(), 11);
+    }
+
+    @Test
+    public void testOnTimeSamplesIncreaseAdditively() {
+        AIMDLimit limit = new AIMDLimit(2, 10, 10, 100L, 0.5, () -> 0L);
+        limit.onDrop();
+        Assert.assertEquals(limit.onSample(100L, 5), 1);
+        Assert.assertEquals(limit.onSample(0L, 6), 1);
+        Assert.assertEquals(limit.getLimit(), 7);
+    }
+
+    @Test
+    public void testNoIncreaseWhenUnderused() {
+        AIMDLimit limit = new AIMDLimit(2, 10, 10, 100L, 0.5, () -> 0L);
+        limit.onDrop();
+        Assert.assertEquals(limit.onSample(0L, 2), 0);
+        Assert.assertEquals(limit.getLimit(), 5);
+    }
+
+    @Test
+    public void testNoIncreasePastMaximum() {
+        AIMDLimit limit = new AIMDLimit(2, 10, 10, 100L, 0.5, () -> 0L);
+        Assert.assertEquals(limit.onSample(0L, 10), 0);
+        Assert.assertEquals(limit.getLimit(), 10);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BQLTemplateTest {
+    private static Map<String, Object> values(Object... pairs) {
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            values.put((String) pairs[i], pairs[i + 1]);
+        }
+        return values;
+    }
+
+    @Test
+    public void testParameters() {
+        BQLTemplate template = new BQLTemplate("SELECT * FROM STREAM(:duration, TIME) WHERE a = :value OR b = :value LIMIT :_limit1");
+        Assert.assertEquals(template.getParameters(), Arrays.asList("duration", "value", "_limit1"));
+        Assert.assertEquals(template.getTemplate(), "SELECT * FROM STREAM(:duration, TIME) WHERE a = :value OR b = :value LIMIT :_limit1");
+    }
+
+    @Test
+    public void testNoParameters() {
+        BQLTemplate template = new BQLTemplate("SELECT * FROM STREAM()");
+        Assert.assertTrue(template.getParameters().isEmpty());
+        Assert.assertEquals(template.bind(null), "SELECT * FROM STREAM()");
+        Assert.assertEquals(template.bind(Collections.emptyMap()), "SELECT * FROM STREAM()");
+    }
+
+    @Test
+    public void testIgnoringParametersInQuotes() {
+        BQLTemplate template = new BQLTemplate("SELECT \"a:b\" FROM STREAM() WHERE c = ':d' AND e = 'it'':s' AND f = :f");
+        Assert.assertEquals(template.getParameters(), Collections.singletonList("f"));
+        Assert.assertEquals(template.bind(values("f", 1)), "SELECT \"a:b\" FROM STREAM() WHERE c = ':d' AND e = 'it'':s' AND f = 1");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ".*parameter name.*position 7")
+    public void testMissingParameterName() {
+        new BQLTemplate("SELECT : FROM STREAM()");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ".*parameter name.*")
+    public void testParameterNameStartingWithDigit() {
+        new BQLTemplate("SELECT :1a FROM STREAM()");
+    }
+
+    @Test
+    public void testBindingLiterals() {
+        BQLTemplate template = new BQLTemplate("SELECT :a, :b, :c, :d, :e, :f, :g, :h FROM STREAM()");
+        String bound = template.bind(values("a", null, "b", true, "c", false, "d", 42, "e", -1.5, "f", 10000000000L,
+                                            "g", new BigDecimal("0.25"), "h", "x"));
+        Assert.assertEquals(bound, "SELECT NULL, TRUE, FALSE, 42, -1.5, 10000000000, 0.25, 'x' FROM STREAM()");
+    }
+
+    @Test
+    public void testEscapingStrings() {
+        BQLTemplate template = new BQLTemplate("SELECT * FROM STREAM() WHERE a = :a");
+        Assert.assertEquals(template.bind(values("a", "' OR 1 = 1 OR a = '")),
+                            "SELECT * FROM STREAM() WHERE a = ''' OR 1 = 1 OR a = '''");
+    }
+
+    @Test
+    public void testBindingLists() {
+        BQLTemplate template = new BQLTemplate("SELECT * FROM STREAM() WHERE a IN :a AND b IN :b");
+        Assert.assertEquals(template.bind(values("a", Arrays.asList("x", "y"), "b", Collections.emptyList())),
+                            "SELECT * FROM STREAM() WHERE a IN ['x', 'y'] AND b IN []");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Missing .*: b")
+    public void testMissingValue() {
+        new BQLTemplate("SELECT :a, :b FROM STREAM()").bind(values("a", 1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Unknown parameters: \\[c\\]")
+    public void testUnknownValue() {
+        new BQLTemplate("SELECT :a FROM STREAM()").bind(values("a", 1, "c", 2));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ".*not a finite number.*")
+    public void testNonFiniteNumber() {
+        new BQLTemplate("SELECT :a FROM STREAM()").bind(values("a", Double.NaN));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ".*not a plain number.*")
+    public void testNumberThatIsNotPlain() {
+        Number number = new AtomicLong(1L) {
+            @Override
+            public String toString() {
+                return "1 OR TRUE";
+            }
+        };
+        new BQLTemplate("SELECT * FROM STREAM() WHERE a = :a").bind(values("a", number));
+    }
+
+    @Test
+    public void testBindingNegativeNumbersAfterMinus() {
+        BQLTemplate template = new BQLTemplate("SELECT a -:b FROM STREAM()");
+        Assert.assertEquals(template.bind(values("b", -1)), "SELECT a - -1 FROM STREAM()");
+    }
+
+    @Test
+    public void testParametersInCommentsAreIgnored() {
+        BQLTemplate template = new BQLTemplate("SELECT :a -- :b\nFROM /* :c */ STREAM()");
+        Assert.assertEquals(template.getParameters(), Collections.singletonList("a"));
+        Assert.assertEquals(template.bind(values("a", "x")), "SELECT 'x' -- :b\nFROM /* :c */ STREAM()");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ".*not a literal.*")
+    public void testNonLiteral() {
+        new BQLTemplate("SELECT :a FROM STREAM()").bind(values("a", Collections.singletonMap("b", 1)));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+public class BoundedCacheTest {
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveMaximum() {
+        new BoundedCache<String, String>(0);
+    }
+
+    @Test
+    public void testGettingAndPutting() {
+        BoundedCache<String, String> cache = new BoundedCache<>(4);
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("a", "3");
+        Assert.assertEquals(cache.get("a"), "3");
+        Assert.assertEquals(cache.get("b"), "2");
+        Assert.assertEquals(cache.size(), 2);
+    }
+
+    @Test
+    public void testEvictingLeastRecentlyUsed() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertEquals(cache.get("a"), "1");
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.get("c"), "3");
+    }
+
+    @Test
+    public void testEvictingInBatches() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(20);
+        for (int i = 0; i < 20; ++i) {
+            cache.put(i, i);
+        }
+        cache.get(0);
+        cache.put(20, 20);
+        // One over the maximum and another tenth of it are evicted, oldest first
+        Assert.assertEquals(cache.size(), 18);
+        Assert.assertEquals(cache.get(0), (Integer) 0);
+        for (int i = 1; i < 4; ++i) {
+            Assert.assertNull(cache.get(i));
+        }
+        Assert.assertEquals(cache.get(4), (Integer) 4);
+        Assert.assertEquals(cache.get(20), (Integer) 20);
+    }
+
+    @Test
+    public void testRemovingOnlyTheGivenValue() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        String value = new String("1");
+        cache.put("a", value);
+        cache.remove("a", new String("1"));
+        Assert.assertSame(cache.get("a"), value);
+        cache.remove("a", value);
+        Assert.assertNull(cache.get("a"));
+        cache.remove("b", value);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testClearing() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "1");
+        cache.clear();
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test(timeOut = 10000)
+    public void testConcurrentPutsStayBounded() throws Exception {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(100);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            int offset = t * 10000;
+            writers.add(CompletableFuture.runAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < 10000; ++i) {
+                    cache.put(offset + i, i);
+                    cache.get(offset + i / 2);
+                }
+            }));
+        }
+        start.countDown();
+        CompletableFuture.allOf(writers.toArray(new CompletableFuture[0])).get();
+        cache.put(-1, -1);
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertEquals(cache.get(-1), (Integer) (-1));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.rest.service.FlowControlService;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class FlowControlHandlerDecoratorTest {
+    private FlowControlService flowControlService;
+    private WebSocketHandler delegate;
+    private WebSocketSession session;
+    private FlowControlHandlerDecorator decorator;
+
+    @BeforeMethod
+    public void setup() {
+        flowControlService = mock(FlowControlService.class);
+        delegate = mock(WebSocketHandler.class);
+        session = mock(WebSocketSession.class);
+        doReturn("session").when(session).getId();
+        decorator = new FlowControlHandlerDecorator(delegate, flowControlService, "/client/response");
+    }
+
+    private WebSocketSession establish() throws Exception {
+        decorator.afterConnectionEstablished(session);
+        ArgumentCaptor<WebSocketSession> captor = ArgumentCaptor.forClass(WebSocketSession.class);
+        verify(delegate).afterConnectionEstablished(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void testOpeningAndClosing() throws Exception {
+        establish();
+        ArgumentCaptor<Runnable> close = ArgumentCaptor.forClass(Runnable.class);
+        verify(flowControlService).open(eq("session"), close.capture());
+
+        close.getValue().run();
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE);
+
+        decorator.afterConnectionClosed(session, CloseStatus.NORMAL);
+        verify(flowControlService).close("session");
+        verify(delegate).afterConnectionClosed(session, CloseStatus.NORMAL);
+    }
+
+    @Test
+    public void testCountingMessageFrames() throws Exception {
+        WebSocketSession tracked = establish();
+        TextMessage message = new TextMessage("MESSAGE\nsubscription:sub-0\ndestination:/client/response\n\n{}\u0000");
+        tracked.sendMessage(message);
+
+        verify(session).sendMessage(message);
+        verify(flowControlService).delivered("session");
+    }
+
+    @Test
+    public void testNotCountingOtherFrames() throws Exception {
+        WebSocketSession tracked = establish();
+        tracked.sendMessage(new TextMessage("CONNECTED\nversion:1.2\n\n\u0000"));
+        tracked.sendMessage(new TextMessage("\n"));
+        tracked.sendMessage(new TextMessage("MESSAGE"));
+
+        verify(flowControlService, never()).delivered("session");
+    }
+
+    @Test
+    public void testNotCountingMessagesToOtherDestinations() throws Exception {
+        WebSocketSession tracked = establish();
+        tracked.sendMessage(new TextMessage("MESSAGE\ndestination:/response\n\n{}\u0000"));
+        tracked.sendMessage(new TextMessage("MESSAGE\ndestination:/client/response/other\n\n{}\u0000"));
+        // The destination in the body is not a header
+        tracked.sendMessage(new TextMessage("MESSAGE\nsubscription:sub-0\n\ndestination:/client/response\n\u0000"));
+
+        verify(flowControlService, never()).delivered("session");
+    }
+
+    @Test
+    public void testClosingFailure() throws Exception {
+        establish();
+        ArgumentCaptor<Runnable> close = ArgumentCaptor.forClass(Runnable.class);
+        verify(flowControlService).open(eq("session"), close.capture());
+        doThrow(new IOException()).when(session).close(any());
+
+        close.getValue().run();
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class HashedTimerWheelTest {
+    private static <T> List<T> tick(HashedTimerWheel<T> wheel) {
+        List<T> expired = new ArrayList<>();
+        wheel.tick(expired::add);
+        return expired;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveSize() {
+        new HashedTimerWheel<String>(0);
+    }
+
+    @Test
+    public void testSizeRoundedToPowerOfTwo() {
+        Assert.assertEquals(new HashedTimerWheel<String>(1).getSize(), 1);
+        Assert.assertEquals(new HashedTimerWheel<String>(5).getSize(), 8);
+        Assert.assertEquals(new HashedTimerWheel<String>(512).getSize(), 512);
+    }
+
+    @Test
+    public void testExpiresAfterTicks() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<>(8);
+        wheel.schedule("a", 1);
+        wheel.schedule("b", 3);
+        wheel.schedule("c", 0);
+        Assert.assertEquals(tick(wheel), Arrays.asList("a", "c"));
+        Assert.assertEquals(tick(wheel), Collections.emptyList());
+        Assert.assertEquals(tick(wheel), Collections.singletonList("b"));
+        Assert.assertEquals(tick(wheel), Collections.emptyList());
+    }
+
+    @Test
+    public void testExpiresAfterMultipleRounds() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<>(4);
+        wheel.schedule("a", 10);
+        wheel.schedule("b", 2);
+        for (int i = 1; i < 10; ++i) {
+            List<String> expired = tick(wheel);
+            Assert.assertEquals(expired, i == 2 ? Collections.singletonList("b") : Collections.emptyList());
+        }
+        Assert.assertEquals(tick(wheel), Collections.singletonList("a"));
+    }
+
+    @Test
+    public void testSchedulingRelativeToCurrentTick() {
+        HashedTimerWheel<String> wheel = new HashedTimerWheel<>(4);
+        tick(wheel);
+        tick(wheel);
+        wheel.schedule("a", 4);
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(tick(wheel), Collections.emptyList());
+        }
+        Assert.assertEquals(tick(wheel), Collections.singletonList("a"));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class IdleStrategyTest {
+    private static final long ONE_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testSpinsAndYieldsBeforeSleeping() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(2, 2, 1, 8);
+        for (int i = 0; i < 4; ++i) {
+            strategy.idle();
+            Assert.assertEquals(strategy.getSleepNS(), ONE_MS);
+        }
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), 2 * ONE_MS);
+    }
+
+    @Test
+    public void testSleepDoublesUpToMaximum() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(0, 0, 1, 5);
+        Assert.assertTrue(strategy.idle() >= ONE_MS);
+        Assert.assertEquals(strategy.getSleepNS(), 2 * ONE_MS);
+        Assert.assertTrue(strategy.idle() >= 2 * ONE_MS);
+        Assert.assertEquals(strategy.getSleepNS(), 4 * ONE_MS);
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), 5 * ONE_MS);
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), 5 * ONE_MS);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(1, 0, 1, 10);
+        strategy.idle();
+        strategy.idle();
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), 4 * ONE_MS);
+        strategy.reset();
+        Assert.assertEquals(strategy.getSleepNS(), ONE_MS);
+        // Spins again first
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), ONE_MS);
+    }
+
+    @Test
+    public void testZeroSleepGrows() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(0, 0, 0, 1);
+        Assert.assertEquals(strategy.getSleepNS(), 0L);
+        strategy.idle();
+        Assert.assertTrue(strategy.getSleepNS() > 0L);
+        for (int i = 0; i < 10; ++i) {
+            strategy.idle();
+        }
+        Assert.assertEquals(strategy.getSleepNS(), ONE_MS);
+    }
+
+    @Test
+    public void testMaximumLessThanMinimum() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(-1, -1, 2, 1);
+        strategy.idle();
+        Assert.assertEquals(strategy.getSleepNS(), 2 * ONE_MS);
+    }
+
+    @Test
+    public void testSpinWaitingOnAnyJVM() {
+        // Thread.onSpinWait() is only there on Java 9 and later. Either way, spinning must not fail
+        IdleStrategy.onSpinWait();
+        IdleStrategy.onSpinWait();
+    }
+
+    @Test(expectedExceptions = InterruptedException.class)
+    public void testInterruptedWhileSleeping() throws Exception {
+        IdleStrategy strategy = new IdleStrategy(0, 0, 1000, 1000);
+        Thread.currentThread().interrupt();
+        strategy.idle();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class NativeWebSocketWriterTest {
+    // Runs on the calling thread so that writes are done when send returns
+    private static final Executor DIRECT = Runnable::run;
+
+    private WebSocketSession session;
+    private NativeWebSocketWriter writer;
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @BeforeMethod
+    public void setup() {
+        session = mock(WebSocketSession.class);
+        doReturn("session").when(session).getId();
+        doReturn(true).when(session).isOpen();
+        writer = new NativeWebSocketWriter(session, DIRECT);
+    }
+
+    @Test
+    public void testWritingInOrder() throws Exception {
+        AtomicInteger written = new AtomicInteger();
+        writer.send(utf8("foo"), written::incrementAndGet);
+        writer.send(utf8("bar"), written::incrementAndGet);
+
+        ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(captor.capture());
+        List<TextMessage> messages = captor.getAllValues();
+        Assert.assertEquals(messages.get(0).getPayload(), "foo");
+        Assert.assertEquals(messages.get(1).getPayload(), "bar");
+        Assert.assertEquals(written.get(), 2);
+    }
+
+    @Test
+    public void testNotWritingToClosedSessions() throws Exception {
+        doReturn(false).when(session).isOpen();
+        AtomicInteger written = new AtomicInteger();
+        writer.send(utf8("foo"), written::incrementAndGet);
+
+        verify(session, never()).sendMessage(any());
+        Assert.assertEquals(written.get(), 0);
+    }
+
+    @Test
+    public void testClosingOnFailure() throws Exception {
+        doThrow(new IOException("Testing")).when(session).sendMessage(any());
+        AtomicInteger written = new AtomicInteger();
+        writer.send(utf8("foo"), written::incrementAndGet);
+        writer.send(utf8("bar"), written::incrementAndGet);
+
+        InOrder order = inOrder(session);
+        order.verify(session).sendMessage(any());
+        order.verify(session).close(CloseStatus.SESSION_NOT_RELIABLE);
+        Assert.assertEquals(written.get(), 0);
+    }
+
+    @Test
+    public void testClosingFailure() throws Exception {
+        doThrow(new IOException("Testing")).when(session).close(any());
+        writer.close(CloseStatus.NORMAL);
+        verify(session).close(CloseStatus.NORMAL);
+    }
+}
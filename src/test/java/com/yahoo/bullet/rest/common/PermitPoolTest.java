@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PermitPoolTest {
+    @Test
+    public void testAcquiringUpToLimit() {
+        PermitPool pool = new PermitPool(2);
+        Assert.assertEquals(pool.getLimit(), 2);
+        Permit a = pool.tryAcquire();
+        Permit b = pool.tryAcquire();
+        Assert.assertNotNull(a);
+        Assert.assertNotNull(b);
+        Assert.assertNull(pool.tryAcquire());
+        Assert.assertEquals(pool.getUsed(), 2);
+
+        Assert.assertTrue(a.release());
+        Assert.assertEquals(pool.getUsed(), 1);
+        Assert.assertNotNull(pool.tryAcquire());
+        Assert.assertNull(pool.tryAcquire());
+    }
+
+    @Test
+    public void testReleasingTwiceOnlyReturnsOnce() {
+        PermitPool pool = new PermitPool(1);
+        Permit permit = pool.tryAcquire();
+        Assert.assertFalse(permit.isReleased());
+        Assert.assertTrue(permit.release());
+        Assert.assertFalse(permit.release());
+        Assert.assertTrue(permit.isReleased());
+        Assert.assertEquals(pool.getUsed(), 0);
+    }
+
+    @Test
+    public void testNoPermitsWithNonPositiveLimit() {
+        Assert.assertNull(new PermitPool(0).tryAcquire());
+        Assert.assertNull(new PermitPool(-1).tryAcquire());
+    }
+
+    @Test
+    public void testJoinedPermitsAreReleasedTogether() {
+        PermitPool pool = new PermitPool(2);
+        PermitPool other = new PermitPool(1);
+        Permit permit = pool.tryAcquire();
+        Permit joined = other.tryAcquire();
+        permit.join(joined);
+        Assert.assertNull(other.tryAcquire());
+        permit.release();
+        Assert.assertTrue(joined.isReleased());
+        Assert.assertEquals(other.getUsed(), 0);
+
+        Permit late = other.tryAcquire();
+        permit.join(late);
+        Assert.assertTrue(late.isReleased());
+    }
+
+    @Test
+    public void testJoinedPermitsAreReleasedFirst() {
+        List<String> released = new ArrayList<>();
+        Permit permit = new Permit(() -> released.add("permit"));
+        permit.join(new Permit(() -> released.add("joined")));
+        permit.release();
+        Assert.assertEquals(released.size(), 2);
+        Assert.assertEquals(released.get(0), "joined");
+        Assert.assertEquals(released.get(1), "permit");
+    }
+
+    @Test
+    public void testCancellingDoesNotNotify() {
+        AtomicInteger releases = new AtomicInteger();
+        Permit.Listener listener = new Permit.Listener() {
+            @Override
+            public void onRelease(long heldMS) {
+                releases.incrementAndGet();
+            }
+        };
+        PermitPool pool = new PermitPool(1, listener);
+        PermitPool other = new PermitPool(1, listener);
+        Permit permit = pool.tryAcquire();
+        permit.join(other.tryAcquire());
+        Assert.assertTrue(permit.cancel());
+        Assert.assertFalse(permit.release());
+        Assert.assertEquals(pool.getUsed(), 0);
+        Assert.assertEquals(other.getUsed(), 0);
+        Assert.assertEquals(releases.get(), 0);
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void testPermitNeedsARelease() {
+        new Permit(null);
+    }
+
+    @Test
+    public void testChangingTheLimit() {
+        PermitPool pool = new PermitPool(2);
+        Permit a = pool.tryAcquire();
+        pool.tryAcquire();
+        pool.setLimit(1);
+        Assert.assertEquals(pool.getLimit(), 1);
+        a.release();
+        Assert.assertNull(pool.tryAcquire());
+        pool.setLimit(3);
+        Assert.assertNotNull(pool.tryAcquire());
+        Assert.assertNotNull(pool.tryAcquire());
+        Assert.assertNull(pool.tryAcquire());
+    }
+
+    @Test
+    public void testListenerIsNotifiedOnce() {
+        List<Long> delays = new ArrayList<>();
+        AtomicInteger timeouts = new AtomicInteger();
+        AtomicInteger releases = new AtomicInteger();
+        Permit.Listener listener = new Permit.Listener() {
+            @Override
+            public void onResult(long delayMS) {
+                delays.add(delayMS);
+            }
+
+            @Override
+            public void onTimeout() {
+                timeouts.incrementAndGet();
+            }
+
+            @Override
+            public void onRelease(long heldMS) {
+                Assert.assertTrue(heldMS >= 0);
+                releases.incrementAndGet();
+            }
+        };
+        PermitPool pool = new PermitPool(1, listener);
+        Permit permit = pool.tryAcquire();
+        permit.setExpectedMS(60000L);
+        permit.onResult();
+        permit.onResult();
+        permit.onTimeout();
+        permit.release();
+        permit.release();
+        Assert.assertEquals(delays.size(), 1);
+        Assert.assertEquals(delays.get(0), (Long) 0L);
+        Assert.assertEquals(timeouts.get(), 1);
+        Assert.assertEquals(releases.get(), 1);
+    }
+
+    @Test
+    public void testLateResultsAreDelayed() {
+        List<Long> delays = new ArrayList<>();
+        PermitPool pool = new PermitPool(1, new Permit.Listener() {
+            @Override
+            public void onResult(long delayMS) {
+                delays.add(delayMS);
+            }
+        });
+        Permit permit = pool.tryAcquire();
+        permit.setExpectedMS(-1000L);
+        permit.onResult();
+        Assert.assertTrue(delays.get(0) >= 1000L);
+    }
+
+    @Test
+    public void testResultsWithoutExpectationsAreNotNoted() {
+        AtomicInteger results = new AtomicInteger();
+        PermitPool pool = new PermitPool(1, new Permit.Listener() {
+            @Override
+            public void onResult(long delayMS) {
+                results.incrementAndGet();
+            }
+        });
+        Permit permit = pool.tryAcquire();
+        permit.onResult();
+        Assert.assertEquals(results.get(), 0);
+        // Nothing to notify without a listener
+        Permit unwatched = new PermitPool(1).tryAcquire();
+        unwatched.setExpectedMS(0L);
+        unwatched.onResult();
+        unwatched.onTimeout();
+        Assert.assertTrue(unwatched.release());
+    }
+
+    @Test(timeOut = 10000)
+    public void testConcurrentAcquiresDoNotOvershoot() throws Exception {
+        PermitPool pool = new PermitPool(10);
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 100; ++j) {
+                    if (pool.tryAcquire() != null) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(acquired.get(), 10);
+        Assert.assertEquals(pool.getUsed(), 10);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.rest.model.RawWebSocketResponse;
+import com.yahoo.bullet.rest.model.WebSocketResponse;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class RawJSONMessageConverterTest {
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testConvertingRawResponse() {
+        RawJSONMessageConverter converter = new RawJSONMessageConverter();
+        RawWebSocketResponse response = new RawWebSocketResponse(WebSocketResponse.Type.MESSAGE, utf8("{\"records\":[{\"a\":\"\u00e9\"}]}"));
+
+        Message<?> message = converter.toMessage(response, new MessageHeaders(Collections.emptyMap()));
+
+        Assert.assertEquals(new String((byte[]) message.getPayload(), StandardCharsets.UTF_8),
+                            "{\"type\":\"MESSAGE\",\"content\":{\"records\":[{\"a\":\"\u00e9\"}]}}");
+        Assert.assertEquals(message.getHeaders().get(MessageHeaders.CONTENT_TYPE), MimeTypeUtils.APPLICATION_JSON);
+    }
+
+    @Test
+    public void testConvertingNullContent() {
+        Assert.assertEquals(RawJSONMessageConverter.toBytes(WebSocketResponse.Type.COMPLETE, null),
+                            utf8("{\"type\":\"COMPLETE\",\"content\":null}"));
+        Assert.assertEquals(RawJSONMessageConverter.toBytes(WebSocketResponse.Type.ACK, utf8("\"id\"")),
+                            utf8("{\"type\":\"ACK\",\"content\":\"id\"}"));
+    }
+
+    @Test
+    public void testConvertingWithCorrelationID() {
+        Assert.assertEquals(RawJSONMessageConverter.toBytes(WebSocketResponse.Type.MESSAGE, "panel \"1\"", utf8("{}")),
+                            utf8("{\"type\":\"MESSAGE\",\"correlationID\":\"panel \\\"1\\\"\",\"content\":{}}"));
+        Assert.assertEquals(RawJSONMessageConverter.toBytes(WebSocketResponse.Type.FAIL, null, null),
+                            utf8("{\"type\":\"FAIL\",\"content\":null}"));
+    }
+
+    @Test
+    public void testOnlyConvertsRawResponses() {
+        RawJSONMessageConverter converter = new RawJSONMessageConverter();
+        Assert.assertNull(converter.toMessage(new WebSocketResponse(WebSocketResponse.Type.ACK, "id"), null));
+
+        Message<byte[]> message = MessageBuilder.withPayload(utf8("{}")).build();
+        Assert.assertNull(converter.fromMessage(message, RawWebSocketResponse.class));
+    }
+}
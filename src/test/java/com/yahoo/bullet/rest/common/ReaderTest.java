@@ -16,10 +16,19 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.yahoo.bullet.rest.common.Reader.READER_EMPTY_POLLS;
+import static com.yahoo.bullet.rest.common.Reader.READER_IDLE_MS;
 
 public class ReaderTest {
     private PubSubMessage mockMessage;
@@ -119,6 +128,84 @@ public class ReaderTest {
         }
     }
 
+    @Getter
+    private static class MockBlockingSubscriber extends MockSubscriber {
+        private int receives = 0;
+        private CompletableFuture<Boolean> receivedEnough = new CompletableFuture<>();
+
+        MockBlockingSubscriber(PubSubMessage... messages) {
+            super(messages);
+        }
+
+        @Override
+        public PubSubMessage receive() throws PubSubException {
+            receives++;
+            if (receives >= 100) {
+                receivedEnough.complete(true);
+            }
+            return super.receive();
+        }
+    }
+
+    @Getter
+    private static class MockRecordingResponder extends PubSubResponder {
+        private List<String> responded = new ArrayList<>();
+        private String failFor;
+
+        private MockRecordingResponder(String failFor) {
+            super(null);
+            this.failFor = failFor;
+        }
+
+        @Override
+        public void respond(String id, PubSubMessage message) {
+            if (id.equals(failFor)) {
+                throw new RuntimeException("Testing");
+            }
+            responded.add(id);
+        }
+    }
+
+    @Getter
+    private static class MockRecordingSubscriber extends MockSubscriber {
+        private List<String> commits = new ArrayList<>();
+        private List<Integer> committedAfterReceives = new ArrayList<>();
+        private CompletableFuture<Boolean> drained = new CompletableFuture<>();
+        private int receives = 0;
+        private int failOn;
+
+        MockRecordingSubscriber(int failOn, PubSubMessage... messages) {
+            super(messages);
+            this.failOn = failOn;
+        }
+
+        @Override
+        public PubSubMessage receive() throws PubSubException {
+            receives++;
+            if (receives == failOn) {
+                throw new PubSubException("Testing");
+            }
+            PubSubMessage message = super.receive();
+            if (message == null && getMessageList().isEmpty()) {
+                drained.complete(true);
+            }
+            return message;
+        }
+
+        @Override
+        public void commit(String id) {
+            commits.add(id);
+            committedAfterReceives.add(receives);
+        }
+    }
+
+    private static ReaderSettings batchSettings(int size, long lingerMS) {
+        ReaderSettings settings = new ReaderSettings();
+        settings.setBatchSize(size);
+        settings.setBatchLingerMS(lingerMS);
+        return settings;
+    }
+
     @BeforeMethod
     public void setup() {
         String randomID = UUID.randomUUID().toString();
@@ -174,4 +261,164 @@ public class ReaderTest {
         reader.close();
         Assert.assertTrue(subscriber.getDidError().get());
     }
+
+    @Test(timeOut = 10000)
+    public void testMetricsDisabledByDefault() {
+        Reader reader = new Reader(new MockSubscriber(), responder, 1);
+        Assert.assertNull(reader.getMetricCollector());
+    }
+
+    @Test(timeOut = 10000)
+    public void testIdleMetricsCollected() throws Exception {
+        ReaderSettings settings = new ReaderSettings();
+        settings.setIdleSpins(0);
+        settings.setIdleYields(0);
+        settings.setMaxSleepMS(2);
+        Reader reader = new Reader(new MockSubscriber(), responder, 1, settings, true);
+        reader.start();
+        TimeUnit.MILLISECONDS.sleep(50);
+        reader.close();
+        Map<String, Number> metrics = reader.getMetricCollector().extractMetrics();
+        Assert.assertTrue(metrics.get(READER_EMPTY_POLLS).longValue() > 0);
+        Assert.assertTrue(metrics.get(READER_IDLE_MS).longValue() > 0);
+    }
+
+    @Test(timeOut = 10000)
+    public void testBlockingSubscriberNotIdled() throws Exception {
+        ReaderSettings settings = new ReaderSettings();
+        settings.setBlocking(true);
+        settings.setMaxSleepMS(10000);
+        MockBlockingSubscriber subscriber = new MockBlockingSubscriber(null, mockMessage);
+        Reader reader = new Reader(subscriber, responder, 10000, settings, true);
+        reader.start();
+        Assert.assertEquals(responder.getSentMessage().get(), mockMessage);
+        // Would take far longer than the timeout if the reader slept on empty reads
+        Assert.assertTrue(subscriber.getReceivedEnough().get());
+        reader.close();
+        Map<String, Number> metrics = reader.getMetricCollector().extractMetrics();
+        Assert.assertTrue(metrics.get(READER_EMPTY_POLLS).longValue() > 0);
+        Assert.assertEquals(metrics.get(READER_IDLE_MS).longValue(), 0L);
+    }
+
+    @Test(timeOut = 10000)
+    public void testBatchRespondedToBeforeCommit() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(-1, new PubSubMessage("a", "foo"),
+                                                                         new PubSubMessage("b", "foo"),
+                                                                         new PubSubMessage("c", "foo"));
+        MockRecordingResponder responder = new MockRecordingResponder(null);
+        Reader reader = new Reader(subscriber, responder, 1, batchSettings(2, 0), false);
+        reader.start();
+        Assert.assertTrue(subscriber.getDrained().get());
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+        Assert.assertEquals(responder.getResponded(), Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(subscriber.getCommits(), Arrays.asList("a", "b", "c"));
+        // The first batch of two is committed after two reads and the next after reading c and then an empty read
+        Assert.assertEquals(subscriber.getCommittedAfterReceives(), Arrays.asList(2, 2, 4));
+    }
+
+    @Test(timeOut = 10000)
+    public void testBatchWithFailingResponse() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(-1, new PubSubMessage("a", "foo"),
+                                                                         new PubSubMessage("b", "foo"),
+                                                                         new PubSubMessage("c", "foo"));
+        MockRecordingResponder responder = new MockRecordingResponder("b");
+        Reader reader = new Reader(subscriber, responder, 1, batchSettings(3, 0), false);
+        reader.start();
+        Assert.assertTrue(subscriber.getDrained().get());
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+        Assert.assertEquals(responder.getResponded(), Arrays.asList("a", "c"));
+        Assert.assertEquals(subscriber.getCommits(), Arrays.asList("a", "c"));
+    }
+
+    @Test(timeOut = 10000)
+    public void testPartialBatchOnReceiveFailure() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(2, new PubSubMessage("a", "foo"),
+                                                                         new PubSubMessage("b", "foo"));
+        MockRecordingResponder responder = new MockRecordingResponder(null);
+        Reader reader = new Reader(subscriber, responder, 1, batchSettings(5, 0), false);
+        reader.start();
+        Assert.assertTrue(subscriber.getDrained().get());
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+        Assert.assertEquals(responder.getResponded(), Arrays.asList("a", "b"));
+        Assert.assertEquals(subscriber.getCommits(), Arrays.asList("a", "b"));
+        Assert.assertEquals(subscriber.getCommittedAfterReceives(), Arrays.asList(2, 4));
+    }
+
+    @Test(timeOut = 10000)
+    public void testShardedResponsesCommittedOnceResponded() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(-1, new PubSubMessage("a", "foo"),
+                                                                         new PubSubMessage("b", "foo"),
+                                                                         new PubSubMessage("c", "foo"));
+        MockRecordingResponder responder = new MockRecordingResponder("b");
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 8, false);
+        Reader reader = new Reader(subscriber, sharded, 1, batchSettings(3, 0), false);
+        reader.start();
+        Assert.assertTrue(subscriber.getDrained().get());
+        // The reader commits what the shard responded to while it polls for more
+        while (subscriber.getCommits().size() < 2) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        reader.stop();
+        sharded.close();
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+        Assert.assertEquals(responder.getResponded(), Arrays.asList("a", "c"));
+        Assert.assertEquals(subscriber.getCommits(), Arrays.asList("a", "c"));
+    }
+
+    @Test(timeOut = 10000)
+    public void testShardedResponsesFinishedWhileDrainingAreCommittedOnClose() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(-1, new PubSubMessage("a", "foo"));
+        CountDownLatch responding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PubSubResponder responder = new PubSubResponder(null) {
+            @Override
+            public void respond(String id, PubSubMessage message) {
+                responding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 8, false);
+        Reader reader = new Reader(subscriber, sharded, 1, batchSettings(1, 0), false);
+        reader.start();
+        responding.await();
+        Assert.assertTrue(reader.stop());
+        Assert.assertTrue(subscriber.getCommits().isEmpty());
+
+        // The shard responds only once it is draining, after the reader thread is gone
+        release.countDown();
+        sharded.close();
+        reader.close();
+        Assert.assertEquals(subscriber.getCommits(), Collections.singletonList("a"));
+        Assert.assertTrue(subscriber.getIsClosed().get());
+    }
+
+    @Test(timeOut = 10000)
+    public void testClosingWithoutStarting() throws Exception {
+        MockSubscriber subscriber = new MockSubscriber();
+        Reader reader = new Reader(subscriber, responder, 1);
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+    }
+
+    @Test(timeOut = 10000)
+    public void testBatchLingersForMessages() throws Exception {
+        MockRecordingSubscriber subscriber = new MockRecordingSubscriber(-1, new PubSubMessage("a", "foo"), null, null,
+                                                                         new PubSubMessage("b", "foo"));
+        MockRecordingResponder responder = new MockRecordingResponder(null);
+        Reader reader = new Reader(subscriber, responder, 1, batchSettings(2, 5000), false);
+        reader.start();
+        Assert.assertTrue(subscriber.getDrained().get());
+        reader.close();
+        Assert.assertTrue(subscriber.getIsClosed().get());
+        Assert.assertEquals(subscriber.getCommits(), Arrays.asList("a", "b"));
+        Assert.assertEquals(subscriber.getCommittedAfterReceives(), Arrays.asList(4, 4));
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.query.QueryError;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class ResultEncodingTest {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
+
+    private static byte[] cbor(String json) {
+        return ResultEncoding.CBOR.encode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertTranscoded(String json) throws Exception {
+        Assert.assertEquals(CBOR_MAPPER.readTree(cbor(json)), JSON_MAPPER.readTree(json));
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testPickingFromAccept() {
+        Assert.assertEquals(ResultEncoding.fromAccept(null), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept(" "), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("not a media type"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("*/*"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("application/*"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("text/html"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("application/cbor"), ResultEncoding.CBOR);
+        Assert.assertEquals(ResultEncoding.fromAccept("application/json;q=0.5, application/cbor"), ResultEncoding.CBOR);
+        Assert.assertEquals(ResultEncoding.fromAccept("application/cbor;q=0.5, application/json"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("application/cbor;q=0, */*"), ResultEncoding.JSON);
+        Assert.assertEquals(ResultEncoding.fromAccept("*/*, application/cbor"), ResultEncoding.CBOR);
+    }
+
+    @Test
+    public void testEncoding() {
+        byte[] json = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(ResultEncoding.JSON.encode(json), json);
+        Assert.assertEquals(ResultEncoding.CBOR.encode(json), bytes(0xBF, 0x61, 'a', 0x01, 0xFF));
+        Assert.assertSame(ResultEncoding.JSON.encode(QueryError.SERVICE_UNAVAILABLE), QueryError.SERVICE_UNAVAILABLE.toBytes());
+        Assert.assertEquals(ResultEncoding.CBOR.encode(new PubSubMessage("id", "{\"a\":1}")), bytes(0xBF, 0x61, 'a', 0x01, 0xFF));
+    }
+
+    @Test
+    public void testTranscodingToCBOR() throws Exception {
+        assertTranscoded("true");
+        assertTranscoded("null");
+        assertTranscoded("\"\u00fc\"");
+        assertTranscoded("-100");
+        assertTranscoded("1000000000000");
+        assertTranscoded("18446744073709551616");
+        assertTranscoded("1.1");
+        assertTranscoded("{\"a\": 1, \"b\": [2, {\"c\": null}], \"d\": \"e\"}");
+        JsonNode node = CBOR_MAPPER.readTree(cbor("{\"a\": 1.5}"));
+        Assert.assertEquals(node.get("a").doubleValue(), 1.5);
+    }
+
+    @Test
+    public void testTranscodingNotJSONToCBOR() {
+        Assert.assertEquals(cbor("{oops"), bytes(0x65, '{', 'o', 'o', 'p', 's'));
+        Assert.assertEquals(cbor(""), bytes(0x60));
+    }
+
+    @Test
+    public void testEncodingMessagesOnce() {
+        EncodedMessage message = new EncodedMessage(new PubSubMessage("id", "{\"a\":1}"));
+        byte[] cbor = ResultEncoding.CBOR.encode(message);
+        Assert.assertSame(ResultEncoding.CBOR.encode(message), cbor);
+        byte[] json = ResultEncoding.JSON.encode(message);
+        Assert.assertSame(ResultEncoding.JSON.encode(message), json);
+        Assert.assertEquals(message.getId(), "id");
+        Assert.assertEquals(message.getContentAsString(), "{\"a\":1}");
+    }
+}
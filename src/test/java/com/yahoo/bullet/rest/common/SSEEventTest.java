@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+public class SSEEventTest {
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(SSEEvent event) {
+        return new String(event.toBytes(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testData() {
+        byte[] data = bytes("{\"records\":[]}");
+        Assert.assertEquals(string(SSEEvent.of(data)), "data:{\"records\":[]}\n\n");
+        Assert.assertEquals(string(SSEEvent.of(new byte[0])), "data:\n\n");
+    }
+
+    @Test
+    public void testFields() {
+        SSEEvent event = new SSEEvent().id("1").name("result").reconnectTime(500L).comment("hi").data("foo", MediaType.TEXT_PLAIN);
+        Assert.assertEquals(string(event), "id:1\nevent:result\nretry:500\n:hi\ndata:foo\n\n");
+        Assert.assertEquals(string(new SSEEvent().comment("")), ":\n\n");
+    }
+
+    @Test
+    public void testMultipleLines() {
+        Assert.assertEquals(string(SSEEvent.of(bytes("{\n  \"a\": 1\n}"))), "data:{\ndata:  \"a\": 1\ndata:}\n\n");
+        Assert.assertEquals(string(SSEEvent.of(bytes("foo\n"))), "data:foo\n\n");
+        Assert.assertEquals(string(new SSEEvent().data("foo").data("bar")), "data:foo\ndata:bar\n\n");
+    }
+
+    @Test
+    public void testBuildingOneItem() {
+        Set<DataWithMediaType> items = SSEEvent.of(bytes("foo")).build();
+        Assert.assertEquals(items.size(), 1);
+        DataWithMediaType item = items.iterator().next();
+        Assert.assertEquals(item.getData(), bytes("data:foo\n\n"));
+        Assert.assertEquals(item.getMediaType(), MediaType.TEXT_EVENT_STREAM);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.common;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.pubsub.PubSubResponder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.yahoo.bullet.rest.common.ShardedResponder.DISPATCH_FAIL;
+import static com.yahoo.bullet.rest.common.ShardedResponder.DISPATCH_LATENCY_US;
+import static com.yahoo.bullet.rest.common.ShardedResponder.DISPATCH_QUEUE_DEPTH;
+
+public class ShardedResponderTest {
+    private static class MockResponder extends PubSubResponder {
+        private final List<String> responses = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch expected;
+        private final CountDownLatch blocker;
+        private final CountDownLatch blocked;
+        private final String blockFor;
+        private final String failFor;
+
+        private MockResponder(int expected, String blockFor, String failFor) {
+            super(null);
+            this.expected = new CountDownLatch(expected);
+            this.blocker = new CountDownLatch(1);
+            this.blocked = new CountDownLatch(1);
+            this.blockFor = blockFor;
+            this.failFor = failFor;
+        }
+
+        @Override
+        public void respond(String id, PubSubMessage message) {
+            if (id.equals(blockFor)) {
+                blocked.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (id.equals(failFor)) {
+                expected.countDown();
+                throw new RuntimeException("Testing");
+            }
+            responses.add(message.getContentAsString());
+            expected.countDown();
+        }
+    }
+
+    // Finds an ID that does not map to the same shard as the given one
+    private static String otherShardID(String id, int shards) {
+        int shard = (id.hashCode() & Integer.MAX_VALUE) % shards;
+        for (int i = 0; ; ++i) {
+            String other = "id" + i;
+            if ((other.hashCode() & Integer.MAX_VALUE) % shards != shard) {
+                return other;
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoShards() {
+        new ShardedResponder(new MockResponder(0, null, null), 0, 1, false);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoQueue() {
+        new ShardedResponder(new MockResponder(0, null, null), 1, 0, false);
+    }
+
+    @Test(timeOut = 10000)
+    public void testResponsesForQueryInOrder() throws Exception {
+        MockResponder responder = new MockResponder(100, null, null);
+        ShardedResponder sharded = new ShardedResponder(responder, 4, 8, false);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            expected.add(String.valueOf(i));
+            sharded.respond("id", new PubSubMessage("id", String.valueOf(i)));
+        }
+        responder.expected.await();
+        Assert.assertEquals(responder.responses, expected);
+        Assert.assertNull(sharded.getMetricCollector());
+        sharded.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testSlowQueryDoesNotBlockOtherShards() throws Exception {
+        String other = otherShardID("slow", 2);
+        MockResponder responder = new MockResponder(2, "slow", null);
+        ShardedResponder sharded = new ShardedResponder(responder, 2, 8, true);
+        sharded.respond("slow", new PubSubMessage("slow", "foo"));
+        responder.blocked.await();
+        sharded.respond(other, new PubSubMessage(other, "bar"));
+        while (responder.responses.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        Assert.assertEquals(responder.responses, Collections.singletonList("bar"));
+        responder.blocker.countDown();
+        responder.expected.await();
+        Assert.assertEquals(responder.responses.get(1), "foo");
+        sharded.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testFullQueueBlocks() throws Exception {
+        MockResponder responder = new MockResponder(3, "id", null);
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 1, true);
+        sharded.respond("id", new PubSubMessage("id", "1"));
+        // Wait for the first to be taken off the queue and block in the responder
+        responder.blocked.await();
+        sharded.respond("id", new PubSubMessage("id", "2"));
+        CompletableFuture<Boolean> third = CompletableFuture.supplyAsync(() -> {
+            sharded.respond("id", new PubSubMessage("id", "3"));
+            return true;
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        Assert.assertFalse(third.isDone());
+        responder.blocker.countDown();
+        Assert.assertTrue(third.get());
+        responder.expected.await();
+        Assert.assertEquals(responder.responses.size(), 3);
+
+        Map<String, Number> metrics = sharded.getMetricCollector().extractMetrics();
+        Assert.assertTrue(metrics.get(DISPATCH_QUEUE_DEPTH).doubleValue() > 0.0);
+        Assert.assertTrue(metrics.containsKey(DISPATCH_LATENCY_US));
+        Assert.assertEquals(metrics.get(DISPATCH_FAIL).longValue(), 0L);
+        sharded.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testFailingResponseContinues() throws Exception {
+        MockResponder responder = new MockResponder(2, null, "bad");
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 8, true);
+        sharded.respond("bad", new PubSubMessage("bad", "foo"));
+        sharded.respond("good", new PubSubMessage("good", "bar"));
+        responder.expected.await();
+        while (responder.responses.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        Assert.assertEquals(responder.responses, Collections.singletonList("bar"));
+        Assert.assertEquals(sharded.getMetricCollector().extractMetrics().get(DISPATCH_FAIL).longValue(), 1L);
+        sharded.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testOnlySuccessfulResponsesAreReported() throws Exception {
+        MockResponder responder = new MockResponder(3, null, "bad");
+        ShardedResponder sharded = new ShardedResponder(responder, 2, 8, false);
+        List<String> responded = Collections.synchronizedList(new ArrayList<>());
+        sharded.respond("a", new PubSubMessage("a", "foo"), responded::add);
+        sharded.respond("bad", new PubSubMessage("bad", "bar"), responded::add);
+        sharded.respond("b", new PubSubMessage("b", "baz"), responded::add);
+        responder.expected.await();
+        sharded.close();
+        Assert.assertEquals(responded.size(), 2);
+        Assert.assertTrue(responded.containsAll(Arrays.asList("a", "b")));
+    }
+
+    @Test(timeOut = 10000)
+    public void testClosingRespondsToPending() throws Exception {
+        MockResponder responder = new MockResponder(3, "id", null);
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 4, false);
+        sharded.respond("id", new PubSubMessage("id", "1"));
+        responder.blocked.await();
+        sharded.respond("id", new PubSubMessage("id", "2"));
+        sharded.respond("id", new PubSubMessage("id", "3"));
+        CompletableFuture.runAsync(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            responder.blocker.countDown();
+        });
+        sharded.close();
+        Assert.assertEquals(responder.responses, Arrays.asList("1", "2", "3"));
+    }
+
+    @Test(timeOut = 10000, expectedExceptions = IllegalStateException.class)
+    public void testRespondingAfterClosing() {
+        ShardedResponder sharded = new ShardedResponder(new MockResponder(0, null, null), 1, 1, false);
+        sharded.close();
+        sharded.respond("id", new PubSubMessage("id", "1"));
+    }
+
+    @Test(timeOut = 10000)
+    public void testShardThreadsAreNamed() throws Exception {
+        CompletableFuture<String> name = new CompletableFuture<>();
+        PubSubResponder responder = new PubSubResponder(null) {
+            @Override
+            public void respond(String id, PubSubMessage message) {
+                name.complete(Thread.currentThread().getName());
+            }
+        };
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 1, false);
+        sharded.respond("id", new PubSubMessage("id", "1"));
+        Assert.assertEquals(name.get(), "bullet-dispatch-0");
+        sharded.close();
+    }
+
+    @Test(timeOut = 10000, expectedExceptions = IllegalStateException.class)
+    public void testInterruptedWhileQueueing() throws Exception {
+        MockResponder responder = new MockResponder(1, "id", null);
+        ShardedResponder sharded = new ShardedResponder(responder, 1, 1, false);
+        sharded.respond("id", new PubSubMessage("id", "1"));
+        sharded.respond("id", new PubSubMessage("id", "2"));
+        try {
+            Thread.currentThread().interrupt();
+            sharded.respond("id", new PubSubMessage("id", "3"));
+        } finally {
+            Assert.assertTrue(Thread.interrupted());
+            responder.blocker.countDown();
+            sharded.close();
+        }
+    }
+}
@@ -8,14 +8,19 @@ package com.yahoo.bullet.rest.common;
 import com.yahoo.bullet.pubsub.Metadata;
 import com.yahoo.bullet.pubsub.Metadata.Signal;
 import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.query.Window;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import static com.yahoo.bullet.rest.TestHelpers.getQuery;
+import static com.yahoo.bullet.rest.TestHelpers.getQueryWithWindow;
+
 public class UtilsTest {
     @Test
     public void testIDsRandom() {
@@ -52,4 +57,19 @@ public class UtilsTest {
         Utils.checkNotEmpty(Collections.singletonList("foo"));
         Assert.assertTrue(true);
     }
+
+    @Test
+    public void testExpectedResultTime() {
+        Assert.assertEquals(Utils.getExpectedResultMS(getQuery()), 1000L);
+        Assert.assertEquals(Utils.getExpectedResultMS(getQueryWithWindow(new Window(200, Window.Unit.TIME))), 200L);
+        Assert.assertEquals(Utils.getExpectedResultMS(getQueryWithWindow(new Window(1, Window.Unit.RECORD))), Permit.UNKNOWN);
+    }
+
+    @Test
+    public void testGettingContentAsBytes() {
+        byte[] content = "foo".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(Utils.getContentAsBytes(new PubSubMessage("id", content)), content);
+        Assert.assertEquals(Utils.getContentAsBytes(new PubSubMessage("id", "foo")), content);
+        Assert.assertEquals(Utils.getContentAsBytes(new PubSubMessage("id", (byte[]) null, (Metadata) null)), new byte[0]);
+    }
 }
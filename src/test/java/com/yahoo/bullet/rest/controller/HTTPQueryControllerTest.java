@@ -11,22 +11,35 @@ import com.yahoo.bullet.common.SerializerDeserializer;
 import com.yahoo.bullet.pubsub.PubSubMessage;
 import com.yahoo.bullet.query.Query;
 import com.yahoo.bullet.query.Window;
+import com.yahoo.bullet.rest.common.Permit;
+import com.yahoo.bullet.rest.common.ResultEncoding;
 import com.yahoo.bullet.rest.model.QueryResponse;
+import com.yahoo.bullet.rest.model.TemplateRequest;
+import com.yahoo.bullet.rest.model.TemplateResponse;
+import com.yahoo.bullet.rest.query.AsyncQueryHandler;
 import com.yahoo.bullet.rest.query.HTTPQueryHandler;
 import com.yahoo.bullet.rest.query.QueryError;
 import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import com.yahoo.bullet.rest.service.AdmissionService;
 import com.yahoo.bullet.rest.service.BQLService;
+import com.yahoo.bullet.rest.service.CompressionService;
 import com.yahoo.bullet.rest.service.HandlerService;
+import com.yahoo.bullet.rest.service.HeartbeatService;
 import com.yahoo.bullet.rest.service.QueryService;
+import com.yahoo.bullet.rest.service.ResultCacheService;
+import com.yahoo.bullet.rest.service.SSEResumeService;
 import com.yahoo.bullet.rest.service.StatusService;
+import com.yahoo.bullet.rest.service.TemplateService;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
@@ -36,26 +49,40 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static com.yahoo.bullet.TestHelpers.assertJSONEquals;
 import static com.yahoo.bullet.TestHelpers.assertOnlyMetricEquals;
 import static com.yahoo.bullet.rest.TestHelpers.assertEqualsBQL;
 import static com.yahoo.bullet.rest.TestHelpers.assertEqualsQuery;
+import static com.yahoo.bullet.rest.TestHelpers.assertMetricsEqual;
 import static com.yahoo.bullet.rest.TestHelpers.getBQLQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getQueryWithWindow;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.apache.commons.lang3.tuple.Pair.of;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.MockitoAnnotations.openMocks;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.MOCK)
@@ -66,15 +93,28 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
     @Mock
     private StatusService statusService;
     @Mock
+    private AdmissionService admissionService;
+    @Mock
     private BQLService bqlService;
     @Mock
     private HandlerService handlerService;
     @Mock
     private QueryService queryService;
+    @Mock
+    private ResultCacheService resultCacheService;
+    @Mock
+    private TemplateService templateService;
+    @Mock
+    private CompressionService compressionService;
+    @Mock
+    private HeartbeatService heartbeatService;
+    @Mock
+    private SSEResumeService resumeService;
 
     @Autowired
     private WebApplicationContext context;
     private MockMvc mockMVC;
+    private MockHttpServletResponse httpResponse;
 
     private static void assertSSEJSONEquals(MvcResult result, String expected) throws Exception {
         String actual = result.getResponse().getContentAsString();
@@ -87,6 +127,10 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         assertJSONEquals(actualStripped, expectedStripped);
     }
 
+    private static String resultOf(CompletableFuture<byte[]> response) throws Exception {
+        return new String(response.get(), StandardCharsets.UTF_8);
+    }
+
     private static String metric(HttpStatus httpStatus) {
         return HTTPQueryController.STATUS_PREFIX + httpStatus;
     }
@@ -110,8 +154,11 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
     public void setup() {
         openMocks(this);
         mockMVC = MockMvcBuilders.webAppContextSetup(context).build();
+        httpResponse = new MockHttpServletResponse();
         doReturn(true).when(statusService).isBackendStatusOK();
-        doReturn(false).when(statusService).queryLimitReached();
+        doAnswer(invocation -> completedFuture(new Permit(() -> { }))).when(admissionService).queueSynchronous(any());
+        doAnswer(invocation -> new Permit(() -> { })).when(admissionService).admitAsynchronous(any());
+        doAnswer(invocation -> invocation.getArgument(0)).when(handlerService).attachHandler(anyString(), any(), any(), any());
 
         mockValidBQLResult(bqlService, getQuery(), getBQLQuery());
     }
@@ -119,20 +166,61 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
     @Test
     public void testSubmitHTTPQueryWithBackendDown() throws Exception {
         doReturn(false).when(statusService).isBackendStatusOK();
-        CompletableFuture<String> response = controller.submitHTTPQuery(getBQLQuery());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
         String expected = "{'records':[],'meta':{'errors':[{'error':'Service temporarily unavailable'," +
                                                            "'resolutions':['Please try again later']}]}}";
-        assertJSONEquals(response.get(), expected);
+        assertJSONEquals(resultOf(response), expected);
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.SERVICE_UNAVAILABLE), 1L);
     }
 
     @Test
     public void testSubmitHTTPQueryWithoutWindow() throws Exception {
-        CompletableFuture<String> response = controller.submitHTTPQuery(getBQLQuery());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
         ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
-        verify(handlerService).addHandler(anyString(), argument.capture());
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
         argument.getValue().send(new PubSubMessage("", "bar"));
-        Assert.assertEquals(response.get(), "bar");
+        Assert.assertEquals(resultOf(response), "bar");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryAsCBOR() throws Exception {
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), ResultEncoding.CBOR_VALUE, null, null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "{\"records\":[]}"));
+        Assert.assertEquals(response.get(), ResultEncoding.CBOR.encode("{\"records\":[]}".getBytes(StandardCharsets.UTF_8)));
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryNegotiatingCBOR() throws Exception {
+        doReturn(false).when(statusService).isBackendStatusOK();
+        MvcResult result = mockMVC.perform(post("/http-query").contentType(MediaType.TEXT_PLAIN)
+                                                              .accept(ResultEncoding.CBOR.getMediaType())
+                                                              .content(getBQLQuery()))
+                                  .andReturn();
+        result = mockMVC.perform(asyncDispatch(result)).andReturn();
+        Assert.assertTrue(result.getResponse().getContentType().startsWith(ResultEncoding.CBOR_VALUE));
+        Assert.assertEquals(result.getResponse().getContentAsByteArray(), ResultEncoding.CBOR.encode(QueryError.SERVICE_UNAVAILABLE));
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.SERVICE_UNAVAILABLE), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryDefaultingToJSON() throws Exception {
+        doReturn(false).when(statusService).isBackendStatusOK();
+        MvcResult result = mockMVC.perform(post("/http-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        result = mockMVC.perform(asyncDispatch(result)).andReturn();
+        Assert.assertTrue(result.getResponse().getContentType().startsWith(MediaType.APPLICATION_JSON_VALUE));
+        assertJSONEquals(result.getResponse().getContentAsString(), QueryError.SERVICE_UNAVAILABLE.toString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.SERVICE_UNAVAILABLE), 1L);
+    }
+
+    @Test
+    public void testCachingHTTPQueryResultsPerEncoding() throws Exception {
+        doReturn(true).when(resultCacheService).isEnabled();
+        controller.submitHTTPQuery(getBQLQuery(), ResultEncoding.CBOR_VALUE, null, null, null, httpResponse);
+        verify(resultCacheService).get(ResultEncoding.CBOR + ":" + getBQLQuery());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
     }
 
@@ -141,39 +229,126 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         Query query = getQueryWithWindow(new Window(1, Window.Unit.RECORD));
         mockValidBQLResult(bqlService, query, null);
 
-        CompletableFuture<String> response = controller.submitHTTPQuery("query");
-        assertJSONEquals(response.get(), QueryError.UNSUPPORTED_QUERY.toString());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery("query", null, null, null, null, httpResponse);
+        assertJSONEquals(resultOf(response), QueryError.UNSUPPORTED_QUERY.toString());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
     }
 
     @Test
     public void testSubmitHTTPQueryWhenTooManyQueries() throws Exception {
-        doReturn(true).when(statusService).queryLimitReached();
-        CompletableFuture<String> response = controller.submitHTTPQuery(getBQLQuery());
+        doReturn(completedFuture(null)).when(admissionService).queueSynchronous(any());
+        doReturn(7L).when(admissionService).getSynchronousRetryAfter();
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
         String expected = "{'records':[],'meta':{'errors':[{'error':'Too many concurrent queries in the system','resolutions':['Please try again later']}]}}";
-        assertJSONEquals(response.get(), expected);
+        assertJSONEquals(resultOf(response), expected);
+        Assert.assertEquals(httpResponse.getStatus(), HttpStatus.TOO_MANY_REQUESTS.value());
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.RETRY_AFTER), "7");
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.TOO_MANY_REQUESTS), 1L);
     }
 
+    @Test
+    public void testSubmittingQueriesAsAPrincipal() throws Exception {
+        Principal principal = () -> "user";
+        doReturn(null).when(admissionService).admitAsynchronous(any());
+        controller.submitHTTPQuery(getBQLQuery(), null, null, null, principal, httpResponse);
+        controller.submitAsyncQuery(getBQLQuery(), principal).get();
+        verify(admissionService).queueSynchronous(principal);
+        verify(admissionService).admitAsynchronous(principal);
+        assertMetricsEqual(controller, 2, of(metric(HttpStatus.CREATED), 1), of(metric(HttpStatus.TOO_MANY_REQUESTS), 1));
+    }
+
+    @Test
+    public void testSubmitHTTPQueryAttachedToAnIdenticalQuery() throws Exception {
+        doReturn("other").when(handlerService).attachHandler(anyString(), any(), any(), any());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        verify(queryService, never()).submit(anyString(), any(), anyString());
+        argument.getValue().send(new PubSubMessage("other", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryAfterWaiting() throws Exception {
+        CompletableFuture<Permit> permit = new CompletableFuture<>();
+        doReturn(permit).when(admissionService).queueSynchronous(any());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        Assert.assertFalse(response.isDone());
+        verifyNoInteractions(handlerService, queryService);
+
+        permit.complete(new Permit(() -> { }));
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryWithDeadline() throws Exception {
+        controller.submitHTTPQuery(getBQLQuery(), null, null, 60000L, null, httpResponse);
+        ArgumentCaptor<String> id = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(id.capture(), argument.capture(), any(Query.class), anyString());
+        ArgumentCaptor<Long> timeout = ArgumentCaptor.forClass(Long.class);
+        verify(handlerService).expireAfter(eq(id.getValue()), eq(argument.getValue()), timeout.capture());
+        Assert.assertTrue(timeout.getValue() > 0L && timeout.getValue() <= 60000L);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryWithoutDeadline() throws Exception {
+        controller.submitHTTPQuery(getBQLQuery(), null, null, 0L, null, httpResponse);
+        verify(handlerService).attachHandler(anyString(), any(), any(Query.class), anyString());
+        verify(handlerService, never()).expireAfter(anyString(), any(), anyLong());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryWithDeadlineHeader() throws Exception {
+        mockMVC.perform(post("/http-query").contentType(MediaType.TEXT_PLAIN).header("bullet-deadline-ms", "5000")
+                                           .content(getBQLQuery())).andReturn();
+        ArgumentCaptor<Long> timeout = ArgumentCaptor.forClass(Long.class);
+        verify(handlerService).expireAfter(anyString(), any(), timeout.capture());
+        Assert.assertTrue(timeout.getValue() > 0L && timeout.getValue() <= 5000L);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryPastDeadlineAfterWaiting() throws Exception {
+        CompletableFuture<Permit> permit = new CompletableFuture<>();
+        doReturn(permit).when(admissionService).queueSynchronous(any());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, 1L, null, httpResponse);
+        Thread.sleep(10L);
+
+        AtomicInteger released = new AtomicInteger();
+        permit.complete(new Permit(released::incrementAndGet));
+        assertJSONEquals(resultOf(response), QueryError.QUERY_TIMEOUT.toString());
+        Assert.assertEquals(released.get(), 1);
+        verifyNoInteractions(handlerService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
+    }
+
     @Test
     public void testSubmitInvalidHTTPQuery() throws Exception {
         mockInvalidBQLResult(bqlService, BulletError.makeError("foo", "bar"));
-        CompletableFuture<String> response = controller.submitHTTPQuery("windowed query");
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery("windowed query", null, null, null, null, httpResponse);
         String expected = "{'records':[],'meta':{'errors':[{'error':'foo', 'resolutions': ['bar']}]}}";
-        assertJSONEquals(response.get(), expected);
+        assertJSONEquals(resultOf(response), expected);
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
     }
 
     @Test
     public void testSubmitHTTPQuery() throws Exception {
-        CompletableFuture<String> response = controller.submitHTTPQuery(getBQLQuery());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
         ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
         ArgumentCaptor<String> bqlCaptor = ArgumentCaptor.forClass(String.class);
         ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
-        verify(handlerService).addHandler(anyString(), argument.capture());
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
         verify(queryService).submit(anyString(), queryCaptor.capture(), bqlCaptor.capture());
         argument.getValue().send(new PubSubMessage("", "bar"));
-        Assert.assertEquals(response.get(), "bar");
+        Assert.assertEquals(resultOf(response), "bar");
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
         assertEqualsQuery(queryCaptor.getValue());
         assertEqualsBQL(bqlCaptor.getValue());
@@ -191,10 +366,13 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
 
     @Test
     public void testSubmitSSEQueryWhenTooManyQueries() throws Exception {
-        doReturn(true).when(statusService).queryLimitReached();
+        doReturn(completedFuture(null)).when(admissionService).queueSynchronous(any());
+        doReturn(3L).when(admissionService).getSynchronousRetryAfter();
         MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
         String expected = "data:{'records':[],'meta':{'errors':[{'error':'Too many concurrent queries in the system','resolutions':['Please try again later']}]}}\n\n";
         assertSSEJSONEquals(result, expected);
+        Assert.assertEquals(result.getResponse().getStatus(), HttpStatus.TOO_MANY_REQUESTS.value());
+        Assert.assertEquals(result.getResponse().getHeader(HttpHeaders.RETRY_AFTER), "3");
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.TOO_MANY_REQUESTS), 1L);
     }
 
@@ -204,14 +382,40 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content("bad query")).andReturn();
         String expected = "data:{'records':[],'meta':{'errors':[{'error':'foo', 'resolutions': ['bar']}]}}\n\n";
         assertSSEJSONEquals(result, expected);
+        // Rejected before it is admitted
+        verify(admissionService, never()).queueSynchronous(any());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
     }
 
+    @Test
+    public void testSubmitSSEQueryFailingToBeAdmitted() throws Exception {
+        CompletableFuture<Permit> queued = new CompletableFuture<>();
+        doReturn(queued).when(admissionService).queueSynchronous(any());
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        queued.completeExceptionally(new RuntimeException("Testing"));
+        assertSSEJSONEquals(result, "data:" + QueryError.SERVICE_UNAVAILABLE + "\n\n");
+        verify(queryService, never()).submit(anyString(), any(), anyString());
+        verify(handlerService).leave(anyString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryFailingWhileSubmitting() throws Exception {
+        AtomicInteger released = new AtomicInteger();
+        doReturn(completedFuture(new Permit(released::incrementAndGet))).when(admissionService).queueSynchronous(any());
+        doThrow(new RuntimeException("Testing")).when(handlerService).attachHandler(anyString(), any(), any(), any());
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        assertSSEJSONEquals(result, "data:" + QueryError.SERVICE_UNAVAILABLE + "\n\n");
+        Assert.assertEquals(released.get(), 1);
+        verify(handlerService).leave(anyString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
+    }
+
     @Test
     public void testSubmitSSEQuery() throws Exception {
         MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
         ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
-        verify(handlerService).addHandler(anyString(), argument.capture());
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
         argument.getValue().send(new PubSubMessage("", "bar"));
         Assert.assertEquals(result.getResponse().getContentAsString(), "data:bar\n\n");
         argument.getValue().send(new PubSubMessage("", "baz"));
@@ -219,10 +423,208 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
     }
 
+    @Test
+    public void testSubmitSSEQuerySendsHeartbeats() throws Exception {
+        mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        ArgumentCaptor<SSEQueryHandler> registered = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(heartbeatService).register(registered.capture());
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        Assert.assertSame(registered.getValue(), argument.getValue());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryOfClientGoneWhileQueued() throws Exception {
+        CompletableFuture<Permit> queued = new CompletableFuture<>();
+        doReturn(queued).when(admissionService).queueSynchronous(any());
+        mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(heartbeatService).register(argument.capture());
+        argument.getValue().complete();
+
+        AtomicInteger released = new AtomicInteger();
+        queued.complete(new Permit(released::incrementAndGet));
+        verify(queryService, never()).submit(anyString(), any(), anyString());
+        Assert.assertEquals(released.get(), 1);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 0L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryOfClientGoneWhileSubmitting() throws Exception {
+        doAnswer(invocation -> {
+            invocation.getArgument(1, SSEQueryHandler.class).complete();
+            return invocation.getArgument(0);
+        }).when(handlerService).attachHandler(anyString(), any(), any(), any());
+        mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        ArgumentCaptor<String> id = ArgumentCaptor.forClass(String.class);
+        verify(handlerService).attachHandler(id.capture(), any(SSEQueryHandler.class), any(Query.class), anyString());
+        verify(handlerService).leave(id.getValue());
+        verify(queryService).submit(eq(id.getValue()), any(Query.class), anyString());
+        // Left before it was submitted, so the query is killed again
+        verify(queryService).kill(id.getValue());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryOfClientGoneWhileSubmittingIsKilledOnce() throws Exception {
+        doAnswer(invocation -> {
+            invocation.getArgument(1, SSEQueryHandler.class).complete();
+            return invocation.getArgument(0);
+        }).when(handlerService).attachHandler(anyString(), any(), any(), any());
+        doReturn(true).when(handlerService).leave(anyString());
+        mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        verify(handlerService).leave(anyString());
+        verify(queryService, never()).kill(anyString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryKeepsItResumable() throws Exception {
+        doReturn(16).when(resumeService).getBufferSize();
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).content(getBQLQuery())).andReturn();
+        ArgumentCaptor<String> id = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(handlerService).attachHandler(id.capture(), argument.capture(), any(Query.class), anyString());
+        verify(resumeService).register(eq(id.getValue()), eq(argument.getValue()), any());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(result.getResponse().getContentAsString(), "id:" + id.getValue() + ":1\ndata:bar\n\n");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testResumingSSEQuery() throws Exception {
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(handler).when(resumeService).resume(eq("foo:3"), any(), any(), any());
+        mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).header("Last-Event-ID", "foo:3")
+                                          .content(getBQLQuery())).andReturn();
+        verify(heartbeatService).register(handler);
+        verify(admissionService, never()).queueSynchronous(any());
+        verify(resumeService, never()).register(anyString(), any(), any());
+        verifyNoInteractions(bqlService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.OK), 1L);
+    }
+
+    @Test
+    public void testResumingSSETemplateQuery() throws Exception {
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(getBQLQuery()).when(templateService).bind(any());
+        doReturn(handler).when(resumeService).resume(eq("foo:3"), any(), any(), any());
+        mockMVC.perform(post("/sse-query").contentType(MediaType.APPLICATION_JSON).header("Last-Event-ID", "foo:3")
+                                          .content("{\"id\": \"foo\", \"parameters\": {\"a\": 1}}")).andReturn();
+        verify(heartbeatService).register(handler);
+        verifyNoInteractions(bqlService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.OK), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryAgainWhenItCannotBeResumed() throws Exception {
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).header("Last-Event-ID", "foo:3")
+                                                             .content(getBQLQuery())).andReturn();
+        verify(resumeService).resume(eq("foo:3"), any(), any(), any());
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(result.getResponse().getContentAsString(), "data:bar\n\n");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSETemplateQuery() throws Exception {
+        doReturn(getBQLQuery()).when(templateService).bind(any());
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.APPLICATION_JSON)
+                                                             .content("{\"id\": \"foo\", \"parameters\": {\"a\": 1}}"))
+                                  .andReturn();
+        ArgumentCaptor<TemplateRequest> request = ArgumentCaptor.forClass(TemplateRequest.class);
+        verify(templateService).bind(request.capture());
+        Assert.assertEquals(request.getValue().getId(), "foo");
+        Assert.assertEquals(request.getValue().getParameters().get("a"), 1);
+        verify(bqlService).toQuery(getBQLQuery());
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(result.getResponse().getContentAsString(), "data:bar\n\n");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryCompressed() throws Exception {
+        doReturn(true).when(compressionService).isEnabled();
+        doReturn(CompressionService.Coding.GZIP).when(compressionService).negotiate("gzip");
+        doReturn(new byte[] { 1, 2 }).when(compressionService).compress(aryEq("bar".getBytes(StandardCharsets.UTF_8)), eq(CompressionService.Coding.GZIP));
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, "gzip", null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(response.get(), new byte[] { 1, 2 });
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.CONTENT_ENCODING), "gzip");
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.VARY), HttpHeaders.ACCEPT_ENCODING);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryBelowCompressionThreshold() throws Exception {
+        doReturn(true).when(compressionService).isEnabled();
+        doReturn(CompressionService.Coding.GZIP).when(compressionService).negotiate("gzip");
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, "gzip", null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        Assert.assertNull(httpResponse.getHeader(HttpHeaders.CONTENT_ENCODING));
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.VARY), HttpHeaders.ACCEPT_ENCODING);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryNotAcceptingCompression() throws Exception {
+        doReturn(true).when(compressionService).isEnabled();
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, "identity", null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        verify(compressionService, never()).compress(any(), any());
+        Assert.assertNull(httpResponse.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSEQueryCompressed() throws Exception {
+        doReturn(true).when(compressionService).isEnabled();
+        doReturn(CompressionService.Coding.GZIP).when(compressionService).negotiate("gzip");
+        doReturn(new CompressionService(true, 6, 0, null).newStream(CompressionService.Coding.GZIP)).when(compressionService).newStream(CompressionService.Coding.GZIP);
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.TEXT_PLAIN).header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                                                             .content(getBQLQuery())).andReturn();
+        ArgumentCaptor<SSEQueryHandler> argument = ArgumentCaptor.forClass(SSEQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        argument.getValue().complete();
+        Assert.assertEquals(result.getResponse().getHeader(HttpHeaders.CONTENT_ENCODING), "gzip");
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(result.getResponse().getContentAsByteArray()));
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            decompressed.write(buffer, 0, length);
+        }
+        Assert.assertEquals(new String(decompressed.toByteArray(), StandardCharsets.UTF_8), "data:bar\n\n");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitSSETemplateQueryWithBadBinding() throws Exception {
+        doThrow(new IllegalArgumentException("foo")).when(templateService).bind(any());
+        MvcResult result = mockMVC.perform(post("/sse-query").contentType(MediaType.APPLICATION_JSON).content("{}")).andReturn();
+        assertSSEJSONEquals(result, "data:" + new QueryError("foo", TemplateService.RESOLUTION));
+        verifyNoInteractions(admissionService, handlerService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
     @Test
     public void testSubmitAsyncQueryWithBackendDown() throws Exception {
         doReturn(false).when(statusService).isBackendStatusOK();
-        ResponseEntity<Object> response = controller.submitAsyncQuery("query").get();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("query", null).get();
         Assert.assertNotNull(response);
         Assert.assertEquals(response.getStatusCode(), HttpStatus.SERVICE_UNAVAILABLE);
         QueryError queryError = (QueryError) response.getBody();
@@ -235,7 +637,7 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
     public void testSubmitAsyncQueryWhenCannotPublish() throws Exception {
         doReturn(CompletableFuture.completedFuture(null)).when(queryService).submit(anyString(), any(), anyString());
 
-        ResponseEntity<Object> response = controller.submitAsyncQuery("query").get();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("query", null).get();
         Assert.assertNotNull(response);
         Assert.assertEquals(response.getStatusCode(), HttpStatus.INTERNAL_SERVER_ERROR);
         QueryError queryError = (QueryError) response.getBody();
@@ -243,8 +645,10 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
 
         ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
         ArgumentCaptor<String> bqlCaptor = ArgumentCaptor.forClass(String.class);
-        verify(queryService).submit(anyString(), queryCaptor.capture(), bqlCaptor.capture());
-        verifyNoInteractions(handlerService);
+        ArgumentCaptor<String> idCaptor = ArgumentCaptor.forClass(String.class);
+        verify(queryService).submit(idCaptor.capture(), queryCaptor.capture(), bqlCaptor.capture());
+        verify(handlerService).addHandler(eq(idCaptor.getValue()), any(AsyncQueryHandler.class), any(Query.class));
+        verify(handlerService).failHandler(idCaptor.getValue());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
         assertEqualsQuery(queryCaptor.getValue());
         assertEqualsBQL(bqlCaptor.getValue());
@@ -256,7 +660,7 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         fail.completeExceptionally(new RuntimeException("Testing"));
         doReturn(fail).when(queryService).submit(anyString(), any(), anyString());
 
-        ResponseEntity<Object> response = controller.submitAsyncQuery("query").get();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("query", null).get();
         Assert.assertNotNull(response);
         Assert.assertEquals(response.getStatusCode(), HttpStatus.INTERNAL_SERVER_ERROR);
         QueryError queryError = (QueryError) response.getBody();
@@ -264,8 +668,10 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
 
         ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
         ArgumentCaptor<String> bqlCaptor = ArgumentCaptor.forClass(String.class);
-        verify(queryService).submit(anyString(), queryCaptor.capture(), bqlCaptor.capture());
-        verifyNoInteractions(handlerService);
+        ArgumentCaptor<String> idCaptor = ArgumentCaptor.forClass(String.class);
+        verify(queryService).submit(idCaptor.capture(), queryCaptor.capture(), bqlCaptor.capture());
+        verify(handlerService).addHandler(eq(idCaptor.getValue()), any(AsyncQueryHandler.class), any(Query.class));
+        verify(handlerService).failHandler(idCaptor.getValue());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
         assertEqualsQuery(queryCaptor.getValue());
         assertEqualsBQL(bqlCaptor.getValue());
@@ -274,7 +680,7 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
     @Test
     public void testSubmitInvalidAsyncQuery() throws Exception {
         mockInvalidBQLResult(bqlService, BulletError.makeError("foo", "bar"));
-        ResponseEntity<Object> response = controller.submitAsyncQuery("invalid").get();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("invalid", null).get();
 
         Assert.assertNotNull(response);
         Assert.assertEquals(response.getStatusCode(), HttpStatus.BAD_REQUEST);
@@ -294,7 +700,7 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         }).when(queryService).submit(anyString(), any(Query.class), anyString());
 
         long start = System.currentTimeMillis();
-        ResponseEntity<Object> response = controller.submitAsyncQuery("query").get();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("query", null).get();
         long end = System.currentTimeMillis();
 
         Assert.assertNotNull(response);
@@ -308,7 +714,8 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         assertEqualsBQL(bqlCaptor.getValue());
 
         Assert.assertTrue(queryResponse.getCreateTime() >= start && queryResponse.getCreateTime() <= end);
-        verifyNoInteractions(handlerService);
+        verify(handlerService).addHandler(eq(queryResponse.getId()), any(AsyncQueryHandler.class), any(Query.class));
+        verify(handlerService, never()).failHandler(anyString());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
     }
 
@@ -319,9 +726,123 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         Assert.assertNotNull(response);
         Assert.assertEquals(response.getStatusCode(), HttpStatus.OK);
         Assert.assertNull((response.getBody()));
+        verify(handlerService).removeHandler("id");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.OK), 1L);
+    }
+
+    @Test
+    public void testDeletingAsyncQueryCompletesItsHandler() throws Exception {
+        AsyncQueryHandler handler = new AsyncQueryHandler();
+        doReturn(handler).when(handlerService).removeHandler("id");
+        doReturn(CompletableFuture.completedFuture(null)).when(queryService).kill(anyString());
+        ResponseEntity<Object> response = controller.deleteAsyncQuery("id").get();
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.OK);
+        Assert.assertTrue(handler.isComplete());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.OK), 1L);
     }
 
+    @Test
+    public void testSubmitAsyncQueryWhenTooManyQueries() throws Exception {
+        doReturn(null).when(admissionService).admitAsynchronous(any());
+        doReturn(5L).when(admissionService).getAsynchronousRetryAfter();
+        ResponseEntity<Object> response = controller.submitAsyncQuery("query", null).get();
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.TOO_MANY_REQUESTS);
+        Assert.assertEquals(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER), "5");
+        assertJSONEquals(response.getBody().toString(), QueryError.TOO_MANY_QUERIES.toString());
+        verifyNoInteractions(queryService, handlerService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.TOO_MANY_REQUESTS), 1L);
+    }
+
+    @Test
+    public void testSubmitInvalidAsyncQueryReleasesPermit() throws Exception {
+        AtomicInteger released = new AtomicInteger();
+        doReturn(new Permit(released::incrementAndGet)).when(admissionService).admitAsynchronous(any());
+        mockInvalidBQLResult(bqlService, BulletError.makeError("foo", "bar"));
+        controller.submitAsyncQuery("invalid", null).get();
+        Assert.assertEquals(released.get(), 1);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
+    @Test
+    public void testSubmitAsyncQueryHoldsPermitTillDone() throws Exception {
+        AtomicInteger released = new AtomicInteger();
+        doReturn(new Permit(released::incrementAndGet)).when(admissionService).admitAsynchronous(any());
+        doAnswer(i -> CompletableFuture.completedFuture(new PubSubMessage(i.getArgument(0, String.class), "")))
+            .when(queryService).submit(anyString(), any(Query.class), anyString());
+        controller.submitAsyncQuery("query", null).get();
+
+        ArgumentCaptor<AsyncQueryHandler> argument = ArgumentCaptor.forClass(AsyncQueryHandler.class);
+        verify(handlerService).addHandler(anyString(), argument.capture(), any(Query.class));
+        Assert.assertEquals(released.get(), 0);
+        argument.getValue().complete();
+        Assert.assertEquals(released.get(), 1);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitInvalidHTTPQueryTakesNoPermit() throws Exception {
+        mockInvalidBQLResult(bqlService, BulletError.makeError("foo", "bar"));
+        controller.submitHTTPQuery("bad query", null, null, null, null, httpResponse).get();
+        verify(admissionService, never()).queueSynchronous(any());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryFromCache() throws Exception {
+        doReturn(new ResultCacheService.Entry("bar".getBytes(StandardCharsets.UTF_8), System.currentTimeMillis() - 2500L, 100L))
+            .when(resultCacheService).get(getBQLQuery());
+        doReturn(false).when(statusService).isBackendStatusOK();
+        doReturn(5000L).when(resultCacheService).getTtlMS();
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        Assert.assertEquals(resultOf(response), "bar");
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.AGE), "2");
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.CACHE_CONTROL), "max-age=5");
+        verifyNoInteractions(admissionService, handlerService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.OK), 1L);
+    }
+
+    @Test
+    public void testCachingHTTPQueryResults() throws Exception {
+        doReturn(true).when(resultCacheService).isEnabled();
+        doReturn(5000L).when(resultCacheService).getTtlMS();
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        verify(resultCacheService).put(eq(getBQLQuery()), aryEq("bar".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.AGE), "0");
+        Assert.assertEquals(httpResponse.getHeader(HttpHeaders.CACHE_CONTROL), "max-age=5");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testNotCachingHTTPQueryErrors() throws Exception {
+        doReturn(true).when(resultCacheService).isEnabled();
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().fail(QueryError.QUERY_TIMEOUT);
+        assertJSONEquals(resultOf(response), QueryError.QUERY_TIMEOUT.toString());
+        verify(resultCacheService, never()).put(anyString(), any());
+        Assert.assertNull(httpResponse.getHeader(HttpHeaders.CACHE_CONTROL));
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPQueryHoldsPermitTillDone() throws Exception {
+        AtomicInteger released = new AtomicInteger();
+        doReturn(completedFuture(new Permit(released::incrementAndGet))).when(admissionService).queueSynchronous(any());
+        CompletableFuture<byte[]> response = controller.submitHTTPQuery(getBQLQuery(), null, null, null, null, httpResponse);
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        Assert.assertEquals(released.get(), 0);
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        Assert.assertEquals(released.get(), 1);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
     @Test
     public void testDeletingAsyncQueryWithBackendDown() throws Exception {
         doReturn(false).when(statusService).isBackendStatusOK();
@@ -343,7 +864,7 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         QueryError queryError = (QueryError) response.getBody();
         assertJSONEquals(queryError.toString(), QueryError.SERVICE_UNAVAILABLE.toString());
         verify(queryService).kill(eq("id"));
-        verifyNoInteractions(handlerService);
+        verify(handlerService).removeHandler("id");
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
     }
 
@@ -359,10 +880,72 @@ public class HTTPQueryControllerTest extends AbstractTestNGSpringContextTests {
         QueryError queryError = (QueryError) response.getBody();
         assertJSONEquals(queryError.toString(), QueryError.SERVICE_UNAVAILABLE.toString());
         verify(queryService).kill(eq("id"));
-        verifyNoInteractions(handlerService);
+        verify(handlerService).removeHandler("id");
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.INTERNAL_SERVER_ERROR), 1L);
     }
 
+    @Test
+    public void testRegisteringTemplate() {
+        TemplateResponse registered = new TemplateResponse("id", "SELECT :a FROM STREAM()", singletonList("a"));
+        doReturn(registered).when(templateService).register("SELECT :a FROM STREAM()");
+        ResponseEntity<Object> response = controller.registerTemplate("SELECT :a FROM STREAM()");
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertSame(response.getBody(), registered);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testRegisteringBadTemplate() {
+        doThrow(new IllegalArgumentException("foo")).when(templateService).register(anyString());
+        ResponseEntity<Object> response = controller.registerTemplate("SELECT : FROM STREAM()");
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.BAD_REQUEST);
+        assertJSONEquals((String) response.getBody(), new QueryError("foo", TemplateService.RESOLUTION).toString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPTemplateQuery() throws Exception {
+        TemplateRequest request = new TemplateRequest("id", singletonMap("a", 1));
+        doReturn(getBQLQuery()).when(templateService).bind(request);
+        CompletableFuture<byte[]> response = controller.submitHTTPTemplateQuery(request, null, null, null, null, httpResponse);
+        verify(bqlService).toQuery(getBQLQuery());
+        ArgumentCaptor<HTTPQueryHandler> argument = ArgumentCaptor.forClass(HTTPQueryHandler.class);
+        verify(handlerService).attachHandler(anyString(), argument.capture(), any(Query.class), anyString());
+        argument.getValue().send(new PubSubMessage("", "bar"));
+        Assert.assertEquals(resultOf(response), "bar");
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitHTTPTemplateQueryWithBadBinding() throws Exception {
+        doThrow(new IllegalArgumentException("foo")).when(templateService).bind(any());
+        CompletableFuture<byte[]> response = controller.submitHTTPTemplateQuery(new TemplateRequest(), null, null, null, null, httpResponse);
+        assertJSONEquals(resultOf(response), new QueryError("foo", TemplateService.RESOLUTION).toString());
+        verifyNoInteractions(bqlService, admissionService, handlerService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
+    @Test
+    public void testSubmitAsyncTemplateQuery() throws Exception {
+        doReturn(getBQLQuery()).when(templateService).bind(any());
+        doAnswer(i -> CompletableFuture.completedFuture(new PubSubMessage(i.getArgument(0, String.class), "")))
+            .when(queryService).submit(anyString(), any(Query.class), anyString());
+        ResponseEntity<Object> response = controller.submitAsyncTemplateQuery(new TemplateRequest(), null).get();
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.CREATED);
+        Assert.assertEquals(((QueryResponse) response.getBody()).getQuery(), getBQLQuery());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+    }
+
+    @Test
+    public void testSubmitAsyncTemplateQueryWithBadBinding() throws Exception {
+        doThrow(new IllegalArgumentException("foo")).when(templateService).bind(any());
+        ResponseEntity<Object> response = controller.submitAsyncTemplateQuery(new TemplateRequest(), null).get();
+        Assert.assertEquals(response.getStatusCode(), HttpStatus.BAD_REQUEST);
+        assertJSONEquals(response.getBody().toString(), new QueryError("foo", TemplateService.RESOLUTION).toString());
+        verifyNoInteractions(admissionService, queryService);
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+    }
+
     @Test
     public void testValidateQueryWithInvalidQuery() {
         BulletError error = BulletError.makeError("foo", "bar");
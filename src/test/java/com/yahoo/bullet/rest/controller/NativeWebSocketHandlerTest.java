@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.controller;
+
+import com.yahoo.bullet.rest.common.NativeWebSocketWriter;
+import com.yahoo.bullet.rest.model.WebSocketRequest;
+import com.yahoo.bullet.rest.model.WebSocketResponse;
+import com.yahoo.bullet.rest.query.QueryError;
+import com.yahoo.bullet.rest.service.FlowControlService;
+import com.yahoo.bullet.rest.service.WebSocketService;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.websocket.Session;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class NativeWebSocketHandlerTest {
+    private WebSocketController webSocketController;
+    private WebSocketService webSocketService;
+    private FlowControlService flowControlService;
+    private WebSocketSession session;
+    private NativeWebSocketHandler handler;
+
+    @BeforeMethod
+    public void setup() {
+        webSocketController = mock(WebSocketController.class);
+        webSocketService = mock(WebSocketService.class);
+        flowControlService = mock(FlowControlService.class);
+        session = mock(WebSocketSession.class);
+        doReturn("session").when(session).getId();
+        handler = new NativeWebSocketHandler(webSocketController, webSocketService, flowControlService, Runnable::run, 5000L);
+    }
+
+    @Test
+    public void testConnecting() {
+        handler.afterConnectionEstablished(session);
+
+        ArgumentCaptor<Runnable> close = ArgumentCaptor.forClass(Runnable.class);
+        verify(flowControlService).open(eq("session"), close.capture());
+        verify(webSocketService).connectNativeSession(eq("session"), any(NativeWebSocketWriter.class));
+    }
+
+    @Test
+    public void testSettingTheSendTimeout() {
+        Session nativeSession = mock(Session.class);
+        Map<String, Object> properties = new HashMap<>();
+        doReturn(properties).when(nativeSession).getUserProperties();
+        StandardWebSocketSession standardSession = mock(StandardWebSocketSession.class);
+        doReturn(nativeSession).when(standardSession).getNativeSession(Session.class);
+        doReturn("session").when(standardSession).getId();
+
+        handler.afterConnectionEstablished(standardSession);
+
+        Assert.assertEquals(properties.get(NativeWebSocketHandler.BLOCKING_SEND_TIMEOUT), 5000L);
+    }
+
+    @Test
+    public void testHandlingRequests() {
+        Principal user = mock(Principal.class);
+        doReturn(user).when(session).getPrincipal();
+        handler.handleTextMessage(session, new TextMessage("{\"type\":\"NEW_QUERY\",\"content\":\"SELECT * FROM STREAM()\","
+                                                           + "\"correlationID\":\"panel-1\",\"unknown\":1}"));
+
+        ArgumentCaptor<WebSocketRequest> captor = ArgumentCaptor.forClass(WebSocketRequest.class);
+        verify(webSocketController).submitWebsocketQuery(captor.capture(), eq("session"), eq(user));
+        Assert.assertEquals(captor.getValue().getType(), WebSocketRequest.Type.NEW_QUERY);
+        Assert.assertEquals(captor.getValue().getContent(), "SELECT * FROM STREAM()");
+        Assert.assertEquals(captor.getValue().getCorrelationID(), "panel-1");
+    }
+
+    @Test
+    public void testFailingBadRequests() {
+        handler.handleTextMessage(session, new TextMessage("{\"type\":\"FOO\"}"));
+        handler.handleTextMessage(session, new TextMessage("{\"content\":\"foo\"}"));
+        handler.handleTextMessage(session, new TextMessage("foo"));
+
+        ArgumentCaptor<WebSocketResponse> captor = ArgumentCaptor.forClass(WebSocketResponse.class);
+        verify(webSocketService, times(3)).sendResponse(eq("session"), captor.capture(), any());
+        for (WebSocketResponse response : captor.getAllValues()) {
+            Assert.assertEquals(response.getType(), WebSocketResponse.Type.FAIL);
+            Assert.assertEquals(response.getContent(), QueryError.INVALID_QUERY.toString());
+        }
+        verify(webSocketController, never()).submitWebsocketQuery(any(), any(), any());
+    }
+
+    @Test
+    public void testDisconnecting() {
+        handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+
+        verify(flowControlService).close("session");
+        verify(webSocketService).disconnectSession("session");
+    }
+}
@@ -10,8 +10,10 @@ import com.yahoo.bullet.query.Query;
 import com.yahoo.bullet.rest.model.WebSocketRequest;
 import com.yahoo.bullet.rest.model.WebSocketResponse;
 import com.yahoo.bullet.rest.query.QueryError;
+import com.yahoo.bullet.rest.service.AdmissionService;
 import com.yahoo.bullet.rest.service.BQLService;
 import com.yahoo.bullet.rest.service.StatusService;
+import com.yahoo.bullet.rest.service.TemplateService;
 import com.yahoo.bullet.rest.service.WebSocketService;
 import org.mockito.ArgumentCaptor;
 import org.springframework.http.HttpStatus;
@@ -20,6 +22,10 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static com.yahoo.bullet.TestHelpers.assertJSONEquals;
 import static com.yahoo.bullet.TestHelpers.assertNoMetric;
 import static com.yahoo.bullet.TestHelpers.assertOnlyMetricEquals;
@@ -40,7 +46,9 @@ public class WebSocketControllerTest {
     private WebSocketController controller;
     private WebSocketService webSocketService;
     private StatusService statusService;
+    private AdmissionService admissionService;
     private BQLService bqlService;
+    private TemplateService templateService;
     private MetricPublisher metricPublisher;
 
     private static SimpMessageHeaderAccessor getMockMessageAccessor(String sessionID) {
@@ -64,15 +72,18 @@ public class WebSocketControllerTest {
     public void setup() {
         statusService = mock(StatusService.class);
         doReturn(true).when(statusService).isBackendStatusOK();
-        doReturn(false).when(statusService).queryLimitReached();
+        admissionService = new AdmissionService(500, 500);
 
         webSocketService = mock(WebSocketService.class);
         bqlService = new BQLService(getQueryBuilder());
+        templateService = new TemplateService(10);
         metricPublisher = mock(MetricPublisher.class);
-        controller = new WebSocketController(webSocketService, bqlService, statusService, metricPublisher);
+        controller = new WebSocketController(webSocketService, bqlService, statusService, admissionService, templateService,
+                                             metricPublisher);
     }
 
     @Test
+    @SuppressWarnings("unchecked")
     public void testWebSocketQueryWithBackendDown() {
         doReturn(false).when(statusService).isBackendStatusOK();
 
@@ -82,16 +93,30 @@ public class WebSocketControllerTest {
 
         controller.submitWebsocketQuery(request, headerAccessor);
 
-        ArgumentCaptor<WebSocketResponse> argument = ArgumentCaptor.forClass(WebSocketResponse.class);
-        verify(webSocketService).sendResponse(eq(sessionID), argument.capture(), any());
+        ArgumentCaptor<List<WebSocketResponse>> argument = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq(sessionID), anyString(), argument.capture(), any());
 
-        WebSocketResponse response = argument.getValue();
+        WebSocketResponse response = argument.getValue().get(0);
         Assert.assertEquals(response.getType(), WebSocketResponse.Type.FAIL);
         String expected = QueryError.SERVICE_UNAVAILABLE.toString();
         assertJSONEquals(response.getContent(), expected);
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.SERVICE_UNAVAILABLE), 1L);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResponsesAreTaggedWithCorrelationID() {
+        doReturn(false).when(statusService).isBackendStatusOK();
+
+        WebSocketRequest request = getMockRequest(WebSocketRequest.Type.NEW_QUERY, "{}");
+        request.setCorrelationID("panel-1");
+        controller.submitWebsocketQuery(request, getMockMessageAccessor("sessionID"));
+
+        ArgumentCaptor<List<SimpMessageHeaderAccessor>> argument = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq("sessionID"), anyString(), any(), argument.capture());
+        Assert.assertEquals(argument.getValue().get(0).getFirstNativeHeader(WebSocketService.CORRELATION_ID_HEADER), "panel-1");
+    }
+
     @Test
     public void testSubmitNewQuery() {
         WebSocketRequest request = getMockRequest(WebSocketRequest.Type.NEW_QUERY, getBQLQuery());
@@ -109,9 +134,52 @@ public class WebSocketControllerTest {
         assertEqualsBQL(bqlCaptor.getValue());
     }
 
+    @Test
+    public void testSubmitNewTemplateQuery() {
+        String id = templateService.register("SELECT * FROM STREAM(:duration, TIME) LIMIT :limit").getId();
+        WebSocketRequest request = getMockRequest(WebSocketRequest.Type.NEW_TEMPLATE_QUERY, id);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("duration", 1000);
+        parameters.put("limit", 1);
+        request.setParameters(parameters);
+        String sessionID = "sessionID";
+        SimpMessageHeaderAccessor headerAccessor = getMockMessageAccessor(sessionID);
+
+        controller.submitWebsocketQuery(request, headerAccessor);
+        ArgumentCaptor<Query> argument = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<String> bqlCaptor = ArgumentCaptor.forClass(String.class);
+
+        verify(webSocketService).submitQuery(anyString(), eq(sessionID), argument.capture(), bqlCaptor.capture(), any());
+
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.CREATED), 1L);
+        assertEqualsQuery(argument.getValue());
+        assertEqualsBQL(bqlCaptor.getValue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSubmitNewTemplateQueryWithBadBinding() {
+        String id = templateService.register("SELECT * FROM STREAM(:duration, TIME) LIMIT 1").getId();
+        WebSocketRequest request = getMockRequest(WebSocketRequest.Type.NEW_TEMPLATE_QUERY, id);
+        String sessionID = "sessionID";
+        SimpMessageHeaderAccessor headerAccessor = getMockMessageAccessor(sessionID);
+
+        controller.submitWebsocketQuery(request, headerAccessor);
+
+        ArgumentCaptor<List<WebSocketResponse>> argument = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq(sessionID), anyString(), argument.capture(), any());
+        verify(webSocketService, never()).submitQuery(any(), any(), any(), any(), any());
+        Assert.assertEquals(argument.getValue().get(0).getType(), WebSocketResponse.Type.FAIL);
+        assertJSONEquals(argument.getValue().get(0).getContent(),
+                         new QueryError("Missing a value for the parameter: duration", TemplateService.RESOLUTION).toString());
+        assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+        Assert.assertEquals(admissionService.getSynchronousCount(), 0);
+    }
+
     @Test
     public void testSubmitQueryTooManyQueries() {
-        doReturn(true).when(statusService).queryLimitReached();
+        controller = new WebSocketController(webSocketService, bqlService, statusService, new AdmissionService(0, 0),
+                                             templateService, metricPublisher);
 
         WebSocketRequest request = getMockRequest(WebSocketRequest.Type.NEW_QUERY, getBQLQuery());
         String sessionID = "sessionID";
@@ -133,6 +201,7 @@ public class WebSocketControllerTest {
 
         verify(webSocketService, never()).submitQuery(any(), any(), any(), any(), any());
         assertOnlyMetricEquals(controller.getMetricCollector(), metric(HttpStatus.BAD_REQUEST), 1L);
+        Assert.assertEquals(admissionService.getSynchronousCount(), 0);
     }
 
     @Test
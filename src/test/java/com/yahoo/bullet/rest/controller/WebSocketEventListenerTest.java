@@ -9,6 +9,10 @@ import com.yahoo.bullet.rest.service.WebSocketService;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 import org.testng.annotations.Test;
 
@@ -35,6 +39,35 @@ public class WebSocketEventListenerTest {
 
         webSocketEventListener.handleWebSocketDisconnectListener(event);
 
-        verify(webSocketService).killQuery(eq("foo"), eq(null));
+        verify(webSocketService).disconnectSession(eq("foo"));
+    }
+
+    @Test
+    public void testConnectWithWireFormat() {
+        WebSocketService webSocketService = mock(WebSocketService.class);
+        WebSocketEventListener webSocketEventListener = new WebSocketEventListener(webSocketService);
+
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.CONNECT);
+        accessor.setSessionId("foo");
+        accessor.setNativeHeader(WebSocketService.WIRE_FORMAT_HEADER, WebSocketService.RAW_WIRE_FORMAT);
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+
+        webSocketEventListener.handleWebSocketConnectListener(new SessionConnectEvent(this, message));
+
+        verify(webSocketService).connectSession(eq("foo"), eq(WebSocketService.RAW_WIRE_FORMAT));
+    }
+
+    @Test
+    public void testConnectWithoutWireFormat() {
+        WebSocketService webSocketService = mock(WebSocketService.class);
+        WebSocketEventListener webSocketEventListener = new WebSocketEventListener(webSocketService);
+
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.CONNECT);
+        accessor.setSessionId("foo");
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+
+        webSocketEventListener.handleWebSocketConnectListener(new SessionConnectEvent(this, message));
+
+        verify(webSocketService).connectSession(eq("foo"), eq(null));
     }
 }
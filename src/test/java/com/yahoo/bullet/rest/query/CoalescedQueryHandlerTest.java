@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.query;
+
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.EncodedMessage;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CoalescedQueryHandlerTest {
+    private Consumer<CoalescedQueryHandler> listener;
+    private CoalescedQueryHandler handler;
+    private QueryHandler handlerA;
+    private QueryHandler handlerB;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        listener = mock(Consumer.class);
+        handler = new CoalescedQueryHandler("id", "key", listener);
+        handlerA = mock(QueryHandler.class);
+        handlerB = mock(QueryHandler.class);
+        Assert.assertTrue(handler.attach("A", handlerA));
+        Assert.assertTrue(handler.attach("B", handlerB));
+    }
+
+    @Test
+    public void testGetters() {
+        Assert.assertEquals(handler.getId(), "id");
+        Assert.assertEquals(handler.getKey(), "key");
+        Assert.assertEquals(handler.getClientIDs(), Arrays.asList("A", "B"));
+    }
+
+    @Test
+    public void testSendingToAllAttached() {
+        PubSubMessage message = new PubSubMessage("id", "foo");
+        handler.send(message);
+        handler.send(message);
+        ArgumentCaptor<PubSubMessage> sentToA = ArgumentCaptor.forClass(PubSubMessage.class);
+        ArgumentCaptor<PubSubMessage> sentToB = ArgumentCaptor.forClass(PubSubMessage.class);
+        verify(handlerA, times(2)).send(sentToA.capture());
+        verify(handlerB, times(2)).send(sentToB.capture());
+        // Each result is wrapped once and shared so that it is encoded once
+        Assert.assertTrue(sentToA.getValue() instanceof EncodedMessage);
+        Assert.assertSame(sentToA.getValue(), sentToB.getValue());
+        Assert.assertEquals(sentToA.getValue().getContentAsString(), "foo");
+        verify(listener, never()).accept(handler);
+        Assert.assertFalse(handler.attach("C", mock(QueryHandler.class)));
+        Assert.assertFalse(handler.isComplete());
+
+        handler.complete();
+        handler.complete();
+        verify(handlerA).complete();
+        verify(handlerB).complete();
+        verify(listener).accept(handler);
+        Assert.assertTrue(handler.isComplete());
+    }
+
+    @Test
+    public void testAcknowledgingAllAttached() {
+        handler.acknowledge();
+        verify(handlerA).acknowledge();
+        verify(handlerB).acknowledge();
+        Assert.assertTrue(handler.attach("C", mock(QueryHandler.class)));
+    }
+
+    @Test
+    public void testFailingAllAttached() {
+        handler.fail(QueryError.SERVICE_UNAVAILABLE);
+        handler.fail(QueryError.SERVICE_UNAVAILABLE);
+        verify(handlerA).fail(QueryError.SERVICE_UNAVAILABLE);
+        verify(handlerB).fail(QueryError.SERVICE_UNAVAILABLE);
+        verify(listener).accept(handler);
+        Assert.assertFalse(handler.attach("C", mock(QueryHandler.class)));
+    }
+
+    @Test
+    public void testExpiringAllAttached() {
+        handler.expire();
+        handler.expire();
+        verify(handlerA).expire();
+        verify(handlerB).expire();
+        verify(listener).accept(handler);
+        Assert.assertEquals(handler.getState(), QueryHandler.State.FAILED);
+    }
+
+    @Test
+    public void testDetaching() {
+        Assert.assertFalse(handler.detach("C"));
+        Assert.assertFalse(handler.detach("A"));
+        verify(listener, never()).accept(handler);
+        Assert.assertEquals(handler.getClientIDs(), Collections.singletonList("B"));
+
+        handler.send(new PubSubMessage("id", "foo"));
+        verify(handlerA, never()).send(any());
+        Assert.assertTrue(handler.detach("B"));
+        Assert.assertFalse(handler.detach("B"));
+        Assert.assertTrue(handler.getClientIDs().isEmpty());
+    }
+
+    @Test
+    public void testDoneOnceLastDetaches() {
+        handler.detach("A");
+        Assert.assertTrue(handler.detach("B"));
+        verify(listener).accept(handler);
+        Assert.assertTrue(handler.isComplete());
+        Assert.assertFalse(handler.attach("C", mock(QueryHandler.class)));
+
+        handler.complete();
+        handler.send(new PubSubMessage("id", "foo"));
+        verify(listener).accept(handler);
+        verify(handlerB, never()).complete();
+    }
+
+    @Test
+    public void testNotNeededOnceDone() {
+        handler.complete();
+        handler.detach("A");
+        Assert.assertFalse(handler.detach("B"));
+        verify(listener).accept(handler);
+    }
+}
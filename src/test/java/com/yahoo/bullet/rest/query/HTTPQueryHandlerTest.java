@@ -9,26 +9,27 @@ import com.yahoo.bullet.pubsub.PubSubMessage;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CompletableFuture;
 
 public class HTTPQueryHandlerTest {
     @Test
     public void testCompleteOnSendingOneMessage() throws Exception {
         HTTPQueryHandler queryHandler = new HTTPQueryHandler();
-        CompletableFuture<String> result = queryHandler.getResult();
+        CompletableFuture<byte[]> result = queryHandler.getResult();
         Assert.assertFalse(result.isDone());
 
         queryHandler.send(new PubSubMessage("", "foo"));
 
         Assert.assertTrue(result.isDone());
         Assert.assertFalse(result.isCancelled());
-        Assert.assertEquals(result.get(), "foo");
+        Assert.assertEquals(result.get(), "foo".getBytes(StandardCharsets.UTF_8));
     }
 
     @Test
     public void testSendAfterComplete() throws Exception {
         HTTPQueryHandler queryHandler = new HTTPQueryHandler();
-        CompletableFuture<String> result = queryHandler.getResult();
+        CompletableFuture<byte[]> result = queryHandler.getResult();
         Assert.assertFalse(result.isDone());
 
         queryHandler.send(new PubSubMessage("", "foo"));
@@ -37,13 +38,13 @@ public class HTTPQueryHandlerTest {
 
         Assert.assertTrue(result.isDone());
         Assert.assertFalse(result.isCancelled());
-        Assert.assertEquals(result.get(), "foo");
+        Assert.assertEquals(result.get(), "foo".getBytes(StandardCharsets.UTF_8));
     }
 
     @Test
     public void testCompleteOnSendingOneFail() throws Exception {
         HTTPQueryHandler queryHandler = new HTTPQueryHandler();
-        CompletableFuture<String> result = queryHandler.getResult();
+        CompletableFuture<byte[]> result = queryHandler.getResult();
         Assert.assertFalse(result.isDone());
 
         QueryError cause = new QueryError("foo", "bar");
@@ -51,13 +52,13 @@ public class HTTPQueryHandlerTest {
 
         Assert.assertTrue(result.isDone());
         Assert.assertFalse(result.isCancelled());
-        Assert.assertEquals(result.get(), cause.toString());
+        Assert.assertSame(result.get(), cause.toBytes());
     }
 
     @Test
     public void testFailAfterComplete() throws Exception {
         HTTPQueryHandler queryHandler = new HTTPQueryHandler();
-        CompletableFuture<String> result = queryHandler.getResult();
+        CompletableFuture<byte[]> result = queryHandler.getResult();
         Assert.assertFalse(result.isDone());
 
         queryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
@@ -65,14 +66,22 @@ public class HTTPQueryHandlerTest {
         queryHandler.fail(new QueryError("foo", "bar"));
 
         Assert.assertTrue(result.isDone());
-        Assert.assertEquals(result.get(), QueryError.SERVICE_UNAVAILABLE.toString());
+        Assert.assertSame(result.get(), QueryError.SERVICE_UNAVAILABLE.toBytes());
     }
 
     @Test
     public void testAcknowledgeDoesNothing() {
         HTTPQueryHandler queryHandler = new HTTPQueryHandler();
         queryHandler.acknowledge();
-        CompletableFuture<String> result = queryHandler.getResult();
+        CompletableFuture<byte[]> result = queryHandler.getResult();
         Assert.assertFalse(result.isDone());
     }
+
+    @Test
+    public void testSendingBytesAsIs() throws Exception {
+        HTTPQueryHandler queryHandler = new HTTPQueryHandler();
+        byte[] content = "foo".getBytes(StandardCharsets.UTF_8);
+        queryHandler.send(new PubSubMessage("", content));
+        Assert.assertSame(queryHandler.getResult().get(), content);
+    }
 }
@@ -11,6 +11,7 @@ import com.yahoo.bullet.result.Meta;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import static java.util.Arrays.asList;
@@ -43,4 +44,25 @@ public class QueryErrorTest {
 
         Assert.assertEquals(queryError.toString(), Clip.of(Meta.of(bulletErrors)).asJSON());
     }
+
+    @Test
+    public void testSerializingOnce() {
+        QueryError queryError = new QueryError("foo", "bar");
+        String json = queryError.toString();
+        Assert.assertSame(queryError.toString(), json);
+        byte[] bytes = queryError.toBytes();
+        Assert.assertSame(queryError.toBytes(), bytes);
+        Assert.assertEquals(new String(bytes, StandardCharsets.UTF_8), json);
+    }
+
+    @Test
+    public void testConstantsSerializedUpFront() {
+        for (QueryError constant : asList(QueryError.TOO_MANY_QUERIES, QueryError.INVALID_QUERY, QueryError.MISSING_KEY,
+                                          QueryError.UNSUPPORTED_QUERY, QueryError.QUERY_TIMEOUT,
+                                          QueryError.SERVICE_UNAVAILABLE)) {
+            Assert.assertSame(constant.toString(), constant.toString());
+            Assert.assertSame(constant.toBytes(), constant.toBytes());
+            Assert.assertEquals(constant.toString(), Clip.of(Meta.of(constant.getErrors())).asJSON());
+        }
+    }
 }
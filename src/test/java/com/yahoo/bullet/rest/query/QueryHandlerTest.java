@@ -5,14 +5,217 @@
  */
 package com.yahoo.bullet.rest.query;
 
+import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.Permit;
+import com.yahoo.bullet.rest.query.QueryHandler.State;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class QueryHandlerTest {
+    private static class CountingQueryHandler extends QueryHandler {
+        private final AtomicInteger sends = new AtomicInteger();
+        private final AtomicInteger finishes = new AtomicInteger();
+
+        @Override
+        public void send(PubSubMessage message) {
+            if (advance(State.STREAMING)) {
+                sends.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void complete() {
+            if (finish(State.COMPLETE)) {
+                finishes.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void fail(QueryError cause) {
+            if (finish(State.FAILED)) {
+                finishes.incrementAndGet();
+            }
+        }
+    }
+
     @Test
     public void testFailWithServiceUnavailableWhenDefaultFail() {
         MockQueryHandler mockQueryHandler = new MockQueryHandler();
         mockQueryHandler.fail();
         Assert.assertEquals(mockQueryHandler.getError(), QueryError.SERVICE_UNAVAILABLE);
     }
+
+    @Test
+    public void testStatesMoveForward() {
+        CountingQueryHandler handler = new CountingQueryHandler();
+        Assert.assertEquals(handler.getState(), State.PENDING);
+        handler.acknowledge();
+        Assert.assertEquals(handler.getState(), State.ACKNOWLEDGED);
+        handler.send(new PubSubMessage("id", "foo"));
+        handler.send(new PubSubMessage("id", "bar"));
+        Assert.assertEquals(handler.getState(), State.STREAMING);
+        Assert.assertEquals(handler.sends.get(), 2);
+        // Does not go back
+        handler.acknowledge();
+        Assert.assertEquals(handler.getState(), State.STREAMING);
+        Assert.assertFalse(handler.isComplete());
+
+        handler.complete();
+        Assert.assertEquals(handler.getState(), State.COMPLETE);
+        Assert.assertTrue(handler.isComplete());
+    }
+
+    @Test
+    public void testNothingAfterTerminal() {
+        CountingQueryHandler handler = new CountingQueryHandler();
+        handler.fail();
+        Assert.assertEquals(handler.getState(), State.FAILED);
+        Assert.assertTrue(handler.isComplete());
+
+        handler.acknowledge();
+        handler.send(new PubSubMessage("id", "foo"));
+        handler.complete();
+        handler.fail();
+        Assert.assertEquals(handler.getState(), State.FAILED);
+        Assert.assertEquals(handler.sends.get(), 0);
+        Assert.assertEquals(handler.finishes.get(), 1);
+    }
+
+    @Test
+    public void testDefaultCompleteIsTerminal() {
+        MockQueryHandler handler = new MockQueryHandler();
+        handler.complete();
+        Assert.assertEquals(handler.getState(), State.COMPLETE);
+        Assert.assertFalse(handler.finish(State.FAILED));
+        Assert.assertFalse(handler.advance(State.STREAMING));
+    }
+
+    @Test(timeOut = 10000)
+    public void testConcurrentTerminalTransitionHappensOnce() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            CountingQueryHandler handler = new CountingQueryHandler();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int j = 0; j < 8; ++j) {
+                boolean failing = j % 2 == 0;
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    handler.send(new PubSubMessage("id", "foo"));
+                    if (failing) {
+                        handler.fail();
+                    } else {
+                        handler.complete();
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertTrue(handler.isComplete());
+            Assert.assertEquals(handler.finishes.get(), 1);
+        }
+    }
+
+    @Test
+    public void testPermitReleasedWhenDone() {
+        AtomicInteger released = new AtomicInteger();
+        CountingQueryHandler handler = new CountingQueryHandler();
+        handler.setPermit(new Permit(released::incrementAndGet));
+        handler.send(new PubSubMessage("id", "foo"));
+        Assert.assertEquals(released.get(), 0);
+        handler.fail();
+        Assert.assertEquals(released.get(), 1);
+        handler.complete();
+        Assert.assertEquals(released.get(), 1);
+    }
+
+    @Test
+    public void testPermitReleasedWhenAlreadyDone() {
+        AtomicInteger released = new AtomicInteger();
+        MockQueryHandler handler = new MockQueryHandler();
+        handler.complete();
+        handler.setPermit(new Permit(released::incrementAndGet));
+        Assert.assertEquals(released.get(), 1);
+    }
+
+    @Test
+    public void testPermitNotifiedOfFirstResult() {
+        AtomicInteger results = new AtomicInteger();
+        Permit permit = new Permit(() -> { }, new Permit.Listener() {
+            @Override
+            public void onResult(long delayMS) {
+                results.incrementAndGet();
+            }
+        });
+        permit.setExpectedMS(60000L);
+        CountingQueryHandler handler = new CountingQueryHandler();
+        handler.setPermit(permit);
+        handler.acknowledge();
+        Assert.assertEquals(results.get(), 0);
+        handler.send(new PubSubMessage("id", "foo"));
+        handler.send(new PubSubMessage("id", "bar"));
+        handler.complete();
+        Assert.assertEquals(results.get(), 1);
+    }
+
+    @Test
+    public void testHTTPQueryHandlerNotesItsResult() {
+        AtomicInteger results = new AtomicInteger();
+        Permit permit = new Permit(() -> { }, new Permit.Listener() {
+            @Override
+            public void onResult(long delayMS) {
+                results.incrementAndGet();
+            }
+        });
+        permit.setExpectedMS(60000L);
+        HTTPQueryHandler handler = new HTTPQueryHandler();
+        handler.setPermit(permit);
+        handler.send(new PubSubMessage("id", "foo"));
+        Assert.assertEquals(handler.getState(), State.COMPLETE);
+        Assert.assertEquals(results.get(), 1);
+        Assert.assertTrue(permit.isReleased());
+    }
+
+    @Test
+    public void testExpiring() {
+        AtomicInteger timeouts = new AtomicInteger();
+        Permit permit = new Permit(() -> { }, new Permit.Listener() {
+            @Override
+            public void onTimeout() {
+                timeouts.incrementAndGet();
+            }
+        });
+        MockQueryHandler handler = new MockQueryHandler();
+        handler.setPermit(permit);
+        handler.expire();
+        Assert.assertEquals(handler.getError(), QueryError.QUERY_TIMEOUT);
+        Assert.assertEquals(timeouts.get(), 1);
+
+        MockQueryHandler unpermitted = new MockQueryHandler();
+        unpermitted.expire();
+        Assert.assertEquals(unpermitted.getError(), QueryError.QUERY_TIMEOUT);
+    }
+
+    @Test
+    public void testAsyncQueryHandler() {
+        AtomicInteger released = new AtomicInteger();
+        AsyncQueryHandler handler = new AsyncQueryHandler();
+        handler.setPermit(new Permit(released::incrementAndGet));
+        handler.send(new PubSubMessage("id", "foo"));
+        Assert.assertEquals(handler.getState(), State.STREAMING);
+        handler.fail();
+        Assert.assertEquals(handler.getState(), State.FAILED);
+        Assert.assertEquals(released.get(), 1);
+    }
 }
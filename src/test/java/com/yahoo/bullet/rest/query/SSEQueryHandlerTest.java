@@ -6,40 +6,55 @@
 package com.yahoo.bullet.rest.query;
 
 import com.yahoo.bullet.pubsub.PubSubMessage;
-import com.yahoo.bullet.rest.service.QueryService;
-import org.springframework.http.MediaType;
+import com.yahoo.bullet.rest.common.SSEEvent;
+import com.yahoo.bullet.rest.service.CompressionService;
+import com.yahoo.bullet.rest.service.HandlerService;
+import org.mockito.ArgumentCaptor;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
 
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 public class SSEQueryHandlerTest {
-    private QueryService queryService;
+    private HandlerService handlerService;
     private SseEmitter sseEmitter;
 
     @BeforeMethod
     public void setup() {
-        queryService = mock(QueryService.class);
+        handlerService = mock(HandlerService.class);
         sseEmitter = mock(SseEmitter.class);
     }
 
+    private String sentEvent() throws Exception {
+        ArgumentCaptor<SseEmitter.SseEventBuilder> captor = ArgumentCaptor.forClass(SseEmitter.SseEventBuilder.class);
+        verify(sseEmitter).send(captor.capture());
+        return new String(((SSEEvent) captor.getValue()).toBytes(), StandardCharsets.UTF_8);
+    }
+
     @Test
     public void testSendOnMessage() throws Exception {
         PubSubMessage message = new PubSubMessage("id", "foo");
 
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.send(message);
 
-        verify(sseEmitter).send(eq(message.getContent()), eq(MediaType.APPLICATION_JSON));
+        Assert.assertEquals(sentEvent(), "data:foo\n\n");
         Assert.assertFalse(sseQueryHandler.isComplete());
     }
 
@@ -47,52 +62,369 @@ public class SSEQueryHandlerTest {
     public void testSendOnException() throws Exception {
         PubSubMessage message = new PubSubMessage("id", "foo");
 
-        doThrow(new IOException()).when(sseEmitter).send(message.getContent(), MediaType.APPLICATION_JSON);
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        doThrow(new IOException()).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.send(message);
 
-        verify(queryService).kill("id");
+        verify(handlerService).leave("id");
         Assert.assertTrue(sseQueryHandler.isComplete());
     }
 
     @Test
     public void testSendAfterComplete() throws Exception {
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.complete();
         sseQueryHandler.send(new PubSubMessage("id", "foo"));
 
-        verify(sseEmitter, never()).send(any(), any());
-        verify(queryService, never()).kill(any());
+        verify(sseEmitter, never()).send(any(SseEmitter.SseEventBuilder.class));
+        verify(handlerService, never()).leave(any());
         Assert.assertTrue(sseQueryHandler.isComplete());
     }
 
     @Test
     public void testFailOnCause() throws Exception {
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
 
-        verify(sseEmitter).send(eq(QueryError.SERVICE_UNAVAILABLE.toString()), eq(MediaType.APPLICATION_JSON));
+        Assert.assertEquals(sentEvent(), "data:" + QueryError.SERVICE_UNAVAILABLE + "\n\n");
         Assert.assertTrue(sseQueryHandler.isComplete());
     }
 
     @Test
     public void testFailOnException() throws Exception {
-        doThrow(new IOException()).when(sseEmitter).send(QueryError.SERVICE_UNAVAILABLE.toString(), MediaType.APPLICATION_JSON);
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        doThrow(new IOException()).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
 
-        verify(queryService).kill("id");
+        verify(handlerService).leave("id");
         Assert.assertTrue(sseQueryHandler.isComplete());
     }
 
     @Test
     public void testFailAfterComplete() throws Exception {
-        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, queryService);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        sseQueryHandler.complete();
+        sseQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
+
+        verify(sseEmitter, never()).send(any(SseEmitter.SseEventBuilder.class));
+        verify(handlerService, never()).leave(any());
+        Assert.assertTrue(sseQueryHandler.isComplete());
+    }
+
+    @Test
+    public void testCompressing() throws Exception {
+        CompressionService.Stream compressor = new CompressionService(true, 6, 0, null).newStream(CompressionService.Coding.GZIP);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, compressor);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        sseQueryHandler.send(new PubSubMessage("id", "bar"));
+        sseQueryHandler.complete();
+
+        ArgumentCaptor<SseEmitter.SseEventBuilder> captor = ArgumentCaptor.forClass(SseEmitter.SseEventBuilder.class);
+        verify(sseEmitter, times(3)).send(captor.capture());
+        verify(sseEmitter).complete();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (SseEmitter.SseEventBuilder event : captor.getAllValues()) {
+            compressed.write(((SSEEvent) event).toBytes());
+        }
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            decompressed.write(buffer, 0, length);
+        }
+        Assert.assertEquals(new String(decompressed.toByteArray(), StandardCharsets.UTF_8), "data:foo\n\ndata:bar\n\n");
+    }
+
+    @Test
+    public void testCompressingOnException() throws Exception {
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        doThrow(new IOException()).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, compressor);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        verify(handlerService).leave("id");
+        verify(compressor).close();
+        verify(sseEmitter).complete();
+        Assert.assertTrue(sseQueryHandler.isComplete());
+    }
+
+    private Runnable onCompletion() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(sseEmitter).onCompletion(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void testLeavingWhenResponseEnds() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        onCompletion().run();
+
+        verify(handlerService).leave("id");
+        Assert.assertTrue(sseQueryHandler.isComplete());
+    }
+
+    @Test
+    public void testLeavingWhenResponseTimesOut() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(sseEmitter).onTimeout(captor.capture());
+        captor.getValue().run();
+
+        verify(handlerService).leave("id");
+        Assert.assertTrue(sseQueryHandler.isComplete());
+    }
+
+    @Test
+    public void testNotLeavingWhenResponseEndsAfterComplete() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
         sseQueryHandler.complete();
+        onCompletion().run();
+
+        verifyNoInteractions(handlerService);
+    }
+
+    @Test
+    public void testClosingCompressorWhenResponseEnds() {
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        new SSEQueryHandler("id", sseEmitter, handlerService, compressor);
+        onCompletion().run();
+
+        verify(compressor).close();
+    }
+
+    @Test
+    public void testHeartbeatWhenIdle() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+
+        Assert.assertTrue(sseQueryHandler.heartbeat(0L));
+        Assert.assertEquals(sentEvent(), ":heartbeat\n\n");
+        Assert.assertFalse(sseQueryHandler.isComplete());
+    }
+
+    @Test
+    public void testNoHeartbeatWhenNotIdle() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        Assert.assertFalse(sseQueryHandler.heartbeat(60000L));
+        Assert.assertEquals(sentEvent(), "data:foo\n\n");
+    }
+
+    @Test
+    public void testNoHeartbeatAfterComplete() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        sseQueryHandler.complete();
+
+        Assert.assertFalse(sseQueryHandler.heartbeat(0L));
+        verify(sseEmitter, never()).send(any(SseEmitter.SseEventBuilder.class));
+    }
+
+    @Test
+    public void testHeartbeatDue() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        Assert.assertTrue(sseQueryHandler.isHeartbeatDue(0L));
+        Assert.assertFalse(sseQueryHandler.isHeartbeatDue(60000L));
+
+        sseQueryHandler.complete();
+        Assert.assertFalse(sseQueryHandler.isHeartbeatDue(0L));
+    }
+
+    @Test(timeOut = 10000)
+    public void testHeartbeatNotDueWhileWriting() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            release.await();
+            return null;
+        }).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        Thread sender = new Thread(() -> sseQueryHandler.send(new PubSubMessage("id", "foo")));
+        sender.start();
+        writing.await();
+
+        Assert.assertFalse(sseQueryHandler.isHeartbeatDue(0L));
+        release.countDown();
+        sender.join();
+        Assert.assertTrue(sseQueryHandler.isHeartbeatDue(0L));
+    }
+
+    @Test
+    public void testHeartbeatIsCompressed() throws Exception {
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, compressor);
+
+        Assert.assertTrue(sseQueryHandler.heartbeat(0L));
+        verify(compressor).write(":heartbeat\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testHeartbeatOnException() throws Exception {
+        doThrow(new IOException()).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+
+        Assert.assertFalse(sseQueryHandler.heartbeat(0L));
+        verify(handlerService).leave("id");
+        Assert.assertTrue(sseQueryHandler.isComplete());
+    }
+
+    private static String eventsOf(SseEmitter emitter, int count) throws Exception {
+        ArgumentCaptor<SseEmitter.SseEventBuilder> captor = ArgumentCaptor.forClass(SseEmitter.SseEventBuilder.class);
+        verify(emitter, times(count)).send(captor.capture());
+        StringBuilder events = new StringBuilder();
+        for (SseEmitter.SseEventBuilder event : captor.getAllValues()) {
+            events.append(new String(((SSEEvent) event).toBytes(), StandardCharsets.UTF_8));
+        }
+        return events.toString();
+    }
+
+    @Test
+    public void testGettingQueryIDOfEvent() {
+        Assert.assertEquals(SSEQueryHandler.getQueryID("id:3"), "id");
+        Assert.assertEquals(SSEQueryHandler.getQueryID("a:b:3"), "a:b");
+        Assert.assertNull(SSEQueryHandler.getQueryID("id"));
+        Assert.assertNull(SSEQueryHandler.getQueryID(":3"));
+        Assert.assertNull(SSEQueryHandler.getQueryID(null));
+    }
+
+    @Test
+    public void testResumableEventsHaveIDs() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        sseQueryHandler.send(new PubSubMessage("id", "bar"));
         sseQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
 
-        verify(sseEmitter, never()).send(any(), any());
-        verify(queryService, never()).kill(any());
+        Assert.assertEquals(eventsOf(sseEmitter, 3), "id:id:1\ndata:foo\n\nid:id:2\ndata:bar\n\n" +
+                                                     "id:id:3\ndata:" + QueryError.SERVICE_UNAVAILABLE + "\n\n");
+        verify(sseEmitter).complete();
+    }
+
+    @Test
+    public void testDetachingWhenResponseEnds() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        onCompletion().run();
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        verifyNoInteractions(handlerService);
+        verify(sseEmitter, never()).send(any(SseEmitter.SseEventBuilder.class));
+        Assert.assertFalse(sseQueryHandler.isComplete());
+        Assert.assertFalse(sseQueryHandler.heartbeat(0L));
+    }
+
+    @Test
+    public void testDetachingOnException() throws Exception {
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        doThrow(new IOException()).when(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, compressor, 2);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        verifyNoInteractions(handlerService);
+        verify(compressor).close();
+        Assert.assertFalse(sseQueryHandler.isComplete());
+    }
+
+    @Test
+    public void testResumingSendsMissedEvents() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        onCompletion().run();
+        sseQueryHandler.send(new PubSubMessage("id", "bar"));
+        sseQueryHandler.send(new PubSubMessage("id", "baz"));
+
+        SseEmitter resumed = mock(SseEmitter.class);
+        Assert.assertTrue(sseQueryHandler.resume(resumed, null, "id:1"));
+        sseQueryHandler.send(new PubSubMessage("id", "qux"));
+
+        Assert.assertEquals(eventsOf(resumed, 3), "id:id:2\ndata:bar\n\nid:id:3\ndata:baz\n\nid:id:4\ndata:qux\n\n");
+        verify(sseEmitter).send(any(SseEmitter.SseEventBuilder.class));
+        verifyNoInteractions(handlerService);
+    }
+
+    @Test
+    public void testResumingOnlySendsKeptEvents() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        onCompletion().run();
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        sseQueryHandler.send(new PubSubMessage("id", "bar"));
+        sseQueryHandler.send(new PubSubMessage("id", "baz"));
+
+        SseEmitter resumed = mock(SseEmitter.class);
+        Assert.assertTrue(sseQueryHandler.resume(resumed, null, "bad"));
+
+        Assert.assertEquals(eventsOf(resumed, 2), "id:id:2\ndata:bar\n\nid:id:3\ndata:baz\n\n");
+    }
+
+    @Test
+    public void testResumingQueryDoneWhileDetached() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        onCompletion().run();
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        sseQueryHandler.complete();
+        verify(sseEmitter, never()).complete();
+        Assert.assertFalse(sseQueryHandler.expireDetached(60000L));
+
+        SseEmitter resumed = mock(SseEmitter.class);
+        Assert.assertTrue(sseQueryHandler.resume(resumed, null, "id:0"));
+
+        Assert.assertEquals(eventsOf(resumed, 1), "id:id:1\ndata:foo\n\n");
+        verify(resumed).complete();
+        Assert.assertTrue(sseQueryHandler.expireDetached(60000L));
+        Assert.assertFalse(sseQueryHandler.resume(mock(SseEmitter.class), null, "id:0"));
+        verifyNoInteractions(handlerService);
+    }
+
+    @Test
+    public void testResumingCompressed() throws Exception {
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        onCompletion().run();
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        Assert.assertTrue(sseQueryHandler.resume(mock(SseEmitter.class), compressor, "id:0"));
+
+        verify(compressor).write("id:id:1\ndata:foo\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testResumingReplacesAttachedResponse() throws Exception {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        Runnable oldCompletion = onCompletion();
+        SseEmitter resumed = mock(SseEmitter.class);
+        Assert.assertTrue(sseQueryHandler.resume(resumed, null, "id:0"));
+        verify(sseEmitter).complete();
+
+        oldCompletion.run();
+        sseQueryHandler.send(new PubSubMessage("id", "foo"));
+        Assert.assertEquals(eventsOf(resumed, 1), "id:id:1\ndata:foo\n\n");
+        verifyNoInteractions(handlerService);
+    }
+
+    @Test
+    public void testNotResumingUnresumable() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService);
+        Assert.assertFalse(sseQueryHandler.resume(mock(SseEmitter.class), null, "id:0"));
+    }
+
+    @Test
+    public void testExpiringDetached() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        Assert.assertFalse(sseQueryHandler.expireDetached(0L));
+        onCompletion().run();
+        Assert.assertFalse(sseQueryHandler.expireDetached(60000L));
+        verifyNoInteractions(handlerService);
+
+        Assert.assertTrue(sseQueryHandler.expireDetached(0L));
+        verify(handlerService).leave("id");
         Assert.assertTrue(sseQueryHandler.isComplete());
+        Assert.assertFalse(sseQueryHandler.resume(mock(SseEmitter.class), null, "id:0"));
+    }
+
+    @Test
+    public void testExpiringEnded() {
+        SSEQueryHandler sseQueryHandler = new SSEQueryHandler("id", sseEmitter, handlerService, null, 2);
+        sseQueryHandler.complete();
+        Assert.assertTrue(sseQueryHandler.expireDetached(60000L));
+        verifyNoInteractions(handlerService);
     }
 }
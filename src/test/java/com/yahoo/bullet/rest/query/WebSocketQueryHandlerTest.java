@@ -11,14 +11,22 @@ import com.yahoo.bullet.rest.model.WebSocketResponse;
 import com.yahoo.bullet.rest.service.WebSocketService;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.openMocks;
 
@@ -31,6 +39,14 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         openMocks(this);
     }
 
+    @SuppressWarnings("unchecked")
+    private WebSocketResponse sentResult() {
+        ArgumentCaptor<List<WebSocketResponse>> argument = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq("id"), eq("foo"), argument.capture(), any());
+        Assert.assertEquals(argument.getValue().size(), 1);
+        return argument.getValue().get(0);
+    }
+
     @Test
     public void testSendOnMessage() {
         PubSubMessage message = new PubSubMessage("id", "foo");
@@ -38,10 +54,9 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
         webSocketQueryHandler.send(message);
 
-        ArgumentCaptor<WebSocketResponse> argument = ArgumentCaptor.forClass(WebSocketResponse.class);
-        verify(webSocketService).sendResponse(eq("id"), argument.capture(), any());
-        Assert.assertEquals(argument.getValue().getType(), WebSocketResponse.Type.MESSAGE);
-        Assert.assertEquals(argument.getValue().getContent(), message.getContentAsString());
+        WebSocketResponse response = sentResult();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.MESSAGE);
+        Assert.assertEquals(response.getContent(), message.getContentAsString());
         Assert.assertFalse(webSocketQueryHandler.isComplete());
     }
 
@@ -52,10 +67,9 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
         webSocketQueryHandler.send(message);
 
-        ArgumentCaptor<WebSocketResponse> argument = ArgumentCaptor.forClass(WebSocketResponse.class);
-        verify(webSocketService).sendResponse(eq("id"), argument.capture(), any());
-        Assert.assertEquals(argument.getValue().getType(), WebSocketResponse.Type.FAIL);
-        Assert.assertEquals(argument.getValue().getContent(), message.getContentAsString());
+        WebSocketResponse response = sentResult();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.FAIL);
+        Assert.assertEquals(response.getContent(), message.getContentAsString());
         Assert.assertFalse(webSocketQueryHandler.isComplete());
     }
 
@@ -66,10 +80,9 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
         webSocketQueryHandler.send(message);
 
-        ArgumentCaptor<WebSocketResponse> argument = ArgumentCaptor.forClass(WebSocketResponse.class);
-        verify(webSocketService).sendResponse(eq("id"), argument.capture(), any());
-        Assert.assertEquals(argument.getValue().getType(), WebSocketResponse.Type.COMPLETE);
-        Assert.assertEquals(argument.getValue().getContent(), message.getContentAsString());
+        WebSocketResponse response = sentResult();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.COMPLETE);
+        Assert.assertEquals(response.getContent(), message.getContentAsString());
         Assert.assertFalse(webSocketQueryHandler.isComplete());
     }
 
@@ -81,7 +94,7 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         webSocketQueryHandler.complete();
         webSocketQueryHandler.send(message);
 
-        verify(webSocketService, never()).sendResponse(any(), any(), any());
+        verify(webSocketService, never()).sendResult(any(), any(), any(), any());
         Assert.assertTrue(webSocketQueryHandler.isComplete());
     }
 
@@ -90,10 +103,9 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
         webSocketQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
 
-        ArgumentCaptor<WebSocketResponse> argument = ArgumentCaptor.forClass(WebSocketResponse.class);
-        verify(webSocketService).sendResponse(eq("id"), argument.capture(), any());
-        Assert.assertEquals(argument.getValue().getType(), WebSocketResponse.Type.FAIL);
-        Assert.assertEquals(argument.getValue().getContent(), QueryError.SERVICE_UNAVAILABLE.toString());
+        WebSocketResponse response = sentResult();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.FAIL);
+        Assert.assertEquals(response.getContent(), QueryError.SERVICE_UNAVAILABLE.toString());
         Assert.assertTrue(webSocketQueryHandler.isComplete());
     }
 
@@ -104,7 +116,7 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         webSocketQueryHandler.complete();
         webSocketQueryHandler.fail(QueryError.SERVICE_UNAVAILABLE);
 
-        verify(webSocketService, never()).sendResponse(any(), any(), any());
+        verify(webSocketService, never()).sendResult(any(), any(), any(), any());
         Assert.assertTrue(webSocketQueryHandler.isComplete());
     }
 
@@ -119,4 +131,112 @@ public class WebSocketQueryHandlerTest extends AbstractTestNGSpringContextTests
         Assert.assertEquals(argument.getValue().getContent(), "foo");
         Assert.assertFalse(webSocketQueryHandler.isComplete());
     }
+
+    @Test
+    public void testTaggingResponsesWithCorrelationID() {
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo", "panel-1");
+        webSocketQueryHandler.acknowledge();
+
+        ArgumentCaptor<SimpMessageHeaderAccessor> argument = ArgumentCaptor.forClass(SimpMessageHeaderAccessor.class);
+        verify(webSocketService).sendResponse(eq("id"), any(), argument.capture());
+        Assert.assertEquals(argument.getValue().getFirstNativeHeader(WebSocketService.CORRELATION_ID_HEADER), "panel-1");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTaggingFragmentsWithCorrelationID() {
+        doReturn(3).when(webSocketService).getFragmentSizeBytes("id");
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo", "panel-1");
+        webSocketQueryHandler.send(new PubSubMessage("foo", "abcdef"));
+
+        ArgumentCaptor<List<SimpMessageHeaderAccessor>> argument = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq("id"), eq("foo"), any(), argument.capture());
+        Assert.assertEquals(argument.getValue().size(), 2);
+        for (SimpMessageHeaderAccessor accessor : argument.getValue()) {
+            Assert.assertEquals(accessor.getFirstNativeHeader(WebSocketService.CORRELATION_ID_HEADER), "panel-1");
+        }
+    }
+
+    @Test
+    public void testNotTaggingWithoutCorrelationID() {
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
+        webSocketQueryHandler.acknowledge();
+
+        ArgumentCaptor<SimpMessageHeaderAccessor> argument = ArgumentCaptor.forClass(SimpMessageHeaderAccessor.class);
+        verify(webSocketService).sendResponse(eq("id"), any(), argument.capture());
+        Assert.assertNull(argument.getValue().getFirstNativeHeader(WebSocketService.CORRELATION_ID_HEADER));
+    }
+
+    @Test
+    public void testCompletingForgetsOnlyTheQuery() {
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
+        webSocketQueryHandler.complete();
+
+        verify(webSocketService).deleteQuery("id", "foo");
+    }
+
+    @Test
+    public void testFragmentingSmallContent() {
+        Assert.assertEquals(WebSocketQueryHandler.fragment(null, 10), Collections.singletonList(null));
+        Assert.assertEquals(WebSocketQueryHandler.fragment("foo", 0), Collections.singletonList("foo"));
+        Assert.assertEquals(WebSocketQueryHandler.fragment("foo", 18), Collections.singletonList("foo"));
+        Assert.assertEquals(WebSocketQueryHandler.fragment("foo", 3), Collections.singletonList("foo"));
+    }
+
+    @Test
+    public void testFragmentingByEncodedSize() {
+        Assert.assertEquals(WebSocketQueryHandler.fragment("abcdefg", 3), Arrays.asList("abc", "def", "g"));
+        // Quotes and backslashes are escaped with a backslash
+        Assert.assertEquals(WebSocketQueryHandler.fragment("\"a\"\\b", 4), Arrays.asList("\"a", "\"\\", "b"));
+        // Control characters are counted as unicode escapes
+        Assert.assertEquals(WebSocketQueryHandler.fragment("a\nb", 6), Arrays.asList("a", "\n", "b"));
+        // Non ASCII characters are counted in UTF-8 and surrogate pairs are kept together
+        Assert.assertEquals(WebSocketQueryHandler.fragment("\u00e9\u00e9\u20ac", 4), Arrays.asList("\u00e9\u00e9", "\u20ac"));
+        Assert.assertEquals(WebSocketQueryHandler.fragment("a\ud83d\ude00b", 4), Arrays.asList("a", "\ud83d\ude00", "b"));
+        // Characters larger than the fragment are sent by themselves
+        Assert.assertEquals(WebSocketQueryHandler.fragment("a\u0001b", 3), Arrays.asList("a", "\u0001", "b"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSendingFragments() {
+        doReturn(2).when(webSocketService).getFragmentSizeBytes("id");
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
+        webSocketQueryHandler.send(new PubSubMessage("id", "abcde", new Metadata(Metadata.Signal.COMPLETE, null)));
+        webSocketQueryHandler.send(new PubSubMessage("id", "fgh"));
+
+        ArgumentCaptor<List<WebSocketResponse>> response = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List<SimpMessageHeaderAccessor>> headers = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService, times(2)).sendResult(eq("id"), eq("foo"), response.capture(), headers.capture());
+        List<WebSocketResponse> responses = new ArrayList<>();
+        List<SimpMessageHeaderAccessor> accessors = new ArrayList<>();
+        response.getAllValues().forEach(responses::addAll);
+        headers.getAllValues().forEach(accessors::addAll);
+        Assert.assertEquals(response.getAllValues().get(0).size(), 3);
+        String[] contents = { "ab", "cd", "e", "fg", "h" };
+        String[] ids = { "foo-0", "foo-0", "foo-0", "foo-1", "foo-1" };
+        String[] indices = { "0", "1", "2", "0", "1" };
+        String[] counts = { "3", "3", "3", "2", "2" };
+        for (int i = 0; i < contents.length; i++) {
+            Assert.assertEquals(responses.get(i).getType(), i < 3 ? WebSocketResponse.Type.COMPLETE : WebSocketResponse.Type.MESSAGE);
+            Assert.assertEquals(responses.get(i).getContent(), contents[i]);
+            Assert.assertEquals(accessors.get(i).getSessionId(), "id");
+            Assert.assertEquals(accessors.get(i).getFirstNativeHeader(WebSocketService.FRAGMENT_ID_HEADER), ids[i]);
+            Assert.assertEquals(accessors.get(i).getFirstNativeHeader(WebSocketService.FRAGMENT_INDEX_HEADER), indices[i]);
+            Assert.assertEquals(accessors.get(i).getFirstNativeHeader(WebSocketService.FRAGMENT_COUNT_HEADER), counts[i]);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNotFragmentingWhatFits() {
+        doReturn(64).when(webSocketService).getFragmentSizeBytes("id");
+        WebSocketQueryHandler webSocketQueryHandler = new WebSocketQueryHandler(webSocketService, "id", "foo");
+        webSocketQueryHandler.send(new PubSubMessage("id", "foo"));
+
+        ArgumentCaptor<List<SimpMessageHeaderAccessor>> headers = ArgumentCaptor.forClass(List.class);
+        verify(webSocketService).sendResult(eq("id"), eq("foo"), any(), headers.capture());
+        Assert.assertEquals(headers.getValue().size(), 1);
+        Assert.assertNull(headers.getValue().get(0).getFirstNativeHeader(WebSocketService.FRAGMENT_ID_HEADER));
+    }
 }
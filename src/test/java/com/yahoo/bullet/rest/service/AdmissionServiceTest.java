@@ -0,0 +1,449 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.common.Permit;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class AdmissionServiceTest {
+    private static final Principal USER = () -> "user";
+
+    @Test
+    public void testSynchronousLimit() {
+        AdmissionService service = new AdmissionService(1, 0);
+        Permit permit = service.admitSynchronous(USER);
+        Assert.assertNotNull(permit);
+        Assert.assertEquals(service.getSynchronousCount(), 1);
+        Assert.assertNull(service.admitSynchronous(USER));
+        permit.release();
+        Assert.assertEquals(service.getSynchronousCount(), 0);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+    }
+
+    @Test
+    public void testAsynchronousLimitIsSeparate() {
+        AdmissionService service = new AdmissionService(1, 2);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNotNull(service.admitAsynchronous(USER));
+        Assert.assertNotNull(service.admitAsynchronous(USER));
+        Assert.assertNull(service.admitAsynchronous(USER));
+        Assert.assertEquals(service.getSynchronousCount(), 1);
+        Assert.assertEquals(service.getAsynchronousCount(), 2);
+    }
+
+    private static AdmissionService adaptiveService(int min, int max, MetricPublisher publisher) {
+        return adaptiveService(min, max, max, publisher);
+    }
+
+    private static AdmissionService adaptiveService(int min, int max, int ceiling, MetricPublisher publisher) {
+        return new AdmissionService(max, 1, true, min, ceiling, 100000L, 0.5, false, 0, 0L, 1, false, 0, "", 60L, publisher);
+    }
+
+    @Test
+    public void testFixedLimitDoesNotAdapt() {
+        AdmissionService service = new AdmissionService(4, 1, false, 1, 0, 100L, 0.5, false, 0, 0L, 1, false, 0, "", 60L, null);
+        Permit permit = service.admitSynchronous(USER);
+        permit.onTimeout();
+        Assert.assertEquals(service.getSynchronousLimit(), 4);
+    }
+
+    @Test
+    public void testAdaptiveLimitDecreasesOnTimeouts() {
+        AdmissionService service = adaptiveService(1, 4, mock(MetricPublisher.class));
+        Permit permit = service.admitSynchronous(USER);
+        permit.onTimeout();
+        Assert.assertEquals(service.getSynchronousLimit(), 2);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNull(service.admitSynchronous(USER));
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(AdmissionService.SYNCHRONOUS_LIMIT_DECREASED), 1L);
+        Assert.assertEquals(metrics.get(AdmissionService.SYNCHRONOUS_LIMIT_INCREASED), 0L);
+    }
+
+    @Test
+    public void testAdaptiveLimitDecreasesOnLateResults() {
+        AdmissionService service = adaptiveService(1, 4, null);
+        Permit permit = service.admitSynchronous(USER);
+        permit.setExpectedMS(-1000000L);
+        permit.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 2);
+    }
+
+    @Test
+    public void testAdaptiveLimitBacksOffOnceForABurst() {
+        AdmissionService service = adaptiveService(1, 8, mock(MetricPublisher.class));
+        Permit first = service.admitSynchronous(USER);
+        Permit second = service.admitSynchronous(USER);
+        Permit third = service.admitSynchronous(USER);
+        first.onTimeout();
+        second.onTimeout();
+        third.setExpectedMS(-1000000L);
+        third.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 4);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(AdmissionService.SYNCHRONOUS_LIMIT_DECREASED), 1L);
+    }
+
+    @Test
+    public void testAdaptiveLimitGrowsPastMaximumUpToCeiling() {
+        AdmissionService service = adaptiveService(1, 2, 3, null);
+        Assert.assertEquals(service.getSynchronousLimit(), 2);
+        Permit first = service.admitSynchronous(USER);
+        service.admitSynchronous(USER);
+        first.setExpectedMS(60000L);
+        first.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 3);
+        Permit third = service.admitSynchronous(USER);
+        Assert.assertNotNull(third);
+        third.setExpectedMS(60000L);
+        third.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 3);
+    }
+
+    @Test
+    public void testAdaptiveCeilingIsAtLeastMaximum() {
+        AdmissionService service = adaptiveService(1, 4, 2, null);
+        Assert.assertEquals(service.getSynchronousLimit(), 4);
+    }
+
+    @Test
+    public void testAdaptiveLimitIncreasesOnTimelyResultsWhenUsed() {
+        AdmissionService service = adaptiveService(1, 8, mock(MetricPublisher.class));
+        service.admitSynchronous(USER).onTimeout();
+        Assert.assertEquals(service.getSynchronousLimit(), 4);
+        Permit first = service.admitSynchronous(USER);
+        Permit second = service.admitSynchronous(USER);
+        first.setExpectedMS(60000L);
+        first.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 5);
+        second.release();
+        first.release();
+        Permit third = service.admitSynchronous(USER);
+        third.setExpectedMS(60000L);
+        third.onResult();
+        Assert.assertEquals(service.getSynchronousLimit(), 5);
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(AdmissionService.SYNCHRONOUS_LIMIT_INCREASED), 1L);
+        Assert.assertEquals(metrics.get(AdmissionService.SYNCHRONOUS_LIMIT_DECREASED), 1L);
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        AdmissionService service = new AdmissionService(2, 1, false, 1, 0, 100L, 0.5, false, 0, 0L, 1, false, 0, "", 5L, null);
+        Assert.assertEquals(service.getSynchronousRetryAfter(), 1L);
+        Assert.assertEquals(service.getAsynchronousRetryAfter(), 1L);
+        Permit permit = service.admitSynchronous(USER);
+        Thread.sleep(20);
+        permit.release();
+        Assert.assertEquals(service.getSynchronousRetryAfter(), 1L);
+    }
+
+    @Test
+    public void testPublishingMetrics() {
+        MetricPublisher publisher = mock(MetricPublisher.class);
+        AdmissionService service = adaptiveService(1, 4, publisher);
+        service.publishMetrics();
+        verify(publisher).fire(anyMap());
+    }
+
+    @Test
+    public void testNotPublishingMetricsWithoutPublisher() {
+        AdmissionService service = new AdmissionService(1, 1);
+        Assert.assertFalse(service.isMetricEnabled());
+        service.publishMetrics();
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(AdmissionService.SYNCHRONOUS_LIMIT), 0.0);
+    }
+
+    private static AdmissionService queueingService(int limit, int length, long waitMS, MetricPublisher publisher) {
+        return new AdmissionService(limit, 1, false, 1, 0, 100L, 0.5, true, length, waitMS, 1, false, 0, "", 60L, publisher);
+    }
+
+    @Test
+    public void testQueueingDisabled() throws Exception {
+        AdmissionService service = new AdmissionService(1, 1);
+        Permit permit = service.queueSynchronous(USER).get();
+        Assert.assertNotNull(permit);
+        CompletableFuture<Permit> rejected = service.queueSynchronous(USER);
+        Assert.assertTrue(rejected.isDone());
+        Assert.assertNull(rejected.get());
+        Assert.assertEquals(service.getQueuedCount(), 0);
+        service.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testQueuedQueriesAreAdmittedInOrder() throws Exception {
+        AdmissionService service = queueingService(1, 10, 60000L, mock(MetricPublisher.class));
+        Permit permit = service.queueSynchronous(USER).get();
+        CompletableFuture<Permit> first = service.queueSynchronous(USER);
+        CompletableFuture<Permit> second = service.queueSynchronous(USER);
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(service.getQueuedCount(), 2);
+
+        permit.release();
+        Permit firstPermit = first.get(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(firstPermit);
+        Assert.assertFalse(second.isDone());
+        firstPermit.release();
+        Assert.assertNotNull(second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(service.getQueuedCount(), 0);
+
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(AdmissionService.QUEUE_ADDED), 2L);
+        long waits = metrics.entrySet().stream().filter(e -> e.getKey().startsWith(AdmissionService.QUEUE_WAIT_BUCKET_PREFIX))
+                            .mapToLong(e -> e.getValue().longValue()).sum();
+        Assert.assertEquals(waits, 2L);
+        service.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testWaitersContinueOnWorkers() throws Exception {
+        AdmissionService service = queueingService(1, 10, 100L, null);
+        Permit permit = service.queueSynchronous(USER).get();
+        CompletableFuture<String> admitted = service.queueSynchronous(USER).thenApply(p -> Thread.currentThread().getName());
+        permit.release();
+        Assert.assertTrue(admitted.get(5, TimeUnit.SECONDS).startsWith("bullet-admission-"));
+
+        CompletableFuture<String> rejected = service.queueSynchronous(USER).thenApply(p -> Thread.currentThread().getName());
+        Assert.assertTrue(rejected.get(5, TimeUnit.SECONDS).startsWith("bullet-admission-"));
+        service.close();
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        AdmissionService service = queueingService(1, 1, 60000L, mock(MetricPublisher.class));
+        service.queueSynchronous(USER);
+        CompletableFuture<Permit> queued = service.queueSynchronous(USER);
+        CompletableFuture<Permit> rejected = service.queueSynchronous(USER);
+        Assert.assertFalse(queued.isDone());
+        Assert.assertNull(rejected.get());
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(AdmissionService.QUEUE_FULL), 1L);
+        service.close();
+        Assert.assertNull(queued.get());
+    }
+
+    @Test(timeOut = 10000)
+    public void testQueuedQueriesTimeOut() throws Exception {
+        AdmissionService service = queueingService(1, 10, 10L, mock(MetricPublisher.class));
+        Permit permit = service.queueSynchronous(USER).get();
+        CompletableFuture<Permit> queued = service.queueSynchronous(USER);
+        Assert.assertNull(queued.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(service.getQueuedCount(), 0);
+        // The freed permit is not handed to the timed out query
+        permit.release();
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(AdmissionService.QUEUE_TIMED_OUT), 1L);
+        service.close();
+    }
+
+    @Test
+    public void testWaitHistogramBuckets() {
+        AdmissionService service = queueingService(1, 1, 1L, mock(MetricPublisher.class));
+        long buckets = service.getMetricCollector().extractMetrics().keySet().stream()
+                              .filter(key -> key.startsWith(AdmissionService.QUEUE_WAIT_BUCKET_PREFIX)).count();
+        Assert.assertEquals(buckets, AdmissionService.QUEUE_WAIT_BUCKETS.length + 1);
+        service.close();
+    }
+
+    private static AdmissionService quotaService(int limit, int quota, String weights, boolean queueEnabled) {
+        return new AdmissionService(limit, limit, false, 1, 0, 100L, 0.5, queueEnabled, 10, 60000L, 1, true, quota, weights,
+                                    60L, mock(MetricPublisher.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Number> publishMetrics(AdmissionService service) {
+        MetricPublisher publisher = service.getMetricPublisher();
+        clearInvocations(publisher);
+        service.publishMetrics();
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(publisher).fire(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void testPrincipalQuotas() {
+        Principal other = () -> "other";
+        AdmissionService service = quotaService(10, 2, "", false);
+        Permit permit = service.admitSynchronous(USER);
+        Assert.assertNotNull(service.admitAsynchronous(USER));
+        Assert.assertNull(service.admitSynchronous(USER));
+        Assert.assertNull(service.admitAsynchronous(USER));
+        Assert.assertNotNull(service.admitSynchronous(other));
+        Assert.assertEquals(service.getPrincipalCount(USER), 2);
+        Assert.assertEquals(service.getPrincipalCount(other), 1);
+        Assert.assertEquals(service.getSynchronousCount(), 2);
+
+        permit.release();
+        Assert.assertEquals(service.getPrincipalCount(USER), 1);
+        Assert.assertEquals(service.getSynchronousCount(), 1);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+
+        Map<String, Number> metrics = publishMetrics(service);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_ADMITTED), 3L);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_REJECTED), 2L);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "other" + AdmissionService.PRINCIPAL_ADMITTED), 1L);
+    }
+
+    @Test
+    public void testPrincipalQuotaRejectionDoesNotTakeAGlobalPermit() {
+        AdmissionService service = quotaService(2, 1, "", false);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNull(service.admitSynchronous(USER));
+        Assert.assertEquals(service.getSynchronousCount(), 1);
+        Assert.assertNotNull(service.admitSynchronous(null));
+        Assert.assertEquals(service.getPrincipalCount(null), 1);
+    }
+
+    @Test
+    public void testGlobalRejectionDoesNotTakeAPrincipalPermit() {
+        AdmissionService service = quotaService(1, 5, "", false);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNull(service.admitSynchronous(() -> "other"));
+        Assert.assertEquals(service.getPrincipalCount(() -> "other"), 0);
+    }
+
+    @Test
+    public void testWeightedQuotas() {
+        AdmissionService service = quotaService(100, 2, "heavy: 2.5, light:0.1", false);
+        Principal heavy = () -> "heavy";
+        Principal light = () -> "light";
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertNotNull(service.admitSynchronous(heavy));
+        }
+        Assert.assertNull(service.admitSynchronous(heavy));
+        // The quota is at least 1
+        Assert.assertNotNull(service.admitSynchronous(light));
+        Assert.assertNull(service.admitSynchronous(light));
+    }
+
+    @Test
+    public void testNoQuotasWhenDisabled() {
+        AdmissionService service = new AdmissionService(100, 1);
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertNotNull(service.admitSynchronous(USER));
+        }
+        Assert.assertEquals(service.getPrincipalCount(USER), 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBadWeights() {
+        quotaService(1, 1, "user", false);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveWeights() {
+        quotaService(1, 1, "user:0", false);
+    }
+
+    @Test(timeOut = 10000)
+    public void testWaitersAreAdmittedByWeightedShare() throws Exception {
+        Principal heavy = () -> "heavy";
+        Principal light = () -> "light";
+        AdmissionService service = quotaService(3, 10, "heavy:2", true);
+        Permit first = service.admitSynchronous(heavy);
+        Permit second = service.admitSynchronous(heavy);
+        Permit third = service.admitSynchronous(light);
+        // Once a permit frees up, heavy is at 1 / 2 and light at 1 / 1 so heavy goes first
+        CompletableFuture<Permit> heavyWaiter = service.queueSynchronous(heavy);
+        CompletableFuture<Permit> lightWaiter = service.queueSynchronous(light);
+        Assert.assertEquals(service.getQueuedCount(), 2);
+
+        first.release();
+        Permit admitted = heavyWaiter.get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(lightWaiter.isDone());
+        // heavy is now at 2 / 2 and light at 1 / 1. A new heavy waiter arrives after light
+        CompletableFuture<Permit> laterHeavyWaiter = service.queueSynchronous(heavy);
+        second.release();
+        // heavy is at 1 / 2 which is a smaller share than light at 1 / 1
+        Assert.assertNotNull(laterHeavyWaiter.get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(lightWaiter.isDone());
+        admitted.release();
+        Assert.assertNotNull(lightWaiter.get(5, TimeUnit.SECONDS));
+        third.release();
+        Assert.assertEquals(service.getQueuedCount(), 0);
+        Map<String, Number> metrics = publishMetrics(service);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "heavy" + AdmissionService.PRINCIPAL_ADMITTED), 4L);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "light" + AdmissionService.PRINCIPAL_ADMITTED), 2L);
+        service.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testWaitersOverTheirQuotaWaitForTheirOwnQueries() throws Exception {
+        AdmissionService service = quotaService(10, 1, "", true);
+        Permit permit = service.admitSynchronous(USER);
+        CompletableFuture<Permit> waiter = service.queueSynchronous(USER);
+        Assert.assertNotNull(service.admitSynchronous(() -> "other"));
+        Assert.assertFalse(waiter.isDone());
+        permit.release();
+        Assert.assertNotNull(waiter.get(5, TimeUnit.SECONDS));
+        service.close();
+    }
+
+    @Test
+    public void testIdlePrincipalsAreForgotten() {
+        Principal other = () -> "other";
+        AdmissionService service = quotaService(10, 2, "", true);
+        Permit permit = service.admitSynchronous(USER);
+        Assert.assertNotNull(service.admitSynchronous(other));
+        Assert.assertEquals(service.getQueuedCount(), 0);
+        permit.release();
+
+        // Principals are forgotten once what they did is published
+        Map<String, Number> metrics = publishMetrics(service);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_ADMITTED), 1L);
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "other" + AdmissionService.PRINCIPAL_RUNNING), 1);
+        Assert.assertEquals(service.getPrincipalCount(USER), 0);
+
+        metrics = publishMetrics(service);
+        Assert.assertFalse(metrics.containsKey(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_ADMITTED));
+        Assert.assertEquals(metrics.get(AdmissionService.PRINCIPAL_PREFIX + "other" + AdmissionService.PRINCIPAL_RUNNING), 1);
+
+        // A forgotten principal starts over with its full quota
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertNull(service.admitSynchronous(USER));
+        Assert.assertEquals(service.getPrincipalCount(USER), 2);
+        service.close();
+    }
+
+    @Test
+    public void testIdlePrincipalsAreForgottenWithoutMetrics() {
+        AdmissionService service = new AdmissionService(10, 10);
+        service.admitSynchronous(USER).release();
+        service.publishMetrics();
+        Assert.assertEquals(service.getPrincipalCount(USER), 0);
+        Assert.assertNotNull(service.admitSynchronous(USER));
+        Assert.assertEquals(service.getPrincipalCount(USER), 1);
+    }
+
+    @Test
+    public void testPublishingPrincipalMetrics() {
+        MetricPublisher publisher = mock(MetricPublisher.class);
+        AdmissionService service = new AdmissionService(10, 10, false, 1, 0, 100L, 0.5, true, 10, 60000L, 1, true, 1, "",
+                                                        60L, publisher);
+        service.admitSynchronous(USER);
+        service.queueSynchronous(USER);
+        service.publishMetrics();
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(publisher).fire(captor.capture());
+        Assert.assertEquals(captor.getValue().get(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_RUNNING), 1);
+        Assert.assertEquals(captor.getValue().get(AdmissionService.PRINCIPAL_PREFIX + "user" + AdmissionService.PRINCIPAL_QUEUED), 1);
+        service.close();
+    }
+}
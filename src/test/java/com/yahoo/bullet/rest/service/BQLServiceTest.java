@@ -6,18 +6,33 @@
 package com.yahoo.bullet.rest.service;
 
 import com.yahoo.bullet.bql.BQLResult;
+import com.yahoo.bullet.bql.BulletQueryBuilder;
 import com.yahoo.bullet.common.BulletError;
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import org.mockito.ArgumentCaptor;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.List;
+import java.util.Map;
 
 import static com.yahoo.bullet.rest.TestHelpers.assertEqualsQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getInvalidBQLQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getQueryBuilder;
 import static com.yahoo.bullet.rest.TestHelpers.getBQLQuery;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class BQLServiceTest {
+    private static BulletQueryBuilder mockQueryBuilder() {
+        BulletQueryBuilder builder = mock(BulletQueryBuilder.class);
+        doAnswer(invocation -> mock(BQLResult.class)).when(builder).buildQuery(anyString());
+        return builder;
+    }
+
     @Test
     public void testBQLError() {
         BQLService bqlService = new BQLService(getQueryBuilder());
@@ -36,4 +51,108 @@ public class BQLServiceTest {
         Assert.assertNull(result.getErrors());
         assertEqualsQuery(result.getQuery());
     }
+
+    @Test
+    public void testNormalizing() {
+        Assert.assertEquals(BQLService.normalize("  SELECT *\n\tFROM  STREAM()  "), "SELECT * FROM STREAM()");
+        Assert.assertEquals(BQLService.normalize("SELECT  'a  b',  \"c  d\" FROM STREAM()"),
+                            "SELECT 'a  b', \"c  d\" FROM STREAM()");
+        Assert.assertEquals(BQLService.normalize("WHERE a = 'it''s  \"' AND  b"), "WHERE a = 'it''s  \"' AND b");
+        Assert.assertEquals(BQLService.normalize(""), "");
+    }
+
+    @Test
+    public void testNormalizingDropsComments() {
+        Assert.assertEquals(BQLService.normalize("SELECT * FROM STREAM() -- c\nLIMIT 1"), "SELECT * FROM STREAM() LIMIT 1");
+        Assert.assertEquals(BQLService.normalize("SELECT * FROM STREAM() -- c LIMIT 1"), "SELECT * FROM STREAM()");
+        Assert.assertEquals(BQLService.normalize("SELECT a/* c */FROM /* d\n e */ STREAM()"), "SELECT a FROM STREAM()");
+        Assert.assertEquals(BQLService.normalize("WHERE a = '-- b /* c */'"), "WHERE a = '-- b /* c */'");
+        // Not closed, so not a comment that can be dropped
+        Assert.assertEquals(BQLService.normalize("SELECT a /* c  d"), "SELECT a /* c d");
+    }
+
+    @Test
+    public void testCachingConversions() {
+        BulletQueryBuilder builder = mockQueryBuilder();
+        BQLService bqlService = new BQLService(builder, 10, mock(MetricPublisher.class));
+        BQLResult result = bqlService.toQuery("SELECT * FROM STREAM()");
+        Assert.assertSame(bqlService.toQuery("  SELECT *   FROM STREAM()\n"), result);
+        Assert.assertNotSame(bqlService.toQuery("SELECT * FROM STREAM(1000, TIME)"), result);
+        verify(builder, times(2)).buildQuery(anyString());
+        Assert.assertEquals(bqlService.size(), 2);
+
+        Map<String, Number> metrics = bqlService.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(BQLService.CACHE_HIT), 1L);
+        Assert.assertEquals(metrics.get(BQLService.CACHE_MISS), 2L);
+    }
+
+    @Test
+    public void testEvictingLeastRecentlyUsed() {
+        BulletQueryBuilder builder = mockQueryBuilder();
+        BQLService bqlService = new BQLService(builder, 2, null);
+        BQLResult a = bqlService.toQuery("A");
+        bqlService.toQuery("B");
+        bqlService.toQuery("A");
+        bqlService.toQuery("C");
+        Assert.assertEquals(bqlService.size(), 2);
+        Assert.assertSame(bqlService.toQuery("A"), a);
+        bqlService.toQuery("B");
+        verify(builder, times(4)).buildQuery(anyString());
+    }
+
+    @Test
+    public void testNotCaching() {
+        BulletQueryBuilder builder = mockQueryBuilder();
+        BQLService bqlService = new BQLService(builder, 0, null);
+        bqlService.toQuery("A");
+        bqlService.toQuery("A");
+        verify(builder, times(2)).buildQuery("A");
+        Assert.assertEquals(bqlService.size(), 0);
+    }
+
+    @Test
+    public void testInvalidating() {
+        BulletQueryBuilder builder = mockQueryBuilder();
+        BQLService bqlService = new BQLService(builder, 10, null);
+        BQLResult result = bqlService.toQuery("A");
+        bqlService.invalidate();
+        Assert.assertEquals(bqlService.size(), 0);
+        Assert.assertNotSame(bqlService.toQuery("A"), result);
+
+        BulletQueryBuilder other = mockQueryBuilder();
+        bqlService.setBulletQueryBuilder(other);
+        bqlService.toQuery("A");
+        verify(builder, times(2)).buildQuery("A");
+        verify(other).buildQuery("A");
+    }
+
+    @Test
+    public void testNotCachingConversionsStartedBeforeInvalidating() {
+        BulletQueryBuilder builder = mock(BulletQueryBuilder.class);
+        BQLService bqlService = new BQLService(builder, 10, null);
+        doAnswer(invocation -> {
+            bqlService.invalidate();
+            return mock(BQLResult.class);
+        }).when(builder).buildQuery(anyString());
+        bqlService.toQuery("A");
+        Assert.assertEquals(bqlService.size(), 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingHitRate() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        BQLService bqlService = new BQLService(mockQueryBuilder(), 10, metricPublisher);
+        bqlService.publishMetrics();
+        bqlService.toQuery("A");
+        bqlService.toQuery("A");
+        bqlService.toQuery("A");
+        bqlService.toQuery("B");
+        bqlService.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher, times(2)).fire(captor.capture());
+        Assert.assertEquals(captor.getAllValues().get(0).get(BQLService.CACHE_HIT_RATE), 0.0);
+        Assert.assertEquals(captor.getAllValues().get(1).get(BQLService.CACHE_HIT_RATE), 0.5);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CompressionServiceTest {
+    private static final String RESULT = "{\"records\":[" + String.join(",", Collections.nCopies(100, "{\"foo\":\"bar\"}")) + "]}";
+
+    private static byte[] bytes(String result) {
+        return result.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decompress(byte[] bytes, CompressionService.Coding coding) throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        try (InputStream stream = coding == CompressionService.Coding.GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBadLevel() {
+        new CompressionService(true, 10, 0, null);
+    }
+
+    @Test
+    public void testDisabled() {
+        CompressionService service = new CompressionService();
+        Assert.assertFalse(service.isEnabled());
+        Assert.assertNull(service.negotiate("gzip"));
+    }
+
+    @Test
+    public void testNegotiating() {
+        CompressionService service = new CompressionService(true, -1, 0, null);
+        Assert.assertNull(service.negotiate(null));
+        Assert.assertNull(service.negotiate("identity"));
+        Assert.assertNull(service.negotiate("br, gzip;q=0, deflate;q=0.0"));
+        Assert.assertNull(service.negotiate("gzip;q=foo"));
+        Assert.assertEquals(service.negotiate("gzip"), CompressionService.Coding.GZIP);
+        Assert.assertEquals(service.negotiate("deflate"), CompressionService.Coding.DEFLATE);
+        Assert.assertEquals(service.negotiate("deflate, GZIP;q=0.5"), CompressionService.Coding.GZIP);
+        Assert.assertEquals(service.negotiate("gzip;q=0, deflate"), CompressionService.Coding.DEFLATE);
+        Assert.assertEquals(service.negotiate("br, *"), CompressionService.Coding.GZIP);
+        Assert.assertEquals(service.negotiate("*, deflate"), CompressionService.Coding.DEFLATE);
+    }
+
+    @Test
+    public void testCompressing() throws Exception {
+        CompressionService service = new CompressionService(true, 6, 16, null);
+        for (CompressionService.Coding coding : CompressionService.Coding.values()) {
+            byte[] compressed = service.compress(bytes(RESULT), coding);
+            Assert.assertTrue(compressed.length < RESULT.length());
+            Assert.assertEquals(decompress(compressed, coding), RESULT);
+        }
+    }
+
+    @Test
+    public void testNotCompressingBelowThreshold() {
+        CompressionService service = new CompressionService(true, 6, 16, null);
+        Assert.assertNull(service.compress(bytes("{}"), CompressionService.Coding.GZIP));
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        CompressionService service = new CompressionService(true, 1, 0, null);
+        for (CompressionService.Coding coding : CompressionService.Coding.values()) {
+            CompressionService.Stream stream = service.newStream(coding);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(stream.write(bytes("data:foo\n\n")));
+            // Each piece is flushed so what was written so far can be read without the rest
+            Assert.assertTrue(out.size() > 0);
+            out.write(stream.write(bytes("data:" + RESULT + "\n\n")));
+            out.write(stream.finish());
+            Assert.assertEquals(decompress(out.toByteArray(), coding), "data:foo\n\ndata:" + RESULT + "\n\n");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWritingAfterFinishing() {
+        CompressionService.Stream stream = new CompressionService(true, 1, 0, null).newStream(CompressionService.Coding.GZIP);
+        stream.finish();
+        stream.write(bytes("foo"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWritingAfterClosing() {
+        CompressionService.Stream stream = new CompressionService(true, 1, 0, null).newStream(CompressionService.Coding.DEFLATE);
+        stream.close();
+        stream.write(bytes("foo"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetrics() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        CompressionService service = new CompressionService(true, 6, 16, metricPublisher);
+        byte[] compressed = service.compress(bytes(RESULT), CompressionService.Coding.GZIP);
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Map<String, Number> metrics = captor.getValue();
+        Assert.assertEquals(metrics.get(CompressionService.COMPRESSED_BYTES_IN), (long) RESULT.length());
+        Assert.assertEquals(metrics.get(CompressionService.COMPRESSED_BYTES_OUT), (long) compressed.length);
+        Assert.assertTrue(metrics.get(CompressionService.COMPRESSION_CPU_NS).longValue() >= 0L);
+        Assert.assertEquals(metrics.get(CompressionService.COMPRESSION_RATIO), (double) RESULT.length() / compressed.length);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetricsWithNothingCompressed() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        new CompressionService(true, 6, 16, metricPublisher).publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Assert.assertEquals(captor.getValue().get(CompressionService.COMPRESSION_RATIO), 0.0);
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        CompressionService service = new CompressionService();
+        Assert.assertFalse(service.isMetricEnabled());
+        service.publishMetrics();
+    }
+}
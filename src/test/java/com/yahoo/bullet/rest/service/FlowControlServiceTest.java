@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class FlowControlServiceTest {
+    private static final Runnable NO_CLOSE = () -> { };
+
+    private static FlowControlService service(int window, int queueSize, FlowControlService.OverflowPolicy policy) {
+        return new FlowControlService(window, queueSize, policy, mock(MetricPublisher.class));
+    }
+
+    private static void sendResult(FlowControlService service, String session, String queryID, List<String> sent, String... messages) {
+        List<Runnable> sends = new ArrayList<>();
+        for (String message : messages) {
+            sends.add(() -> sent.add(message));
+        }
+        service.send(session, queryID, sends);
+    }
+
+    private static long metric(FlowControlService service, String name) {
+        return service.getMetricCollector().extractMetrics().get(name).longValue();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveQueueSize() {
+        service(1, 0, FlowControlService.OverflowPolicy.KILL);
+    }
+
+    @Test
+    public void testDisabled() {
+        FlowControlService service = new FlowControlService(0);
+        List<Integer> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        for (int i = 0; i < 10; i++) {
+            int message = i;
+            service.send("session", () -> sent.add(message));
+        }
+        Assert.assertEquals(sent.size(), 10);
+        Assert.assertEquals(service.getPending("session"), 0);
+    }
+
+    @Test
+    public void testUnknownSession() {
+        FlowControlService service = new FlowControlService(1);
+        List<Integer> sent = new ArrayList<>();
+        service.send("session", () -> sent.add(1));
+        service.send("session", () -> sent.add(2));
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void testHoldingBackPastTheWindow() {
+        FlowControlService service = new FlowControlService(2);
+        List<Integer> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        for (int i = 0; i < 5; i++) {
+            int message = i;
+            service.send("session", () -> sent.add(message));
+        }
+        Assert.assertEquals(sent, Arrays.asList(0, 1));
+        Assert.assertEquals(service.getPending("session"), 3);
+
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2));
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2, 3, 4));
+        Assert.assertEquals(service.getPending("session"), 0);
+
+        // Deliveries of frames that were not sent through the service do not make extra room
+        service.delivered("session");
+        service.delivered("session");
+        service.delivered("session");
+        for (int i = 5; i < 8; i++) {
+            int message = i;
+            service.send("session", () -> sent.add(message));
+        }
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2, 3, 4, 5, 6));
+    }
+
+    @Test
+    public void testDeliveringWhileSending() {
+        FlowControlService service = new FlowControlService(1);
+        List<Integer> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        for (int i = 0; i < 5; i++) {
+            int message = i;
+            // Writes that finish before the send returns make room while the session is being drained
+            service.send("session", () -> {
+                sent.add(message);
+                service.delivered("session");
+            });
+        }
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2, 3, 4));
+        Assert.assertEquals(service.getPending("session"), 0);
+    }
+
+    @Test
+    public void testExpiringMessagesInFlight() throws Exception {
+        FlowControlService service = new FlowControlService(2, 5L, 10, FlowControlService.OverflowPolicy.DROP_OLDEST,
+                                                            mock(MetricPublisher.class));
+        service.close();
+        List<Integer> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        for (int i = 0; i < 4; i++) {
+            int message = i;
+            service.send("session", () -> sent.add(message));
+        }
+        service.expire();
+        Assert.assertEquals(sent, Arrays.asList(0, 1));
+
+        // Messages that were never written stop holding the window once they time out
+        Thread.sleep(20L);
+        service.expire();
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2, 3));
+        Assert.assertEquals(service.getPending("session"), 0);
+        Assert.assertEquals(metric(service, FlowControlService.EXPIRED), 2L);
+
+        // Deliveries of messages that timed out do not make extra room
+        service.delivered("session");
+        service.delivered("session");
+        service.delivered("session");
+        for (int i = 4; i < 7; i++) {
+            int message = i;
+            service.send("session", () -> sent.add(message));
+        }
+        Assert.assertEquals(sent, Arrays.asList(0, 1, 2, 3, 4, 5));
+    }
+
+    @Test
+    public void testExpiringMessagesInFlightInTheBackground() throws Exception {
+        FlowControlService service = new FlowControlService(1, 5L, 10, FlowControlService.OverflowPolicy.DROP_OLDEST, null);
+        CountDownLatch latch = new CountDownLatch(2);
+        service.open("session", NO_CLOSE);
+        service.send("session", latch::countDown);
+        service.send("session", latch::countDown);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        service.close();
+    }
+
+    @Test
+    public void testSendingResultsFrameByFrame() {
+        FlowControlService service = new FlowControlService(1);
+        List<String> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        sendResult(service, "session", "query", sent, "a0", "a1", "a2");
+        Assert.assertEquals(sent, Collections.singletonList("a0"));
+        Assert.assertEquals(service.getPending("session"), 1);
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("a0", "a1", "a2"));
+        Assert.assertEquals(service.getPending("session"), 0);
+    }
+
+    @Test
+    public void testSessionsAreIndependent() {
+        FlowControlService service = new FlowControlService(1);
+        List<String> sent = new ArrayList<>();
+        service.open("A", NO_CLOSE);
+        service.open("B", NO_CLOSE);
+        service.send("A", () -> sent.add("A1"));
+        service.send("A", () -> sent.add("A2"));
+        service.send("B", () -> sent.add("B1"));
+        Assert.assertEquals(sent, Arrays.asList("A1", "B1"));
+    }
+
+    @Test
+    public void testClosingDropsPending() {
+        FlowControlService service = new FlowControlService(1);
+        List<Integer> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        service.send("session", () -> sent.add(1));
+        service.send("session", () -> sent.add(2));
+        service.close("session");
+        service.delivered("session");
+
+        Assert.assertEquals(sent, Collections.singletonList(1));
+        Assert.assertEquals(service.getPending("session"), 0);
+    }
+
+    @Test
+    public void testDroppingOldest() {
+        FlowControlService service = service(1, 2, FlowControlService.OverflowPolicy.DROP_OLDEST);
+        List<String> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        sendResult(service, "session", "query", sent, "w0");
+        sendResult(service, "session", "query", sent, "w1");
+        service.send("session", () -> sent.add("ack"));
+        sendResult(service, "session", "query", sent, "w2");
+        sendResult(service, "session", "query", sent, "w3");
+        Assert.assertEquals(service.getPending("session"), 2);
+
+        service.delivered("session");
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("w0", "ack", "w3"));
+        Assert.assertEquals(metric(service, FlowControlService.DROPPED), 2L);
+    }
+
+    @Test
+    public void testNotDroppingStartedOrFinalResults() {
+        FlowControlService service = service(1, 1, FlowControlService.OverflowPolicy.DROP_OLDEST);
+        List<String> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        // Partly sent, so it cannot be dropped
+        sendResult(service, "session", "query", sent, "f0", "f1");
+        // Nothing can be dropped, so the newest window result is dropped
+        sendResult(service, "session", "query", sent, "w0");
+        // Final results go over the bound
+        sendResult(service, "session", null, sent, "complete");
+        Assert.assertEquals(service.getPending("session"), 2);
+
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("f0", "f1", "complete"));
+        Assert.assertEquals(metric(service, FlowControlService.DROPPED), 1L);
+    }
+
+    @Test
+    public void testConflating() {
+        FlowControlService service = service(1, 10, FlowControlService.OverflowPolicy.CONFLATE);
+        List<String> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        sendResult(service, "session", "A", sent, "a0");
+        sendResult(service, "session", "A", sent, "a1");
+        sendResult(service, "session", "B", sent, "b0");
+        sendResult(service, "session", "A", sent, "a2");
+        sendResult(service, "session", "B", sent, "b1");
+        sendResult(service, "session", null, sent, "ack");
+        Assert.assertEquals(service.getPending("session"), 3);
+
+        service.delivered("session");
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("a0", "a2", "b1", "ack"));
+        Assert.assertEquals(metric(service, FlowControlService.DROPPED), 2L);
+    }
+
+    @Test
+    public void testConflatingDropsOldestWhenFull() {
+        FlowControlService service = service(1, 1, FlowControlService.OverflowPolicy.CONFLATE);
+        List<String> sent = new ArrayList<>();
+        service.open("session", NO_CLOSE);
+        sendResult(service, "session", "A", sent, "a0");
+        sendResult(service, "session", "A", sent, "a1");
+        sendResult(service, "session", "B", sent, "b0");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("a0", "b0"));
+        Assert.assertEquals(metric(service, FlowControlService.DROPPED), 1L);
+    }
+
+    @Test
+    public void testQueueingPastTheQueueSize() {
+        FlowControlService service = service(1, 1, FlowControlService.OverflowPolicy.QUEUE);
+        List<String> sent = new ArrayList<>();
+        service.open("session", () -> Assert.fail("Should not be closed"));
+        sendResult(service, "session", "query", sent, "w0");
+        sendResult(service, "session", "query", sent, "w1");
+        sendResult(service, "session", "query", sent, "w2");
+        sendResult(service, "session", null, sent, "complete");
+        Assert.assertEquals(service.getPending("session"), 3);
+
+        service.delivered("session");
+        service.delivered("session");
+        service.delivered("session");
+        Assert.assertEquals(sent, Arrays.asList("w0", "w1", "w2", "complete"));
+        Assert.assertEquals(metric(service, FlowControlService.DROPPED), 0L);
+        Assert.assertEquals(metric(service, FlowControlService.KILLED), 0L);
+    }
+
+    @Test
+    public void testKilling() throws Exception {
+        FlowControlService service = service(1, 1, FlowControlService.OverflowPolicy.KILL);
+        List<String> sent = new ArrayList<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        service.open("session", closed::countDown);
+        sendResult(service, "session", "query", sent, "w0");
+        sendResult(service, "session", "query", sent, "w1");
+        Assert.assertEquals(closed.getCount(), 1L);
+        sendResult(service, "session", "query", sent, "w2");
+
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(service.getPending("session"), 0);
+        // The session is no longer flow controlled once it is closed
+        service.delivered("session");
+        Assert.assertEquals(sent, Collections.singletonList("w0"));
+        Assert.assertEquals(metric(service, FlowControlService.KILLED), 1L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetrics() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        FlowControlService service = new FlowControlService(1, 10, FlowControlService.OverflowPolicy.DROP_OLDEST, metricPublisher);
+        List<String> sent = new ArrayList<>();
+        service.open("A", NO_CLOSE);
+        service.open("B", NO_CLOSE);
+        sendResult(service, "A", "query", sent, "a0", "a1");
+        sendResult(service, "A", "query", sent, "a2");
+        sendResult(service, "A", "query", sent, "a3");
+        sendResult(service, "B", "query", sent, "b0");
+        sendResult(service, "B", "query", sent, "b1");
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Map<String, Number> metrics = captor.getValue();
+        Assert.assertEquals(metrics.get(FlowControlService.QUEUE_DEPTH_MAX), 3);
+        Assert.assertEquals(metrics.get(FlowControlService.QUEUE_DEPTH_TOTAL), 4L);
+        Assert.assertEquals(metrics.get(FlowControlService.DROPPED), 0L);
+        Assert.assertEquals(metrics.get(FlowControlService.KILLED), 0L);
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        FlowControlService service = new FlowControlService(1);
+        Assert.assertFalse(service.isMetricEnabled());
+        service.publishMetrics();
+    }
+}
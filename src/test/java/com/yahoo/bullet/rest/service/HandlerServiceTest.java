@@ -5,23 +5,95 @@
  */
 package com.yahoo.bullet.rest.service;
 
+import com.yahoo.bullet.common.metrics.MetricPublisher;
 import com.yahoo.bullet.pubsub.Metadata;
 import com.yahoo.bullet.pubsub.PubSubMessage;
+import com.yahoo.bullet.rest.common.Permit;
+import com.yahoo.bullet.rest.common.PermitPool;
+import com.yahoo.bullet.rest.query.QueryError;
+import com.yahoo.bullet.query.Query;
+import com.yahoo.bullet.query.Window;
+import com.yahoo.bullet.rest.query.HTTPQueryHandler;
 import com.yahoo.bullet.rest.query.QueryHandler;
+import org.mockito.ArgumentCaptor;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+import static com.yahoo.bullet.rest.TestHelpers.getQuery;
+import static com.yahoo.bullet.rest.TestHelpers.getQueryWithWindow;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 public class HandlerServiceTest {
+    private static class CountingQueryHandler extends QueryHandler {
+        private final AtomicInteger completes = new AtomicInteger();
+        private final AtomicInteger fails = new AtomicInteger();
+
+        @Override
+        public void send(PubSubMessage message) {
+            advance(State.STREAMING);
+        }
+
+        @Override
+        public void complete() {
+            if (finish(State.COMPLETE)) {
+                completes.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void fail(QueryError cause) {
+            if (finish(State.FAILED)) {
+                fails.incrementAndGet();
+            }
+        }
+    }
+
+    // Ticks are long enough that the reaper thread never runs during a test, so reap is called directly instead
+    private static HandlerService expiringService(long graceMS, MetricPublisher metricPublisher) {
+        return new HandlerService(true, graceMS, 100000L, 4, false, metricPublisher);
+    }
+
+    private static HandlerService coalescingService(MetricPublisher metricPublisher) {
+        return new HandlerService(false, 0L, 1L, 1, true, metricPublisher);
+    }
+
+    private static Query queryWithDuration(Long duration) {
+        Query query = mock(Query.class);
+        doReturn(duration).when(query).getDuration();
+        return query;
+    }
+
+    private static Thread racer(CountDownLatch start, Runnable runnable) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            runnable.run();
+        });
+        thread.start();
+        return thread;
+    }
+
     @Test
     public void testAddRemoveHandler() {
         QueryHandler queryHandler = mock(QueryHandler.class);
@@ -152,4 +224,455 @@ public class HandlerServiceTest {
         verify(handler).complete();
         Assert.assertFalse(service.hasHandler("id"));
     }
+
+    @Test
+    public void testRespondingToAReplacedHandlerDoesNotRemoveTheNewOne() {
+        QueryHandler handler = mock(QueryHandler.class);
+        QueryHandler replacement = mock(QueryHandler.class);
+        doReturn(false).doReturn(true).when(handler).isComplete();
+        HandlerService service = new HandlerService();
+        service.addHandler("id", handler);
+        // Replaced while the old one is being responded to
+        doAnswer(invocation -> service.getHandlers().put("id", replacement)).when(handler).send(any());
+
+        service.respond("id", new PubSubMessage("id", "content"));
+        verify(handler).send(any());
+        Assert.assertSame(service.getHandler("id"), replacement);
+        verifyNoInteractions(replacement);
+    }
+
+    @Test(timeOut = 60000)
+    public void testRacingRespondFailAndRemove() throws Exception {
+        HandlerService service = new HandlerService();
+        for (int i = 0; i < 500; ++i) {
+            CountingQueryHandler handler = new CountingQueryHandler();
+            service.addHandler("id", handler);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            threads.add(racer(start, () -> {
+                for (int j = 0; j < 10; ++j) {
+                    service.respond("id", new PubSubMessage("id", "content"));
+                }
+                service.respond("id", new PubSubMessage("id", Metadata.Signal.COMPLETE));
+            }));
+            threads.add(racer(start, () -> service.failHandler("id")));
+            threads.add(racer(start, service::failAllHandlers));
+            threads.add(racer(start, () -> service.removeHandler("id")));
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            int terminations = handler.completes.get() + handler.fails.get();
+            Assert.assertTrue(terminations <= 1);
+            Assert.assertEquals(terminations, handler.isComplete() ? 1 : 0);
+            Assert.assertEquals(service.count(), 0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveExpiryTick() {
+        new HandlerService(true, 0L, 0L, 4, false, null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExpiringHandlers() {
+        QueryHandler handler = mock(QueryHandler.class);
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(1000L, mock(MetricPublisher.class));
+        service.setKillListener(listener);
+        service.addHandler("id", handler, queryWithDuration(1000L));
+        Assert.assertTrue(service.hasHandler("id"));
+
+        service.reap();
+        verify(handler).expire();
+        verify(listener).accept("id");
+        Assert.assertFalse(service.hasHandler("id"));
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(HandlerService.HANDLER_EXPIRED), 1L);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExpiringFinishedOrReplacedHandlers() {
+        QueryHandler finished = mock(QueryHandler.class);
+        QueryHandler replaced = mock(QueryHandler.class);
+        QueryHandler replacement = mock(QueryHandler.class);
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(0L, null);
+        service.setKillListener(listener);
+        service.addHandler("A", finished, queryWithDuration(1L));
+        service.addHandler("B", replaced, queryWithDuration(1L));
+        service.removeHandler("A");
+        service.addHandler("B", replacement);
+
+        service.reap();
+        verifyNoInteractions(finished, replaced, replacement, listener);
+        Assert.assertSame(service.getHandler("B"), replacement);
+        service.close();
+    }
+
+    @Test
+    public void testNotExpiringWithoutDuration() {
+        QueryHandler handler = mock(QueryHandler.class);
+        HandlerService service = expiringService(0L, null);
+        service.addHandler("id", handler, queryWithDuration(null));
+        service.reap();
+        verify(handler, never()).expire();
+        Assert.assertTrue(service.hasHandler("id"));
+        service.close();
+    }
+
+    @Test
+    public void testNotExpiringWhenDisabled() {
+        QueryHandler handler = mock(QueryHandler.class);
+        HandlerService service = new HandlerService();
+        service.addHandler("id", handler, queryWithDuration(1L));
+        service.reap();
+        verify(handler, never()).expire();
+        Assert.assertTrue(service.hasHandler("id"));
+    }
+
+    @Test
+    public void testExpiryListenerFailing() {
+        QueryHandler handler = mock(QueryHandler.class);
+        HandlerService service = expiringService(0L, null);
+        service.setKillListener(id -> {
+            throw new RuntimeException("Testing");
+        });
+        service.addHandler("id", handler, queryWithDuration(1L));
+        service.reap();
+        verify(handler).expire();
+        Assert.assertFalse(service.hasHandler("id"));
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingOldestHandlerAge() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        HandlerService service = expiringService(0L, metricPublisher);
+        QueryHandler older = mock(QueryHandler.class);
+        QueryHandler newer = mock(QueryHandler.class);
+        long now = System.currentTimeMillis();
+        doReturn(now - 5000L).when(older).getCreated();
+        doReturn(now).when(newer).getCreated();
+        service.addHandler("A", older);
+        service.addHandler("B", newer);
+
+        service.publishMetrics();
+        service.removeHandler("A");
+        service.removeHandler("B");
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher, times(2)).fire(captor.capture());
+        List<Map<String, Number>> published = captor.getAllValues();
+        Assert.assertTrue(published.get(0).get(HandlerService.HANDLER_OLDEST_AGE_MS).doubleValue() >= 5000.0);
+        Assert.assertEquals(published.get(0).get(HandlerService.HANDLER_EXPIRED), 0L);
+        Assert.assertEquals(published.get(1).get(HandlerService.HANDLER_OLDEST_AGE_MS).doubleValue(), 0.0);
+        service.close();
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        HandlerService service = new HandlerService();
+        Assert.assertFalse(service.isMetricEnabled());
+        service.publishMetrics();
+    }
+
+    @Test
+    public void testNotCoalescingWhenDisabled() {
+        HandlerService service = new HandlerService();
+        QueryHandler handlerA = mock(QueryHandler.class);
+        QueryHandler handlerB = mock(QueryHandler.class);
+        Assert.assertEquals(service.attachHandler("A", handlerA, getQuery(), "bql"), "A");
+        Assert.assertEquals(service.attachHandler("B", handlerB, getQuery(), "bql"), "B");
+        Assert.assertSame(service.getHandler("A"), handlerA);
+        Assert.assertSame(service.getHandler("B"), handlerB);
+    }
+
+    @Test
+    public void testCoalescingIdenticalQueries() {
+        HandlerService service = coalescingService(mock(MetricPublisher.class));
+        CountingQueryHandler handlerA = new CountingQueryHandler();
+        CountingQueryHandler handlerB = new CountingQueryHandler();
+        Assert.assertEquals(service.attachHandler("A", handlerA, getQuery(), "bql"), "A");
+        Assert.assertEquals(service.attachHandler("B", handlerB, getQuery(), "bql"), "A");
+        Assert.assertEquals(service.count(), 1);
+        Assert.assertFalse(service.hasHandler("B"));
+
+        service.respond("A", new PubSubMessage("A", "foo", new Metadata(Metadata.Signal.COMPLETE, null)));
+        Assert.assertEquals(handlerA.completes.get(), 1);
+        Assert.assertEquals(handlerB.completes.get(), 1);
+        Assert.assertEquals(service.count(), 0);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(HandlerService.HANDLER_COALESCED), 1L);
+
+        // The finished query is not joined anymore
+        Assert.assertEquals(service.attachHandler("C", new CountingQueryHandler(), getQuery(), "bql"), "C");
+    }
+
+    @Test
+    public void testNotCoalescingDifferentOrWindowedQueries() {
+        HandlerService service = coalescingService(null);
+        Query windowed = getQueryWithWindow(new Window(1000, Window.Unit.TIME));
+        Assert.assertEquals(service.attachHandler("A", mock(QueryHandler.class), getQuery(), "bql"), "A");
+        Assert.assertEquals(service.attachHandler("B", mock(QueryHandler.class), getQuery(), "other bql"), "B");
+        Assert.assertEquals(service.attachHandler("C", mock(QueryHandler.class), windowed, "bql"), "C");
+        Assert.assertEquals(service.attachHandler("D", mock(QueryHandler.class), windowed, "bql"), "D");
+        Assert.assertEquals(service.count(), 4);
+    }
+
+    @Test
+    public void testNotCoalescingOnceResultsStarted() {
+        HandlerService service = coalescingService(null);
+        CountingQueryHandler handlerA = new CountingQueryHandler();
+        CountingQueryHandler handlerB = new CountingQueryHandler();
+        service.attachHandler("A", handlerA, getQuery(), "bql");
+        service.getHandler("A").send(new PubSubMessage("A", "foo"));
+        Assert.assertEquals(handlerA.getState(), QueryHandler.State.STREAMING);
+
+        Assert.assertEquals(service.attachHandler("B", handlerB, getQuery(), "bql"), "B");
+        Assert.assertEquals(handlerB.getState(), QueryHandler.State.PENDING);
+        Assert.assertEquals(service.count(), 2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testKillingCoalescedQueryWhenAllClientsLeave() {
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = coalescingService(null);
+        service.setKillListener(listener);
+        CountingQueryHandler handlerA = new CountingQueryHandler();
+        CountingQueryHandler handlerB = new CountingQueryHandler();
+        service.attachHandler("A", handlerA, getQuery(), "bql");
+        service.attachHandler("B", handlerB, getQuery(), "bql");
+
+        service.leave("A");
+        verifyNoInteractions(listener);
+        Assert.assertTrue(service.hasHandler("A"));
+        service.respond("A", new PubSubMessage("A", "foo"));
+        Assert.assertEquals(handlerB.getState(), QueryHandler.State.STREAMING);
+        Assert.assertEquals(handlerA.getState(), QueryHandler.State.PENDING);
+
+        service.leave("B");
+        verify(listener).accept("A");
+        Assert.assertFalse(service.hasHandler("A"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLeavingUncoalescedQuery() {
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = coalescingService(null);
+        service.setKillListener(listener);
+        service.addHandler("A", mock(QueryHandler.class));
+        Assert.assertTrue(service.leave("A"));
+        verify(listener).accept("A");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLeavingAgainDoesNotKill() {
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = coalescingService(null);
+        service.setKillListener(listener);
+        Assert.assertFalse(service.leave("A"));
+        verifyNoInteractions(listener);
+
+        service.addHandler("A", mock(QueryHandler.class));
+        service.leave("A");
+        Assert.assertFalse(service.leave("A"));
+        verify(listener).accept("A");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLeavingAfterCoalescedQueryWasLeftDoesNotRemoveIt() {
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = coalescingService(null);
+        service.setKillListener(listener);
+        service.attachHandler("A", new CountingQueryHandler(), getQuery(), "bql");
+        service.attachHandler("B", new CountingQueryHandler(), getQuery(), "bql");
+
+        service.leave("A");
+        Assert.assertFalse(service.leave("A"));
+        Assert.assertTrue(service.hasHandler("A"));
+        verifyNoInteractions(listener);
+    }
+
+    @Test
+    public void testLeavingRemovesUncoalescedHandler() {
+        HandlerService service = coalescingService(null);
+        service.addHandler("A", mock(QueryHandler.class));
+        service.leave("A");
+        Assert.assertFalse(service.hasHandler("A"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExpiringCoalescedQueries() {
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = new HandlerService(true, 0L, 100000L, 4, true, null);
+        service.setKillListener(listener);
+        QueryHandler handlerA = mock(QueryHandler.class);
+        QueryHandler handlerB = mock(QueryHandler.class);
+        service.attachHandler("A", handlerA, getQuery(), "bql");
+        service.attachHandler("B", handlerB, getQuery(), "bql");
+
+        service.reap();
+        verify(handlerA).expire();
+        verify(handlerB).expire();
+        verify(listener).accept("A");
+        Assert.assertEquals(service.count(), 0);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExpiringAtDeadline() {
+        QueryHandler handler = mock(QueryHandler.class);
+        doReturn(QueryHandler.State.FAILED).when(handler).getState();
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(0L, mock(MetricPublisher.class));
+        service.setKillListener(listener);
+        service.addHandler("id", handler);
+        service.expireAfter("id", handler, 1000L);
+
+        service.reap();
+        verify(handler).fail(QueryError.QUERY_TIMEOUT);
+        verify(handler, never()).expire();
+        verify(listener).accept("id");
+        Assert.assertFalse(service.hasHandler("id"));
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(HandlerService.HANDLER_RECLAIMED), 1L);
+        Assert.assertEquals(metrics.get(HandlerService.HANDLER_EXPIRED), 0L);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNotExpiringFinishedHandlersAtDeadline() {
+        QueryHandler handler = mock(QueryHandler.class);
+        doReturn(true).when(handler).isComplete();
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(0L, null);
+        service.setKillListener(listener);
+        service.expireAfter("id", handler, 1000L);
+
+        service.reap();
+        verify(handler, never()).expire();
+        verifyNoInteractions(listener);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNotKillingHandlersCompletingAtDeadline() {
+        QueryHandler handler = mock(QueryHandler.class);
+        // The handler completes at the same time, so failing it does not take
+        doReturn(QueryHandler.State.COMPLETE).when(handler).getState();
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(0L, mock(MetricPublisher.class));
+        service.setKillListener(listener);
+        service.addHandler("id", handler);
+        service.expireAfter("id", handler, 1000L);
+
+        service.reap();
+        verifyNoInteractions(listener);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(HandlerService.HANDLER_RECLAIMED), 0L);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNotExpiringLeftHandlersAtDeadline() {
+        QueryHandler handler = mock(QueryHandler.class);
+        Consumer<String> listener = mock(Consumer.class);
+        HandlerService service = expiringService(0L, null);
+        service.setKillListener(listener);
+        service.addHandler("id", handler);
+        service.expireAfter("id", handler, 1000L);
+        service.leave("id");
+
+        service.reap();
+        verify(handler, never()).fail(any());
+        verify(listener).accept("id");
+        service.close();
+    }
+
+    @Test
+    public void testNotExpiringBeforeDeadline() {
+        QueryHandler handler = mock(QueryHandler.class);
+        HandlerService service = expiringService(0L, null);
+        service.addHandler("id", handler);
+        service.expireAfter("id", handler, 200001L);
+
+        service.reap();
+        service.reap();
+        verify(handler, never()).fail(any());
+        service.reap();
+        verify(handler).fail(QueryError.QUERY_TIMEOUT);
+        service.close();
+    }
+
+    @Test
+    public void testExpiringAtDeadlineWhenExpiryIsDisabled() {
+        QueryHandler handler = mock(QueryHandler.class);
+        HandlerService service = new HandlerService(false, 0L, 100000L, 1, false, null);
+        service.addHandler("id", handler, queryWithDuration(1L));
+        service.reap();
+        Assert.assertTrue(service.hasHandler("id"));
+
+        service.expireAfter("id", handler, 0L);
+        service.reap();
+        verify(handler).fail(QueryError.QUERY_TIMEOUT);
+        Assert.assertFalse(service.hasHandler("id"));
+        service.close();
+    }
+
+    @Test
+    public void testDeadlinesAreNotReportedAsTimeouts() {
+        Permit.Listener listener = mock(Permit.Listener.class);
+        Permit permit = new PermitPool(1, listener).tryAcquire();
+        HTTPQueryHandler handler = new HTTPQueryHandler();
+        handler.setPermit(permit);
+        HandlerService service = expiringService(0L, null);
+        service.addHandler("id", handler);
+        service.expireAfter("id", handler, 0L);
+
+        service.reap();
+        Assert.assertEquals(new String(handler.getResult().join(), StandardCharsets.UTF_8), QueryError.QUERY_TIMEOUT.toString());
+        Assert.assertTrue(permit.isReleased());
+        verify(listener, never()).onTimeout();
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExpiringCoalescedQueriesAtDeadline() throws Exception {
+        Consumer<String> listener = mock(Consumer.class);
+        // The grace period keeps the queries from expiring on their duration during the test
+        HandlerService service = new HandlerService(true, 1000000L, 100000L, 4, true, mock(MetricPublisher.class));
+        service.setKillListener(listener);
+        HTTPQueryHandler handlerA = new HTTPQueryHandler();
+        HTTPQueryHandler handlerB = new HTTPQueryHandler();
+        service.attachHandler("A", handlerA, getQuery(), "bql");
+        service.attachHandler("B", handlerB, getQuery(), "bql");
+        service.expireAfter("B", handlerB, 1000L);
+
+        service.reap();
+        Assert.assertEquals(new String(handlerB.getResult().get(), StandardCharsets.UTF_8), QueryError.QUERY_TIMEOUT.toString());
+        Assert.assertFalse(handlerA.isComplete());
+        verifyNoInteractions(listener);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(HandlerService.HANDLER_RECLAIMED), 0L);
+
+        service.expireAfter("A", handlerA, 1000L);
+        service.reap();
+        Assert.assertEquals(new String(handlerA.getResult().get(), StandardCharsets.UTF_8), QueryError.QUERY_TIMEOUT.toString());
+        verify(listener).accept("A");
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(HandlerService.HANDLER_RECLAIMED), 1L);
+        Assert.assertEquals(service.count(), 0);
+        service.close();
+    }
 }
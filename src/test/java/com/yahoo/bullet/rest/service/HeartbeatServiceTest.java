@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class HeartbeatServiceTest {
+    private static long metric(HeartbeatService service, String name) {
+        return service.getMetricCollector().extractMetrics().get(name).longValue();
+    }
+
+    @Test
+    public void testSendingHeartbeats() {
+        HeartbeatService service = new HeartbeatService(60000L, Runnable::run, mock(MetricPublisher.class));
+        SSEQueryHandler idle = mock(SSEQueryHandler.class);
+        SSEQueryHandler busy = mock(SSEQueryHandler.class);
+        doReturn(true).when(idle).isHeartbeatDue(60000L);
+        doReturn(true).when(idle).heartbeat(60000L);
+        service.register(idle);
+        service.register(busy);
+
+        service.beat();
+        service.beat();
+
+        verify(idle, times(2)).heartbeat(60000L);
+        verify(busy, never()).heartbeat(anyLong());
+        Assert.assertEquals(metric(service, HeartbeatService.HEARTBEATS), 2L);
+        service.close();
+    }
+
+    @Test
+    public void testDroppingCompletedQueries() {
+        HeartbeatService service = new HeartbeatService(60000L, Runnable::run, mock(MetricPublisher.class));
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).isComplete();
+        service.register(handler);
+
+        service.beat();
+        service.beat();
+
+        verify(handler, times(1)).isComplete();
+        verify(handler, never()).heartbeat(anyLong());
+        service.close();
+    }
+
+    @Test
+    public void testBeatingOnException() {
+        HeartbeatService service = new HeartbeatService(60000L, Runnable::run, mock(MetricPublisher.class));
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).isHeartbeatDue(anyLong());
+        doThrow(new RuntimeException()).when(handler).heartbeat(anyLong());
+        service.register(handler);
+
+        service.beat();
+        service.beat();
+
+        verify(handler, times(2)).heartbeat(anyLong());
+        Assert.assertEquals(metric(service, HeartbeatService.HEARTBEATS), 0L);
+        service.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testStalledHeartbeatsDoNotHoldUpOthers() throws Exception {
+        HeartbeatService service = new HeartbeatService(60000L, 1, null);
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SSEQueryHandler stalling = mock(SSEQueryHandler.class);
+        doReturn(true).when(stalling).isHeartbeatDue(60000L);
+        doAnswer(invocation -> {
+            stalled.countDown();
+            release.await();
+            return true;
+        }).when(stalling).heartbeat(60000L);
+        service.register(stalling);
+
+        service.beat();
+        stalled.await();
+        // The sweep does not wait on the stalled write and does not queue another heartbeat for it
+        service.beat();
+        service.beat();
+        verify(stalling, times(1)).heartbeat(60000L);
+
+        release.countDown();
+        service.close();
+    }
+
+    @Test
+    public void testNotWritingAfterClosing() {
+        HeartbeatService service = new HeartbeatService(60000L, 1, null);
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).isHeartbeatDue(60000L);
+        service.register(handler);
+        service.close();
+
+        service.beat();
+        service.beat();
+        verify(handler, never()).heartbeat(anyLong());
+    }
+
+    @Test
+    public void testDisabled() {
+        HeartbeatService service = new HeartbeatService();
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        service.register(handler);
+
+        service.beat();
+
+        verifyNoInteractions(handler);
+        service.close();
+    }
+
+    @Test
+    public void testSendingHeartbeatsOnSchedule() throws Exception {
+        HeartbeatService service = new HeartbeatService(10L, 1, null);
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).isHeartbeatDue(10L);
+        service.register(handler);
+
+        verify(handler, timeout(5000L).atLeast(2)).heartbeat(10L);
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetrics() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        HeartbeatService service = new HeartbeatService(60000L, Runnable::run, metricPublisher);
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).isHeartbeatDue(60000L);
+        doReturn(true).when(handler).heartbeat(60000L);
+        service.register(handler);
+        service.beat();
+
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Map<String, Number> metrics = captor.getValue();
+        Assert.assertEquals(metrics.get(HeartbeatService.HEARTBEATS), 1L);
+        Assert.assertEquals(metrics.get(HeartbeatService.STREAMS), 1);
+        service.close();
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        HeartbeatService service = new HeartbeatService();
+        service.publishMetrics();
+        service.close();
+    }
+}
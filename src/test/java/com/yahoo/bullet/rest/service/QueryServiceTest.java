@@ -15,6 +15,7 @@ import com.yahoo.bullet.pubsub.Publisher;
 import com.yahoo.bullet.pubsub.Subscriber;
 import com.yahoo.bullet.query.Query;
 import com.yahoo.bullet.rest.TestHelpers.CustomMetadata;
+import com.yahoo.bullet.rest.common.ReaderSettings;
 import com.yahoo.bullet.storage.StorageManager;
 import org.mockito.ArgumentCaptor;
 import org.testng.Assert;
@@ -24,6 +25,7 @@ import org.testng.annotations.Test;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 import static com.yahoo.bullet.TestHelpers.assertNoMetric;
@@ -38,6 +40,8 @@ import static com.yahoo.bullet.rest.TestHelpers.metadataModifyingPublisher;
 import static com.yahoo.bullet.rest.TestHelpers.mockPublisher;
 import static com.yahoo.bullet.rest.TestHelpers.mockStorage;
 import static com.yahoo.bullet.rest.TestHelpers.unRemovableStorage;
+import static com.yahoo.bullet.rest.common.Reader.READER_EMPTY_POLLS;
+import static com.yahoo.bullet.rest.common.ShardedResponder.DISPATCH_LATENCY_US;
 import static com.yahoo.bullet.rest.service.QueryService.QUERY_ADD_FAIL;
 import static com.yahoo.bullet.rest.service.QueryService.QUERY_ADD_SUCCESS;
 import static com.yahoo.bullet.rest.service.QueryService.QUERY_CLEANUP_FAIL;
@@ -61,6 +65,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
@@ -420,4 +425,38 @@ public class QueryServiceTest {
         Assert.assertNull(retrieval);
         assertMetricsEqual(service, 3, of(QUERY_SUBMIT_SUCCESS, 1), of(QUERY_ADD_SUCCESS, 1), of(QUERY_RETRIEVE_FAIL, 1));
     }
+
+    @Test
+    public void testRespondingThroughShards() throws Exception {
+        PubSubMessage response = new PubSubMessage("key", "foo");
+        Subscriber subscriber = mock(Subscriber.class);
+        doReturn(response).doReturn(null).when(subscriber).receive();
+        ReaderSettings settings = new ReaderSettings();
+        settings.setDispatchShards(2);
+
+        QueryService service = new QueryService(mockStorage(), responders, publishers, singletonList(subscriber), serDe,
+                                                1, settings, metricPublisher);
+        verify(responder, timeout(5000)).respond("key", response);
+        verify(subscriber, timeout(5000)).commit("key");
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetricsFromReadersAndShards() throws Exception {
+        ReaderSettings settings = new ReaderSettings();
+        settings.setDispatchShards(1);
+
+        QueryService service = new QueryService(mockStorage(), responders, publishers, subscribers, serDe, 1, settings,
+                                                metricPublisher);
+        service.publishMetrics();
+        service.close();
+
+        ArgumentCaptor<Map<String, Number>> metricsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(metricsCaptor.capture());
+        Map<String, Number> metrics = metricsCaptor.getValue();
+        Assert.assertTrue(metrics.containsKey(QUERY_SUBMIT_SUCCESS));
+        Assert.assertTrue(metrics.containsKey(READER_EMPTY_POLLS));
+        Assert.assertTrue(metrics.containsKey(DISPATCH_LATENCY_US));
+    }
 }
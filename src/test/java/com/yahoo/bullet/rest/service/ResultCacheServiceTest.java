@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import org.mockito.ArgumentCaptor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ResultCacheServiceTest {
+    private static byte[] bytes(String result) {
+        return result.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long sizeOf(String key, String result) {
+        return ResultCacheService.ENTRY_OVERHEAD_BYTES + 2L * key.length() + result.length();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveTTL() {
+        new ResultCacheService(true, 0L, 10, 10L, null);
+    }
+
+    @Test
+    public void testDisabled() {
+        ResultCacheService service = new ResultCacheService();
+        Assert.assertFalse(service.isEnabled());
+        service.put("key", bytes("result"));
+        Assert.assertNull(service.get("key"));
+        Assert.assertEquals(service.size(), 0);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        ResultCacheService service = new ResultCacheService(true, 60000L, 10, 10L, mock(MetricPublisher.class));
+        Assert.assertNull(service.get("key"));
+        service.put("key", bytes("result"));
+        ResultCacheService.Entry entry = service.get("key");
+        Assert.assertEquals(entry.getResult(), bytes("result"));
+        Assert.assertEquals(entry.getSize(), sizeOf("key", "result"));
+        Assert.assertTrue(entry.getAgeMS() < 60000L);
+
+        service.put("key", bytes("other"));
+        Assert.assertEquals(service.get("key").getResult(), bytes("other"));
+        Assert.assertEquals(service.size(), 1);
+
+        Map<String, Number> metrics = service.getMetricCollector().extractMetrics();
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_HIT), 2L);
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_MISS), 1L);
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_EVICTED), 0L);
+    }
+
+    @Test
+    public void testExpiring() throws Exception {
+        ResultCacheService service = new ResultCacheService(true, 1L, 10, 10L, mock(MetricPublisher.class));
+        service.put("key", bytes("result"));
+        Thread.sleep(5L);
+        Assert.assertNull(service.get("key"));
+        Assert.assertEquals(service.size(), 0);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(ResultCacheService.CACHE_MISS), 1L);
+    }
+
+    @Test
+    public void testEvictingLeastRecentlyUsed() {
+        ResultCacheService service = new ResultCacheService(true, 60000L, 2, 10L, mock(MetricPublisher.class));
+        service.put("A", bytes("a"));
+        service.put("B", bytes("b"));
+        service.get("A");
+        service.put("C", bytes("c"));
+        Assert.assertEquals(service.size(), 2);
+        Assert.assertNotNull(service.get("A"));
+        Assert.assertNull(service.get("B"));
+        Assert.assertNotNull(service.get("C"));
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(ResultCacheService.CACHE_EVICTED), 1L);
+    }
+
+    @Test
+    public void testEvictingOverMemoryCap() {
+        // Room for two entries of about 450 bytes
+        ResultCacheService service = new ResultCacheService(true, 60000L, 100, 1L, mock(MetricPublisher.class));
+        String result = new String(new char[380]);
+        service.put("A", bytes(result));
+        service.put("B", bytes(result));
+        Assert.assertEquals(service.size(), 2);
+        service.put("C", bytes(result));
+        Assert.assertEquals(service.size(), 2);
+        Assert.assertNull(service.get("A"));
+
+        // Too large to cache at all
+        service.put("D", bytes(new String(new char[1024])));
+        Assert.assertNull(service.get("D"));
+        Assert.assertEquals(service.size(), 2);
+        Assert.assertEquals(service.getMetricCollector().extractMetrics().get(ResultCacheService.CACHE_EVICTED), 1L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetrics() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        ResultCacheService service = new ResultCacheService(true, 60000L, 10, 10L, metricPublisher);
+        service.put("key", bytes("result"));
+        service.get("key");
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Map<String, Number> metrics = captor.getValue();
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_HIT), 1L);
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_ENTRIES), 1);
+        Assert.assertEquals(metrics.get(ResultCacheService.CACHE_BYTES), sizeOf("key", "result"));
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        ResultCacheService service = new ResultCacheService();
+        Assert.assertFalse(service.isMetricEnabled());
+        service.publishMetrics();
+    }
+}
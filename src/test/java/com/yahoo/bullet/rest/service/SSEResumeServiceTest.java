@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.common.metrics.MetricPublisher;
+import com.yahoo.bullet.rest.query.SSEQueryHandler;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class SSEResumeServiceTest {
+    private static final Supplier<CompressionService.Stream> NO_COMPRESSION = () -> null;
+
+    private static SSEResumeService service(MetricPublisher metricPublisher) {
+        return new SSEResumeService(16, 60000L, metricPublisher);
+    }
+
+    private static long metric(SSEResumeService service, String name) {
+        return service.getMetricCollector().extractMetrics().get(name).longValue();
+    }
+
+    private static Principal principal(String name) {
+        Principal principal = mock(Principal.class);
+        doReturn(name).when(principal).getName();
+        return principal;
+    }
+
+    private static SSEQueryHandler resumable() {
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        doReturn(true).when(handler).resume(any(), any(), any());
+        return handler;
+    }
+
+    @Test
+    public void testDisabled() {
+        SSEResumeService service = new SSEResumeService();
+        SSEQueryHandler handler = resumable();
+        service.register("id", handler, null);
+
+        Assert.assertFalse(service.isEnabled());
+        Assert.assertEquals(service.getBufferSize(), 0);
+        Assert.assertNull(service.resume("id:1", null, mock(SseEmitter.class), NO_COMPRESSION));
+        verifyNoInteractions(handler);
+        service.close();
+    }
+
+    @Test
+    public void testResuming() {
+        SSEResumeService service = service(mock(MetricPublisher.class));
+        SSEQueryHandler handler = resumable();
+        SseEmitter emitter = mock(SseEmitter.class);
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        service.register("id", handler, principal("foo"));
+
+        Assert.assertTrue(service.isEnabled());
+        Assert.assertEquals(service.getBufferSize(), 16);
+        Assert.assertSame(service.resume("id:1", principal("foo"), emitter, () -> compressor), handler);
+        verify(handler).resume(emitter, compressor, "id:1");
+        Assert.assertEquals(metric(service, SSEResumeService.RESUMED), 1L);
+        service.close();
+    }
+
+    @Test
+    public void testNotResumingForAnotherPrincipal() {
+        SSEResumeService service = service(mock(MetricPublisher.class));
+        SSEQueryHandler handler = resumable();
+        service.register("id", handler, principal("foo"));
+
+        Assert.assertNull(service.resume("id:1", principal("bar"), mock(SseEmitter.class), NO_COMPRESSION));
+        Assert.assertNull(service.resume("id:1", null, mock(SseEmitter.class), NO_COMPRESSION));
+        verifyNoInteractions(handler);
+        Assert.assertEquals(metric(service, SSEResumeService.RESUMED), 0L);
+        service.close();
+    }
+
+    @Test
+    public void testNotResumingUnknownStreams() {
+        SSEResumeService service = service(mock(MetricPublisher.class));
+        service.register("id", resumable(), null);
+
+        Assert.assertNull(service.resume("other:1", null, mock(SseEmitter.class), NO_COMPRESSION));
+        Assert.assertNull(service.resume("id", null, mock(SseEmitter.class), NO_COMPRESSION));
+        service.close();
+    }
+
+    @Test
+    public void testNotResumingEndedStream() {
+        SSEResumeService service = service(mock(MetricPublisher.class));
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        CompressionService.Stream compressor = mock(CompressionService.Stream.class);
+        service.register("id", handler, null);
+
+        Assert.assertNull(service.resume("id:1", null, mock(SseEmitter.class), () -> compressor));
+        verify(compressor).close();
+        service.close();
+    }
+
+    @Test
+    public void testReaping() {
+        SSEResumeService service = service(mock(MetricPublisher.class));
+        SSEQueryHandler running = mock(SSEQueryHandler.class);
+        SSEQueryHandler expired = mock(SSEQueryHandler.class);
+        SSEQueryHandler ended = mock(SSEQueryHandler.class);
+        doReturn(true).when(expired).expireDetached(60000L);
+        doReturn(true).when(ended).isComplete();
+        doReturn(true).when(ended).expireDetached(60000L);
+        service.register("running", running, null);
+        service.register("expired", expired, null);
+        service.register("ended", ended, null);
+
+        service.reap();
+
+        Assert.assertEquals(metric(service, SSEResumeService.EXPIRED), 1L);
+        Assert.assertNull(service.resume("expired:1", null, mock(SseEmitter.class), NO_COMPRESSION));
+        Assert.assertNull(service.resume("ended:1", null, mock(SseEmitter.class), NO_COMPRESSION));
+        service.reap();
+        verify(running, times(2)).expireDetached(60000L);
+        service.close();
+    }
+
+    @Test
+    public void testReapingOnSchedule() {
+        SSEResumeService service = new SSEResumeService(16, 10L, null);
+        SSEQueryHandler handler = mock(SSEQueryHandler.class);
+        service.register("id", handler, null);
+
+        verify(handler, timeout(5000L).atLeast(2)).expireDetached(anyLong());
+        service.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPublishingMetrics() {
+        MetricPublisher metricPublisher = mock(MetricPublisher.class);
+        SSEResumeService service = service(metricPublisher);
+        service.register("id", resumable(), null);
+        service.resume("id:1", null, mock(SseEmitter.class), NO_COMPRESSION);
+
+        service.publishMetrics();
+
+        ArgumentCaptor<Map<String, Number>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(metricPublisher).fire(captor.capture());
+        Map<String, Number> metrics = captor.getValue();
+        Assert.assertEquals(metrics.get(SSEResumeService.RESUMED), 1L);
+        Assert.assertEquals(metrics.get(SSEResumeService.EXPIRED), 0L);
+        Assert.assertEquals(metrics.get(SSEResumeService.RESUMABLE), 1);
+        service.close();
+    }
+
+    @Test
+    public void testPublishingMetricsDisabled() {
+        SSEResumeService service = new SSEResumeService();
+        service.publishMetrics();
+        service.close();
+    }
+}
@@ -14,7 +14,6 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
-import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -27,9 +26,9 @@ public class StatusServiceTest {
         doAnswer(invocationOnMock -> {
             invocationOnMock.getArgument(1, QueryHandler.class).fail(null);
             return null;
-        }).when(handlerService).addHandler(anyString(), any());
+        }).when(handlerService).addHandler(anyString(), any(), eq(StatusService.TICK_QUERY));
 
-        StatusService statusService = new StatusService(queryService, handlerService, 30000L, 10L, false, 500);
+        StatusService statusService = new StatusService(queryService, handlerService, 30000L, 10L, false);
         Assert.assertTrue(statusService.isBackendStatusOK());
 
         // <= 10 fails -> status ok
@@ -47,7 +46,7 @@ public class StatusServiceTest {
         doAnswer(invocationOnMock -> {
             ((QueryHandler) invocationOnMock.getArguments()[1]).send(null);
             return null;
-        }).when(handlerService).addHandler(anyString(), any());
+        }).when(handlerService).addHandler(anyString(), any(), eq(StatusService.TICK_QUERY));
 
         // success -> status ok
         statusService.run();
@@ -86,22 +85,4 @@ public class StatusServiceTest {
         TickQueryHandler queryHandler = new TickQueryHandler(0L);
         Assert.assertFalse(queryHandler.hasResult());
     }
-
-    @Test
-    public void testQueryLimitReached() {
-        QueryService queryService = mock(QueryService.class);
-        HandlerService handlerService = mock(HandlerService.class);
-        doReturn(500).when(handlerService).count();
-        StatusService statusService = new StatusService(queryService, handlerService, 30000L, 10L, false, 500);
-        Assert.assertTrue(statusService.queryLimitReached());
-    }
-
-    @Test
-    public void testQueryLimitNotReached() {
-        QueryService queryService = mock(QueryService.class);
-        HandlerService handlerService = mock(HandlerService.class);
-        doReturn(499).when(handlerService).count();
-        StatusService statusService = new StatusService(queryService, handlerService, 30000L, 10L, false, 500);
-        Assert.assertFalse(statusService.queryLimitReached());
-    }
 }
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2022, Yahoo Inc.
+ *  Licensed under the terms of the Apache License, Version 2.0.
+ *  See the LICENSE file associated with the project for terms.
+ */
+package com.yahoo.bullet.rest.service;
+
+import com.yahoo.bullet.rest.model.TemplateRequest;
+import com.yahoo.bullet.rest.model.TemplateResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TemplateServiceTest {
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonPositiveMaxEntries() {
+        new TemplateService(0);
+    }
+
+    @Test
+    public void testRegisteringAndBinding() {
+        TemplateService service = new TemplateService(10);
+        TemplateResponse response = service.register("SELECT *  FROM STREAM(:duration, TIME)\nLIMIT :limit");
+        Assert.assertEquals(response.getTemplate(), "SELECT *  FROM STREAM(:duration, TIME)\nLIMIT :limit");
+        Assert.assertEquals(response.getParameters(), Arrays.asList("duration", "limit"));
+        Assert.assertNotNull(service.getTemplate(response.getId()));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("duration", 1000);
+        parameters.put("limit", 1);
+        TemplateRequest request = new TemplateRequest(response.getId(), parameters);
+        Assert.assertEquals(service.bind(request), "SELECT *  FROM STREAM(1000, TIME)\nLIMIT 1");
+    }
+
+    @Test
+    public void testTemplatesDifferingInCommentsShareAnID() {
+        TemplateService service = new TemplateService(10);
+        String id = service.register("SELECT * FROM STREAM() -- :a\nWHERE b = :b").getId();
+        Assert.assertEquals(service.register("SELECT * FROM STREAM() WHERE b = :b").getId(), id);
+
+        TemplateRequest request = new TemplateRequest(id, Collections.singletonMap("b", "x"));
+        Assert.assertEquals(service.bind(request), "SELECT * FROM STREAM() WHERE b = 'x'");
+    }
+
+    @Test
+    public void testRegisteringIdenticalTemplates() {
+        TemplateService service = new TemplateService(10);
+        String id = service.register("SELECT :a FROM STREAM()").getId();
+        Assert.assertEquals(service.register("  SELECT :a\tFROM STREAM() ").getId(), id);
+        Assert.assertNotEquals(service.register("SELECT :b FROM STREAM()").getId(), id);
+        Assert.assertEquals(service.size(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRegisteringBadTemplate() {
+        new TemplateService(10).register("SELECT : FROM STREAM()");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Unknown template: foo")
+    public void testBindingUnknownTemplate() {
+        new TemplateService(10).bind(new TemplateRequest("foo", null));
+    }
+
+    @Test
+    public void testDroppingLeastRecentlyUsed() {
+        TemplateService service = new TemplateService(2);
+        String a = service.register("SELECT :a FROM STREAM()").getId();
+        String b = service.register("SELECT :b FROM STREAM()").getId();
+        service.getTemplate(a);
+        String c = service.register("SELECT :c FROM STREAM()").getId();
+        Assert.assertEquals(service.size(), 2);
+        Assert.assertNotNull(service.getTemplate(a));
+        Assert.assertNull(service.getTemplate(b));
+        Assert.assertNotNull(service.getTemplate(c));
+    }
+}
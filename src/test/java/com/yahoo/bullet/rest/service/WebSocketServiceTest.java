@@ -6,6 +6,8 @@
 package com.yahoo.bullet.rest.service;
 
 import com.yahoo.bullet.query.Query;
+import com.yahoo.bullet.rest.common.NativeWebSocketWriter;
+import com.yahoo.bullet.rest.model.RawWebSocketResponse;
 import com.yahoo.bullet.rest.model.WebSocketResponse;
 import com.yahoo.bullet.rest.query.QueryHandler;
 import com.yahoo.bullet.rest.query.WebSocketQueryHandler;
@@ -17,14 +19,23 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
 import static com.yahoo.bullet.rest.TestHelpers.assertEqualsBQL;
 import static com.yahoo.bullet.rest.TestHelpers.assertEqualsQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getBQLQuery;
 import static com.yahoo.bullet.rest.TestHelpers.getQuery;
+import static java.util.Collections.singletonList;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -39,7 +50,11 @@ public class WebSocketServiceTest {
         queryService = mock(QueryService.class);
         handlerService = mock(HandlerService.class);
         simpMessagingTemplate = mock(SimpMessagingTemplate.class);
-        webSocketService = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response");
+        webSocketService = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response", 64, new FlowControlService(0));
+    }
+
+    private void addQueries(String sessionID, String... queryIDs) {
+        webSocketService.getSessionIDMap().put(sessionID, new HashSet<>(Arrays.asList(queryIDs)));
     }
 
     @Test
@@ -53,7 +68,7 @@ public class WebSocketServiceTest {
 
     @Test
     public void testSendKillSignalWithMissingQueryID() {
-        webSocketService.getSessionIDMap().put("sessionID", "queryID");
+        addQueries("sessionID", "queryID");
         webSocketService.killQuery("sessionID", null);
 
         verify(handlerService).removeHandler(any());
@@ -62,7 +77,7 @@ public class WebSocketServiceTest {
 
     @Test
     public void testSendNoKillSignalIfDifferentQueryIDThanInSession() {
-        webSocketService.getSessionIDMap().put("sessionID", "queryID");
+        addQueries("sessionID", "queryID");
         webSocketService.killQuery("sessionID", "differentQueryID");
 
         verify(handlerService, never()).removeHandler(any());
@@ -71,7 +86,7 @@ public class WebSocketServiceTest {
 
     @Test
     public void testSendKillSignalWithExistingSessionID() {
-        webSocketService.getSessionIDMap().put("sessionID", "queryID");
+        addQueries("sessionID", "queryID");
         webSocketService.killQuery("sessionID", "queryID");
 
         verify(handlerService).removeHandler("queryID");
@@ -79,6 +94,17 @@ public class WebSocketServiceTest {
         Assert.assertFalse(webSocketService.getSessionIDMap().containsKey("sessionID"));
     }
 
+    @Test
+    public void testKillingCompletesTheHandler() {
+        QueryHandler handler = mock(QueryHandler.class);
+        doReturn(handler).when(handlerService).removeHandler("queryID");
+        addQueries("sessionID", "queryID");
+        webSocketService.killQuery("sessionID", "queryID");
+
+        verify(handler).complete();
+        verify(queryService).kill("queryID");
+    }
+
     @Test
     public void testSubmitQuery() {
         String sessionID = "sessionID";
@@ -90,7 +116,7 @@ public class WebSocketServiceTest {
         ArgumentCaptor<String> bqlCaptor = ArgumentCaptor.forClass(String.class);
         ArgumentCaptor<QueryHandler> handlerCaptor = ArgumentCaptor.forClass(QueryHandler.class);
         verify(queryService).submit(eq(queryID), queryCaptor.capture(), bqlCaptor.capture());
-        verify(handlerService).addHandler(eq(queryID), handlerCaptor.capture());
+        verify(handlerService).addHandler(eq(queryID), handlerCaptor.capture(), any(Query.class));
 
         assertEqualsQuery(queryCaptor.getValue());
         assertEqualsBQL(bqlCaptor.getValue());
@@ -98,6 +124,58 @@ public class WebSocketServiceTest {
         Assert.assertTrue(webSocketService.getSessionIDMap().containsKey(sessionID));
     }
 
+    @Test
+    public void testSubmittingManyQueriesOnASession() {
+        webSocketService.submitQuery("foo", "sessionID", getQuery(), getBQLQuery(), mock(WebSocketQueryHandler.class));
+        webSocketService.submitQuery("bar", "sessionID", getQuery(), getBQLQuery(), mock(WebSocketQueryHandler.class));
+
+        Assert.assertEquals(webSocketService.getSessionIDMap().get("sessionID"), new HashSet<>(Arrays.asList("foo", "bar")));
+    }
+
+    @Test
+    public void testKillingOneOfManyQueries() {
+        addQueries("sessionID", "foo", "bar");
+        addQueries("otherSessionID", "baz");
+        webSocketService.killQuery("sessionID", "foo");
+        webSocketService.killQuery("sessionID", "baz");
+
+        verify(queryService).kill("foo");
+        verify(queryService, never()).kill("bar");
+        verify(queryService, never()).kill("baz");
+        Assert.assertEquals(webSocketService.getSessionIDMap().get("sessionID"), Collections.singleton("bar"));
+    }
+
+    @Test
+    public void testKillingAllQueriesOfASession() {
+        addQueries("sessionID", "foo", "bar");
+        webSocketService.killQuery("sessionID", null);
+
+        verify(queryService).kill("foo");
+        verify(queryService).kill("bar");
+        Assert.assertFalse(webSocketService.getSessionIDMap().containsKey("sessionID"));
+    }
+
+    @Test
+    public void testDeletingQueries() {
+        addQueries("sessionID", "foo", "bar");
+        webSocketService.deleteQuery("sessionID", "foo");
+        Assert.assertEquals(webSocketService.getSessionIDMap().get("sessionID"), Collections.singleton("bar"));
+
+        webSocketService.deleteQuery("sessionID", "bar");
+        webSocketService.deleteQuery("otherSessionID", "bar");
+        Assert.assertFalse(webSocketService.getSessionIDMap().containsKey("sessionID"));
+        verify(queryService, never()).kill(any());
+    }
+
+    @Test
+    public void testDisconnectingKillsAllQueries() {
+        addQueries("sessionID", "foo", "bar");
+        webSocketService.disconnectSession("sessionID");
+
+        verify(queryService).kill("foo");
+        verify(queryService).kill("bar");
+    }
+
     @Test
     public void testSendResponse() {
         String sessionID = "sessionID";
@@ -110,4 +188,158 @@ public class WebSocketServiceTest {
 
         verify(simpMessagingTemplate).convertAndSendToUser("sessionID", "/response", response, (MessageHeaders) null);
     }
+
+    @Test
+    public void testConnectingSessions() {
+        webSocketService.connectSession("raw", "RAW");
+        webSocketService.connectSession("json", null);
+        webSocketService.connectSession("other", "unknown");
+
+        Assert.assertTrue(webSocketService.isRawSession("raw"));
+        Assert.assertFalse(webSocketService.isRawSession("json"));
+        Assert.assertFalse(webSocketService.isRawSession("other"));
+    }
+
+    @Test
+    public void testDisconnectingSessions() {
+        webSocketService.connectSession("sessionID", WebSocketService.RAW_WIRE_FORMAT);
+        addQueries("sessionID", "queryID");
+        webSocketService.disconnectSession("sessionID");
+
+        verify(queryService).kill("queryID");
+        Assert.assertFalse(webSocketService.isRawSession("sessionID"));
+    }
+
+    @Test
+    public void testSendRawResponse() {
+        SimpMessageHeaderAccessor headerAccessor = mock(SimpMessageHeaderAccessor.class);
+        webSocketService.connectSession("sessionID", WebSocketService.RAW_WIRE_FORMAT);
+
+        webSocketService.sendResponse("sessionID", new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "{\"records\":[]}"), headerAccessor);
+
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(simpMessagingTemplate).convertAndSendToUser(eq("sessionID"), eq("/response"), captor.capture(), (MessageHeaders) any());
+        RawWebSocketResponse response = (RawWebSocketResponse) captor.getValue();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.MESSAGE);
+        Assert.assertEquals(new String(response.getContent(), StandardCharsets.UTF_8), "{\"records\":[]}");
+    }
+
+    @Test
+    public void testSendRawAcknowledgement() {
+        SimpMessageHeaderAccessor headerAccessor = mock(SimpMessageHeaderAccessor.class);
+        webSocketService.connectSession("sessionID", WebSocketService.RAW_WIRE_FORMAT);
+
+        webSocketService.sendResponse("sessionID", new WebSocketResponse(WebSocketResponse.Type.ACK, "queryID"), headerAccessor);
+
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(simpMessagingTemplate).convertAndSendToUser(anyString(), anyString(), captor.capture(), (MessageHeaders) any());
+        RawWebSocketResponse response = (RawWebSocketResponse) captor.getValue();
+        Assert.assertEquals(response.getType(), WebSocketResponse.Type.ACK);
+        Assert.assertEquals(new String(response.getContent(), StandardCharsets.UTF_8), "\"queryID\"");
+    }
+
+    @Test
+    public void testFragmentSize() {
+        Assert.assertEquals(webSocketService.getFragmentSizeBytes(), 63 * 1024);
+        WebSocketService small = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response", 1, new FlowControlService(0));
+        Assert.assertEquals(small.getFragmentSizeBytes(), 512);
+    }
+
+    @Test
+    public void testSendRawFragment() {
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create();
+        headerAccessor.setNativeHeader(WebSocketService.FRAGMENT_ID_HEADER, "queryID-0");
+        webSocketService.connectSession("sessionID", WebSocketService.RAW_WIRE_FORMAT);
+
+        WebSocketResponse response = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "{\"records\":");
+        webSocketService.sendResponse("sessionID", response, headerAccessor);
+
+        verify(simpMessagingTemplate).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(response), (MessageHeaders) any());
+    }
+
+    @Test
+    public void testSendingIsFlowControlled() {
+        FlowControlService flowControlService = new FlowControlService(1);
+        webSocketService = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response", 64, flowControlService);
+        flowControlService.open("sessionID", () -> { });
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create();
+
+        WebSocketResponse first = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "foo");
+        WebSocketResponse second = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "bar");
+        webSocketService.sendResponse("sessionID", first, headerAccessor);
+        webSocketService.sendResponse("sessionID", second, headerAccessor);
+
+        verify(simpMessagingTemplate).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(first), (MessageHeaders) any());
+        verify(simpMessagingTemplate, never()).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(second), (MessageHeaders) any());
+        flowControlService.delivered("sessionID");
+        verify(simpMessagingTemplate).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(second), (MessageHeaders) any());
+    }
+
+    @Test
+    public void testOnlyWindowResultsAreDropped() {
+        FlowControlService flowControlService = new FlowControlService(1, 1, FlowControlService.OverflowPolicy.DROP_OLDEST, null);
+        webSocketService = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response", 64, flowControlService);
+        flowControlService.open("sessionID", () -> { });
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create();
+
+        WebSocketResponse first = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "foo");
+        WebSocketResponse window = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "bar");
+        WebSocketResponse last = new WebSocketResponse(WebSocketResponse.Type.COMPLETE, "baz");
+        webSocketService.sendResult("sessionID", "queryID", singletonList(first), singletonList(headerAccessor));
+        webSocketService.sendResult("sessionID", "queryID", singletonList(window), singletonList(headerAccessor));
+        webSocketService.sendResult("sessionID", "queryID", singletonList(last), singletonList(headerAccessor));
+        Assert.assertEquals(flowControlService.getPending("sessionID"), 1);
+
+        flowControlService.delivered("sessionID");
+        verify(simpMessagingTemplate, never()).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(window), (MessageHeaders) any());
+        verify(simpMessagingTemplate).convertAndSendToUser(eq("sessionID"), eq("/response"), eq(last), (MessageHeaders) any());
+    }
+
+    @Test
+    public void testSendingToNativeSessions() {
+        NativeWebSocketWriter writer = mock(NativeWebSocketWriter.class);
+        webSocketService.connectNativeSession("sessionID", writer);
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create();
+        headerAccessor.setNativeHeader(WebSocketService.CORRELATION_ID_HEADER, "panel-1");
+
+        webSocketService.sendResponse("sessionID", new WebSocketResponse(WebSocketResponse.Type.ACK, "foo"), headerAccessor);
+        webSocketService.sendResult("sessionID", "foo", singletonList(new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "{}")),
+                                    singletonList(SimpMessageHeaderAccessor.create()));
+
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(writer, times(2)).send(captor.capture(), any());
+        Assert.assertEquals(new String(captor.getAllValues().get(0), StandardCharsets.UTF_8),
+                            "{\"type\":\"ACK\",\"correlationID\":\"panel-1\",\"content\":\"foo\"}");
+        Assert.assertEquals(new String(captor.getAllValues().get(1), StandardCharsets.UTF_8), "{\"type\":\"MESSAGE\",\"content\":{}}");
+        verify(simpMessagingTemplate, never()).convertAndSendToUser(anyString(), anyString(), any(), (MessageHeaders) any());
+    }
+
+    @Test
+    public void testNativeSessionsAreFlowControlled() {
+        FlowControlService flowControlService = new FlowControlService(1);
+        webSocketService = new WebSocketService(queryService, handlerService, simpMessagingTemplate, "/response", 64, flowControlService);
+        flowControlService.open("sessionID", () -> { });
+        NativeWebSocketWriter writer = mock(NativeWebSocketWriter.class);
+        webSocketService.connectNativeSession("sessionID", writer);
+
+        WebSocketResponse response = new WebSocketResponse(WebSocketResponse.Type.MESSAGE, "{}");
+        webSocketService.sendResponse("sessionID", response, SimpMessageHeaderAccessor.create());
+        webSocketService.sendResponse("sessionID", response, SimpMessageHeaderAccessor.create());
+
+        ArgumentCaptor<Runnable> written = ArgumentCaptor.forClass(Runnable.class);
+        verify(writer).send(any(), written.capture());
+        Assert.assertEquals(flowControlService.getPending("sessionID"), 1);
+        written.getValue().run();
+        verify(writer, times(2)).send(any(), any());
+    }
+
+    @Test
+    public void testNotFragmentingForNativeSessions() {
+        webSocketService.connectNativeSession("native", mock(NativeWebSocketWriter.class));
+
+        Assert.assertEquals(webSocketService.getFragmentSizeBytes("native"), 0);
+        Assert.assertEquals(webSocketService.getFragmentSizeBytes("other"), 63 * 1024);
+        webSocketService.disconnectSession("native");
+        Assert.assertEquals(webSocketService.getFragmentSizeBytes("native"), 63 * 1024);
+    }
 }